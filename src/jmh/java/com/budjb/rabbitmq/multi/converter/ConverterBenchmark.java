@@ -0,0 +1,204 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.converter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link MessageConverterManager#convert} in both directions for each built-in converter.
+ * Text payloads (JSON and string) are measured across body sizes; numeric payloads have a fixed
+ * size and are measured separately. Run with the GC profiler to compare the allocation per
+ * conversion ({@code gc.alloc.rate.norm}).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConverterBenchmark {
+    /**
+     * Creates a converter manager with the built-in converters, registered in the same order as
+     * the auto-configuration registers them.
+     */
+    private static MessageConverterManager createMessageConverterManager() {
+        return new MessageConverterManager(Arrays.asList(
+            new JsonMessageConverter(),
+            new IntegerMessageConverter(),
+            new LongMessageConverter(),
+            new StringMessageConverter()
+        ));
+    }
+
+    /**
+     * JSON and string payloads of a given approximate size.
+     */
+    @State(Scope.Benchmark)
+    public static class TextPayload {
+        /**
+         * Payload format.
+         */
+        @Param({"json", "string"})
+        public String format;
+
+        /**
+         * Approximate size of the converted body, in bytes.
+         */
+        @Param({"64", "1024", "16384"})
+        public int size;
+
+        /**
+         * Converter manager under test.
+         */
+        MessageConverterManager messageConverterManager;
+
+        /**
+         * Object to convert to bytes.
+         */
+        ObjectToByteInput objectInput;
+
+        /**
+         * Bytes to convert to an object.
+         */
+        ByteToObjectInput bytesInput;
+
+        /**
+         * Builds the payload and its converted form.
+         */
+        @Setup
+        public void setup() {
+            messageConverterManager = createMessageConverterManager();
+
+            Object body = format.equals("json") ? createMap(size) : createString(size);
+
+            objectInput = new ObjectToByteInput(body);
+
+            ObjectToByteResult converted = messageConverterManager.convert(objectInput);
+            bytesInput = new ByteToObjectInput(converted.getResult(), converted.getMimeType());
+        }
+
+        /**
+         * Creates a map whose JSON form is at least the given number of bytes.
+         */
+        private static Map<String, Object> createMap(int size) {
+            Map<String, Object> map = new LinkedHashMap<>();
+
+            // Each entry serializes to roughly 32 bytes.
+            for (int i = 0; i * 32 < size; i++) {
+                map.put("field" + i, "value-" + i + "-abcdefghijklm");
+            }
+
+            return map;
+        }
+
+        /**
+         * Creates a string of the given number of characters.
+         */
+        private static String createString(int size) {
+            char[] chars = new char[size];
+            Arrays.fill(chars, 'x');
+            return new String(chars);
+        }
+    }
+
+    /**
+     * Integer and long payloads.
+     */
+    @State(Scope.Benchmark)
+    public static class NumberPayload {
+        /**
+         * Payload format.
+         */
+        @Param({"integer", "long"})
+        public String format;
+
+        /**
+         * Converter manager under test.
+         */
+        MessageConverterManager messageConverterManager;
+
+        /**
+         * Object to convert to bytes.
+         */
+        ObjectToByteInput objectInput;
+
+        /**
+         * Bytes to convert to an object.
+         */
+        ByteToObjectInput bytesInput;
+
+        /**
+         * Builds the payload and its converted form.
+         */
+        @Setup
+        public void setup() {
+            messageConverterManager = createMessageConverterManager();
+
+            Object body = format.equals("integer") ? (Object) 1234567 : (Object) 1234567890123L;
+
+            objectInput = new ObjectToByteInput(body);
+
+            ObjectToByteResult converted = messageConverterManager.convert(objectInput);
+            bytesInput = new ByteToObjectInput(converted.getResult(), converted.getMimeType());
+        }
+    }
+
+    /**
+     * Converts a text payload to bytes.
+     */
+    @Benchmark
+    public ObjectToByteResult textToBytes(TextPayload payload) {
+        return payload.messageConverterManager.convert(payload.objectInput);
+    }
+
+    /**
+     * Converts the bytes of a text payload back to an object.
+     */
+    @Benchmark
+    public ByteToObjectResult textFromBytes(TextPayload payload) {
+        return payload.messageConverterManager.convert(payload.bytesInput);
+    }
+
+    /**
+     * Converts a numeric payload to bytes.
+     */
+    @Benchmark
+    public ObjectToByteResult numberToBytes(NumberPayload payload) {
+        return payload.messageConverterManager.convert(payload.objectInput);
+    }
+
+    /**
+     * Converts the bytes of a numeric payload back to an object.
+     */
+    @Benchmark
+    public ByteToObjectResult numberFromBytes(NumberPayload payload) {
+        return payload.messageConverterManager.convert(payload.bytesInput);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.publisher;
+
+import com.budjb.rabbitmq.multi.config.ConnectionConfiguration;
+import com.budjb.rabbitmq.multi.config.RabbitConfigurationProperties;
+import com.budjb.rabbitmq.multi.connection.ConnectionContext;
+import com.budjb.rabbitmq.multi.connection.ConnectionManager;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.Collections;
+
+/**
+ * Builds connection managers backed by connections and channels that discard everything, so that
+ * benchmarks measure the client-side publish path only.
+ */
+final class NoopConnections {
+    /**
+     * Invocation handler for channels. Returns {@code true} for {@code isOpen} and a default value
+     * for every other method.
+     */
+    private static final InvocationHandler CHANNEL_HANDLER = (proxy, method, args) -> defaultValue(method.getReturnType(), method.getName());
+
+    /**
+     * Constructor. This is a utility class and is not meant to be instantiated.
+     */
+    private NoopConnections() {
+    }
+
+    /**
+     * Creates a started connection manager with a single, default connection.
+     *
+     * @return A started connection manager.
+     */
+    static ConnectionManager createConnectionManager() {
+        ConnectionConfiguration connectionConfiguration = new ConnectionConfiguration();
+        connectionConfiguration.setUri(URI.create("amqp://localhost"));
+        connectionConfiguration.setDefault(true);
+
+        ConnectionContext connectionContext = new ConnectionContext("benchmark", connectionConfiguration, (configuration, meterRegistry) -> createConnection(), null);
+
+        ConnectionManager connectionManager = new ConnectionManager(new RabbitConfigurationProperties(), Collections.singletonMap("benchmark", connectionContext));
+        connectionManager.start();
+
+        return connectionManager;
+    }
+
+    /**
+     * Creates a connection whose channels discard every call.
+     */
+    private static Connection createConnection() {
+        Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class}, CHANNEL_HANDLER);
+
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+            if (method.getName().equals("createChannel")) {
+                return channel;
+            }
+            return defaultValue(method.getReturnType(), method.getName());
+        });
+    }
+
+    /**
+     * Returns the value a no-op implementation of a method returns.
+     */
+    private static Object defaultValue(Class<?> type, String name) {
+        if (type == boolean.class) {
+            return name.equals("isOpen");
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+}
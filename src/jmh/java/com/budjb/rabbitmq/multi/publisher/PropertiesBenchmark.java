@@ -0,0 +1,121 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.publisher;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link RabbitMessageProperties#toBasicProperties()} for a minimal message and for one
+ * that sets every property, and compares it with a {@link MessageTemplate} applying per-message
+ * properties on top of its prebuilt properties.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PropertiesBenchmark {
+    /**
+     * Properties with only a routing key set.
+     */
+    private RabbitMessageProperties minimal;
+
+    /**
+     * Properties with every message property set.
+     */
+    private RabbitMessageProperties full;
+
+    /**
+     * Template built from the full properties.
+     */
+    private MessageTemplate template;
+
+    /**
+     * Timestamp applied to messages.
+     */
+    private Instant timestamp;
+
+    /**
+     * Builds the message properties.
+     */
+    @Setup
+    public void setup() {
+        timestamp = Instant.now();
+
+        minimal = new RabbitMessageProperties();
+        minimal.setRoutingKey("benchmark");
+
+        Map<String, Object> headers = new HashMap<>();
+        headers.put("tenant", "benchmark");
+        headers.put("attempt", 1);
+
+        full = new RabbitMessageProperties();
+        full.setRoutingKey("benchmark");
+        full.setHeaders(headers);
+        full.setContentType("application/json;charset=UTF-8");
+        full.setContentEncoding("identity");
+        full.setDeliveryMode(2);
+        full.setPriority(5);
+        full.setCorrelationId("correlation");
+        full.setReplyTo("reply-queue");
+        full.setMessageId("message");
+        full.setTimestamp(timestamp);
+        full.setType("benchmark");
+        full.setAppId("benchmark");
+
+        template = MessageTemplate.from(full);
+    }
+
+    /**
+     * Builds the properties of a minimal message.
+     */
+    @Benchmark
+    public BasicProperties minimal() {
+        return minimal.toBasicProperties();
+    }
+
+    /**
+     * Builds the properties of a message that sets every property.
+     */
+    @Benchmark
+    public BasicProperties full() {
+        return full.toBasicProperties();
+    }
+
+    /**
+     * Applies per-message properties on top of a template's prebuilt properties.
+     */
+    @Benchmark
+    public BasicProperties template() {
+        return template.toBasicProperties("correlation", "message", timestamp);
+    }
+}
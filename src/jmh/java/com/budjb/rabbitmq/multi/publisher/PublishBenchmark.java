@@ -0,0 +1,178 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.publisher;
+
+import com.budjb.rabbitmq.multi.HashedWheelTimer;
+import com.budjb.rabbitmq.multi.connection.ConnectionManager;
+import com.budjb.rabbitmq.multi.converter.MessageConverterManager;
+import com.budjb.rabbitmq.multi.converter.StringMessageConverter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of publishing through {@link RabbitMessageProperties} with the fast-path
+ * {@code send(exchange, routingKey, body)} overload and a {@link PublishRoute}, and measures the
+ * overhead of publish-path metrics. Run with the GC profiler to compare the allocation per publish
+ * ({@code gc.alloc.rate.norm}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PublishBenchmark {
+    /**
+     * Binary message body.
+     */
+    private final byte[] bytes = new byte[256];
+
+    /**
+     * String message body.
+     */
+    private final String string = "benchmark";
+
+    /**
+     * Connection manager backed by a no-op connection.
+     */
+    private ConnectionManager connectionManager;
+
+    /**
+     * Publisher under test.
+     */
+    private RabbitMessagePublisher publisher;
+
+    /**
+     * Publisher under test that records publish-path metrics.
+     */
+    private RabbitMessagePublisher instrumentedPublisher;
+
+    /**
+     * Timer of the instrumented publisher.
+     */
+    private HashedWheelTimer timer;
+
+    /**
+     * Route to the benchmark destination.
+     */
+    private PublishRoute route;
+
+    /**
+     * Creates the publisher.
+     */
+    @Setup
+    public void setup() {
+        connectionManager = NoopConnections.createConnectionManager();
+        publisher = new RabbitMessagePublisher(connectionManager, new MessageConverterManager(Collections.singletonList(new StringMessageConverter())));
+
+        RabbitMessageProperties template = new RabbitMessageProperties();
+        template.setRoutingKey("benchmark");
+        route = publisher.route(template);
+
+        timer = new HashedWheelTimer("benchmark-rpc-timer");
+        instrumentedPublisher = new RabbitMessagePublisher(connectionManager, new MessageConverterManager(Collections.singletonList(new StringMessageConverter())),
+            timer, null, null, new SimpleMeterRegistry());
+    }
+
+    /**
+     * Closes the connection manager.
+     */
+    @TearDown
+    public void tearDown() {
+        publisher.stop();
+        timer.stop();
+        connectionManager.stop();
+    }
+
+    /**
+     * Publishes a binary body the way the convenience overloads used to, through a double-brace
+     * initialized {@link RabbitMessageProperties}.
+     */
+    @Benchmark
+    public void bytesWithProperties() throws Exception {
+        publisher.send(new RabbitMessageProperties() {{
+            setExchange("");
+            setRoutingKey("benchmark");
+            setBody(bytes);
+        }});
+    }
+
+    /**
+     * Publishes a binary body through the fast path.
+     */
+    @Benchmark
+    public void bytesFastPath() throws Exception {
+        publisher.send("", "benchmark", bytes);
+    }
+
+    /**
+     * Publishes a string body the way the convenience overloads used to, through a double-brace
+     * initialized {@link RabbitMessageProperties}.
+     */
+    @Benchmark
+    public void stringWithProperties() throws Exception {
+        publisher.send(new RabbitMessageProperties() {{
+            setExchange("");
+            setRoutingKey("benchmark");
+            setBody(string);
+        }});
+    }
+
+    /**
+     * Publishes a string body through the fast path.
+     */
+    @Benchmark
+    public void stringFastPath() throws Exception {
+        publisher.send("", "benchmark", string);
+    }
+
+    /**
+     * Publishes a binary body through a publish route.
+     */
+    @Benchmark
+    public void bytesRoute() throws Exception {
+        route.send(bytes);
+    }
+
+    /**
+     * Publishes a string body through a publish route.
+     */
+    @Benchmark
+    public void stringRoute() throws Exception {
+        route.send(string);
+    }
+
+    /**
+     * Publishes a string body through the fast path of a publisher that records metrics.
+     */
+    @Benchmark
+    public void stringFastPathInstrumented() throws Exception {
+        instrumentedPublisher.send("", "benchmark", string);
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A timer optimized for large numbers of short-lived timeouts that are usually cancelled before
+ * they expire, such as RPC reply timeouts.
+ * <p>
+ * Timeouts are hashed into a fixed ring of buckets by their deadline and a single worker thread
+ * advances through the ring once per tick, so scheduling and cancelling are O(1) and the cost of
+ * a timeout does not depend on how many others are outstanding. Expiry is accurate to within one
+ * tick. Tasks run on the worker thread and must not block.
+ */
+public class HashedWheelTimer {
+    /**
+     * Describes a scheduled task that may be cancelled.
+     */
+    public interface Timeout {
+        /**
+         * Cancels the task if it has not already run.
+         *
+         * @return Whether the task was cancelled by this call.
+         */
+        boolean cancel();
+    }
+
+    /**
+     * Logger.
+     */
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Name of the worker thread.
+     */
+    private final String threadName;
+
+    /**
+     * Duration of a tick, in nanoseconds.
+     */
+    private final long tickDuration;
+
+    /**
+     * Ring of buckets.
+     */
+    private final Bucket[] wheel;
+
+    /**
+     * Mask used to map a tick to its bucket.
+     */
+    private final int mask;
+
+    /**
+     * Newly scheduled timeouts waiting to be placed into the wheel by the worker.
+     */
+    private final Queue<Entry> scheduled = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Cancelled timeouts waiting to be removed from the wheel by the worker.
+     */
+    private final Queue<Entry> cancelled = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Whether the worker thread has been started.
+     */
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    /**
+     * Time the worker thread started, in nanoseconds.
+     */
+    private volatile long startTime;
+
+    /**
+     * Worker thread.
+     */
+    private volatile Thread worker;
+
+    /**
+     * Whether the timer has been stopped.
+     */
+    private volatile boolean stopped;
+
+    /**
+     * Constructor that uses a 10 millisecond tick and a 512 bucket wheel.
+     *
+     * @param threadName Name of the worker thread.
+     */
+    public HashedWheelTimer(String threadName) {
+        this(threadName, 10, TimeUnit.MILLISECONDS, 512);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param threadName    Name of the worker thread.
+     * @param tickDuration  Duration of a tick.
+     * @param unit          Unit of the tick duration.
+     * @param ticksPerWheel Number of buckets in the wheel; rounded up to a power of two.
+     */
+    public HashedWheelTimer(String threadName, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tick duration must be greater than 0");
+        }
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+            throw new IllegalArgumentException("ticks per wheel must be between 1 and 2^30");
+        }
+
+        int size = 1;
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+
+        this.threadName = threadName;
+        this.tickDuration = unit.toNanos(tickDuration);
+        this.wheel = new Bucket[size];
+        this.mask = size - 1;
+
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+    }
+
+    /**
+     * Schedules a task to run once after the given delay. The worker thread is started on first use.
+     *
+     * @param task  Task to run.
+     * @param delay Delay before the task runs.
+     * @param unit  Unit of the delay.
+     * @return A handle that may be used to cancel the task.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (stopped) {
+            throw new IllegalStateException("timer " + threadName + " has been stopped");
+        }
+
+        start();
+
+        Entry entry = new Entry(task, System.nanoTime() - startTime + unit.toNanos(delay));
+        scheduled.add(entry);
+
+        return entry;
+    }
+
+    /**
+     * Stops the worker thread. Tasks that have not yet run are discarded.
+     */
+    public void stop() {
+        stopped = true;
+
+        Thread worker = this.worker;
+
+        if (worker != null) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    /**
+     * Starts the worker thread if it has not already been started.
+     */
+    private void start() {
+        if (started.get() || !started.compareAndSet(false, true)) {
+            while (startTime == 0) {
+                Thread.yield();
+            }
+            return;
+        }
+
+        Thread thread = new Thread(this::run, threadName);
+        thread.setDaemon(true);
+        worker = thread;
+
+        // The worker measures ticks from this instant, so it is set before any timeout is created.
+        // Zero is reserved to mean "not yet started".
+        long now = System.nanoTime();
+        startTime = now == 0 ? 1 : now;
+        thread.start();
+    }
+
+    /**
+     * Worker loop.
+     */
+    private void run() {
+        long tick = 0;
+
+        while (!stopped) {
+            long deadline = tickDuration * (tick + 1);
+            long sleep;
+
+            while ((sleep = deadline - (System.nanoTime() - startTime)) > 0 && !stopped) {
+                LockSupport.parkNanos(this, sleep);
+            }
+
+            if (stopped) {
+                break;
+            }
+
+            removeCancelled();
+            transferScheduled(tick);
+            wheel[(int) (tick & mask)].expire(deadline);
+            tick++;
+        }
+    }
+
+    /**
+     * Removes cancelled entries from their buckets.
+     */
+    private void removeCancelled() {
+        Entry entry;
+
+        while ((entry = cancelled.poll()) != null) {
+            if (entry.bucket != null) {
+                entry.bucket.remove(entry);
+            }
+        }
+    }
+
+    /**
+     * Places newly scheduled entries into the wheel.
+     */
+    private void transferScheduled(long currentTick) {
+        // Bound the work per tick so that a flood of new timeouts cannot starve expiry.
+        for (int i = 0; i < 100000; i++) {
+            Entry entry = scheduled.poll();
+
+            if (entry == null) {
+                return;
+            }
+
+            if (entry.state.get() != Entry.PENDING) {
+                continue;
+            }
+
+            long ticks = entry.deadline / tickDuration;
+            long target = Math.max(ticks, currentTick);
+
+            entry.remainingRounds = (ticks - currentTick) / wheel.length;
+            wheel[(int) (target & mask)].add(entry);
+        }
+    }
+
+    /**
+     * A doubly-linked list of entries that hash to the same slot. Only accessed by the worker thread.
+     */
+    private class Bucket {
+        /**
+         * First entry.
+         */
+        private Entry head;
+
+        /**
+         * Last entry.
+         */
+        private Entry tail;
+
+        /**
+         * Appends an entry.
+         */
+        void add(Entry entry) {
+            entry.bucket = this;
+
+            if (head == null) {
+                head = tail = entry;
+            }
+            else {
+                tail.next = entry;
+                entry.prev = tail;
+                tail = entry;
+            }
+        }
+
+        /**
+         * Runs entries whose deadline has passed and decrements the rounds of the rest.
+         */
+        void expire(long deadline) {
+            Entry entry = head;
+
+            while (entry != null) {
+                Entry next = entry.next;
+
+                if (entry.state.get() == Entry.CANCELLED) {
+                    remove(entry);
+                }
+                else if (entry.remainingRounds <= 0 && entry.deadline <= deadline) {
+                    remove(entry);
+                    entry.expire();
+                }
+                else {
+                    entry.remainingRounds--;
+                }
+
+                entry = next;
+            }
+        }
+
+        /**
+         * Removes an entry.
+         */
+        void remove(Entry entry) {
+            if (entry.bucket != this) {
+                return;
+            }
+
+            if (entry.prev != null) {
+                entry.prev.next = entry.next;
+            }
+            if (entry.next != null) {
+                entry.next.prev = entry.prev;
+            }
+            if (entry == head) {
+                head = entry.next;
+            }
+            if (entry == tail) {
+                tail = entry.prev;
+            }
+
+            entry.prev = null;
+            entry.next = null;
+            entry.bucket = null;
+        }
+    }
+
+    /**
+     * A scheduled task.
+     */
+    private class Entry implements Timeout {
+        /**
+         * State of an entry that has neither run nor been cancelled.
+         */
+        static final int PENDING = 0;
+
+        /**
+         * State of an entry that has been cancelled.
+         */
+        static final int CANCELLED = 1;
+
+        /**
+         * State of an entry that has run.
+         */
+        static final int EXPIRED = 2;
+
+        /**
+         * Task to run.
+         */
+        private final Runnable task;
+
+        /**
+         * Deadline, in nanoseconds relative to the timer's start time.
+         */
+        private final long deadline;
+
+        /**
+         * Current state.
+         */
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+
+        /**
+         * Number of full wheel revolutions remaining before the entry expires.
+         */
+        private long remainingRounds;
+
+        /**
+         * Bucket the entry is in.
+         */
+        private Bucket bucket;
+
+        /**
+         * Previous entry in the bucket.
+         */
+        private Entry prev;
+
+        /**
+         * Next entry in the bucket.
+         */
+        private Entry next;
+
+        /**
+         * Constructor.
+         */
+        Entry(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED)) {
+                return false;
+            }
+
+            cancelled.add(this);
+            return true;
+        }
+
+        /**
+         * Runs the task if the entry has not been cancelled.
+         */
+        void expire() {
+            if (!state.compareAndSet(PENDING, EXPIRED)) {
+                return;
+            }
+
+            try {
+                task.run();
+            }
+            catch (Throwable e) {
+                log.warn("Unhandled exception thrown by a task scheduled on timer " + threadName, e);
+            }
+        }
+    }
+}
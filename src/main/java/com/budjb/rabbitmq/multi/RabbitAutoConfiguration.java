@@ -16,19 +16,33 @@
 
 package com.budjb.rabbitmq.multi;
 
+import com.budjb.rabbitmq.multi.compression.CompressionManager;
+import com.budjb.rabbitmq.multi.compression.Compressor;
+import com.budjb.rabbitmq.multi.compression.DeflateCompressor;
+import com.budjb.rabbitmq.multi.compression.GzipCompressor;
+import com.budjb.rabbitmq.multi.compression.Lz4Compressor;
+import com.budjb.rabbitmq.multi.compression.ZstdCompressor;
+import com.budjb.rabbitmq.multi.config.CompressionConfiguration;
 import com.budjb.rabbitmq.multi.config.RabbitConfigurationProperties;
 import com.budjb.rabbitmq.multi.connection.ConnectionContext;
 import com.budjb.rabbitmq.multi.connection.ConnectionManager;
 import com.budjb.rabbitmq.multi.connection.ConnectionProvider;
 import com.budjb.rabbitmq.multi.connection.DefaultConnectionProvider;
+import com.budjb.rabbitmq.multi.connection.StripeSelector;
 import com.budjb.rabbitmq.multi.converter.*;
+import com.budjb.rabbitmq.multi.outbox.Outbox;
 import com.budjb.rabbitmq.multi.publisher.RabbitMessagePublisher;
+import com.budjb.rabbitmq.multi.publisher.ReactiveRabbitMessagePublisher;
+import com.budjb.rabbitmq.multi.ratelimit.PublishRateLimiters;
 import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -40,15 +54,15 @@ import java.util.stream.Collectors;
 public class RabbitAutoConfiguration {
     @Bean
     @ConditionalOnMissingBean
-    public ConnectionManager connectionManager(RabbitConfigurationProperties rabbitConfigurationProperties, ConnectionProvider connectionProvider, Optional<MeterRegistry> meterRegistry) {
+    public ConnectionManager connectionManager(RabbitConfigurationProperties rabbitConfigurationProperties, ConnectionProvider connectionProvider, Optional<MeterRegistry> meterRegistry, Optional<StripeSelector> stripeSelector) {
         return new ConnectionManager(rabbitConfigurationProperties, rabbitConfigurationProperties.getConnections().entrySet().stream()
-            .collect(Collectors.toMap(Map.Entry::getKey, e -> new ConnectionContext(e.getKey(), e.getValue(), connectionProvider, meterRegistry.orElse(null)))));
+            .collect(Collectors.toMap(Map.Entry::getKey, e -> new ConnectionContext(e.getKey(), e.getValue(), connectionProvider, meterRegistry.orElse(null), stripeSelector.orElse(null)))));
     }
 
     @Bean
     @ConditionalOnMissingBean
     @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
-    public MessageConverterManager messageConverterManager(Optional<List<MessageConverter>> messageConverters, RabbitConfigurationProperties rabbitConfigurationProperties) {
+    public MessageConverterManager messageConverterManager(Optional<List<MessageConverter>> messageConverters, RabbitConfigurationProperties rabbitConfigurationProperties, Optional<MeterRegistry> meterRegistry) {
         List<MessageConverter> converters = messageConverters.orElse(new LinkedList<>());
 
 
@@ -65,13 +79,35 @@ public class RabbitAutoConfiguration {
             converters.add(new StringMessageConverter());
         }
 
-        return new MessageConverterManager(converters);
+        return new MessageConverterManager(converters, meterRegistry.orElse(null));
     }
 
     @Bean
     @ConditionalOnMissingBean
-    public RabbitMessagePublisher rabbitMessagePublisher(ConnectionManager connectionManager, MessageConverterManager messageConverterManager) {
-        return new RabbitMessagePublisher(connectionManager, messageConverterManager);
+    @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+    public RabbitMessagePublisher rabbitMessagePublisher(ConnectionManager connectionManager, MessageConverterManager messageConverterManager, HashedWheelTimer rabbitRpcTimer, Optional<Outbox> rabbitOutbox, PublishRateLimiters rabbitPublishRateLimiters, Optional<CompressionManager> rabbitCompressionManager, Optional<MeterRegistry> meterRegistry) {
+        return new RabbitMessagePublisher(connectionManager, messageConverterManager, rabbitRpcTimer, rabbitOutbox.orElse(null), rabbitPublishRateLimiters, rabbitCompressionManager.orElse(null), meterRegistry.orElse(null));
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+    public PublishRateLimiters rabbitPublishRateLimiters(RabbitConfigurationProperties rabbitConfigurationProperties, Optional<MeterRegistry> meterRegistry) {
+        return new PublishRateLimiters(rabbitConfigurationProperties, meterRegistry.orElse(null));
+    }
+
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "rabbitmq.outbox", name = "enabled", havingValue = "true")
+    @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+    public Outbox rabbitOutbox(RabbitConfigurationProperties rabbitConfigurationProperties, ConnectionManager connectionManager, Optional<MeterRegistry> meterRegistry) {
+        return new Outbox(rabbitConfigurationProperties.getOutbox(), connectionManager, meterRegistry.orElse(null));
+    }
+
+    @Bean(destroyMethod = "stop")
+    @ConditionalOnMissingBean
+    public HashedWheelTimer rabbitRpcTimer() {
+        return new HashedWheelTimer("rabbitmq-rpc-timer");
     }
 
     @Bean
@@ -79,4 +115,53 @@ public class RabbitAutoConfiguration {
     ConnectionProvider connectionFactoryProvider() {
         return new DefaultConnectionProvider();
     }
+
+    @Configuration
+    @ConditionalOnProperty(prefix = "rabbitmq.compression", name = "enabled", havingValue = "true")
+    static class CompressionAutoConfiguration {
+        @Bean
+        @ConditionalOnMissingBean
+        @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+        public CompressionManager rabbitCompressionManager(Optional<List<Compressor>> compressors, RabbitConfigurationProperties rabbitConfigurationProperties, Optional<MeterRegistry> meterRegistry) {
+            CompressionConfiguration compression = rabbitConfigurationProperties.getCompression();
+            List<Compressor> available = new ArrayList<>(compressors.orElse(new LinkedList<>()));
+
+            available.add(compression.getLevel() < 0 ? new GzipCompressor() : new GzipCompressor(compression.getLevel()));
+            available.add(compression.getLevel() < 0 ? new DeflateCompressor() : new DeflateCompressor(compression.getLevel()));
+
+            return new CompressionManager(available, compression.getEncoding(), compression.getThreshold(), meterRegistry.orElse(null));
+        }
+
+        @Configuration
+        @ConditionalOnClass(name = "net.jpountz.lz4.LZ4FrameOutputStream")
+        static class Lz4Configuration {
+            @Bean
+            @ConditionalOnMissingBean
+            public Lz4Compressor rabbitLz4Compressor() {
+                return new Lz4Compressor();
+            }
+        }
+
+        @Configuration
+        @ConditionalOnClass(name = "com.github.luben.zstd.Zstd")
+        static class ZstdConfiguration {
+            @Bean
+            @ConditionalOnMissingBean
+            public ZstdCompressor rabbitZstdCompressor(RabbitConfigurationProperties rabbitConfigurationProperties) {
+                int level = rabbitConfigurationProperties.getCompression().getLevel();
+
+                return level < 1 ? new ZstdCompressor() : new ZstdCompressor(level);
+            }
+        }
+    }
+
+    @Configuration
+    @ConditionalOnClass(name = "reactor.core.publisher.Flux")
+    static class ReactiveConfiguration {
+        @Bean
+        @ConditionalOnMissingBean
+        public ReactiveRabbitMessagePublisher reactiveRabbitMessagePublisher(RabbitMessagePublisher rabbitMessagePublisher, RabbitConfigurationProperties rabbitConfigurationProperties) {
+            return new ReactiveRabbitMessagePublisher(rabbitMessagePublisher, rabbitConfigurationProperties.getMaxOutstandingConfirms());
+        }
+    }
 }
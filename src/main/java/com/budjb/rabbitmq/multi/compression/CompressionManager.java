@@ -0,0 +1,319 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.compression;
+
+import com.budjb.rabbitmq.multi.MessageContext;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.BasicProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.lang.Nullable;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compresses the bodies of published messages and decompresses the bodies of replies.
+ * <p>
+ * Bodies are compressed with a single configured {@link Compressor}, and only when they are at least
+ * as large as the threshold and compressing them makes them smaller. Bodies are decompressed with
+ * whichever registered compressor produces the {@code content-encoding} of the message; bodies with
+ * any other content encoding are left as they are, since some applications use the property for
+ * the character set of the body instead.
+ * <p>
+ * When a meter registry is given, the ratio of the original size of each compressed body to its
+ * compressed size is recorded as {@code rabbitmq.compression.ratio}, bodies that did not become
+ * smaller are counted as {@code rabbitmq.compression.incompressible}, and the CPU time spent
+ * compressing and decompressing is recorded as {@code rabbitmq.compression.time}, tagged by
+ * encoding and operation. CPU time is measured per thread where the JVM supports it, and as
+ * elapsed time otherwise.
+ */
+public class CompressionManager {
+    /**
+     * Compressors keyed by their lower-case content encoding.
+     */
+    private final Map<String, Compressor> compressors;
+
+    /**
+     * Compressor bodies are compressed with.
+     */
+    private final Compressor compressor;
+
+    /**
+     * Size, in bytes, a body must reach before it is compressed.
+     */
+    private final int threshold;
+
+    /**
+     * Meters of each compressor keyed by the compressor, if a meter registry was given.
+     */
+    private final Map<Compressor, Meters> meters;
+
+    /**
+     * Thread management bean used to measure CPU time, if the JVM measures the CPU time of the current thread.
+     */
+    private final ThreadMXBean threadMXBean;
+
+    /**
+     * Constructor.
+     *
+     * @param compressors Compressors available to decompress bodies.
+     * @param encoding    Content encoding bodies are compressed with.
+     * @param threshold   Size, in bytes, a body must reach before it is compressed.
+     */
+    public CompressionManager(List<Compressor> compressors, String encoding, int threshold) {
+        this(compressors, encoding, threshold, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param compressors   Compressors available to decompress bodies.
+     * @param encoding      Content encoding bodies are compressed with.
+     * @param threshold     Size, in bytes, a body must reach before it is compressed.
+     * @param meterRegistry Micrometer meter registry.
+     * @throws IllegalArgumentException When no compressor produces the given content encoding.
+     */
+    public CompressionManager(List<Compressor> compressors, String encoding, int threshold, @Nullable MeterRegistry meterRegistry) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("compression threshold must not be negative");
+        }
+
+        Map<String, Compressor> byEncoding = new LinkedHashMap<>();
+
+        for (Compressor compressor : compressors) {
+            byEncoding.putIfAbsent(compressor.getEncoding().toLowerCase(Locale.ROOT), compressor);
+        }
+
+        this.compressors = Collections.unmodifiableMap(byEncoding);
+        this.compressor = encoding != null ? byEncoding.get(encoding.toLowerCase(Locale.ROOT)) : null;
+        this.threshold = threshold;
+
+        if (compressor == null) {
+            throw new IllegalArgumentException("no compressor is available for content encoding " + encoding + "; available encodings are " + byEncoding.keySet());
+        }
+
+        if (meterRegistry != null) {
+            Map<Compressor, Meters> meters = new LinkedHashMap<>();
+            byEncoding.values().forEach(it -> meters.put(it, new Meters(meterRegistry, it.getEncoding())));
+            this.meters = meters;
+
+            ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+            this.threadMXBean = threadMXBean.isCurrentThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled() ? threadMXBean : null;
+        }
+        else {
+            this.meters = null;
+            this.threadMXBean = null;
+        }
+    }
+
+    /**
+     * Returns the content encoding bodies are compressed with.
+     *
+     * @return The content encoding bodies are compressed with.
+     */
+    public String getEncoding() {
+        return compressor.getEncoding();
+    }
+
+    /**
+     * Returns the size, in bytes, a body must reach before it is compressed.
+     *
+     * @return The size, in bytes, a body must reach before it is compressed.
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Returns the compressors available to decompress bodies.
+     *
+     * @return The compressors available to decompress bodies.
+     */
+    public Collection<Compressor> getCompressors() {
+        return compressors.values();
+    }
+
+    /**
+     * Returns whether a body with the given content encoding can be decompressed.
+     *
+     * @param contentEncoding Content encoding of the body.
+     * @return Whether a body with the given content encoding can be decompressed.
+     */
+    public boolean supports(@Nullable String contentEncoding) {
+        return getCompressor(contentEncoding) != null;
+    }
+
+    /**
+     * Compresses a body with the configured content encoding, unless it is smaller than the threshold
+     * or does not become smaller when compressed.
+     *
+     * @param body Body to compress.
+     * @return The compressed body, or {@code null} when the body is published as it is.
+     */
+    @Nullable
+    public byte[] compress(@Nullable byte[] body) {
+        if (body == null || body.length < threshold) {
+            return null;
+        }
+
+        if (meters == null) {
+            return compressor.compress(body);
+        }
+
+        long start = cpuTime();
+        byte[] compressed = compressor.compress(body);
+        Meters meters = this.meters.get(compressor);
+
+        meters.compressTimer.record(cpuTime() - start, TimeUnit.NANOSECONDS);
+
+        if (compressed != null) {
+            meters.ratio.record(compressed.length > 0 ? (double) body.length / compressed.length : 0);
+        }
+        else {
+            meters.incompressible.increment();
+        }
+
+        return compressed;
+    }
+
+    /**
+     * Decompresses a body with the given content encoding. The body is returned as it is when no
+     * compressor produces the content encoding.
+     *
+     * @param body            Body to decompress.
+     * @param contentEncoding Content encoding of the body.
+     * @return The decompressed body.
+     * @throws IOException When the body is not valid for its content encoding.
+     */
+    public byte[] decompress(byte[] body, @Nullable String contentEncoding) throws IOException {
+        Compressor compressor = getCompressor(contentEncoding);
+
+        if (compressor == null || body == null) {
+            return body;
+        }
+
+        if (meters == null) {
+            return compressor.decompress(body);
+        }
+
+        long start = cpuTime();
+
+        try {
+            return compressor.decompress(body);
+        }
+        finally {
+            meters.get(compressor).decompressTimer.record(cpuTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Decompresses the body of a received message. The message is returned as it is when no compressor
+     * produces its content encoding; otherwise the returned message carries the decompressed body and
+     * no content encoding.
+     *
+     * @param messageContext Received message.
+     * @return The message with its body decompressed.
+     * @throws IOException When the body is not valid for its content encoding.
+     */
+    public MessageContext decompress(MessageContext messageContext) throws IOException {
+        BasicProperties properties = messageContext.getProperties();
+
+        if (properties == null || !supports(properties.getContentEncoding())) {
+            return messageContext;
+        }
+
+        byte[] body = decompress(messageContext.getBody(), properties.getContentEncoding());
+
+        if (properties instanceof AMQP.BasicProperties) {
+            properties = ((AMQP.BasicProperties) properties).builder().contentEncoding(null).build();
+        }
+
+        return new MessageContext(properties, body);
+    }
+
+    /**
+     * Returns the compressor that produces the given content encoding, if any.
+     */
+    private Compressor getCompressor(String contentEncoding) {
+        if (contentEncoding == null || contentEncoding.isEmpty()) {
+            return null;
+        }
+
+        Compressor compressor = compressors.get(contentEncoding);
+
+        return compressor != null ? compressor : compressors.get(contentEncoding.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Returns the CPU time of the current thread, or the elapsed time if it is not measured.
+     */
+    private long cpuTime() {
+        return threadMXBean != null ? threadMXBean.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * Meters of a single compressor.
+     */
+    private static class Meters {
+        /**
+         * Ratio of the original size of compressed bodies to their compressed size.
+         */
+        private final DistributionSummary ratio;
+
+        /**
+         * Bodies that did not become smaller when compressed.
+         */
+        private final Counter incompressible;
+
+        /**
+         * CPU time spent compressing bodies.
+         */
+        private final Timer compressTimer;
+
+        /**
+         * CPU time spent decompressing bodies.
+         */
+        private final Timer decompressTimer;
+
+        /**
+         * Constructor.
+         *
+         * @param meterRegistry Micrometer meter registry.
+         * @param encoding      Content encoding of the compressor.
+         */
+        Meters(MeterRegistry meterRegistry, String encoding) {
+            ratio = DistributionSummary.builder("rabbitmq.compression.ratio").tag("encoding", encoding)
+                .description("Ratio of the original size of compressed message bodies to their compressed size").register(meterRegistry);
+            incompressible = Counter.builder("rabbitmq.compression.incompressible").tag("encoding", encoding)
+                .description("Message bodies published uncompressed because compressing them did not make them smaller").register(meterRegistry);
+            compressTimer = Timer.builder("rabbitmq.compression.time").tag("encoding", encoding).tag("operation", "compress")
+                .description("CPU time spent compressing and decompressing message bodies").register(meterRegistry);
+            decompressTimer = Timer.builder("rabbitmq.compression.time").tag("encoding", encoding).tag("operation", "decompress")
+                .description("CPU time spent compressing and decompressing message bodies").register(meterRegistry);
+        }
+    }
+}
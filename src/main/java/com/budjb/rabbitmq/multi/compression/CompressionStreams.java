@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Helpers shared by the compressors that work on streams.
+ */
+final class CompressionStreams {
+    /**
+     * Smallest buffer a decompressed body is read into.
+     */
+    private static final int MIN_BUFFER_SIZE = 256;
+
+    /**
+     * Constructor.
+     */
+    private CompressionStreams() {
+    }
+
+    /**
+     * Reads a stream to its end and closes it.
+     *
+     * @param inputStream Stream to read.
+     * @param sizeHint    Expected number of bytes in the stream.
+     * @return The bytes read from the stream.
+     * @throws IOException When the stream can not be read.
+     */
+    static byte[] readFully(InputStream inputStream, int sizeHint) throws IOException {
+        try (InputStream in = inputStream) {
+            byte[] buffer = new byte[Math.max(sizeHint, MIN_BUFFER_SIZE)];
+            int position = 0;
+
+            while (true) {
+                if (position == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, grow(buffer.length));
+                }
+
+                int read = in.read(buffer, position, buffer.length - position);
+
+                if (read < 0) {
+                    return position == buffer.length ? buffer : Arrays.copyOf(buffer, position);
+                }
+
+                position += read;
+            }
+        }
+    }
+
+    /**
+     * Returns the size of the buffer a compressed body is first decompressed into.
+     *
+     * @param length Length of the compressed body.
+     * @return The size of the buffer.
+     */
+    static int sizeHint(int length) {
+        return (int) Math.max(Math.min((long) length * 4, Integer.MAX_VALUE - 8), MIN_BUFFER_SIZE);
+    }
+
+    /**
+     * Returns the next size of a buffer that is full.
+     *
+     * @param size Current size of the buffer.
+     * @return The next size of the buffer.
+     * @throws IOException When the buffer can not grow any further.
+     */
+    static int grow(int size) throws IOException {
+        if (size == Integer.MAX_VALUE - 8) {
+            throw new IOException("decompressed body is too large");
+        }
+
+        return (int) Math.min((long) size * 2, Integer.MAX_VALUE - 8);
+    }
+}
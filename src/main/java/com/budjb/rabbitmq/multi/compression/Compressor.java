@@ -0,0 +1,53 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.compression;
+
+import org.springframework.lang.Nullable;
+
+import java.io.IOException;
+
+/**
+ * Compresses and decompresses message bodies with a single content encoding.
+ * <p>
+ * Implementations must be thread safe, since one instance is shared by every publishing thread.
+ */
+public interface Compressor {
+    /**
+     * Returns the content encoding the compressor produces, as it appears in the {@code content-encoding}
+     * property of a message.
+     *
+     * @return The content encoding the compressor produces.
+     */
+    String getEncoding();
+
+    /**
+     * Compresses a message body.
+     *
+     * @param body Body to compress.
+     * @return The compressed body, or {@code null} when compressing does not make the body smaller.
+     */
+    @Nullable
+    byte[] compress(byte[] body);
+
+    /**
+     * Decompresses a message body.
+     *
+     * @param body Body to decompress.
+     * @return The decompressed body.
+     * @throws IOException When the body is not valid for the compressor's encoding.
+     */
+    byte[] decompress(byte[] body) throws IOException;
+}
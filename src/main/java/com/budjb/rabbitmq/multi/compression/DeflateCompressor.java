@@ -0,0 +1,172 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.compression;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Compresses message bodies in the zlib format, as the {@code deflate} content encoding is defined.
+ * <p>
+ * Each thread reuses one {@link Deflater} and one {@link Inflater}, which avoids allocating and
+ * releasing native zlib state for every message. Bodies are compressed into a buffer the size of
+ * the body itself, and compression stops as soon as that buffer fills up, so incompressible bodies
+ * are detected without compressing them in full.
+ */
+public class DeflateCompressor implements Compressor {
+    /**
+     * Content encoding of zlib compressed bodies.
+     */
+    public static final String ENCODING = "deflate";
+
+    /**
+     * Deflater of each thread.
+     */
+    private final ThreadLocal<Deflater> deflaters;
+
+    /**
+     * Inflater of each thread.
+     */
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    /**
+     * Constructor.
+     */
+    public DeflateCompressor() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param level Compression level, from 0 to 9, or -1 for the default level.
+     */
+    public DeflateCompressor(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("deflate compression level must be between -1 and 9");
+        }
+
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getEncoding() {
+        return ENCODING;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] compress(byte[] body) {
+        Deflater deflater = deflaters.get();
+
+        try {
+            byte[] output = new byte[body.length];
+            int length = deflate(deflater, body, output, 0, output.length);
+
+            return length < 0 ? null : Arrays.copyOf(output, length);
+        }
+        finally {
+            deflater.reset();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] decompress(byte[] body) throws IOException {
+        Inflater inflater = inflaters.get();
+
+        try {
+            return inflate(inflater, body);
+        }
+        finally {
+            inflater.reset();
+        }
+    }
+
+    /**
+     * Compresses a body into part of an output buffer.
+     *
+     * @param deflater Deflater to compress with, which must have been reset.
+     * @param body     Body to compress.
+     * @param output   Buffer to compress into.
+     * @param offset   Position in the buffer the compressed body starts at.
+     * @param limit    Position in the buffer the compressed body must end before.
+     * @return The position the compressed body ends at, or -1 if it does not fit before the limit.
+     */
+    static int deflate(Deflater deflater, byte[] body, byte[] output, int offset, int limit) {
+        deflater.setInput(body);
+        deflater.finish();
+
+        int position = offset;
+
+        while (!deflater.finished()) {
+            if (position >= limit) {
+                return -1;
+            }
+
+            position += deflater.deflate(output, position, limit - position);
+        }
+
+        return position;
+    }
+
+    /**
+     * Decompresses a body in full.
+     *
+     * @param inflater Inflater to decompress with, which must have been reset.
+     * @param body     Body to decompress.
+     * @return The decompressed body.
+     * @throws IOException When the body is not a complete compressed stream.
+     */
+    static byte[] inflate(Inflater inflater, byte[] body) throws IOException {
+        inflater.setInput(body);
+
+        byte[] output = new byte[CompressionStreams.sizeHint(body.length)];
+        int position = 0;
+
+        try {
+            while (!inflater.finished()) {
+                if (position == output.length) {
+                    output = Arrays.copyOf(output, CompressionStreams.grow(output.length));
+                }
+
+                int inflated = inflater.inflate(output, position, output.length - position);
+
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new ZipException("compressed body is truncated or needs a preset dictionary");
+                }
+
+                position += inflated;
+            }
+        }
+        catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        }
+
+        return position == output.length ? output : Arrays.copyOf(output, position);
+    }
+}
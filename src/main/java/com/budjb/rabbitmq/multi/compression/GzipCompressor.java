@@ -0,0 +1,134 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.compression;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compresses message bodies in the gzip format.
+ * <p>
+ * Bodies are compressed with a raw {@link Deflater} that each thread reuses, and the gzip header
+ * and trailer are written around the compressed data directly, so compressing a body allocates no
+ * native zlib state and no stream. Like {@link DeflateCompressor}, compression stops as soon as the
+ * result would not be smaller than the body.
+ */
+public class GzipCompressor implements Compressor {
+    /**
+     * Content encoding of gzip compressed bodies.
+     */
+    public static final String ENCODING = "gzip";
+
+    /**
+     * Gzip member header: magic number, deflate method, no flags, no modification time, no extra
+     * flags, and an unknown operating system.
+     */
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    /**
+     * Length of the gzip trailer, which holds the CRC-32 and the length of the uncompressed body.
+     */
+    private static final int TRAILER_LENGTH = 8;
+
+    /**
+     * Raw deflater of each thread.
+     */
+    private final ThreadLocal<Deflater> deflaters;
+
+    /**
+     * Constructor.
+     */
+    public GzipCompressor() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param level Compression level, from 0 to 9, or -1 for the default level.
+     */
+    public GzipCompressor(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("gzip compression level must be between -1 and 9");
+        }
+
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getEncoding() {
+        return ENCODING;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] compress(byte[] body) {
+        if (body.length <= HEADER.length + TRAILER_LENGTH) {
+            return null;
+        }
+
+        Deflater deflater = deflaters.get();
+        int position;
+        byte[] output = new byte[body.length];
+
+        try {
+            System.arraycopy(HEADER, 0, output, 0, HEADER.length);
+            position = DeflateCompressor.deflate(deflater, body, output, HEADER.length, output.length - TRAILER_LENGTH);
+        }
+        finally {
+            deflater.reset();
+        }
+
+        if (position < 0) {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+
+        writeInt(output, position, (int) crc.getValue());
+        writeInt(output, position + 4, body.length);
+
+        return Arrays.copyOf(output, position + TRAILER_LENGTH);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] decompress(byte[] body) throws IOException {
+        return CompressionStreams.readFully(new GZIPInputStream(new ByteArrayInputStream(body)), CompressionStreams.sizeHint(body.length));
+    }
+
+    /**
+     * Writes a little-endian integer.
+     */
+    private static void writeInt(byte[] output, int offset, int value) {
+        output[offset] = (byte) value;
+        output[offset + 1] = (byte) (value >>> 8);
+        output[offset + 2] = (byte) (value >>> 16);
+        output[offset + 3] = (byte) (value >>> 24);
+    }
+}
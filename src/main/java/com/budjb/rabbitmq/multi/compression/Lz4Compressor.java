@@ -0,0 +1,72 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.compression;
+
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Compresses message bodies in the LZ4 frame format.
+ * <p>
+ * LZ4 compresses less than gzip but is several times faster in both directions, which suits large
+ * bodies on latency sensitive paths. This compressor requires {@code org.lz4:lz4-java} on the
+ * classpath. Frames use 64 KiB blocks, the smallest block size, to keep the buffers allocated for
+ * each message small.
+ */
+public class Lz4Compressor implements Compressor {
+    /**
+     * Content encoding of LZ4 compressed bodies.
+     */
+    public static final String ENCODING = "lz4";
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getEncoding() {
+        return ENCODING;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] compress(byte[] body) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(body.length / 2);
+
+        try (LZ4FrameOutputStream lz4 = new LZ4FrameOutputStream(output, LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB)) {
+            lz4.write(body);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return output.size() < body.length ? output.toByteArray() : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] decompress(byte[] body) throws IOException {
+        return CompressionStreams.readFully(new LZ4FrameInputStream(new ByteArrayInputStream(body)), CompressionStreams.sizeHint(body.length));
+    }
+}
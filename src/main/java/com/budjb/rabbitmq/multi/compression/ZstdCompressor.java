@@ -0,0 +1,104 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.compression;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Compresses message bodies in the Zstandard format.
+ * <p>
+ * Zstandard compresses about as well as gzip at a fraction of its CPU time. This compressor
+ * requires {@code com.github.luben:zstd-jni} on the classpath. Bodies are compressed in a single
+ * call, which records the decompressed size in the frame so that it can be decompressed into a
+ * buffer of the exact size; frames that do not record their size are decompressed as a stream.
+ */
+public class ZstdCompressor implements Compressor {
+    /**
+     * Content encoding of Zstandard compressed bodies.
+     */
+    public static final String ENCODING = "zstd";
+
+    /**
+     * Compression level used when none is given.
+     */
+    public static final int DEFAULT_LEVEL = 3;
+
+    /**
+     * Compression level.
+     */
+    private final int level;
+
+    /**
+     * Constructor.
+     */
+    public ZstdCompressor() {
+        this(DEFAULT_LEVEL);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param level Compression level, from 1 to 22.
+     */
+    public ZstdCompressor(int level) {
+        if (level < 1 || level > 22) {
+            throw new IllegalArgumentException("zstd compression level must be between 1 and 22");
+        }
+
+        this.level = level;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getEncoding() {
+        return ENCODING;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] compress(byte[] body) {
+        byte[] compressed = Zstd.compress(body, level);
+
+        return compressed.length < body.length ? compressed : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] decompress(byte[] body) throws IOException {
+        long size = Zstd.decompressedSize(body);
+
+        if (size <= 0 || size > Integer.MAX_VALUE - 8) {
+            return CompressionStreams.readFully(new ZstdInputStream(new ByteArrayInputStream(body)), CompressionStreams.sizeHint(body.length));
+        }
+
+        try {
+            return Zstd.decompress(body, (int) size);
+        }
+        catch (RuntimeException e) {
+            throw new IOException("invalid zstd body: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.config;
+
+/**
+ * Policies applied to publishes while the broker has blocked a connection because of a resource alarm.
+ */
+public enum BlockedPolicy {
+    /**
+     * Fail the publish immediately.
+     */
+    FAIL_FAST,
+
+    /**
+     * Wait for the connection to be unblocked, failing the publish if it is not unblocked in time.
+     */
+    BLOCK,
+
+    /**
+     * Hold the message in a bounded in-memory buffer and publish it once the connection is unblocked.
+     */
+    BUFFER
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.config;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotEmpty;
+
+public class CompressionConfiguration {
+    /**
+     * Whether the bodies of published messages are compressed and the bodies of RPC replies decompressed.
+     */
+    private boolean enabled = false;
+
+    /**
+     * Content encoding bodies are compressed with: gzip, deflate, or, when their libraries are on the classpath, lz4 or zstd.
+     */
+    @NotEmpty
+    private String encoding = "gzip";
+
+    /**
+     * Size, in bytes, a body must reach before it is compressed.
+     */
+    @Min(0)
+    private int threshold = 1024;
+
+    /**
+     * Compression level, or -1 for the default level of the encoding. Ignored by lz4.
+     */
+    @Min(-1)
+    private int level = -1;
+
+    /**
+     * Returns whether the bodies of published messages are compressed.
+     *
+     * @return Whether the bodies of published messages are compressed.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets whether the bodies of published messages are compressed.
+     *
+     * @param enabled Whether the bodies of published messages are compressed.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Returns the content encoding bodies are compressed with.
+     *
+     * @return The content encoding bodies are compressed with.
+     */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Sets the content encoding bodies are compressed with.
+     *
+     * @param encoding The content encoding bodies are compressed with.
+     */
+    public void setEncoding(String encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * Returns the size, in bytes, a body must reach before it is compressed.
+     *
+     * @return The size, in bytes, a body must reach before it is compressed.
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Sets the size, in bytes, a body must reach before it is compressed.
+     *
+     * @param threshold The size, in bytes, a body must reach before it is compressed.
+     */
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Returns the compression level, or -1 for the default level of the encoding.
+     *
+     * @return The compression level, or -1 for the default level of the encoding.
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Sets the compression level, or -1 for the default level of the encoding.
+     *
+     * @param level The compression level, or -1 for the default level of the encoding.
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+}
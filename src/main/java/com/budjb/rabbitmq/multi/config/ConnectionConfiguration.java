@@ -17,12 +17,18 @@
 package com.budjb.rabbitmq.multi.config;
 
 import com.rabbitmq.client.ConnectionFactory;
+import org.springframework.boot.context.properties.NestedConfigurationProperty;
 import org.springframework.validation.annotation.Validated;
 
+import javax.validation.Valid;
+import javax.validation.constraints.AssertTrue;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @Validated
@@ -30,9 +36,13 @@ public class ConnectionConfiguration {
     /**
      * AMQP URI.
      */
-    @NotNull
     private URI uri;
 
+    /**
+     * AMQP URIs of the nodes in a cluster. When set, takes precedence over {@link #uri}.
+     */
+    private List<URI> uris = new ArrayList<>();
+
     /**
      * Whether the connection should be considered the default connection.
      */
@@ -69,6 +79,102 @@ public class ConnectionConfiguration {
      */
     private int requestedHeartbeat = ConnectionFactory.DEFAULT_HEARTBEAT;
 
+    /**
+     * Maximum number of pooled channels that may be borrowed from the connection at once.
+     */
+    @Min(1)
+    private int channelPoolSize = 16;
+
+    /**
+     * Amount of time, in milliseconds, a pooled channel may sit idle before it is closed.
+     */
+    @Min(0)
+    private long channelPoolIdleTimeout = 60000;
+
+    /**
+     * Amount of time, in milliseconds, to wait for a pooled channel when all channels are in use.
+     */
+    @Min(0)
+    private long channelPoolBorrowTimeout = 5000;
+
+    /**
+     * Number of long-lived channels in publisher confirm mode used for asynchronous publishing.
+     */
+    @Min(1)
+    private int confirmChannelCount = 1;
+
+    /**
+     * Whether RPC calls should receive replies via RabbitMQ's direct reply-to feature
+     * instead of declaring a temporary reply queue per call.
+     */
+    private boolean directReplyTo = false;
+
+    /**
+     * Number of physical connections opened to the broker. Channels are spread across them.
+     */
+    @Min(1)
+    private int connectionCount = 1;
+
+    /**
+     * Strategy used to pick the physical connection a new channel is opened on.
+     */
+    @NotNull
+    private StripeSelection stripeSelection = StripeSelection.ROUND_ROBIN;
+
+    /**
+     * Amount of time, in milliseconds, a broker node that has failed is left out of rotation
+     * before it is probed and re-admitted.
+     */
+    @Min(0)
+    private long nodeEjectionTime = 5000;
+
+    /**
+     * Name of the connection publishes are routed to while this connection is unavailable.
+     */
+    private String failover;
+
+    /**
+     * Amount of time, in milliseconds, between attempts to start the connection when it failed to
+     * start and has a failover connection.
+     */
+    @Min(1)
+    private long failoverRetryInterval = 5000;
+
+    /**
+     * Policy applied to publishes while the broker has blocked the connection.
+     */
+    @NotNull
+    private BlockedPolicy blockedPolicy = BlockedPolicy.BLOCK;
+
+    /**
+     * Amount of time, in milliseconds, a publish waits for a blocked connection to be unblocked
+     * when the blocked policy is {@link BlockedPolicy#BLOCK}.
+     */
+    @Min(0)
+    private long blockedTimeout = 30000;
+
+    /**
+     * Maximum number of message body bytes held in memory while the connection is blocked when
+     * the blocked policy is {@link BlockedPolicy#BUFFER}.
+     */
+    @Min(0)
+    private long blockedBufferSize = 8 * 1024 * 1024;
+
+    /**
+     * Rate limit applied to messages published to the connection.
+     */
+    @Valid
+    @NestedConfigurationProperty
+    private RateLimitConfiguration rateLimit = new RateLimitConfiguration();
+
+    /**
+     * Rate limits applied to messages published to specific exchanges, keyed by exchange name.
+     * An exchange's limit is charged in addition to the connection's limit, so it can only tighten
+     * the rate at which messages are published to that exchange.
+     */
+    @Valid
+    private Map<String, RateLimitConfiguration> exchangeRateLimits = new HashMap<>();
+
     /**
      * Returns any extra client properties.
      *
@@ -177,9 +283,321 @@ public class ConnectionConfiguration {
         this.threadPoolSize = threadPoolSize;
     }
 
+    /**
+     * Returns the maximum number of pooled channels that may be borrowed from each physical connection at once.
+     *
+     * @return The maximum number of pooled channels that may be borrowed from each physical connection at once.
+     */
+    public int getChannelPoolSize() {
+        return channelPoolSize;
+    }
+
+    /**
+     * Sets the maximum number of pooled channels that may be borrowed from each physical connection at once.
+     *
+     * @param channelPoolSize The maximum number of pooled channels that may be borrowed from each physical connection at once.
+     */
+    public void setChannelPoolSize(int channelPoolSize) {
+        this.channelPoolSize = channelPoolSize;
+    }
+
+    /**
+     * Returns the amount of time, in milliseconds, a pooled channel may sit idle before it is closed.
+     *
+     * @return The amount of time, in milliseconds, a pooled channel may sit idle before it is closed.
+     */
+    public long getChannelPoolIdleTimeout() {
+        return channelPoolIdleTimeout;
+    }
+
+    /**
+     * Sets the amount of time, in milliseconds, a pooled channel may sit idle before it is closed.
+     *
+     * @param channelPoolIdleTimeout The amount of time, in milliseconds, a pooled channel may sit idle before it is closed.
+     */
+    public void setChannelPoolIdleTimeout(long channelPoolIdleTimeout) {
+        this.channelPoolIdleTimeout = channelPoolIdleTimeout;
+    }
+
+    /**
+     * Returns the amount of time, in milliseconds, to wait for a pooled channel when all channels are in use.
+     *
+     * @return The amount of time, in milliseconds, to wait for a pooled channel when all channels are in use.
+     */
+    public long getChannelPoolBorrowTimeout() {
+        return channelPoolBorrowTimeout;
+    }
+
+    /**
+     * Sets the amount of time, in milliseconds, to wait for a pooled channel when all channels are in use.
+     *
+     * @param channelPoolBorrowTimeout The amount of time, in milliseconds, to wait for a pooled channel when all channels are in use.
+     */
+    public void setChannelPoolBorrowTimeout(long channelPoolBorrowTimeout) {
+        this.channelPoolBorrowTimeout = channelPoolBorrowTimeout;
+    }
+
+    /**
+     * Returns the number of long-lived channels in publisher confirm mode used for asynchronous publishing.
+     *
+     * @return The number of long-lived channels in publisher confirm mode used for asynchronous publishing.
+     */
+    public int getConfirmChannelCount() {
+        return confirmChannelCount;
+    }
+
+    /**
+     * Sets the number of long-lived channels in publisher confirm mode used for asynchronous publishing.
+     *
+     * @param confirmChannelCount The number of long-lived channels in publisher confirm mode used for asynchronous publishing.
+     */
+    public void setConfirmChannelCount(int confirmChannelCount) {
+        this.confirmChannelCount = confirmChannelCount;
+    }
+
+    /**
+     * Returns whether RPC calls should receive replies via RabbitMQ's direct reply-to feature.
+     *
+     * @return Whether RPC calls should receive replies via RabbitMQ's direct reply-to feature.
+     */
+    public boolean isDirectReplyTo() {
+        return directReplyTo;
+    }
+
+    /**
+     * Sets whether RPC calls should receive replies via RabbitMQ's direct reply-to feature.
+     *
+     * @param directReplyTo Whether RPC calls should receive replies via RabbitMQ's direct reply-to feature.
+     */
+    public void setDirectReplyTo(boolean directReplyTo) {
+        this.directReplyTo = directReplyTo;
+    }
+
+    /**
+     * Returns the number of physical connections opened to the broker.
+     *
+     * @return The number of physical connections opened to the broker.
+     */
+    public int getConnectionCount() {
+        return connectionCount;
+    }
+
+    /**
+     * Sets the number of physical connections opened to the broker.
+     *
+     * @param connectionCount The number of physical connections opened to the broker.
+     */
+    public void setConnectionCount(int connectionCount) {
+        this.connectionCount = connectionCount;
+    }
+
+    /**
+     * Returns the strategy used to pick the physical connection a new channel is opened on.
+     *
+     * @return The strategy used to pick the physical connection a new channel is opened on.
+     */
+    public StripeSelection getStripeSelection() {
+        return stripeSelection;
+    }
+
+    /**
+     * Sets the strategy used to pick the physical connection a new channel is opened on.
+     *
+     * @param stripeSelection The strategy used to pick the physical connection a new channel is opened on.
+     */
+    public void setStripeSelection(StripeSelection stripeSelection) {
+        this.stripeSelection = stripeSelection;
+    }
+
+    /**
+     * Returns the AMQP URIs of the nodes in a cluster.
+     *
+     * @return The AMQP URIs of the nodes in a cluster.
+     */
+    public List<URI> getUris() {
+        return uris;
+    }
+
+    /**
+     * Sets the AMQP URIs of the nodes in a cluster.
+     *
+     * @param uris The AMQP URIs of the nodes in a cluster.
+     */
+    public void setUris(List<URI> uris) {
+        this.uris = uris;
+    }
+
+    /**
+     * Returns the AMQP URIs of every broker node the connection should connect to. This is
+     * {@link #getUris()} when it is set, and otherwise {@link #getUri()} alone.
+     *
+     * @return The AMQP URIs of every broker node the connection should connect to.
+     */
+    public List<URI> getNodeUris() {
+        if (uris != null && !uris.isEmpty()) {
+            return uris;
+        }
+        return uri != null ? Collections.singletonList(uri) : Collections.emptyList();
+    }
+
+    /**
+     * Returns whether at least one AMQP URI has been configured.
+     *
+     * @return Whether at least one AMQP URI has been configured.
+     */
+    @AssertTrue(message = "either uri or uris must be set")
+    public boolean isUriConfigured() {
+        return !getNodeUris().isEmpty();
+    }
+
+    /**
+     * Returns the amount of time, in milliseconds, a failed broker node is left out of rotation.
+     *
+     * @return The amount of time, in milliseconds, a failed broker node is left out of rotation.
+     */
+    public long getNodeEjectionTime() {
+        return nodeEjectionTime;
+    }
+
+    /**
+     * Sets the amount of time, in milliseconds, a failed broker node is left out of rotation.
+     *
+     * @param nodeEjectionTime The amount of time, in milliseconds, a failed broker node is left out of rotation.
+     */
+    public void setNodeEjectionTime(long nodeEjectionTime) {
+        this.nodeEjectionTime = nodeEjectionTime;
+    }
+
+    /**
+     * Returns the name of the connection publishes are routed to while this connection is unavailable.
+     *
+     * @return The name of the connection publishes are routed to while this connection is unavailable.
+     */
+    public String getFailover() {
+        return failover;
+    }
+
+    /**
+     * Sets the name of the connection publishes are routed to while this connection is unavailable.
+     *
+     * @param failover The name of the connection publishes are routed to while this connection is unavailable.
+     */
+    public void setFailover(String failover) {
+        this.failover = failover;
+    }
+
+    /**
+     * Returns the amount of time, in milliseconds, between attempts to start a failed connection.
+     *
+     * @return The amount of time, in milliseconds, between attempts to start a failed connection.
+     */
+    public long getFailoverRetryInterval() {
+        return failoverRetryInterval;
+    }
+
+    /**
+     * Sets the amount of time, in milliseconds, between attempts to start a failed connection.
+     *
+     * @param failoverRetryInterval The amount of time, in milliseconds, between attempts to start a failed connection.
+     */
+    public void setFailoverRetryInterval(long failoverRetryInterval) {
+        this.failoverRetryInterval = failoverRetryInterval;
+    }
+
+    /**
+     * Returns the policy applied to publishes while the broker has blocked the connection.
+     *
+     * @return The policy applied to publishes while the broker has blocked the connection.
+     */
+    public BlockedPolicy getBlockedPolicy() {
+        return blockedPolicy;
+    }
+
+    /**
+     * Sets the policy applied to publishes while the broker has blocked the connection.
+     *
+     * @param blockedPolicy The policy applied to publishes while the broker has blocked the connection.
+     */
+    public void setBlockedPolicy(BlockedPolicy blockedPolicy) {
+        this.blockedPolicy = blockedPolicy;
+    }
+
+    /**
+     * Returns the amount of time, in milliseconds, a publish waits for a blocked connection to be unblocked.
+     *
+     * @return The amount of time, in milliseconds, a publish waits for a blocked connection to be unblocked.
+     */
+    public long getBlockedTimeout() {
+        return blockedTimeout;
+    }
+
+    /**
+     * Sets the amount of time, in milliseconds, a publish waits for a blocked connection to be unblocked.
+     *
+     * @param blockedTimeout The amount of time, in milliseconds, a publish waits for a blocked connection to be unblocked.
+     */
+    public void setBlockedTimeout(long blockedTimeout) {
+        this.blockedTimeout = blockedTimeout;
+    }
+
+    /**
+     * Returns the maximum number of message body bytes buffered while the connection is blocked.
+     *
+     * @return The maximum number of message body bytes buffered while the connection is blocked.
+     */
+    public long getBlockedBufferSize() {
+        return blockedBufferSize;
+    }
+
+    /**
+     * Sets the maximum number of message body bytes buffered while the connection is blocked.
+     *
+     * @param blockedBufferSize The maximum number of message body bytes buffered while the connection is blocked.
+     */
+    public void setBlockedBufferSize(long blockedBufferSize) {
+        this.blockedBufferSize = blockedBufferSize;
+    }
+
+    /**
+     * Returns the rate limit applied to messages published to the connection.
+     *
+     * @return The rate limit applied to messages published to the connection.
+     */
+    public RateLimitConfiguration getRateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * Sets the rate limit applied to messages published to the connection.
+     *
+     * @param rateLimit The rate limit applied to messages published to the connection.
+     */
+    public void setRateLimit(RateLimitConfiguration rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    /**
+     * Returns the rate limits applied to messages published to specific exchanges.
+     *
+     * @return The rate limits applied to messages published to specific exchanges, keyed by exchange name.
+     */
+    public Map<String, RateLimitConfiguration> getExchangeRateLimits() {
+        return exchangeRateLimits;
+    }
+
+    /**
+     * Sets the rate limits applied to messages published to specific exchanges.
+     *
+     * @param exchangeRateLimits The rate limits applied to messages published to specific exchanges, keyed by exchange name.
+     */
+    public void setExchangeRateLimits(Map<String, RateLimitConfiguration> exchangeRateLimits) {
+        this.exchangeRateLimits = exchangeRateLimits;
+    }
+
     /**
      * Returns a set of connection parameters used to make a connection to a RabbitMQ broker.
      * <p>
+     * When several node URIs are configured, the parameters of the first node are returned.
      * Note that this method lazy-loads connection parameters when necessasry.
      *
      * @return A set of connection parameters.
@@ -188,7 +606,7 @@ public class ConnectionConfiguration {
         if (connectionParameters == null) {
             synchronized (this) {
                 if (connectionParameters == null) {
-                    connectionParameters = ConnectionParameters.from(uri);
+                    connectionParameters = ConnectionParameters.from(uris != null && !uris.isEmpty() ? uris.get(0) : uri);
                 }
             }
         }
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.config;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+public class OutboxConfiguration {
+    /**
+     * Whether fire-and-forget sends are spooled to the local outbox instead of being published directly.
+     */
+    private boolean enabled = false;
+
+    /**
+     * Directory the outbox segments are stored in.
+     */
+    @NotNull
+    private String directory = "rabbitmq-outbox";
+
+    /**
+     * Size of each outbox segment file, in bytes.
+     */
+    @Min(4096)
+    private int segmentSize = 16 * 1024 * 1024;
+
+    /**
+     * Maximum number of segment files the outbox may use. Sends are rejected once every segment is full.
+     */
+    @Min(2)
+    private int maxSegments = 64;
+
+    /**
+     * Maximum number of messages replayed before waiting for their confirms.
+     */
+    @Min(1)
+    private int batchSize = 256;
+
+    /**
+     * Amount of time, in milliseconds, to wait before retrying when the broker is unavailable or a replay fails.
+     */
+    @Min(1)
+    private long retryInterval = 1000;
+
+    /**
+     * Amount of time, in milliseconds, to wait for the broker to confirm a replayed batch.
+     */
+    @Min(1)
+    private long confirmTimeout = 30000;
+
+    /**
+     * Whether every append is forced to disk before the caller is acknowledged.
+     */
+    private boolean syncOnWrite = false;
+
+    /**
+     * Returns whether fire-and-forget sends are spooled to the local outbox.
+     *
+     * @return Whether fire-and-forget sends are spooled to the local outbox.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets whether fire-and-forget sends are spooled to the local outbox.
+     *
+     * @param enabled Whether fire-and-forget sends are spooled to the local outbox.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Returns the directory the outbox segments are stored in.
+     *
+     * @return The directory the outbox segments are stored in.
+     */
+    public String getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Sets the directory the outbox segments are stored in.
+     *
+     * @param directory The directory the outbox segments are stored in.
+     */
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the size of each outbox segment file, in bytes.
+     *
+     * @return The size of each outbox segment file, in bytes.
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Sets the size of each outbox segment file, in bytes.
+     *
+     * @param segmentSize The size of each outbox segment file, in bytes.
+     */
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Returns the maximum number of segment files the outbox may use.
+     *
+     * @return The maximum number of segment files the outbox may use.
+     */
+    public int getMaxSegments() {
+        return maxSegments;
+    }
+
+    /**
+     * Sets the maximum number of segment files the outbox may use.
+     *
+     * @param maxSegments The maximum number of segment files the outbox may use.
+     */
+    public void setMaxSegments(int maxSegments) {
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * Returns the maximum number of messages replayed before waiting for their confirms.
+     *
+     * @return The maximum number of messages replayed before waiting for their confirms.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the maximum number of messages replayed before waiting for their confirms.
+     *
+     * @param batchSize The maximum number of messages replayed before waiting for their confirms.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns the amount of time, in milliseconds, to wait before retrying a replay.
+     *
+     * @return The amount of time, in milliseconds, to wait before retrying a replay.
+     */
+    public long getRetryInterval() {
+        return retryInterval;
+    }
+
+    /**
+     * Sets the amount of time, in milliseconds, to wait before retrying a replay.
+     *
+     * @param retryInterval The amount of time, in milliseconds, to wait before retrying a replay.
+     */
+    public void setRetryInterval(long retryInterval) {
+        this.retryInterval = retryInterval;
+    }
+
+    /**
+     * Returns the amount of time, in milliseconds, to wait for the broker to confirm a replayed batch.
+     *
+     * @return The amount of time, in milliseconds, to wait for the broker to confirm a replayed batch.
+     */
+    public long getConfirmTimeout() {
+        return confirmTimeout;
+    }
+
+    /**
+     * Sets the amount of time, in milliseconds, to wait for the broker to confirm a replayed batch.
+     *
+     * @param confirmTimeout The amount of time, in milliseconds, to wait for the broker to confirm a replayed batch.
+     */
+    public void setConfirmTimeout(long confirmTimeout) {
+        this.confirmTimeout = confirmTimeout;
+    }
+
+    /**
+     * Returns whether every append is forced to disk before the caller is acknowledged.
+     *
+     * @return Whether every append is forced to disk before the caller is acknowledged.
+     */
+    public boolean isSyncOnWrite() {
+        return syncOnWrite;
+    }
+
+    /**
+     * Sets whether every append is forced to disk before the caller is acknowledged.
+     *
+     * @param syncOnWrite Whether every append is forced to disk before the caller is acknowledged.
+     */
+    public void setSyncOnWrite(boolean syncOnWrite) {
+        this.syncOnWrite = syncOnWrite;
+    }
+}
@@ -18,10 +18,14 @@ package com.budjb.rabbitmq.multi.config;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.context.properties.NestedConfigurationProperty;
+import org.springframework.validation.annotation.Validated;
+
+import javax.validation.constraints.Min;
 
 import java.util.HashMap;
 import java.util.Map;
 
+@Validated
 @ConfigurationProperties("rabbitmq")
 public class RabbitConfigurationProperties {
     /**
@@ -41,6 +45,78 @@ public class RabbitConfigurationProperties {
     @NestedConfigurationProperty
     private MessageConverterConfiguration messageConverterConfiguration = new MessageConverterConfiguration();
 
+    /**
+     * Maximum number of unconfirmed messages a reactive publish stream keeps in flight.
+     */
+    @Min(1)
+    private int maxOutstandingConfirms = 256;
+
+    /**
+     * Local outbox configuration.
+     */
+    @NestedConfigurationProperty
+    private OutboxConfiguration outbox = new OutboxConfiguration();
+
+    /**
+     * Message body compression configuration.
+     */
+    @NestedConfigurationProperty
+    private CompressionConfiguration compression = new CompressionConfiguration();
+
+    /**
+     * Returns the message body compression configuration.
+     *
+     * @return The message body compression configuration.
+     */
+    public CompressionConfiguration getCompression() {
+        return compression;
+    }
+
+    /**
+     * Sets the message body compression configuration.
+     *
+     * @param compression The message body compression configuration.
+     */
+    public void setCompression(CompressionConfiguration compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Returns the local outbox configuration.
+     *
+     * @return The local outbox configuration.
+     */
+    public OutboxConfiguration getOutbox() {
+        return outbox;
+    }
+
+    /**
+     * Sets the local outbox configuration.
+     *
+     * @param outbox The local outbox configuration.
+     */
+    public void setOutbox(OutboxConfiguration outbox) {
+        this.outbox = outbox;
+    }
+
+    /**
+     * Returns the maximum number of unconfirmed messages a reactive publish stream keeps in flight.
+     *
+     * @return The maximum number of unconfirmed messages a reactive publish stream keeps in flight.
+     */
+    public int getMaxOutstandingConfirms() {
+        return maxOutstandingConfirms;
+    }
+
+    /**
+     * Sets the maximum number of unconfirmed messages a reactive publish stream keeps in flight.
+     *
+     * @param maxOutstandingConfirms The maximum number of unconfirmed messages a reactive publish stream keeps in flight.
+     */
+    public void setMaxOutstandingConfirms(int maxOutstandingConfirms) {
+        this.maxOutstandingConfirms = maxOutstandingConfirms;
+    }
+
     /**
      * Returns the message converter configuration.
      *
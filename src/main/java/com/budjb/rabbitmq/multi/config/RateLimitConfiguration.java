@@ -0,0 +1,149 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.config;
+
+import javax.validation.constraints.Min;
+
+public class RateLimitConfiguration {
+    /**
+     * Maximum number of messages published per second. {@code 0} disables the limit.
+     */
+    @Min(0)
+    private double messagesPerSecond = 0;
+
+    /**
+     * Maximum number of message body bytes published per second. {@code 0} disables the limit.
+     */
+    @Min(0)
+    private long bytesPerSecond = 0;
+
+    /**
+     * Amount of time, in milliseconds, worth of publishing that may be sent in a burst after a quiet period.
+     */
+    @Min(1)
+    private long burst = 1000;
+
+    /**
+     * Whether publishes wait for the limit to allow them. When disabled, publishes that exceed the
+     * limit fail immediately.
+     */
+    private boolean blocking = true;
+
+    /**
+     * Maximum amount of time, in milliseconds, a blocking publish waits for the limit to allow it.
+     */
+    @Min(0)
+    private long maxWait = 5000;
+
+    /**
+     * Returns whether a message or byte limit is configured.
+     *
+     * @return Whether a message or byte limit is configured.
+     */
+    public boolean isEnabled() {
+        return messagesPerSecond > 0 || bytesPerSecond > 0;
+    }
+
+    /**
+     * Returns the maximum number of messages published per second.
+     *
+     * @return The maximum number of messages published per second.
+     */
+    public double getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    /**
+     * Sets the maximum number of messages published per second.
+     *
+     * @param messagesPerSecond The maximum number of messages published per second.
+     */
+    public void setMessagesPerSecond(double messagesPerSecond) {
+        this.messagesPerSecond = messagesPerSecond;
+    }
+
+    /**
+     * Returns the maximum number of message body bytes published per second.
+     *
+     * @return The maximum number of message body bytes published per second.
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Sets the maximum number of message body bytes published per second.
+     *
+     * @param bytesPerSecond The maximum number of message body bytes published per second.
+     */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Returns the amount of time, in milliseconds, worth of publishing that may be sent in a burst.
+     *
+     * @return The amount of time, in milliseconds, worth of publishing that may be sent in a burst.
+     */
+    public long getBurst() {
+        return burst;
+    }
+
+    /**
+     * Sets the amount of time, in milliseconds, worth of publishing that may be sent in a burst.
+     *
+     * @param burst The amount of time, in milliseconds, worth of publishing that may be sent in a burst.
+     */
+    public void setBurst(long burst) {
+        this.burst = burst;
+    }
+
+    /**
+     * Returns whether publishes wait for the limit to allow them.
+     *
+     * @return Whether publishes wait for the limit to allow them.
+     */
+    public boolean isBlocking() {
+        return blocking;
+    }
+
+    /**
+     * Sets whether publishes wait for the limit to allow them.
+     *
+     * @param blocking Whether publishes wait for the limit to allow them.
+     */
+    public void setBlocking(boolean blocking) {
+        this.blocking = blocking;
+    }
+
+    /**
+     * Returns the maximum amount of time, in milliseconds, a blocking publish waits for the limit.
+     *
+     * @return The maximum amount of time, in milliseconds, a blocking publish waits for the limit.
+     */
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * Sets the maximum amount of time, in milliseconds, a blocking publish waits for the limit.
+     *
+     * @param maxWait The maximum amount of time, in milliseconds, a blocking publish waits for the limit.
+     */
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+}
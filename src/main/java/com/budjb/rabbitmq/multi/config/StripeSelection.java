@@ -0,0 +1,41 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.config;
+
+/**
+ * Strategies used to pick which of a connection's physical connections a new channel is opened on.
+ */
+public enum StripeSelection {
+    /**
+     * Cycle through the physical connections in order.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * Use the physical connection with the fewest open channels.
+     */
+    LEAST_CHANNELS,
+
+    /**
+     * Use the physical connection with the fewest published messages awaiting a confirm.
+     */
+    LEAST_OUTSTANDING_CONFIRMS,
+
+    /**
+     * Pick a physical connection at random, weighted towards those whose broker confirms messages fastest.
+     */
+    LATENCY_WEIGHTED
+}
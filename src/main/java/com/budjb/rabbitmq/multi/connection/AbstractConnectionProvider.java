@@ -41,9 +41,15 @@ public abstract class AbstractConnectionProvider implements ConnectionProvider {
      */
     @Override
     public Connection createConnection(ConnectionConfiguration connectionConfiguration, @Nullable MeterRegistry meterRegistry) throws ConnectionException {
-        try {
-            ConnectionParameters connectionParameters = connectionConfiguration.getConnectionParameters();
+        return createConnection(connectionConfiguration, connectionConfiguration.getConnectionParameters(), meterRegistry);
+    }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Connection createConnection(ConnectionConfiguration connectionConfiguration, ConnectionParameters connectionParameters, @Nullable MeterRegistry meterRegistry) throws ConnectionException {
+        try {
             ConnectionFactory factory = getConnectionFactory();
 
             factory.setHost(connectionParameters.getHost());
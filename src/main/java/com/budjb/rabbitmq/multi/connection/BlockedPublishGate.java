@@ -0,0 +1,408 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.connection;
+
+import com.budjb.rabbitmq.multi.config.BlockedPolicy;
+import com.budjb.rabbitmq.multi.config.ConnectionConfiguration;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.lang.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies a connection's {@link BlockedPolicy} to publishes while the broker has blocked the
+ * connection because of a memory or disk alarm.
+ * <p>
+ * Publishing on a blocked connection does not fail; the client simply stops reading from the
+ * socket and publishing threads hang inside {@code basicPublish}. The gate lets callers fail fast,
+ * wait with a timeout, or hand the message to a bounded buffer that is flushed in order once the
+ * connection is unblocked. Messages published while a flush is in progress are buffered behind it
+ * so that ordering is preserved.
+ * <p>
+ * The buffer is flushed on a thread of its own, started each time the connection is unblocked.
+ * Buffered messages that fail to be published are logged and counted, since fire-and-forget
+ * publishers do not observe the future of a buffered message.
+ */
+class BlockedPublishGate {
+    /**
+     * Publishes a buffered message once the connection is unblocked.
+     */
+    interface Publisher {
+        /**
+         * Publishes a message and returns a future that completes when the broker confirms it.
+         *
+         * @param exchange        Exchange to publish to.
+         * @param routingKey      Routing key of the message.
+         * @param basicProperties Message properties.
+         * @param body            Body of the message.
+         * @return A future that completes when the broker confirms the message.
+         * @throws IOException When an underlying IO exception occurs.
+         */
+        CompletableFuture<Void> publish(String exchange, String routingKey, BasicProperties basicProperties, byte[] body) throws IOException;
+    }
+
+    /**
+     * Logger.
+     */
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Name of the connection.
+     */
+    private final String name;
+
+    /**
+     * Policy applied to publishes while the connection is blocked.
+     */
+    private final BlockedPolicy policy;
+
+    /**
+     * Amount of time, in nanoseconds, a publish waits for the connection to be unblocked.
+     */
+    private final long timeout;
+
+    /**
+     * Maximum number of message body bytes held in the buffer.
+     */
+    private final long bufferSize;
+
+    /**
+     * Publishes buffered messages once the connection is unblocked.
+     */
+    private final Publisher publisher;
+
+    /**
+     * Records how long the connection stays blocked.
+     */
+    private final Timer blockedTimer;
+
+    /**
+     * Counts buffered messages that failed to be published.
+     */
+    private final Counter failedCounter;
+
+    /**
+     * Messages waiting for the connection to be unblocked.
+     */
+    private final Deque<BufferedMessage> buffer = new ArrayDeque<>();
+
+    /**
+     * Number of message body bytes held in the buffer.
+     */
+    private volatile long bufferedBytes;
+
+    /**
+     * Whether buffered messages are being published.
+     */
+    private volatile boolean flushing;
+
+    /**
+     * Whether the broker has blocked the connection.
+     */
+    private volatile boolean blocked;
+
+    /**
+     * Time, per {@link System#nanoTime()}, the connection was blocked.
+     */
+    private long blockedSince;
+
+    /**
+     * Constructor.
+     *
+     * @param name                    Name of the connection.
+     * @param connectionConfiguration Connection configuration.
+     * @param publisher               Publishes buffered messages once the connection is unblocked.
+     * @param meterRegistry           Micrometer meter registry.
+     */
+    BlockedPublishGate(String name, ConnectionConfiguration connectionConfiguration, Publisher publisher, @Nullable MeterRegistry meterRegistry) {
+        this.name = name;
+        this.policy = connectionConfiguration.getBlockedPolicy() != null ? connectionConfiguration.getBlockedPolicy() : BlockedPolicy.BLOCK;
+        this.timeout = TimeUnit.MILLISECONDS.toNanos(connectionConfiguration.getBlockedTimeout());
+        this.bufferSize = connectionConfiguration.getBlockedBufferSize();
+        this.publisher = publisher;
+
+        if (meterRegistry != null) {
+            blockedTimer = Timer.builder("rabbitmq.connection.blocked").tag("connection", name)
+                .description("Time the connection was blocked by the broker").register(meterRegistry);
+            Gauge.builder("rabbitmq.connection.blocked.buffer", this, gate -> gate.bufferedBytes).tag("connection", name)
+                .baseUnit("bytes").description("Message bytes buffered while the connection is blocked").register(meterRegistry);
+            failedCounter = Counter.builder("rabbitmq.connection.blocked.buffer.failed").tag("connection", name)
+                .description("Buffered messages that failed to be published").register(meterRegistry);
+        }
+        else {
+            blockedTimer = null;
+            failedCounter = null;
+        }
+    }
+
+    /**
+     * Returns whether the broker has blocked the connection.
+     *
+     * @return Whether the broker has blocked the connection.
+     */
+    boolean isBlocked() {
+        return blocked;
+    }
+
+    /**
+     * Returns the number of messages held in the buffer.
+     *
+     * @return The number of messages held in the buffer.
+     */
+    synchronized int getBufferedCount() {
+        return buffer.size();
+    }
+
+    /**
+     * Updates whether the broker has blocked the connection. Unblocking wakes any waiting
+     * publishers and starts flushing the buffer.
+     *
+     * @param blocked Whether the broker has blocked the connection.
+     */
+    synchronized void setBlocked(boolean blocked) {
+        if (this.blocked == blocked) {
+            return;
+        }
+
+        this.blocked = blocked;
+
+        if (blocked) {
+            blockedSince = System.nanoTime();
+            log.warn("RabbitMQ connection " + name + " was blocked by the broker; applying the " + policy + " policy to publishes");
+            return;
+        }
+
+        long duration = System.nanoTime() - blockedSince;
+
+        if (blockedTimer != null) {
+            blockedTimer.record(duration, TimeUnit.NANOSECONDS);
+        }
+
+        log.info("RabbitMQ connection " + name + " was unblocked after " + TimeUnit.NANOSECONDS.toMillis(duration) + "ms");
+
+        notifyAll();
+
+        if (!buffer.isEmpty() && !flushing) {
+            flushing = true;
+
+            Thread thread = new Thread(this::flush, "rabbitmq-blocked-flush-" + name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Waits for the connection to be unblocked if the broker has blocked it, or fails immediately
+     * if the policy is {@link BlockedPolicy#FAIL_FAST}. Callers that can not buffer a message use
+     * this method, so the {@link BlockedPolicy#BUFFER} policy waits as {@link BlockedPolicy#BLOCK} does.
+     *
+     * @throws ConnectionBlockedException When the connection is blocked and was not unblocked in time.
+     */
+    void awaitUnblocked() throws ConnectionBlockedException {
+        if (!blocked) {
+            return;
+        }
+
+        if (policy == BlockedPolicy.FAIL_FAST) {
+            throw new ConnectionBlockedException("RabbitMQ connection " + name + " is blocked by the broker");
+        }
+
+        long deadline = System.nanoTime() + timeout;
+
+        synchronized (this) {
+            while (blocked) {
+                long remaining = deadline - System.nanoTime();
+
+                if (remaining <= 0) {
+                    throw new ConnectionBlockedException("RabbitMQ connection " + name + " was not unblocked by the broker within " + TimeUnit.NANOSECONDS.toMillis(timeout) + "ms");
+                }
+
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ConnectionBlockedException("interrupted while waiting for RabbitMQ connection " + name + " to be unblocked", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the blocked policy to a message that is about to be published.
+     * <p>
+     * When the policy is {@link BlockedPolicy#BUFFER} and the connection is blocked or its buffer
+     * is being flushed, the message is buffered and a future is returned that completes once it
+     * has been published and confirmed. Otherwise the caller should publish the message itself
+     * and {@code null} is returned, after waiting for the connection to be unblocked if necessary.
+     *
+     * @param exchange        Exchange to publish to.
+     * @param routingKey      Routing key of the message.
+     * @param basicProperties Message properties.
+     * @param body            Body of the message.
+     * @return A future for a buffered message, or {@code null} if the caller should publish the message.
+     * @throws ConnectionBlockedException When the message can neither be published nor buffered.
+     */
+    @Nullable
+    CompletableFuture<Void> deferIfBlocked(String exchange, String routingKey, BasicProperties basicProperties, byte[] body) throws ConnectionBlockedException {
+        if (policy != BlockedPolicy.BUFFER) {
+            awaitUnblocked();
+            return null;
+        }
+
+        if (!blocked && !flushing) {
+            return null;
+        }
+
+        int size = body != null ? body.length : 0;
+
+        synchronized (this) {
+            if (!blocked && !flushing) {
+                return null;
+            }
+
+            if (bufferedBytes + size > bufferSize) {
+                throw new ConnectionBlockedException("RabbitMQ connection " + name + " is blocked by the broker and its buffer of " + bufferSize + " bytes is full");
+            }
+
+            BufferedMessage message = new BufferedMessage(exchange, routingKey, basicProperties, body);
+            buffer.add(message);
+            bufferedBytes += size;
+
+            return message.future;
+        }
+    }
+
+    /**
+     * Fails every buffered message and wakes any waiting publishers. Used when the connection is closed.
+     */
+    void close() {
+        BufferedMessage[] discarded;
+
+        synchronized (this) {
+            discarded = buffer.toArray(new BufferedMessage[0]);
+            buffer.clear();
+            bufferedBytes = 0;
+            blocked = false;
+            notifyAll();
+        }
+
+        if (discarded.length > 0) {
+            log.warn("Discarded " + discarded.length + " buffered messages because RabbitMQ connection " + name + " was closed before they were published");
+        }
+
+        for (BufferedMessage message : discarded) {
+            fail(message, new IOException("RabbitMQ connection " + name + " was closed before the buffered message was published"));
+        }
+    }
+
+    /**
+     * Publishes buffered messages in order until the buffer is empty or the connection is blocked again.
+     */
+    private void flush() {
+        while (true) {
+            BufferedMessage message;
+
+            synchronized (this) {
+                if (blocked || buffer.isEmpty()) {
+                    flushing = false;
+                    return;
+                }
+
+                message = buffer.poll();
+                bufferedBytes -= message.body != null ? message.body.length : 0;
+            }
+
+            try {
+                publisher.publish(message.exchange, message.routingKey, message.basicProperties, message.body).whenComplete((result, cause) -> {
+                    if (cause != null) {
+                        log.warn("A buffered message was not confirmed on RabbitMQ connection " + name, cause);
+                        fail(message, cause);
+                    }
+                    else {
+                        message.future.complete(null);
+                    }
+                });
+            }
+            catch (Exception e) {
+                log.warn("Unable to publish a buffered message on RabbitMQ connection " + name, e);
+                fail(message, e);
+            }
+        }
+    }
+
+    /**
+     * Completes a buffered message's future with a failure and counts it.
+     */
+    private void fail(BufferedMessage message, Throwable cause) {
+        if (failedCounter != null) {
+            failedCounter.increment();
+        }
+
+        message.future.completeExceptionally(cause);
+    }
+
+    /**
+     * A message held while the connection is blocked.
+     */
+    private static class BufferedMessage {
+        /**
+         * Exchange to publish to.
+         */
+        private final String exchange;
+
+        /**
+         * Routing key of the message.
+         */
+        private final String routingKey;
+
+        /**
+         * Message properties.
+         */
+        private final BasicProperties basicProperties;
+
+        /**
+         * Body of the message.
+         */
+        private final byte[] body;
+
+        /**
+         * Future completed once the message has been published and confirmed.
+         */
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        /**
+         * Constructor.
+         */
+        BufferedMessage(String exchange, String routingKey, BasicProperties basicProperties, byte[] body) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.basicProperties = basicProperties;
+            this.body = body;
+        }
+    }
+}
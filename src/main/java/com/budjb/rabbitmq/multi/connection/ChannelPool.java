@@ -0,0 +1,369 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.connection;
+
+import com.rabbitmq.client.Channel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A bounded pool of reusable channels belonging to a single physical connection.
+ * <p>
+ * Idle channels are handed out most-recently-used first so that a small, hot set of channels
+ * serves steady traffic while the rest age out and are closed once they have been idle for
+ * longer than the configured idle timeout. Channels that have been closed, either by the
+ * broker or the client, are discarded instead of being returned to the pool.
+ * <p>
+ * Idle channels are evicted whenever a channel is borrowed or returned; the pool runs no
+ * background thread, so the idle channels of a pool that sees no traffic at all stay open until
+ * the pool is next used or {@link #clear() cleared}.
+ */
+public class ChannelPool {
+    /**
+     * Describes a class that can open new channels for the pool.
+     */
+    @FunctionalInterface
+    public interface ChannelFactory {
+        /**
+         * Opens a new channel.
+         *
+         * @return A new channel.
+         * @throws IOException When an underlying IO exception occurs.
+         */
+        Channel createChannel() throws IOException;
+    }
+
+    /**
+     * An idle channel held by the pool, along with the time it was returned.
+     */
+    private static class IdleChannel {
+        /**
+         * Underlying RabbitMQ channel.
+         */
+        private final Channel channel;
+
+        /**
+         * Time, in nanoseconds, that the channel was returned to the pool.
+         */
+        private final long idleSince;
+
+        /**
+         * Constructor.
+         *
+         * @param channel   Underlying RabbitMQ channel.
+         * @param idleSince Time, in nanoseconds, that the channel was returned to the pool.
+         */
+        IdleChannel(Channel channel, long idleSince) {
+            this.channel = channel;
+            this.idleSince = idleSince;
+        }
+    }
+
+    /**
+     * Logger.
+     */
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Name of the connection the pool belongs to.
+     */
+    private final String name;
+
+    /**
+     * Factory used to open new channels.
+     */
+    private final ChannelFactory channelFactory;
+
+    /**
+     * Permits limiting the number of channels that may be borrowed at once.
+     */
+    private final Semaphore permits;
+
+    /**
+     * Idle channels, most recently used first.
+     */
+    private final Deque<IdleChannel> idle = new ConcurrentLinkedDeque<>();
+
+    /**
+     * Amount of time, in nanoseconds, a channel may sit idle before it is closed.
+     */
+    private final long idleTimeout;
+
+    /**
+     * Amount of time, in milliseconds, to wait for a channel when the pool is exhausted.
+     */
+    private final long borrowTimeout;
+
+    /**
+     * Counts borrows that were served by an idle channel.
+     */
+    private final Counter hitCounter;
+
+    /**
+     * Counts borrows that required a new channel to be opened.
+     */
+    private final Counter missCounter;
+
+    /**
+     * Records time spent waiting for a channel when the pool is exhausted.
+     */
+    private final Timer waitTimer;
+
+    /**
+     * Counts channels closed by the pool after sitting idle, or when the pool was cleared.
+     */
+    private final Counter closedCounter;
+
+    /**
+     * Counts channels discarded by the pool because they had already been closed.
+     */
+    private final Counter discardedCounter;
+
+    /**
+     * Constructor.
+     *
+     * @param name           Name of the connection the pool belongs to.
+     * @param channelFactory Factory used to open new channels.
+     * @param maxSize        Maximum number of channels that may be borrowed at once.
+     * @param idleTimeout    Amount of time, in milliseconds, a channel may sit idle before it is closed.
+     * @param borrowTimeout  Amount of time, in milliseconds, to wait for a channel when the pool is exhausted.
+     * @param meterRegistry  Micrometer meter registry (may be {@code null}).
+     */
+    public ChannelPool(String name, ChannelFactory channelFactory, int maxSize, long idleTimeout, long borrowTimeout, MeterRegistry meterRegistry) {
+        this(name, channelFactory, maxSize, idleTimeout, borrowTimeout, meterRegistry, Tags.empty());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name           Name of the connection the pool belongs to.
+     * @param channelFactory Factory used to open new channels.
+     * @param maxSize        Maximum number of channels that may be borrowed at once.
+     * @param idleTimeout    Amount of time, in milliseconds, a channel may sit idle before it is closed.
+     * @param borrowTimeout  Amount of time, in milliseconds, to wait for a channel when the pool is exhausted.
+     * @param meterRegistry  Micrometer meter registry (may be {@code null}).
+     * @param tags           Tags added to the pool's meters alongside the connection name.
+     */
+    public ChannelPool(String name, ChannelFactory channelFactory, int maxSize, long idleTimeout, long borrowTimeout, MeterRegistry meterRegistry, Iterable<Tag> tags) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("channel pool size must be at least 1");
+        }
+
+        this.name = name;
+        this.channelFactory = channelFactory;
+        this.permits = new Semaphore(maxSize, true);
+        this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+        this.borrowTimeout = borrowTimeout;
+
+        if (meterRegistry != null) {
+            hitCounter = Counter.builder("rabbitmq.channel.pool.borrow").tags(tags).tag("connection", name).tag("result", "hit")
+                .description("Channel borrows served by an idle pooled channel").register(meterRegistry);
+            missCounter = Counter.builder("rabbitmq.channel.pool.borrow").tags(tags).tag("connection", name).tag("result", "miss")
+                .description("Channel borrows that opened a new channel").register(meterRegistry);
+            waitTimer = Timer.builder("rabbitmq.channel.pool.wait").tags(tags).tag("connection", name)
+                .description("Time spent waiting for a channel from an exhausted pool").register(meterRegistry);
+            closedCounter = Counter.builder("rabbitmq.channel.pool.closed").tags(tags).tag("connection", name).tag("reason", "idle")
+                .description("Pooled channels closed by the pool").register(meterRegistry);
+            discardedCounter = Counter.builder("rabbitmq.channel.pool.closed").tags(tags).tag("connection", name).tag("reason", "broken")
+                .description("Pooled channels discarded because they were already closed").register(meterRegistry);
+            Gauge.builder("rabbitmq.channel.pool.idle", idle, Deque::size).tags(tags).tag("connection", name)
+                .description("Idle channels held by the pool").register(meterRegistry);
+        }
+        else {
+            hitCounter = null;
+            missCounter = null;
+            waitTimer = null;
+            closedCounter = null;
+            discardedCounter = null;
+        }
+    }
+
+    /**
+     * Borrows a channel from the pool, opening a new one if no idle channel is available.
+     * <p>
+     * If the maximum number of channels are already borrowed, this method waits up to the
+     * borrow timeout for one to be returned. Every borrow returns a new pooled channel, even
+     * when it wraps an idle channel, so a stale pooled channel can not return a channel that
+     * has since been borrowed again.
+     *
+     * @return A borrowed channel that must be closed to return it to the pool.
+     * @throws IOException      When an underlying IO exception occurs.
+     * @throws TimeoutException When no channel became available before the borrow timeout.
+     */
+    public PooledChannel borrow() throws IOException, TimeoutException {
+        acquirePermit();
+
+        try {
+            evictIdle(System.nanoTime());
+
+            IdleChannel idleChannel;
+
+            while ((idleChannel = idle.pollFirst()) != null) {
+                if (idleChannel.channel.isOpen()) {
+                    if (hitCounter != null) {
+                        hitCounter.increment();
+                    }
+                    return new PooledChannel(this, idleChannel.channel);
+                }
+
+                if (discardedCounter != null) {
+                    discardedCounter.increment();
+                }
+            }
+
+            if (missCounter != null) {
+                missCounter.increment();
+            }
+
+            return new PooledChannel(this, channelFactory.createChannel());
+        }
+        catch (IOException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a borrowed channel to the pool. Channels that are no longer open are discarded.
+     * Each borrow must be released exactly once, which {@link PooledChannel#close()} ensures.
+     *
+     * @param pooledChannel Channel to return.
+     */
+    void release(PooledChannel pooledChannel) {
+        try {
+            long now = System.nanoTime();
+
+            if (pooledChannel.isOpen()) {
+                idle.offerFirst(new IdleChannel(pooledChannel.getChannel(), now));
+            }
+            else if (discardedCounter != null) {
+                discardedCounter.increment();
+            }
+
+            evictIdle(now);
+        }
+        finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes all idle channels. Channels that are currently borrowed are closed when they are returned
+     * if their connection has been closed.
+     */
+    public void clear() {
+        IdleChannel idleChannel;
+
+        while ((idleChannel = idle.pollFirst()) != null) {
+            closeQuietly(idleChannel.channel);
+        }
+    }
+
+    /**
+     * Returns the number of idle channels in the pool.
+     *
+     * @return The number of idle channels in the pool.
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Returns the number of channels that may still be borrowed before callers must wait.
+     *
+     * @return The number of channels that may still be borrowed before callers must wait.
+     */
+    public int getAvailablePermits() {
+        return permits.availablePermits();
+    }
+
+    /**
+     * Acquires a permit to borrow a channel, waiting up to the borrow timeout when the pool is exhausted.
+     */
+    private void acquirePermit() throws IOException, TimeoutException {
+        if (permits.tryAcquire()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+
+        try {
+            if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                throw new TimeoutException("timeout of " + borrowTimeout + " milliseconds reached while waiting for a channel from connection " + name);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a channel from connection " + name);
+        }
+        finally {
+            if (waitTimer != null) {
+                waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * Closes channels at the tail of the idle list that have been idle longer than the idle timeout.
+     */
+    private void evictIdle(long now) {
+        IdleChannel idleChannel;
+
+        while ((idleChannel = idle.peekLast()) != null && now - idleChannel.idleSince > idleTimeout) {
+            if (idle.removeLastOccurrence(idleChannel)) {
+                closeQuietly(idleChannel.channel);
+            }
+        }
+    }
+
+    /**
+     * Closes the underlying channel, logging rather than propagating any failure.
+     */
+    private void closeQuietly(Channel channel) {
+        if (!channel.isOpen()) {
+            if (discardedCounter != null) {
+                discardedCounter.increment();
+            }
+            return;
+        }
+
+        if (closedCounter != null) {
+            closedCounter.increment();
+        }
+
+        try {
+            channel.close();
+        }
+        catch (Exception e) {
+            log.debug("Unable to close pooled channel for RabbitMQ connection " + name, e);
+        }
+    }
+}
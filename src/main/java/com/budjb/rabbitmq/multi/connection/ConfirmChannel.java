@@ -0,0 +1,206 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.connection;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.springframework.lang.Nullable;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongConsumer;
+
+/**
+ * A long-lived channel in publisher confirm mode that pipelines publishes and completes a
+ * future for each message once the broker confirms it.
+ * <p>
+ * Futures are completed on the connection's dispatch thread, so dependent actions that block
+ * should be attached with one of the {@code *Async} methods of {@link CompletableFuture}.
+ */
+public class ConfirmChannel implements ConfirmListener, ShutdownListener {
+    /**
+     * Mask applied to delivery tags to pick which publishes have their confirm latency sampled.
+     */
+    private static final long LATENCY_SAMPLE_MASK = 15;
+
+    /**
+     * Underlying RabbitMQ channel.
+     */
+    private final Channel channel;
+
+    /**
+     * Outstanding confirms keyed by delivery tag.
+     */
+    private final OutstandingConfirms outstandingConfirms = new OutstandingConfirms();
+
+    /**
+     * Receives sampled confirm latencies, in nanoseconds.
+     */
+    private final LongConsumer latencyListener;
+
+    /**
+     * Constructor. Places the given channel in confirm mode.
+     *
+     * @param channel Underlying RabbitMQ channel.
+     * @throws IOException When an underlying IO exception occurs.
+     */
+    public ConfirmChannel(Channel channel) throws IOException {
+        this(channel, null);
+    }
+
+    /**
+     * Constructor. Places the given channel in confirm mode.
+     * <p>
+     * When a latency listener is given, the time between publishing and the broker's ack is
+     * measured for one in every 16 messages and handed to the listener.
+     *
+     * @param channel         Underlying RabbitMQ channel.
+     * @param latencyListener Receives sampled confirm latencies, in nanoseconds.
+     * @throws IOException When an underlying IO exception occurs.
+     */
+    public ConfirmChannel(Channel channel, @Nullable LongConsumer latencyListener) throws IOException {
+        this.channel = channel;
+        this.latencyListener = latencyListener;
+
+        channel.addShutdownListener(this);
+        channel.addConfirmListener(this);
+        channel.confirmSelect();
+    }
+
+    /**
+     * Publishes a message and returns a future that completes when the broker confirms it.
+     *
+     * @param exchange        Exchange to publish to.
+     * @param routingKey      Routing key of the message.
+     * @param basicProperties Message properties.
+     * @param body            Body of the message.
+     * @return A future that completes when the broker confirms the message.
+     * @throws IOException When an underlying IO exception occurs.
+     */
+    public CompletableFuture<Void> publish(String exchange, String routingKey, BasicProperties basicProperties, byte[] body) throws IOException {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+
+        synchronized (this) {
+            long deliveryTag = channel.getNextPublishSeqNo();
+
+            outstandingConfirms.add(deliveryTag, future);
+
+            try {
+                channel.basicPublish(exchange, routingKey, basicProperties, body);
+            }
+            catch (IOException | RuntimeException e) {
+                outstandingConfirms.remove(deliveryTag);
+                throw e;
+            }
+
+            if (latencyListener != null && (deliveryTag & LATENCY_SAMPLE_MASK) == 0) {
+                long start = System.nanoTime();
+
+                future.whenComplete((result, cause) -> {
+                    if (cause == null) {
+                        latencyListener.accept(System.nanoTime() - start);
+                    }
+                });
+            }
+        }
+
+        return future;
+    }
+
+    /**
+     * Returns the underlying RabbitMQ channel.
+     *
+     * @return The underlying RabbitMQ channel.
+     */
+    public Channel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Returns whether the underlying channel is open.
+     *
+     * @return Whether the underlying channel is open.
+     */
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Returns the number of published messages that have not yet been confirmed.
+     *
+     * @return The number of published messages that have not yet been confirmed.
+     */
+    public int getOutstandingCount() {
+        return outstandingConfirms.size();
+    }
+
+    /**
+     * Closes the underlying channel. Any unconfirmed messages are failed.
+     */
+    public void close() {
+        try {
+            if (channel.isOpen()) {
+                channel.close();
+            }
+        }
+        catch (Exception ignored) {
+            // The channel is being discarded either way.
+        }
+        finally {
+            fail(outstandingConfirms.drain(), new IOException("confirm channel was closed before the message was confirmed"));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void handleAck(long deliveryTag, boolean multiple) {
+        for (CompletableFuture<?> future : outstandingConfirms.settle(deliveryTag, multiple)) {
+            future.complete(null);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void handleNack(long deliveryTag, boolean multiple) {
+        fail(outstandingConfirms.settle(deliveryTag, multiple), new MessageNackedException("message was negatively acknowledged by the broker"));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void shutdownCompleted(ShutdownSignalException cause) {
+        fail(outstandingConfirms.drain(), cause);
+    }
+
+    /**
+     * Completes the given futures exceptionally.
+     */
+    private void fail(List<CompletableFuture<?>> futures, Throwable cause) {
+        for (CompletableFuture<?> future : futures) {
+            future.completeExceptionally(cause);
+        }
+    }
+}
@@ -19,13 +19,23 @@ package com.budjb.rabbitmq.multi.connection;
 import com.budjb.rabbitmq.multi.RunningState;
 import com.budjb.rabbitmq.multi.config.ConnectionConfiguration;
 import com.budjb.rabbitmq.multi.config.ConnectionParameters;
+import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.lang.Nullable;
 
 import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ConnectionContext {
     /**
@@ -54,9 +64,34 @@ public class ConnectionContext {
     private final MeterRegistry meterRegistry;
 
     /**
-     * Connection to RabbitMQ.
+     * Physical connections to RabbitMQ.
      */
-    private Connection connection;
+    private volatile List<ConnectionStripe> stripes;
+
+    /**
+     * Strategy used to pick the stripe a channel or publish goes to.
+     */
+    private final StripeSelector stripeSelector;
+
+    /**
+     * Shared consumer for RPC replies.
+     */
+    private final RpcReplyDispatcher rpcReplyDispatcher;
+
+    /**
+     * Applies the blocked policy to publishes while the broker has blocked the connection.
+     */
+    private final BlockedPublishGate blockedPublishGate;
+
+    /**
+     * Context publishes are routed to while this context is unavailable.
+     */
+    private volatile ConnectionContext failover;
+
+    /**
+     * Context publishes were last routed to by {@link #resolve()}.
+     */
+    private final AtomicReference<ConnectionContext> activeContext = new AtomicReference<>(this);
 
     /**
      * Constructor.
@@ -71,11 +106,34 @@ public class ConnectionContext {
         ConnectionConfiguration connectionConfiguration,
         ConnectionProvider connectionProvider,
         MeterRegistry meterRegistry
+    ) {
+        this(name, connectionConfiguration, connectionProvider, meterRegistry, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name                    Name of the connection.
+     * @param connectionConfiguration Connection configuration.
+     * @param connectionProvider      Connection provider.
+     * @param meterRegistry           Micrometer meter registry.
+     * @param stripeSelector          Strategy used to pick a stripe. When {@code null}, the configured
+     *                                {@link ConnectionConfiguration#getStripeSelection() stripe selection} is used.
+     */
+    public ConnectionContext(
+        String name,
+        ConnectionConfiguration connectionConfiguration,
+        ConnectionProvider connectionProvider,
+        MeterRegistry meterRegistry,
+        @Nullable StripeSelector stripeSelector
     ) {
         this.name = name;
         this.connectionConfiguration = connectionConfiguration;
         this.connectionProvider = connectionProvider;
         this.meterRegistry = meterRegistry;
+        this.stripeSelector = stripeSelector != null ? stripeSelector : StripeSelectors.forStrategy(connectionConfiguration.getStripeSelection());
+        this.rpcReplyDispatcher = new RpcReplyDispatcher(name, this::createChannel, connectionConfiguration.isDirectReplyTo(), meterRegistry);
+        this.blockedPublishGate = new BlockedPublishGate(name, connectionConfiguration, this::publishBuffered, meterRegistry);
     }
 
     /**
@@ -97,43 +155,100 @@ public class ConnectionContext {
     }
 
     /**
-     * Opens the connection to the RabbitMQ broker.
+     * Opens the connections to the RabbitMQ broker.
+     * <p>
+     * The configured number of physical connections is opened to each broker node, interleaved by
+     * node so that consecutive stripes belong to different nodes. Connections that fail to open are
+     * skipped, and the context only fails to start if none of them open.
      */
     public void start() {
         ConnectionParameters connectionParameters = connectionConfiguration.getConnectionParameters();
 
-        if (this.connection != null) {
+        if (this.stripes != null) {
             throw new IllegalStateException("Attempted to start RabbitMQ connection " + getName() + " (" + connectionParameters + ") but it has already been started");
         }
 
-        try {
-            this.connection = connectionProvider.createConnection(connectionConfiguration, meterRegistry);
-            log.info("Opened connection to RabbitMQ server " + getName() + " (" + connectionParameters + ")");
+        List<ConnectionParameters> nodes = new ArrayList<>();
+
+        for (URI uri : connectionConfiguration.getNodeUris()) {
+            nodes.add(ConnectionParameters.from(uri));
         }
-        catch (ConnectionException e) {
-            log.error("Connection to RabbitMQ server " + getName() + " (" + connectionParameters + ") did not start because it encountered an issue while connecting", e);
+
+        int connectionCount = Math.max(1, connectionConfiguration.getConnectionCount());
+        List<ConnectionStripe> stripes = new ArrayList<>(connectionCount * nodes.size());
+
+        for (int i = 0; i < connectionCount; i++) {
+            for (ConnectionParameters node : nodes) {
+                try {
+                    Connection connection = nodes.size() == 1 ?
+                        connectionProvider.createConnection(connectionConfiguration, meterRegistry) :
+                        connectionProvider.createConnection(connectionConfiguration, node, meterRegistry);
+
+                    ConnectionStripe stripe = new ConnectionStripe(
+                        stripes.size(),
+                        node,
+                        connection,
+                        connectionConfiguration.getConfirmChannelCount(),
+                        connectionConfiguration.getNodeEjectionTime(),
+                        this::updateBlocked
+                    );
+
+                    stripe.setChannelPool(new ChannelPool(
+                        name,
+                        stripe::createChannel,
+                        connectionConfiguration.getChannelPoolSize(),
+                        connectionConfiguration.getChannelPoolIdleTimeout(),
+                        connectionConfiguration.getChannelPoolBorrowTimeout(),
+                        meterRegistry,
+                        Tags.of("stripe", String.valueOf(stripe.getIndex()))
+                    ));
+
+                    stripes.add(stripe);
+
+                    log.info("Opened connection to RabbitMQ server " + getName() + " (" + node + ")");
+                }
+                catch (ConnectionException e) {
+                    log.error("Connection to RabbitMQ server " + getName() + " (" + node + ") did not start because it encountered an issue while connecting", e);
+                }
+            }
+        }
+
+        if (!stripes.isEmpty()) {
+            this.stripes = Collections.unmodifiableList(stripes);
+            updateBlocked();
         }
     }
 
     /**
-     * Closes the RabbitMQ connection.
+     * Closes the RabbitMQ connections.
      */
     public void stop() {
-        if (connection == null) {
+        List<ConnectionStripe> stripes = this.stripes;
+
+        if (stripes == null) {
             return;
         }
-        else if (!connection.isOpen()) {
+        else if (stripes.stream().noneMatch(stripe -> stripe.getConnection().isOpen())) {
             return;
         }
 
+        blockedPublishGate.close();
+        stripes.forEach(ConnectionStripe::clearChannelPool);
+        stripes.forEach(ConnectionStripe::closeConfirmChannels);
+        rpcReplyDispatcher.close();
+
         try {
-            connection.close();
-        }
-        catch (IOException e) {
-            log.error("Unable to close connection to RabbitMQ server " + getName() + " (" + connectionConfiguration.getConnectionParameters() + ")");
+            for (ConnectionStripe stripe : stripes) {
+                try {
+                    stripe.close();
+                }
+                catch (IOException e) {
+                    log.error("Unable to close connection to RabbitMQ server " + getName() + " (" + stripe.getConnectionParameters() + ")");
+                }
+            }
         }
         finally {
-            connection = null;
+            this.stripes = null;
         }
 
         log.info("Closed connection to the RabbitMQ server " + getName() + " (" + connectionConfiguration.getConnectionParameters() + ")");
@@ -145,31 +260,222 @@ public class ConnectionContext {
      * @return The context's running state.
      */
     public RunningState getRunningState() {
-        return this.connection == null ? RunningState.STOPPED : RunningState.RUNNING;
+        return this.stripes == null ? RunningState.STOPPED : RunningState.RUNNING;
     }
 
     /**
      * Creates an un-tracked channel.
      * <p>
-     * Callers of this method must put in some due diligence to ensure that the channel is closed.
+     * The channel is opened on one of the context's physical connections, chosen by the context's
+     * {@link StripeSelector}. Callers of this method must put in some due diligence to ensure that
+     * the channel is closed.
      *
      * @return A new, un-tracked channel.
+     * @throws IOException When an underlying IO exception occurs, or the connection has no channels left.
      */
     public Channel createChannel() throws IllegalStateException, IOException {
-        return getConnection().createChannel();
+        return selectStripe().createChannel();
+    }
+
+    /**
+     * Borrows a channel from the channel pool of one of the context's physical connections.
+     * <p>
+     * The physical connection is chosen by the context's {@link StripeSelector} on every borrow,
+     * so connections that are out of rotation, including those the broker has blocked, are
+     * skipped. The returned channel must be closed to return it to the pool, and should not be
+     * closed directly via {@link PooledChannel#getChannel()}. While the broker has blocked every
+     * connection, the context's blocked policy is applied first.
+     *
+     * @return A pooled channel.
+     * @throws IOException      When an underlying IO exception occurs.
+     * @throws TimeoutException When the pool is exhausted and no channel was returned in time.
+     */
+    public PooledChannel borrowChannel() throws IllegalStateException, IOException, TimeoutException {
+        blockedPublishGate.awaitUnblocked();
+        return selectStripe().getChannelPool().borrow();
+    }
+
+    /**
+     * Returns a long-lived channel in publisher confirm mode, opening it if necessary.
+     * <p>
+     * The stripe is chosen by the context's {@link StripeSelector}, and confirm channels within a
+     * stripe are shared between callers and selected round-robin. Confirm channels must not be
+     * closed by callers. While the broker has blocked the connection, the context's blocked policy
+     * is applied first.
+     *
+     * @return A channel in publisher confirm mode.
+     * @throws IOException When an underlying IO exception occurs.
+     */
+    public ConfirmChannel getConfirmChannel() throws IllegalStateException, IOException {
+        blockedPublishGate.awaitUnblocked();
+        return selectStripe().getConfirmChannel();
+    }
+
+    /**
+     * Returns whether the broker has blocked every open physical connection of the context
+     * because of a memory or disk alarm.
+     *
+     * @return Whether the broker has blocked the context's connections.
+     */
+    public boolean isBlocked() {
+        return blockedPublishGate.isBlocked();
+    }
+
+    /**
+     * Applies the context's {@link com.budjb.rabbitmq.multi.config.BlockedPolicy blocked policy}
+     * if the broker has blocked the connection, either failing immediately or waiting for the
+     * connection to be unblocked. Does nothing if the connection is not blocked.
+     *
+     * @throws ConnectionBlockedException When the connection is blocked and was not unblocked in time.
+     */
+    public void awaitUnblocked() throws ConnectionBlockedException {
+        blockedPublishGate.awaitUnblocked();
+    }
+
+    /**
+     * Applies the context's {@link com.budjb.rabbitmq.multi.config.BlockedPolicy blocked policy}
+     * to a message that is about to be published.
+     * <p>
+     * When the policy is {@code BUFFER} and the connection is blocked, the message is buffered in
+     * memory and a future is returned that completes once the message has been published and
+     * confirmed after the connection is unblocked. Otherwise {@code null} is returned and the
+     * caller should publish the message itself. Buffered messages that fail to be published are
+     * logged and counted as {@code rabbitmq.connection.blocked.buffer.failed}, so fire-and-forget
+     * callers may ignore the returned future.
+     *
+     * @param exchange        Exchange to publish to.
+     * @param routingKey      Routing key of the message.
+     * @param basicProperties Message properties.
+     * @param body            Body of the message.
+     * @return A future for a buffered message, or {@code null} if the caller should publish the message.
+     * @throws ConnectionBlockedException When the message can neither be published nor buffered.
+     */
+    @Nullable
+    public CompletableFuture<Void> deferIfBlocked(String exchange, String routingKey, BasicProperties basicProperties, byte[] body) throws ConnectionBlockedException {
+        return blockedPublishGate.deferIfBlocked(exchange, routingKey, basicProperties, body);
+    }
+
+    /**
+     * Returns the shared consumer for RPC replies.
+     *
+     * @return The shared consumer for RPC replies.
+     */
+    public RpcReplyDispatcher getRpcReplyDispatcher() {
+        return rpcReplyDispatcher;
     }
 
     /**
      * Returns the connection associated with the context.
+     * <p>
+     * When the context has several physical connections, the first open one is returned.
      *
      * @return The connection associated with the context.
      * @throws IllegalStateException When a connection is not active.
      */
     public Connection getConnection() throws IllegalStateException {
-        if (connection == null) {
+        List<ConnectionStripe> stripes = getStripes();
+
+        for (ConnectionStripe stripe : stripes) {
+            if (stripe.isAvailable()) {
+                return stripe.getConnection();
+            }
+        }
+
+        return stripes.get(0).getConnection();
+    }
+
+    /**
+     * Returns the physical connections behind the context.
+     *
+     * @return The physical connections behind the context.
+     * @throws IllegalStateException When a connection is not active.
+     */
+    public List<ConnectionStripe> getStripes() throws IllegalStateException {
+        List<ConnectionStripe> stripes = this.stripes;
+
+        if (stripes == null) {
             throw new IllegalStateException("Connection " + getName() + " (" + connectionConfiguration.getConnectionParameters() + ") is not active");
         }
-        return connection;
+
+        return stripes;
+    }
+
+    /**
+     * Returns whether the context is running and at least one of its physical connections is
+     * available. Ejected stripes that are due are probed first.
+     *
+     * @return Whether the context is running and at least one of its physical connections is available.
+     */
+    public boolean isAvailable() {
+        List<ConnectionStripe> stripes = this.stripes;
+
+        if (stripes == null) {
+            return false;
+        }
+
+        for (int i = 0; i < stripes.size(); i++) {
+            ConnectionStripe stripe = stripes.get(i);
+
+            stripe.probeIfDue();
+
+            if (stripe.isAvailable()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the context publishes should be routed to.
+     * <p>
+     * This is the context itself unless it is unavailable and has a failover chain, in which case
+     * it is the first available context in the chain. Routing fails back to this context as soon
+     * as it becomes available again. When no context in the chain is available, this context is
+     * returned so that the failure surfaces as it would without failover. Changes in routing are
+     * logged and counted as {@code rabbitmq.connection.failover}.
+     *
+     * @return The context publishes should be routed to.
+     */
+    public ConnectionContext resolve() {
+        if (failover == null) {
+            return this;
+        }
+
+        ConnectionContext target = this;
+
+        for (ConnectionContext candidate = this; candidate != null; candidate = candidate.failover) {
+            if (candidate.isAvailable()) {
+                target = candidate;
+                break;
+            }
+        }
+
+        ConnectionContext previous = activeContext.get();
+
+        if (previous != target && activeContext.compareAndSet(previous, target)) {
+            recordFailover(previous, target);
+        }
+
+        return target;
+    }
+
+    /**
+     * Returns the context publishes are routed to while this context is unavailable.
+     *
+     * @return The context publishes are routed to while this context is unavailable, or {@code null}.
+     */
+    public ConnectionContext getFailover() {
+        return failover;
+    }
+
+    /**
+     * Sets the context publishes are routed to while this context is unavailable.
+     *
+     * @param failover The context publishes are routed to while this context is unavailable.
+     */
+    void setFailover(ConnectionContext failover) {
+        this.failover = failover;
     }
 
     /**
@@ -180,4 +486,71 @@ public class ConnectionContext {
     public boolean isDefault() {
         return connectionConfiguration.isDefault();
     }
+
+    /**
+     * Logs and counts a change in the context publishes are routed to.
+     */
+    private void recordFailover(ConnectionContext from, ConnectionContext to) {
+        if (to == this) {
+            log.info("RabbitMQ connection " + getName() + " is available again; failing back from " + from.getName());
+        }
+        else {
+            log.warn("RabbitMQ connection " + getName() + " is unavailable; failing over from " + from.getName() + " to " + to.getName());
+        }
+
+        if (meterRegistry != null) {
+            meterRegistry.counter("rabbitmq.connection.failover", Tags.of("connection", getName(), "from", from.getName(), "to", to.getName())).increment();
+        }
+    }
+
+    /**
+     * Recomputes whether the context is blocked after one of its stripes was blocked or unblocked.
+     * The context is blocked when at least one stripe is blocked and no other open stripe is left
+     * to publish on.
+     */
+    private void updateBlocked() {
+        List<ConnectionStripe> stripes = this.stripes;
+        boolean blocked = false;
+
+        if (stripes != null) {
+            for (ConnectionStripe stripe : stripes) {
+                if (stripe.isBlocked()) {
+                    blocked = true;
+                }
+                else if (stripe.getConnection().isOpen()) {
+                    blocked = false;
+                    break;
+                }
+            }
+        }
+
+        blockedPublishGate.setBlocked(blocked);
+    }
+
+    /**
+     * Publishes a buffered message once the connection is unblocked, bypassing the blocked policy.
+     */
+    private CompletableFuture<Void> publishBuffered(String exchange, String routingKey, BasicProperties basicProperties, byte[] body) throws IOException {
+        return selectStripe().getConfirmChannel().publish(exchange, routingKey, basicProperties, body);
+    }
+
+    /**
+     * Picks the stripe a channel or publish goes to. Ejected stripes that are due are probed first.
+     * When no stripe is available the first one is returned, and the failure is left to the client.
+     */
+    private ConnectionStripe selectStripe() {
+        List<ConnectionStripe> stripes = getStripes();
+
+        if (stripes.size() == 1) {
+            return stripes.get(0);
+        }
+
+        for (int i = 0; i < stripes.size(); i++) {
+            stripes.get(i).probeIfDue();
+        }
+
+        ConnectionStripe stripe = stripeSelector.select(stripes);
+
+        return stripe != null ? stripe : stripes.get(0);
+    }
 }
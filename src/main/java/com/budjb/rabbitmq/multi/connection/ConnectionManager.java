@@ -17,15 +17,34 @@
 package com.budjb.rabbitmq.multi.connection;
 
 import com.budjb.rabbitmq.multi.RunningState;
+import com.budjb.rabbitmq.multi.config.ConnectionConfiguration;
 import com.budjb.rabbitmq.multi.config.RabbitConfigurationProperties;
+import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.event.EventListener;
+import org.springframework.lang.Nullable;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class ConnectionManager {
+    /**
+     * Logger.
+     */
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
     /**
      * Rabbit configuration properties.
      */
@@ -36,24 +55,51 @@ public class ConnectionManager {
      */
     private final Map<String, ConnectionContext> connections;
 
+    /**
+     * Default connection context, resolved on first use.
+     */
+    private volatile ConnectionContext defaultContext;
+
+    /**
+     * Executor that retries starting connections that have a failover connection, created on first use.
+     */
+    private ScheduledExecutorService retryExecutor;
+
+    /**
+     * Retries that are scheduled but have not run yet, keyed by the connection they start.
+     */
+    private final Map<ConnectionContext, ScheduledFuture<?>> pendingRetries = new HashMap<>();
+
     /**
      * Constructor.
+     * <p>
+     * Failover chains configured on the connections are linked here.
      *
      * @param rabbitConfigurationProperties Rabbit message properties.
      * @param connections                   List of managed connection contexts.
+     * @throws IllegalArgumentException When a failover connection does not exist or a failover chain loops.
      */
-    public ConnectionManager(RabbitConfigurationProperties rabbitConfigurationProperties, Map<String, ConnectionContext> connections) {
+    public ConnectionManager(RabbitConfigurationProperties rabbitConfigurationProperties, Map<String, ConnectionContext> connections) throws IllegalArgumentException {
         this.rabbitConfigurationProperties = rabbitConfigurationProperties;
         this.connections = connections;
+
+        linkFailovers();
     }
 
     /**
      * Starts all connections.
+     * <p>
+     * Connections that fail to start and have a failover connection are retried in the background
+     * until they start, so that publishing fails back to them automatically.
      */
     public void start() {
         for (ConnectionContext connectionContext : connections.values()) {
             if (connectionContext.getRunningState() == RunningState.STOPPED) {
                 connectionContext.start();
+
+                if (connectionContext.getRunningState() == RunningState.STOPPED && connectionContext.getFailover() != null) {
+                    scheduleRetry(connectionContext);
+                }
             }
         }
     }
@@ -62,6 +108,18 @@ public class ConnectionManager {
      * Stops all connections.
      */
     public void stop() {
+        synchronized (this) {
+            for (ScheduledFuture<?> pendingRetry : pendingRetries.values()) {
+                pendingRetry.cancel(false);
+            }
+            pendingRetries.clear();
+
+            if (retryExecutor != null) {
+                retryExecutor.shutdownNow();
+                retryExecutor = null;
+            }
+        }
+
         for (ConnectionContext connectionContext : connections.values()) {
             if (connectionContext.getRunningState() == RunningState.RUNNING) {
                 connectionContext.stop();
@@ -87,8 +145,16 @@ public class ConnectionManager {
      * @return The default connection context.
      */
     public ConnectionContext getContext() {
-        return connections.values().stream().filter(ConnectionContext::isDefault).findFirst()
-            .orElseThrow(() -> new IllegalArgumentException("no default connection was found"));
+        ConnectionContext defaultContext = this.defaultContext;
+
+        if (defaultContext == null) {
+            defaultContext = connections.values().stream().filter(ConnectionContext::isDefault).findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("no default connection was found"));
+
+            this.defaultContext = defaultContext;
+        }
+
+        return defaultContext;
     }
 
     /**
@@ -102,13 +168,36 @@ public class ConnectionManager {
             return getContext();
         }
 
-        if (connections.containsKey(name)) {
-            return connections.get(name);
+        ConnectionContext connectionContext = connections.get(name);
+
+        if (connectionContext != null) {
+            return connectionContext;
         }
 
         throw new ContextNotFoundException("no connection with name " + name + " was found");
     }
 
+    /**
+     * Returns the connection context publishes to the default connection should be routed to,
+     * following its failover chain when it is unavailable.
+     *
+     * @return The connection context publishes to the default connection should be routed to.
+     */
+    public ConnectionContext resolveContext() {
+        return getContext().resolve();
+    }
+
+    /**
+     * Returns the connection context publishes to the connection with the given name should be
+     * routed to, following its failover chain when it is unavailable.
+     *
+     * @param name Name of the connection.
+     * @return The connection context publishes to the connection with the given name should be routed to.
+     */
+    public ConnectionContext resolveContext(String name) {
+        return getContext(name).resolve();
+    }
+
     /**
      * Creates a channel from the default connection.
      *
@@ -129,4 +218,121 @@ public class ConnectionManager {
     public Channel createChannel(String connectionName) throws IOException {
         return getContext(connectionName).createChannel();
     }
+
+    /**
+     * Borrows a pooled channel from the default connection, or from its failover connection when
+     * it is unavailable.
+     *
+     * @return A pooled channel from the default connection.
+     * @throws IOException      When an underlying IO exception occurs.
+     * @throws TimeoutException When the pool is exhausted and no channel was returned in time.
+     */
+    public PooledChannel borrowChannel() throws IOException, TimeoutException {
+        return resolveContext().borrowChannel();
+    }
+
+    /**
+     * Borrows a pooled channel from the connection with the given name, or from its failover
+     * connection when it is unavailable.
+     *
+     * @param connectionName Name of the connection.
+     * @return A pooled channel from the connection with the given name.
+     * @throws IOException      When an underlying IO exception occurs.
+     * @throws TimeoutException When the pool is exhausted and no channel was returned in time.
+     */
+    public PooledChannel borrowChannel(String connectionName) throws IOException, TimeoutException {
+        return resolveContext(connectionName).borrowChannel();
+    }
+
+    /**
+     * Applies the blocked policy of the context the connection with the given name resolves to
+     * to a message that is about to be published.
+     *
+     * @param connectionName  Name of the connection, or {@code null} for the default connection.
+     * @param exchange        Exchange to publish to.
+     * @param routingKey      Routing key of the message.
+     * @param basicProperties Message properties.
+     * @param body            Body of the message.
+     * @return A future for a message that was buffered, or {@code null} if the caller should publish the message.
+     * @throws ConnectionBlockedException When the message can neither be published nor buffered.
+     * @see ConnectionContext#deferIfBlocked(String, String, BasicProperties, byte[])
+     */
+    @Nullable
+    public CompletableFuture<Void> deferIfBlocked(@Nullable String connectionName, String exchange, String routingKey, BasicProperties basicProperties, byte[] body) throws ConnectionBlockedException {
+        return resolveContext(connectionName).deferIfBlocked(exchange, routingKey, basicProperties, body);
+    }
+
+    /**
+     * Links each context to its configured failover context and rejects chains that loop.
+     */
+    private void linkFailovers() {
+        for (Map.Entry<String, ConnectionContext> entry : connections.entrySet()) {
+            ConnectionConfiguration configuration = entry.getValue().getConnectionConfiguration();
+            String failover = configuration != null ? configuration.getFailover() : null;
+
+            if (failover == null || failover.isEmpty()) {
+                continue;
+            }
+
+            ConnectionContext target = connections.get(failover);
+
+            if (target == null) {
+                throw new IllegalArgumentException("connection " + entry.getKey() + " fails over to unknown connection " + failover);
+            }
+
+            entry.getValue().setFailover(target);
+        }
+
+        for (ConnectionContext connectionContext : connections.values()) {
+            Set<ConnectionContext> visited = new HashSet<>();
+
+            for (ConnectionContext candidate = connectionContext; candidate != null; candidate = candidate.getFailover()) {
+                if (!visited.add(candidate)) {
+                    throw new IllegalArgumentException("the failover chain of connection " + connectionContext.getName() + " loops back on itself");
+                }
+            }
+        }
+    }
+
+    /**
+     * Schedules another attempt to start a connection that failed to start.
+     */
+    private synchronized void scheduleRetry(ConnectionContext connectionContext) {
+        if (retryExecutor == null) {
+            retryExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "rabbitmq-failover-retry");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        pendingRetries.put(connectionContext, retryExecutor.schedule(() -> retryStart(connectionContext), connectionContext.getConnectionConfiguration().getFailoverRetryInterval(), TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Attempts to start a connection that failed to start, rescheduling the attempt if it fails again.
+     * <p>
+     * The attempt holds the manager's lock so that {@link #stop()} waits for it to finish and then stops
+     * the connection, and an attempt that runs after the manager was stopped does nothing.
+     */
+    private synchronized void retryStart(ConnectionContext connectionContext) {
+        pendingRetries.remove(connectionContext);
+
+        if (retryExecutor == null) {
+            return;
+        }
+
+        try {
+            if (connectionContext.getRunningState() == RunningState.STOPPED) {
+                connectionContext.start();
+            }
+        }
+        catch (RuntimeException e) {
+            log.debug("Retrying the start of RabbitMQ connection " + connectionContext.getName() + " failed", e);
+        }
+
+        if (connectionContext.getRunningState() == RunningState.STOPPED) {
+            scheduleRetry(connectionContext);
+        }
+    }
 }
@@ -17,6 +17,7 @@
 package com.budjb.rabbitmq.multi.connection;
 
 import com.budjb.rabbitmq.multi.config.ConnectionConfiguration;
+import com.budjb.rabbitmq.multi.config.ConnectionParameters;
 import com.rabbitmq.client.Connection;
 import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.lang.Nullable;
@@ -34,4 +35,19 @@ public interface ConnectionProvider {
      * @return A new connection.
      */
     Connection createConnection(ConnectionConfiguration connectionConfiguration, @Nullable MeterRegistry meterRegistry) throws ConnectionException;
+
+    /**
+     * Creates a new connection to a specific node of a RabbitMQ cluster.
+     * <p>
+     * Providers that do not support clusters may leave this unimplemented, in which case the
+     * connection is made with the configuration's own connection parameters.
+     *
+     * @param connectionConfiguration Connection configuration.
+     * @param connectionParameters    Connection parameters of the node to connect to.
+     * @param meterRegistry           Micrometer meter registry.
+     * @return A new connection.
+     */
+    default Connection createConnection(ConnectionConfiguration connectionConfiguration, ConnectionParameters connectionParameters, @Nullable MeterRegistry meterRegistry) throws ConnectionException {
+        return createConnection(connectionConfiguration, meterRegistry);
+    }
 }
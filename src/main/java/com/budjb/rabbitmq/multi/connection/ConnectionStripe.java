@@ -0,0 +1,494 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.connection;
+
+import com.budjb.rabbitmq.multi.config.ConnectionParameters;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.lang.Nullable;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * One of the physical connections behind a {@link ConnectionContext}, along with the broker node
+ * it is connected to and the state used to balance load across stripes.
+ * <p>
+ * A stripe whose connection shuts down unexpectedly, or that fails to open a channel, is ejected
+ * from rotation. Once the configured ejection time has passed the stripe is probed by opening and
+ * closing a channel, and is re-admitted if the probe succeeds. A stripe whose connection has been
+ * blocked by the broker is also left out of rotation until the broker unblocks it.
+ * <p>
+ * Each stripe has its own pool of reusable channels, so the idle channels of a stripe that is out
+ * of rotation are not handed out until the stripe is back in rotation.
+ */
+public class ConnectionStripe {
+    /**
+     * Logger.
+     */
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Index of the stripe within its context.
+     */
+    private final int index;
+
+    /**
+     * Connection parameters of the broker node the stripe is connected to.
+     */
+    private final ConnectionParameters connectionParameters;
+
+    /**
+     * Underlying RabbitMQ connection.
+     */
+    private final Connection connection;
+
+    /**
+     * Amount of time, in nanoseconds, the stripe is left out of rotation after a failure.
+     */
+    private final long ejectionTime;
+
+    /**
+     * Long-lived channels in publisher confirm mode.
+     */
+    private final AtomicReferenceArray<ConfirmChannel> confirmChannels;
+
+    /**
+     * Round-robin counter used to select a confirm channel.
+     */
+    private final AtomicInteger confirmChannelIndex = new AtomicInteger();
+
+    /**
+     * Number of channels opened through the stripe that are still open.
+     */
+    private final AtomicInteger openChannels = new AtomicInteger();
+
+    /**
+     * Counts a channel as open again when automatic recovery reopens it after its connection was lost.
+     */
+    private final RecoveryListener channelRecoveryListener = new RecoveryListener() {
+        @Override
+        public void handleRecovery(Recoverable recoverable) {
+            openChannels.incrementAndGet();
+        }
+
+        @Override
+        public void handleRecoveryStarted(Recoverable recoverable) {
+            // The channel was already counted as closed when its connection shut down.
+        }
+    };
+
+    /**
+     * Number of failures observed on the stripe.
+     */
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Moving average of sampled confirm latencies, in nanoseconds. {@code 0} until the first sample.
+     */
+    private final AtomicLong confirmLatency = new AtomicLong();
+
+    /**
+     * Whether a probe is currently running.
+     */
+    private final AtomicBoolean probing = new AtomicBoolean();
+
+    /**
+     * Notified when the broker blocks or unblocks the stripe's connection.
+     */
+    private final Runnable blockedListener;
+
+    /**
+     * Pool of reusable channels opened on the stripe's connection.
+     */
+    private ChannelPool channelPool;
+
+    /**
+     * Whether the stripe has been ejected from rotation.
+     */
+    private volatile boolean ejected;
+
+    /**
+     * Whether the broker has blocked the stripe's connection.
+     */
+    private volatile boolean blocked;
+
+    /**
+     * Time, per {@link System#nanoTime()}, after which an ejected stripe may be probed.
+     */
+    private volatile long probeAt;
+
+    /**
+     * Constructor.
+     *
+     * @param index                Index of the stripe within its context.
+     * @param connectionParameters Connection parameters of the broker node the stripe is connected to.
+     * @param connection           Underlying RabbitMQ connection.
+     * @param confirmChannelCount  Number of long-lived channels in publisher confirm mode.
+     * @param ejectionTime         Amount of time, in milliseconds, the stripe is left out of rotation after a failure.
+     */
+    ConnectionStripe(int index, ConnectionParameters connectionParameters, Connection connection, int confirmChannelCount, long ejectionTime) {
+        this(index, connectionParameters, connection, confirmChannelCount, ejectionTime, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param index                Index of the stripe within its context.
+     * @param connectionParameters Connection parameters of the broker node the stripe is connected to.
+     * @param connection           Underlying RabbitMQ connection.
+     * @param confirmChannelCount  Number of long-lived channels in publisher confirm mode.
+     * @param ejectionTime         Amount of time, in milliseconds, the stripe is left out of rotation after a failure.
+     * @param blockedListener      Notified when the broker blocks or unblocks the stripe's connection.
+     */
+    ConnectionStripe(int index, ConnectionParameters connectionParameters, Connection connection, int confirmChannelCount, long ejectionTime, @Nullable Runnable blockedListener) {
+        this.index = index;
+        this.connectionParameters = connectionParameters;
+        this.connection = connection;
+        this.ejectionTime = TimeUnit.MILLISECONDS.toNanos(ejectionTime);
+        this.confirmChannels = new AtomicReferenceArray<>(Math.max(1, confirmChannelCount));
+        this.blockedListener = blockedListener;
+
+        connection.addShutdownListener(this::handleShutdown);
+        connection.addBlockedListener(this::handleBlocked, this::handleUnblocked);
+    }
+
+    /**
+     * Returns the index of the stripe within its context.
+     *
+     * @return The index of the stripe within its context.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the connection parameters of the broker node the stripe is connected to.
+     *
+     * @return The connection parameters of the broker node the stripe is connected to.
+     */
+    public ConnectionParameters getConnectionParameters() {
+        return connectionParameters;
+    }
+
+    /**
+     * Returns the underlying RabbitMQ connection.
+     *
+     * @return The underlying RabbitMQ connection.
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Returns the pool of reusable channels opened on the stripe's connection.
+     *
+     * @return The pool of reusable channels opened on the stripe's connection, or {@code null} if the stripe has none.
+     */
+    public ChannelPool getChannelPool() {
+        return channelPool;
+    }
+
+    /**
+     * Sets the pool of reusable channels opened on the stripe's connection.
+     *
+     * @param channelPool The pool of reusable channels opened on the stripe's connection.
+     */
+    void setChannelPool(ChannelPool channelPool) {
+        this.channelPool = channelPool;
+    }
+
+    /**
+     * Returns whether the stripe is in rotation, its connection is open, and the broker has not blocked it.
+     *
+     * @return Whether the stripe is in rotation, its connection is open, and the broker has not blocked it.
+     */
+    public boolean isAvailable() {
+        return !ejected && !blocked && connection.isOpen();
+    }
+
+    /**
+     * Returns whether the broker has blocked the stripe's connection because of a resource alarm.
+     *
+     * @return Whether the broker has blocked the stripe's connection.
+     */
+    public boolean isBlocked() {
+        return blocked;
+    }
+
+    /**
+     * Returns whether the stripe has been ejected from rotation.
+     *
+     * @return Whether the stripe has been ejected from rotation.
+     */
+    public boolean isEjected() {
+        return ejected;
+    }
+
+    /**
+     * Returns the number of channels opened through the stripe that are still open.
+     *
+     * @return The number of channels opened through the stripe that are still open.
+     */
+    public int getOpenChannels() {
+        return openChannels.get();
+    }
+
+    /**
+     * Returns the number of messages published on the stripe's confirm channels that have not yet been confirmed.
+     *
+     * @return The number of messages published on the stripe's confirm channels that have not yet been confirmed.
+     */
+    public int getOutstandingConfirms() {
+        int outstanding = 0;
+
+        for (int i = 0; i < confirmChannels.length(); i++) {
+            ConfirmChannel confirmChannel = confirmChannels.get(i);
+
+            if (confirmChannel != null) {
+                outstanding += confirmChannel.getOutstandingCount();
+            }
+        }
+
+        return outstanding;
+    }
+
+    /**
+     * Returns the moving average of sampled confirm latencies, in nanoseconds, or {@code 0} if no
+     * latency has been sampled yet.
+     *
+     * @return The moving average of sampled confirm latencies, in nanoseconds.
+     */
+    public long getConfirmLatency() {
+        return confirmLatency.get();
+    }
+
+    /**
+     * Returns the number of failures observed on the stripe.
+     *
+     * @return The number of failures observed on the stripe.
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Opens a channel on the stripe's connection and tracks it until it is closed. A channel that
+     * shuts down with its connection and is reopened by automatic recovery is counted as open again.
+     * The stripe is ejected if the channel can not be opened.
+     *
+     * @return A new channel.
+     * @throws IOException When an underlying IO exception occurs, or the connection has no channels left.
+     */
+    Channel createChannel() throws IOException {
+        Channel channel;
+
+        try {
+            channel = connection.createChannel();
+        }
+        catch (IOException | RuntimeException e) {
+            eject();
+            throw e;
+        }
+
+        if (channel == null) {
+            throw new IOException("RabbitMQ connection to " + connectionParameters + " has no channels left");
+        }
+
+        openChannels.incrementAndGet();
+        channel.addShutdownListener(cause -> openChannels.decrementAndGet());
+
+        if (channel instanceof Recoverable) {
+            ((Recoverable) channel).addRecoveryListener(channelRecoveryListener);
+        }
+
+        return channel;
+    }
+
+    /**
+     * Returns a long-lived channel in publisher confirm mode, opening it if necessary.
+     *
+     * @return A channel in publisher confirm mode.
+     * @throws IOException When an underlying IO exception occurs.
+     */
+    ConfirmChannel getConfirmChannel() throws IOException {
+        int index = (confirmChannelIndex.getAndIncrement() & Integer.MAX_VALUE) % confirmChannels.length();
+
+        ConfirmChannel confirmChannel = confirmChannels.get(index);
+
+        if (confirmChannel != null && confirmChannel.isOpen()) {
+            return confirmChannel;
+        }
+
+        synchronized (confirmChannels) {
+            confirmChannel = confirmChannels.get(index);
+
+            if (confirmChannel == null || !confirmChannel.isOpen()) {
+                confirmChannel = new ConfirmChannel(createChannel(), this::recordConfirmLatency);
+                confirmChannels.set(index, confirmChannel);
+            }
+
+            return confirmChannel;
+        }
+    }
+
+    /**
+     * Closes all confirm channels, failing any unconfirmed messages.
+     */
+    void closeConfirmChannels() {
+        synchronized (confirmChannels) {
+            for (int i = 0; i < confirmChannels.length(); i++) {
+                ConfirmChannel confirmChannel = confirmChannels.getAndSet(i, null);
+
+                if (confirmChannel != null) {
+                    confirmChannel.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the idle channels of the stripe's channel pool.
+     */
+    void clearChannelPool() {
+        if (channelPool != null) {
+            channelPool.clear();
+        }
+    }
+
+    /**
+     * Closes the stripe's connection if it is open.
+     *
+     * @throws IOException When an underlying IO exception occurs.
+     */
+    void close() throws IOException {
+        if (connection.isOpen()) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Removes the stripe from rotation until the ejection time has passed.
+     */
+    void eject() {
+        failures.incrementAndGet();
+        probeAt = System.nanoTime() + ejectionTime;
+
+        if (!ejected) {
+            ejected = true;
+            log.warn("Ejected RabbitMQ connection to " + connectionParameters + " from rotation");
+        }
+    }
+
+    /**
+     * Probes an ejected stripe whose ejection time has passed, re-admitting it if a channel can be
+     * opened and closed. Only one caller probes a stripe at a time; others return immediately.
+     */
+    void probeIfDue() {
+        if (!ejected || System.nanoTime() - probeAt < 0 || !probing.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            Channel channel = connection.isOpen() ? connection.createChannel() : null;
+
+            if (channel == null) {
+                probeAt = System.nanoTime() + ejectionTime;
+                return;
+            }
+
+            channel.close();
+
+            ejected = false;
+            log.info("Re-admitted RabbitMQ connection to " + connectionParameters + " into rotation");
+        }
+        catch (Exception e) {
+            failures.incrementAndGet();
+            probeAt = System.nanoTime() + ejectionTime;
+        }
+        finally {
+            probing.set(false);
+        }
+    }
+
+    /**
+     * Folds a sampled confirm latency into the moving average.
+     */
+    private void recordConfirmLatency(long latency) {
+        long current;
+        long updated;
+
+        do {
+            current = confirmLatency.get();
+            updated = current == 0 ? Math.max(1, latency) : current + (latency - current) / 8;
+        }
+        while (!confirmLatency.compareAndSet(current, updated));
+    }
+
+    /**
+     * Ejects the stripe when its connection is shut down by anything other than the application.
+     * A connection that shuts down is no longer blocked; the broker blocks a recovered connection
+     * again if its alarm is still in effect.
+     */
+    private void handleShutdown(ShutdownSignalException cause) {
+        if (!cause.isInitiatedByApplication()) {
+            eject();
+        }
+
+        handleUnblocked();
+    }
+
+    /**
+     * Marks the stripe as blocked when the broker sends {@code connection.blocked}.
+     */
+    private void handleBlocked(String reason) {
+        if (blocked) {
+            return;
+        }
+
+        blocked = true;
+        log.warn("RabbitMQ connection to " + connectionParameters + " was blocked by the broker: " + reason);
+
+        if (blockedListener != null) {
+            blockedListener.run();
+        }
+    }
+
+    /**
+     * Clears the stripe's blocked state when the broker sends {@code connection.unblocked}.
+     */
+    private void handleUnblocked() {
+        if (!blocked) {
+            return;
+        }
+
+        blocked = false;
+
+        if (blockedListener != null) {
+            blockedListener.run();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.connection;
+
+import java.io.IOException;
+
+/**
+ * An exception that's thrown when the broker negatively acknowledges a published message.
+ */
+public class MessageNackedException extends IOException {
+    /**
+     * Constructor.
+     *
+     * @param message Exception message.
+     */
+    public MessageNackedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.connection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Tracks publisher confirm futures keyed by their delivery tag.
+ * <p>
+ * Delivery tags on a channel are assigned sequentially, so outstanding confirms are kept in a
+ * ring buffer indexed by the tag's offset from the oldest outstanding tag. This keeps tags as
+ * primitives, keeps them sorted, and lets a multiple-ack release every tag up to and including
+ * the acknowledged one in a single sweep.
+ * <p>
+ * Futures are never completed while the tracker's lock is held; methods that settle confirms
+ * return the affected futures so the caller can complete them afterwards.
+ */
+class OutstandingConfirms {
+    /**
+     * Initial capacity of the ring buffer. Must be a power of two.
+     */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Ring buffer of outstanding futures.
+     */
+    private CompletableFuture<?>[] slots = new CompletableFuture<?>[INITIAL_CAPACITY];
+
+    /**
+     * Index of the slot holding the oldest outstanding tag.
+     */
+    private int head = 0;
+
+    /**
+     * Number of slots between the oldest and newest outstanding tags, inclusive.
+     */
+    private int span = 0;
+
+    /**
+     * Oldest outstanding delivery tag.
+     */
+    private long base = 0;
+
+    /**
+     * Number of futures currently outstanding.
+     */
+    private int size = 0;
+
+    /**
+     * Tracks a future for the given delivery tag. Tags must be added in ascending order.
+     *
+     * @param deliveryTag Delivery tag of the published message.
+     * @param future      Future to complete when the message is confirmed.
+     */
+    synchronized void add(long deliveryTag, CompletableFuture<?> future) {
+        if (span == 0) {
+            base = deliveryTag;
+            head = 0;
+        }
+        else if (deliveryTag < base + span) {
+            throw new IllegalArgumentException("delivery tag " + deliveryTag + " is not greater than the newest outstanding tag");
+        }
+
+        long offset = deliveryTag - base;
+
+        while (offset >= slots.length) {
+            grow();
+        }
+
+        slots[slot(offset)] = future;
+        span = (int) offset + 1;
+        size++;
+    }
+
+    /**
+     * Removes and returns the futures settled by a confirm for the given delivery tag.
+     *
+     * @param deliveryTag Delivery tag of the confirm.
+     * @param multiple    Whether the confirm applies to all tags up to and including the given tag.
+     * @return The futures settled by the confirm.
+     */
+    synchronized List<CompletableFuture<?>> settle(long deliveryTag, boolean multiple) {
+        if (span == 0 || deliveryTag < base) {
+            return Collections.emptyList();
+        }
+
+        long offset = Math.min(deliveryTag - base, span - 1);
+
+        if (!multiple) {
+            if (deliveryTag - base >= span) {
+                return Collections.emptyList();
+            }
+
+            int index = slot(offset);
+            CompletableFuture<?> future = slots[index];
+
+            if (future == null) {
+                return Collections.emptyList();
+            }
+
+            slots[index] = null;
+            size--;
+            compact();
+
+            return Collections.singletonList(future);
+        }
+
+        List<CompletableFuture<?>> settled = new ArrayList<>((int) offset + 1);
+
+        for (long i = 0; i <= offset; i++) {
+            int index = slot(i);
+
+            if (slots[index] != null) {
+                settled.add(slots[index]);
+                slots[index] = null;
+                size--;
+            }
+        }
+
+        compact();
+
+        return settled;
+    }
+
+    /**
+     * Removes the future tracked for the given delivery tag without settling it.
+     *
+     * @param deliveryTag Delivery tag to forget.
+     * @return The removed future, or {@code null} if the tag was not outstanding.
+     */
+    synchronized CompletableFuture<?> remove(long deliveryTag) {
+        List<CompletableFuture<?>> removed = settle(deliveryTag, false);
+        return removed.isEmpty() ? null : removed.get(0);
+    }
+
+    /**
+     * Removes and returns every outstanding future.
+     *
+     * @return Every outstanding future.
+     */
+    synchronized List<CompletableFuture<?>> drain() {
+        if (span == 0) {
+            return Collections.emptyList();
+        }
+
+        return settle(base + span - 1, true);
+    }
+
+    /**
+     * Returns the number of outstanding confirms.
+     *
+     * @return The number of outstanding confirms.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Advances the head past settled slots.
+     */
+    private void compact() {
+        while (span > 0 && slots[head] == null) {
+            head = (head + 1) & (slots.length - 1);
+            base++;
+            span--;
+        }
+    }
+
+    /**
+     * Doubles the capacity of the ring buffer.
+     */
+    private void grow() {
+        CompletableFuture<?>[] grown = new CompletableFuture<?>[slots.length << 1];
+
+        for (int i = 0; i < span; i++) {
+            grown[i] = slots[slot(i)];
+        }
+
+        slots = grown;
+        head = 0;
+    }
+
+    /**
+     * Returns the ring index of the slot at the given offset from the head.
+     */
+    private int slot(long offset) {
+        return (int) ((head + offset) & (slots.length - 1));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.connection;
+
+import com.rabbitmq.client.Channel;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A channel borrowed from a {@link ChannelPool}.
+ * <p>
+ * Closing a pooled channel returns it to the pool it was borrowed from instead of
+ * closing the underlying channel, so it is intended to be used in a try-with-resources block.
+ * Every borrow is handed a pooled channel of its own, and only its first close returns the
+ * channel; closing it again, even after the channel has been borrowed by someone else, has
+ * no effect.
+ */
+public class PooledChannel implements AutoCloseable {
+    /**
+     * Pool the channel belongs to.
+     */
+    private final ChannelPool channelPool;
+
+    /**
+     * Underlying RabbitMQ channel.
+     */
+    private final Channel channel;
+
+    /**
+     * Whether the borrow has already been returned to the pool.
+     */
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    /**
+     * Constructor.
+     *
+     * @param channelPool Pool the channel belongs to.
+     * @param channel     Underlying RabbitMQ channel.
+     */
+    PooledChannel(ChannelPool channelPool, Channel channel) {
+        this.channelPool = channelPool;
+        this.channel = channel;
+    }
+
+    /**
+     * Returns the underlying RabbitMQ channel.
+     *
+     * @return The underlying RabbitMQ channel.
+     */
+    public Channel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Returns whether the underlying channel is still open.
+     *
+     * @return Whether the underlying channel is still open.
+     */
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Returns the channel to the pool it was borrowed from.
+     */
+    @Override
+    public void close() {
+        if (released.compareAndSet(false, true)) {
+            channelPool.release(this);
+        }
+    }
+}
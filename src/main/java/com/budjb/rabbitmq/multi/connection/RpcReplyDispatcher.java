@@ -0,0 +1,349 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.connection;
+
+import com.budjb.rabbitmq.multi.MessageContext;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.lang.Nullable;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A long-lived RPC reply consumer shared by all RPC calls made through a connection.
+ * <p>
+ * Requests are published on the dispatcher's channel with the dispatcher's reply queue and a
+ * unique correlation ID. Replies are routed back to the pending call by correlation ID, which
+ * allows any number of RPC calls to be in flight on a single channel and consumer.
+ */
+public class RpcReplyDispatcher {
+    /**
+     * Pseudo-queue used for RabbitMQ's direct reply-to feature.
+     */
+    public static final String DIRECT_REPLY_TO_QUEUE = "amq.rabbitmq.reply-to";
+
+    /**
+     * Logger.
+     */
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Name of the connection the dispatcher belongs to.
+     */
+    private final String name;
+
+    /**
+     * Factory used to open the dispatcher's channel.
+     */
+    private final ChannelPool.ChannelFactory channelFactory;
+
+    /**
+     * Whether replies are received via direct reply-to.
+     */
+    private final boolean directReplyTo;
+
+    /**
+     * Pending calls keyed by correlation ID.
+     */
+    private final Map<String, CompletableFuture<MessageContext>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Sequence used to generate correlation IDs.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Counts replies that arrived after their call stopped waiting, if a meter registry was given.
+     */
+    private final Counter lateReplies;
+
+    /**
+     * Channel requests are published on and replies are consumed from.
+     */
+    private volatile Channel channel;
+
+    /**
+     * Name of the queue replies are consumed from.
+     */
+    private volatile String replyQueue;
+
+    /**
+     * Constructor.
+     *
+     * @param name           Name of the connection the dispatcher belongs to.
+     * @param channelFactory Factory used to open the dispatcher's channel.
+     * @param directReplyTo  Whether replies are received via direct reply-to.
+     */
+    public RpcReplyDispatcher(String name, ChannelPool.ChannelFactory channelFactory, boolean directReplyTo) {
+        this(name, channelFactory, directReplyTo, null);
+    }
+
+    /**
+     * Constructor.
+     * <p>
+     * When a meter registry is given, replies whose call is no longer pending, typically because
+     * it timed out or was cancelled, are counted as {@code rabbitmq.rpc.replies.late}.
+     *
+     * @param name           Name of the connection the dispatcher belongs to.
+     * @param channelFactory Factory used to open the dispatcher's channel.
+     * @param directReplyTo  Whether replies are received via direct reply-to.
+     * @param meterRegistry  Micrometer meter registry.
+     */
+    public RpcReplyDispatcher(String name, ChannelPool.ChannelFactory channelFactory, boolean directReplyTo, @Nullable MeterRegistry meterRegistry) {
+        this.name = name;
+        this.channelFactory = channelFactory;
+        this.directReplyTo = directReplyTo;
+        this.lateReplies = meterRegistry != null ? Counter.builder("rabbitmq.rpc.replies.late").tag("connection", name)
+            .description("RPC replies that arrived after their call stopped waiting").register(meterRegistry) : null;
+    }
+
+    /**
+     * Returns the name of the queue replies should be sent to, starting the reply consumer if necessary.
+     *
+     * @return The name of the queue replies should be sent to.
+     * @throws IOException When an underlying IO exception occurs.
+     */
+    public String getReplyTo() throws IOException {
+        ensureConsuming();
+        return replyQueue;
+    }
+
+    /**
+     * Generates a correlation ID that is unique for the lifetime of the dispatcher.
+     *
+     * @return A unique correlation ID.
+     */
+    public String nextCorrelationId() {
+        return name + "-" + Long.toString(sequence.incrementAndGet(), 36);
+    }
+
+    /**
+     * Registers a pending call.
+     *
+     * @param correlationId Correlation ID of the request.
+     * @return A future that completes with the reply.
+     * @throws IllegalStateException When a call with the same correlation ID is already pending.
+     */
+    public CompletableFuture<MessageContext> register(String correlationId) throws IllegalStateException {
+        CompletableFuture<MessageContext> future = new CompletableFuture<>();
+
+        if (pending.putIfAbsent(correlationId, future) != null) {
+            throw new IllegalStateException("an RPC call with correlation ID " + correlationId + " is already pending");
+        }
+
+        return future;
+    }
+
+    /**
+     * Removes a pending call without completing it. This must be called when a caller stops waiting
+     * for a reply so that the entry does not leak.
+     *
+     * @param correlationId Correlation ID of the request.
+     */
+    public void cancel(String correlationId) {
+        pending.remove(correlationId);
+    }
+
+    /**
+     * Publishes a request on the dispatcher's channel.
+     *
+     * @param exchange        Exchange to publish to.
+     * @param routingKey      Routing key of the request.
+     * @param basicProperties Message properties, including the reply-to queue and correlation ID.
+     * @param body            Body of the request.
+     * @throws IOException When an underlying IO exception occurs.
+     */
+    public void publish(String exchange, String routingKey, BasicProperties basicProperties, byte[] body) throws IOException {
+        Channel channel = ensureConsuming();
+
+        synchronized (channel) {
+            channel.basicPublish(exchange, routingKey, basicProperties, body);
+        }
+    }
+
+    /**
+     * Returns the number of calls currently waiting for a reply.
+     *
+     * @return The number of calls currently waiting for a reply.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Closes the dispatcher's channel and fails all pending calls.
+     */
+    public void close() {
+        Channel channel;
+
+        synchronized (this) {
+            channel = this.channel;
+            this.channel = null;
+            this.replyQueue = null;
+        }
+
+        if (channel != null && channel.isOpen()) {
+            try {
+                channel.close();
+            }
+            catch (Exception e) {
+                log.debug("Unable to close the RPC reply channel for RabbitMQ connection " + name, e);
+            }
+        }
+
+        failPending(new IOException("RPC reply consumer for connection " + name + " was closed"));
+    }
+
+    /**
+     * Opens the dispatcher's channel and starts consuming replies if that has not already happened.
+     */
+    private Channel ensureConsuming() throws IOException {
+        Channel channel = this.channel;
+
+        if (channel != null && channel.isOpen()) {
+            return channel;
+        }
+
+        synchronized (this) {
+            channel = this.channel;
+
+            if (channel != null && channel.isOpen()) {
+                return channel;
+            }
+
+            if (channel != null) {
+                discard(channel);
+            }
+
+            channel = channelFactory.createChannel();
+
+            try {
+                String queue = directReplyTo ? DIRECT_REPLY_TO_QUEUE : channel.queueDeclare().getQueue();
+
+                Channel consumerChannel = channel;
+                channel.addShutdownListener(cause -> handleShutdown(consumerChannel, cause));
+                channel.basicConsume(queue, true, "", false, true, null, new ReplyConsumer(channel));
+
+                this.replyQueue = queue;
+                this.channel = channel;
+            }
+            catch (IOException | RuntimeException e) {
+                discard(channel);
+                throw e;
+            }
+
+            return channel;
+        }
+    }
+
+    /**
+     * Handles the shutdown of the dispatcher's channel by failing all pending calls. The channel is
+     * discarded rather than left to automatic recovery, since a recovered server-named reply queue
+     * would be given a new name; a new channel is opened on the next call instead.
+     */
+    private void handleShutdown(Channel channel, ShutdownSignalException cause) {
+        synchronized (this) {
+            if (this.channel != channel) {
+                return;
+            }
+
+            this.channel = null;
+            this.replyQueue = null;
+        }
+
+        discard(channel);
+        failPending(cause);
+    }
+
+    /**
+     * Aborts a channel that is being replaced so that it is not recovered.
+     */
+    private void discard(Channel channel) {
+        try {
+            channel.abort();
+        }
+        catch (Exception e) {
+            log.debug("Unable to abort the RPC reply channel for RabbitMQ connection " + name, e);
+        }
+    }
+
+    /**
+     * Fails every pending call with the given cause.
+     */
+    private void failPending(Throwable cause) {
+        for (String correlationId : pending.keySet()) {
+            CompletableFuture<MessageContext> future = pending.remove(correlationId);
+
+            if (future != null) {
+                future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /**
+     * Routes a reply to its pending call.
+     */
+    private void dispatch(BasicProperties properties, byte[] body) {
+        String correlationId = properties.getCorrelationId();
+
+        CompletableFuture<MessageContext> future = correlationId != null ? pending.remove(correlationId) : null;
+
+        if (future == null) {
+            if (lateReplies != null) {
+                lateReplies.increment();
+            }
+
+            log.debug("Discarding RPC reply with unknown correlation ID " + correlationId + " on RabbitMQ connection " + name);
+            return;
+        }
+
+        future.complete(new MessageContext(properties, body));
+    }
+
+    /**
+     * Consumer that hands replies to the dispatcher.
+     */
+    private class ReplyConsumer extends DefaultConsumer {
+        /**
+         * Constructor.
+         *
+         * @param channel Channel the consumer is registered on.
+         */
+        ReplyConsumer(Channel channel) {
+            super(channel);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body) {
+            dispatch(properties, body);
+        }
+    }
+}
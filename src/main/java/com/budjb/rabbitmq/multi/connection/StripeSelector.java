@@ -0,0 +1,36 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.connection;
+
+import java.util.List;
+
+/**
+ * Strategy used by a {@link ConnectionContext} to pick which of its physical connections a new
+ * channel or confirmed publish goes to.
+ * <p>
+ * Implementations are called on the publishing thread for every selection, so they should not
+ * block or allocate, and must be thread-safe.
+ */
+public interface StripeSelector {
+    /**
+     * Picks a stripe. Only stripes that are {@link ConnectionStripe#isAvailable() available} should be picked.
+     *
+     * @param stripes Every stripe of the context, in index order.
+     * @return The selected stripe, or {@code null} if none of the stripes are available.
+     */
+    ConnectionStripe select(List<ConnectionStripe> stripes);
+}
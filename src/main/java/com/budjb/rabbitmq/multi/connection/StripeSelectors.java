@@ -0,0 +1,197 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.connection;
+
+import com.budjb.rabbitmq.multi.config.StripeSelection;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Built-in {@link StripeSelector} implementations.
+ */
+public final class StripeSelectors {
+    /**
+     * Constructor.
+     */
+    private StripeSelectors() {
+    }
+
+    /**
+     * Returns the built-in selector for the given strategy.
+     *
+     * @param stripeSelection Selection strategy.
+     * @return A new selector.
+     */
+    public static StripeSelector forStrategy(StripeSelection stripeSelection) {
+        switch (stripeSelection) {
+            case LEAST_CHANNELS:
+                return leastChannels();
+
+            case LEAST_OUTSTANDING_CONFIRMS:
+                return leastOutstandingConfirms();
+
+            case LATENCY_WEIGHTED:
+                return latencyWeighted();
+
+            default:
+                return roundRobin();
+        }
+    }
+
+    /**
+     * Returns a selector that cycles through the available stripes in order.
+     *
+     * @return A new round-robin selector.
+     */
+    public static StripeSelector roundRobin() {
+        AtomicInteger counter = new AtomicInteger();
+
+        return stripes -> {
+            int size = stripes.size();
+            int start = (counter.getAndIncrement() & Integer.MAX_VALUE) % size;
+
+            for (int i = 0; i < size; i++) {
+                ConnectionStripe stripe = stripes.get((start + i) % size);
+
+                if (stripe.isAvailable()) {
+                    return stripe;
+                }
+            }
+
+            return null;
+        };
+    }
+
+    /**
+     * Returns a selector that picks the available stripe with the fewest open channels.
+     *
+     * @return A new least-channels selector.
+     */
+    public static StripeSelector leastChannels() {
+        return stripes -> {
+            ConnectionStripe selected = null;
+
+            for (int i = 0; i < stripes.size(); i++) {
+                ConnectionStripe stripe = stripes.get(i);
+
+                if (stripe.isAvailable() && (selected == null || stripe.getOpenChannels() < selected.getOpenChannels())) {
+                    selected = stripe;
+                }
+            }
+
+            return selected;
+        };
+    }
+
+    /**
+     * Returns a selector that picks the available stripe with the fewest messages awaiting a confirm.
+     *
+     * @return A new least-outstanding-confirms selector.
+     */
+    public static StripeSelector leastOutstandingConfirms() {
+        return stripes -> {
+            ConnectionStripe selected = null;
+            int fewest = Integer.MAX_VALUE;
+
+            for (int i = 0; i < stripes.size(); i++) {
+                ConnectionStripe stripe = stripes.get(i);
+
+                if (!stripe.isAvailable()) {
+                    continue;
+                }
+
+                int outstanding = stripe.getOutstandingConfirms();
+
+                if (outstanding < fewest) {
+                    selected = stripe;
+                    fewest = outstanding;
+                }
+            }
+
+            return selected;
+        };
+    }
+
+    /**
+     * Returns a selector that picks an available stripe at random, with each stripe weighted by the
+     * inverse of its confirm latency. Stripes that have not been sampled yet are weighted as the
+     * fastest sampled stripe so that they receive traffic and get measured.
+     *
+     * @return A new latency-weighted selector.
+     */
+    public static StripeSelector latencyWeighted() {
+        return stripes -> {
+            long fastest = Long.MAX_VALUE;
+
+            for (int i = 0; i < stripes.size(); i++) {
+                ConnectionStripe stripe = stripes.get(i);
+                long latency = stripe.getConfirmLatency();
+
+                if (latency > 0 && latency < fastest && stripe.isAvailable()) {
+                    fastest = latency;
+                }
+            }
+
+            double total = 0;
+
+            for (int i = 0; i < stripes.size(); i++) {
+                total += weight(stripes.get(i), fastest);
+            }
+
+            if (total == 0) {
+                return null;
+            }
+
+            double target = ThreadLocalRandom.current().nextDouble(total);
+            ConnectionStripe selected = null;
+
+            for (int i = 0; i < stripes.size(); i++) {
+                ConnectionStripe stripe = stripes.get(i);
+                double weight = weight(stripe, fastest);
+
+                if (weight > 0) {
+                    selected = stripe;
+                    target -= weight;
+
+                    if (target < 0) {
+                        break;
+                    }
+                }
+            }
+
+            return selected;
+        };
+    }
+
+    /**
+     * Returns the latency weight of a stripe, or {@code 0} if the stripe is not available.
+     */
+    private static double weight(ConnectionStripe stripe, long fastest) {
+        if (!stripe.isAvailable()) {
+            return 0;
+        }
+
+        long latency = stripe.getConfirmLatency();
+
+        if (latency <= 0) {
+            latency = fastest == Long.MAX_VALUE ? 1 : fastest;
+        }
+
+        return 1.0 / latency;
+    }
+}
@@ -60,7 +60,7 @@ public class ByteToObjectInput {
      * Constructor for conversions that do not have specific filter or converter behavior requirements.
      */
     public ByteToObjectInput(byte[] bytes, String contentType) {
-        this(bytes, contentType != null && !contentType.isEmpty() ? MimeType.valueOf(contentType) : null);
+        this(bytes, contentType != null && !contentType.isEmpty() ? MimeTypes.valueOf(contentType) : null);
     }
 
     /**
@@ -74,7 +74,7 @@ public class ByteToObjectInput {
      * Constructor for conversions with specific mime type, filter, and converter behavior requirements.
      */
     public ByteToObjectInput(byte[] bytes, String mimeType, MessageConvertMethod messageConvertMethod, List<Class<?>> classFilter) {
-        this(bytes, mimeType != null && !mimeType.isEmpty() ? MimeType.valueOf(mimeType) : null, messageConvertMethod, classFilter);
+        this(bytes, mimeType != null && !mimeType.isEmpty() ? MimeTypes.valueOf(mimeType) : null, messageConvertMethod, classFilter);
     }
 
     /**
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.converter;
+
+import org.springframework.util.MimeType;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A mime type that converters report along with the character set they encoded with.
+ * <p>
+ * The variant of the mime type for each character set is built once and reused, so that
+ * converting a message does not build a new mime type and parameter map each time.
+ */
+public class CharsetMimeType {
+    /**
+     * Mime type without a character set.
+     */
+    private final MimeType mimeType;
+
+    /**
+     * Mime types with a character set parameter, keyed by character set.
+     */
+    private final Map<Charset, MimeType> variants = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param mimeType Mime type without a character set.
+     */
+    public CharsetMimeType(String mimeType) {
+        this.mimeType = MimeType.valueOf(mimeType);
+    }
+
+    /**
+     * Returns the mime type without a character set.
+     *
+     * @return The mime type without a character set.
+     */
+    public MimeType getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * Returns the mime type with the given character set parameter.
+     *
+     * @param charset Character set.
+     * @return The mime type with the given character set parameter.
+     */
+    public MimeType withCharset(Charset charset) {
+        MimeType variant = variants.get(charset);
+
+        if (variant == null) {
+            variant = variants.computeIfAbsent(charset, it -> new MimeType(mimeType, Collections.singletonMap("charset", it.name())));
+        }
+
+        return variant;
+    }
+}
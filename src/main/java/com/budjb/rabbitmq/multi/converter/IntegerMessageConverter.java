@@ -19,7 +19,6 @@ import org.springframework.util.ClassUtils;
 import org.springframework.util.MimeType;
 
 import java.nio.charset.Charset;
-import java.util.HashMap;
 
 /**
  * A converter that supports the conversion of an integer via its string representation.
@@ -28,7 +27,7 @@ public class IntegerMessageConverter implements ByteToObjectConverter, ObjectToB
     /**
      * Mime type.
      */
-    private static final MimeType mimeType = MimeType.valueOf("text/plain");
+    private static final CharsetMimeType mimeType = new CharsetMimeType("text/plain");
 
     /**
      * {@inheritDoc}
@@ -71,9 +70,7 @@ public class IntegerMessageConverter implements ByteToObjectConverter, ObjectToB
     public ObjectToByteResult convert(ObjectToByteInput input) {
         return new ObjectToByteResult(
             input.getObject().toString().getBytes(input.getCharset()),
-            new MimeType(mimeType, new HashMap<String, String>() {{
-                put("charset", input.getCharset().name());
-            }})
+            mimeType.withCharset(input.getCharset())
         );
     }
 }
@@ -20,7 +20,6 @@ import groovy.json.JsonOutput;
 import groovy.json.JsonSlurper;
 import org.springframework.util.MimeType;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -31,7 +30,7 @@ public class JsonMessageConverter implements ByteToObjectConverter, ObjectToByte
     /**
      * Mime type.
      */
-    private static MimeType mimeType = MimeType.valueOf("application/json");
+    private static final CharsetMimeType mimeType = new CharsetMimeType("application/json");
 
     /**
      * {@inheritDoc}
@@ -68,9 +67,7 @@ public class JsonMessageConverter implements ByteToObjectConverter, ObjectToByte
     @Override
     public ObjectToByteResult convert(ObjectToByteInput input) {
         return new ObjectToByteResult(JsonOutput.toJson(input.getObject()).getBytes(input.getCharset()),
-            new MimeType(mimeType, new HashMap<String, String>() {{
-                put("charset", input.getCharset().name());
-            }})
+            mimeType.withCharset(input.getCharset())
         );
     }
 }
@@ -18,8 +18,6 @@ package com.budjb.rabbitmq.multi.converter;
 import org.springframework.util.ClassUtils;
 import org.springframework.util.MimeType;
 
-import java.util.HashMap;
-
 /**
  * A converter that supports the conversion of a long via its string representation.
  */
@@ -27,7 +25,7 @@ public class LongMessageConverter implements ByteToObjectConverter, ObjectToByte
     /**
      * Mime type.
      */
-    private static final MimeType mimeType = MimeType.valueOf("text/plain");
+    private static final CharsetMimeType mimeType = new CharsetMimeType("text/plain");
 
     /**
      * {@inheritDoc}
@@ -63,8 +61,6 @@ public class LongMessageConverter implements ByteToObjectConverter, ObjectToByte
      */
     @Override
     public ObjectToByteResult convert(ObjectToByteInput input) {
-        return new ObjectToByteResult(input.getObject().toString().getBytes(input.getCharset()), new MimeType(mimeType, new HashMap<String, String>() {{
-            put("charset", input.getCharset().name());
-        }}));
+        return new ObjectToByteResult(input.getObject().toString().getBytes(input.getCharset()), mimeType.withCharset(input.getCharset()));
     }
 }
@@ -15,15 +15,35 @@
  */
 package com.budjb.rabbitmq.multi.converter;
 
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.MimeType;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 /**
  * A class that manages message converters and acts as the entry point for conversion.
+ * <p>
+ * The converters that are candidates for a given conversion are resolved once and cached: by
+ * body class for object-to-byte conversion, and by mime type and class filter for byte-to-object
+ * conversion. Registering a converter discards every cached resolution.
+ * <p>
+ * When a meter registry is given, the time spent by each converter on successful conversions is
+ * recorded as {@code rabbitmq.converter.convert}, tagged by converter and direction. The timers
+ * are created alongside the cached resolutions, so recording one allocates nothing.
  */
 public class MessageConverterManager {
     /**
@@ -31,6 +51,18 @@ public class MessageConverterManager {
      */
     private final static MimeType APPLICATION_OCTET_STREAM = MimeType.valueOf("application/octet-stream");
 
+    /**
+     * Maximum number of distinct mime types, and of distinct class filters per mime type, whose
+     * byte-to-object resolution is cached. Mime types come from incoming messages, so the cache is
+     * bounded; lookups beyond the bound are resolved without being cached.
+     */
+    private final static int MAX_CACHED_KEYS = 256;
+
+    /**
+     * Key used in place of a missing mime type.
+     */
+    private final static Object NO_MIME_TYPE = new Object();
+
     /**
      * Logger.
      */
@@ -41,29 +73,91 @@ public class MessageConverterManager {
      */
     private final List<MessageConverter> messageConverters;
 
+    /**
+     * Number of cached resolution lookups.
+     */
+    private final LongAdder lookups = new LongAdder();
+
+    /**
+     * Number of cached resolution lookups that had to resolve converters.
+     */
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Micrometer meter registry (may be {@code null}).
+     */
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * Converter resolutions for the current set of registered converters.
+     */
+    private volatile Resolutions resolutions;
+
     /**
      * Constructor.
      *
      * @param messageConverters Message converters.
      */
     public MessageConverterManager(List<MessageConverter> messageConverters) {
-        this.messageConverters = messageConverters;
+        this(messageConverters, null);
     }
 
     /**
-     * {@inheritDoc}
+     * Constructor.
+     *
+     * @param messageConverters Message converters.
+     * @param meterRegistry     Micrometer meter registry (may be {@code null}).
+     */
+    public MessageConverterManager(List<MessageConverter> messageConverters, MeterRegistry meterRegistry) {
+        this.messageConverters = new ArrayList<>(messageConverters);
+        this.meterRegistry = meterRegistry;
+        this.resolutions = new Resolutions(this.messageConverters);
+
+        if (meterRegistry != null) {
+            FunctionCounter.builder("rabbitmq.converter.cache", this, it -> it.lookups.sum() - it.misses.sum()).tag("result", "hit")
+                .description("Converter lookups served from the resolution cache").register(meterRegistry);
+            FunctionCounter.builder("rabbitmq.converter.cache", this, it -> it.misses.sum()).tag("result", "miss")
+                .description("Converter lookups that resolved the candidate converters").register(meterRegistry);
+        }
+    }
+
+    /**
+     * Registers a message converter. The converter is tried after any that are already registered.
+     *
+     * @param messageConverter Message converter to register.
+     */
+    public synchronized void registerConverter(MessageConverter messageConverter) {
+        messageConverters.add(messageConverter);
+        resolutions = new Resolutions(messageConverters);
+    }
+
+    /**
+     * Returns the registered byte-to-object converters.
+     *
+     * @return The registered byte-to-object converters.
      */
     public List<ByteToObjectConverter> getByteToObjectConverters() {
-        return messageConverters.stream().filter(it -> it instanceof ByteToObjectConverter)
-            .map(it -> (ByteToObjectConverter) it).collect(Collectors.toList());
+        return Collections.unmodifiableList(Arrays.asList(resolutions.byteToObjectConverters));
     }
 
     /**
-     * {@inheritDoc}
+     * Returns the registered object-to-byte converters.
+     *
+     * @return The registered object-to-byte converters.
      */
     public List<ObjectToByteConverter> getObjectToByteConverters() {
-        return messageConverters.stream().filter(it -> it instanceof ObjectToByteConverter)
-            .map(it -> (ObjectToByteConverter) it).collect(Collectors.toList());
+        return Collections.unmodifiableList(Arrays.asList(resolutions.objectToByteConverters));
+    }
+
+    /**
+     * Returns the registered object-to-byte converters that support the given type, in the order they are tried.
+     *
+     * @param type Type of object to convert.
+     * @return The registered object-to-byte converters that support the given type.
+     */
+    public List<ObjectToByteConverter> getObjectToByteConverters(Class<?> type) {
+        lookups.increment();
+        return resolutions.objectToByte.get(type);
     }
 
     /**
@@ -80,15 +174,35 @@ public class MessageConverterManager {
             return new ObjectToByteResult((byte[]) body, APPLICATION_OCTET_STREAM);
         }
 
-        Class<?> type = body.getClass();
+        return convert(input, getObjectToByteConverters(body.getClass()));
+    }
 
-        for (ObjectToByteConverter messageConverter : getObjectToByteConverters()) {
-            if (messageConverter.supports(type)) {
-                ObjectToByteResult converted = attemptConversion(messageConverter, input);
+    /**
+     * Converts an object to a byte array with the given candidate converters, which are tried in order.
+     * <p>
+     * This allows callers that repeatedly convert the same type of object to resolve the candidate
+     * converters once with {@link #getObjectToByteConverters(Class)} and skip the lookup afterwards.
+     *
+     * @param input      Conversion input.
+     * @param converters Candidate converters.
+     * @return The result of the conversion.
+     */
+    public ObjectToByteResult convert(ObjectToByteInput input, List<ObjectToByteConverter> converters) {
+        Object body = input.getObject();
 
-                if (converted != null) {
-                    return converted;
-                }
+        if (body == null) {
+            return null;
+        }
+
+        if (body instanceof byte[]) {
+            return new ObjectToByteResult((byte[]) body, APPLICATION_OCTET_STREAM);
+        }
+
+        for (int i = 0; i < converters.size(); i++) {
+            ObjectToByteResult converted = attemptConversion(converters.get(i), input);
+
+            if (converted != null) {
+                return converted;
             }
         }
 
@@ -107,16 +221,10 @@ public class MessageConverterManager {
             return null;
         }
 
-        if (input.getMimeType() != null) {
-            for (ByteToObjectConverter converter : getByteToObjectConverters()) {
-                if (!converter.supports(input.getMimeType())) {
-                    continue;
-                }
-
-                if (isInputAndConverterIncompatible(input, converter)) {
-                    continue;
-                }
+        Resolutions resolutions = this.resolutions;
 
+        if (input.getMimeType() != null) {
+            for (ByteToObjectConverter converter : resolutions.byteToObject(input.getMimeType(), input.getClassFilter())) {
                 ByteToObjectResult result = attemptConversion(converter, input);
 
                 if (result != null) {
@@ -126,11 +234,7 @@ public class MessageConverterManager {
         }
 
         if (input.getMessageConvertMethod() != MessageConvertMethod.HEADER) {
-            for (ByteToObjectConverter converter : getByteToObjectConverters()) {
-                if (isInputAndConverterIncompatible(input, converter)) {
-                    continue;
-                }
-
+            for (ByteToObjectConverter converter : resolutions.byteToObject(null, input.getClassFilter())) {
                 ByteToObjectResult result = attemptConversion(converter, input);
 
                 if (result != null) {
@@ -150,8 +254,28 @@ public class MessageConverterManager {
      * Attempts to convert some object to a <pre>byte[]</pre> with the given {@link ObjectToByteConverter}.
      */
     private ObjectToByteResult attemptConversion(ObjectToByteConverter messageConverter, ObjectToByteInput input) {
+        Timer timer = meterRegistry != null ? resolutions.objectToByteTimers.get(messageConverter) : null;
+
+        if (timer == null) {
+            try {
+                return messageConverter.convert(input);
+            }
+            catch (Throwable e) {
+                log.error("unhandled exception caught from message converter " + messageConverter.getClass().getName(), e);
+                return null;
+            }
+        }
+
+        long start = System.nanoTime();
+
         try {
-            return messageConverter.convert(input);
+            ObjectToByteResult result = messageConverter.convert(input);
+
+            if (result != null) {
+                timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+
+            return result;
         }
         catch (Throwable e) {
             log.error("unhandled exception caught from message converter " + messageConverter.getClass().getName(), e);
@@ -163,8 +287,28 @@ public class MessageConverterManager {
      * Attempts to convert a <pre>byte[]</pre> to some object with the given {@link ByteToObjectConverter}.
      */
     private ByteToObjectResult attemptConversion(ByteToObjectConverter messageConverter, ByteToObjectInput input) {
+        Timer timer = meterRegistry != null ? resolutions.byteToObjectTimers.get(messageConverter) : null;
+
+        if (timer == null) {
+            try {
+                return messageConverter.convert(input);
+            }
+            catch (Throwable e) {
+                log.error("unhandled exception caught from message converter " + messageConverter.getClass().getName(), e);
+                return null;
+            }
+        }
+
+        long start = System.nanoTime();
+
         try {
-            return messageConverter.convert(input);
+            ByteToObjectResult result = messageConverter.convert(input);
+
+            if (result != null) {
+                timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+
+            return result;
         }
         catch (Throwable e) {
             log.error("unhandled exception caught from message converter " + messageConverter.getClass().getName(), e);
@@ -173,13 +317,133 @@ public class MessageConverterManager {
     }
 
     /**
-     * Determines whether the given converter supports the given byte-to-object input.
+     * Determines whether the given converter supports the given class filter.
      */
-    private boolean isInputAndConverterIncompatible(ByteToObjectInput input, ByteToObjectConverter converter) {
-        if (input.getClassFilter() == null || input.getClassFilter().isEmpty()) {
+    private static boolean isClassFilterAndConverterIncompatible(List<Class<?>> classFilter, ByteToObjectConverter converter) {
+        if (classFilter == null || classFilter.isEmpty()) {
             return false;
         }
 
-        return input.getClassFilter().stream().noneMatch(converter::supports);
+        return classFilter.stream().noneMatch(converter::supports);
+    }
+
+    /**
+     * Cached converter resolutions for a fixed set of registered converters. A new instance replaces
+     * the current one whenever a converter is registered, which invalidates every cached resolution
+     * at once without racing lookups that are still in progress.
+     */
+    private class Resolutions {
+        /**
+         * Registered byte-to-object converters, in registration order.
+         */
+        private final ByteToObjectConverter[] byteToObjectConverters;
+
+        /**
+         * Registered object-to-byte converters, in registration order.
+         */
+        private final ObjectToByteConverter[] objectToByteConverters;
+
+        /**
+         * Object-to-byte conversion timers keyed by converter instance, empty when conversions are
+         * not timed. The map is never modified after construction, so it is safe to read concurrently.
+         */
+        private final Map<ObjectToByteConverter, Timer> objectToByteTimers = new IdentityHashMap<>();
+
+        /**
+         * Byte-to-object conversion timers keyed by converter instance, empty when conversions are
+         * not timed. The map is never modified after construction, so it is safe to read concurrently.
+         */
+        private final Map<ByteToObjectConverter, Timer> byteToObjectTimers = new IdentityHashMap<>();
+
+        /**
+         * Object-to-byte converters that support each body class.
+         */
+        private final ClassValue<List<ObjectToByteConverter>> objectToByte = new ClassValue<List<ObjectToByteConverter>>() {
+            @Override
+            protected List<ObjectToByteConverter> computeValue(Class<?> type) {
+                misses.increment();
+                return Collections.unmodifiableList(Arrays.stream(objectToByteConverters).filter(it -> it.supports(type)).collect(Collectors.toList()));
+            }
+        };
+
+        /**
+         * Byte-to-object converters keyed by mime type, or {@link #NO_MIME_TYPE}, and then by class filter.
+         */
+        private final ConcurrentMap<Object, ConcurrentMap<List<Class<?>>, ByteToObjectConverter[]>> byteToObject = new ConcurrentHashMap<>();
+
+        /**
+         * Constructor.
+         *
+         * @param messageConverters Registered message converters.
+         */
+        Resolutions(List<MessageConverter> messageConverters) {
+            byteToObjectConverters = messageConverters.stream().filter(it -> it instanceof ByteToObjectConverter)
+                .map(it -> (ByteToObjectConverter) it).toArray(ByteToObjectConverter[]::new);
+            objectToByteConverters = messageConverters.stream().filter(it -> it instanceof ObjectToByteConverter)
+                .map(it -> (ObjectToByteConverter) it).toArray(ObjectToByteConverter[]::new);
+
+            if (meterRegistry != null) {
+                for (ObjectToByteConverter converter : objectToByteConverters) {
+                    objectToByteTimers.put(converter, conversionTimer(converter, "serialize"));
+                }
+                for (ByteToObjectConverter converter : byteToObjectConverters) {
+                    byteToObjectTimers.put(converter, conversionTimer(converter, "deserialize"));
+                }
+            }
+        }
+
+        /**
+         * Registers the timer of a converter for one conversion direction.
+         */
+        private Timer conversionTimer(MessageConverter converter, String direction) {
+            Class<?> type = converter.getClass();
+            String name = type.getSimpleName().isEmpty() ? type.getName() : type.getSimpleName();
+
+            return Timer.builder("rabbitmq.converter.convert").tag("converter", name).tag("direction", direction)
+                .description("Time spent converting message bodies").register(meterRegistry);
+        }
+
+        /**
+         * Returns the byte-to-object converters that support the given mime type and class filter.
+         * A {@code null} mime type matches converters regardless of the mime types they support.
+         */
+        ByteToObjectConverter[] byteToObject(MimeType mimeType, List<Class<?>> classFilter) {
+            lookups.increment();
+
+            Object mimeTypeKey = mimeType != null ? mimeType : NO_MIME_TYPE;
+            List<Class<?>> classFilterKey = classFilter != null ? classFilter : Collections.emptyList();
+
+            ConcurrentMap<List<Class<?>>, ByteToObjectConverter[]> byClassFilter = byteToObject.get(mimeTypeKey);
+
+            if (byClassFilter != null) {
+                ByteToObjectConverter[] converters = byClassFilter.get(classFilterKey);
+
+                if (converters != null) {
+                    return converters;
+                }
+            }
+
+            misses.increment();
+
+            ByteToObjectConverter[] converters = Arrays.stream(byteToObjectConverters)
+                .filter(it -> mimeType == null || it.supports(mimeType))
+                .filter(it -> !isClassFilterAndConverterIncompatible(classFilter, it))
+                .toArray(ByteToObjectConverter[]::new);
+
+            if (byClassFilter == null) {
+                if (byteToObject.size() >= MAX_CACHED_KEYS) {
+                    return converters;
+                }
+
+                byClassFilter = byteToObject.computeIfAbsent(mimeTypeKey, it -> new ConcurrentHashMap<>());
+            }
+
+            if (byClassFilter.size() < MAX_CACHED_KEYS) {
+                // The class filter is copied so that a caller mutating its list cannot corrupt the key.
+                byClassFilter.putIfAbsent(new ArrayList<>(classFilterKey), converters);
+            }
+
+            return converters;
+        }
     }
 }
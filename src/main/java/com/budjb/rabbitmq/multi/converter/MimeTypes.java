@@ -0,0 +1,70 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.converter;
+
+import org.springframework.util.InvalidMimeTypeException;
+import org.springframework.util.MimeType;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parses content types into {@link MimeType} instances, interning the result.
+ * <p>
+ * Messages usually carry one of a handful of content types, so parsed mime types are cached by
+ * their string form and shared. The cache is bounded since content types come from incoming
+ * messages; once it is full, further content types are parsed without being cached.
+ */
+public final class MimeTypes {
+    /**
+     * Maximum number of content types that are cached.
+     */
+    private static final int MAX_CACHED_MIME_TYPES = 256;
+
+    /**
+     * Parsed mime types keyed by content type.
+     */
+    private static final Map<String, MimeType> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor. This is a utility class and is not meant to be instantiated.
+     */
+    private MimeTypes() {
+    }
+
+    /**
+     * Parses the given content type.
+     *
+     * @param contentType Content type to parse.
+     * @return The parsed mime type.
+     * @throws InvalidMimeTypeException When the content type can not be parsed.
+     */
+    public static MimeType valueOf(String contentType) throws InvalidMimeTypeException {
+        MimeType mimeType = cache.get(contentType);
+
+        if (mimeType != null) {
+            return mimeType;
+        }
+
+        mimeType = MimeType.valueOf(contentType);
+
+        if (cache.size() < MAX_CACHED_MIME_TYPES) {
+            cache.putIfAbsent(contentType, mimeType);
+        }
+
+        return mimeType;
+    }
+}
@@ -58,7 +58,7 @@ public class ObjectToByteInput {
      * given content type.
      */
     public ObjectToByteInput(Object object, String contentType) {
-        this(object, contentType != null && !contentType.isEmpty() ? MimeType.valueOf(contentType) : null);
+        this(object, contentType != null && !contentType.isEmpty() ? MimeTypes.valueOf(contentType) : null);
     }
 
     /**
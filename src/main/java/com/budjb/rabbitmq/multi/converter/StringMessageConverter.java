@@ -17,8 +17,6 @@ package com.budjb.rabbitmq.multi.converter;
 
 import org.springframework.util.MimeType;
 
-import java.util.HashMap;
-
 /**
  * A converter that supports conversion to and from a {@link String}.
  */
@@ -26,7 +24,7 @@ public class StringMessageConverter implements ByteToObjectConverter, ObjectToBy
     /**
      * Mime type.
      */
-    private static final MimeType mimeType = MimeType.valueOf("text/plain");
+    private static final CharsetMimeType mimeType = new CharsetMimeType("text/plain");
 
     /**
      * {@inheritDoc}
@@ -57,8 +55,6 @@ public class StringMessageConverter implements ByteToObjectConverter, ObjectToBy
      */
     @Override
     public ObjectToByteResult convert(ObjectToByteInput input) {
-        return new ObjectToByteResult(((String) input.getObject()).getBytes(input.getCharset()), new MimeType(mimeType, new HashMap<String, String>() {{
-            put("charset", input.getCharset().name());
-        }}));
+        return new ObjectToByteResult(((String) input.getObject()).getBytes(input.getCharset()), mimeType.withCharset(input.getCharset()));
     }
 }
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.loopback;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmCallback;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.DeliverCallback;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A channel decorated by the {@link FaultInjectingConnectionProvider}.
+ * <p>
+ * The channel is exposed as a dynamic proxy of {@link Channel}. Publishes are delayed on the
+ * calling thread and may close the channel; confirm listeners and consumers are wrapped so that
+ * confirms and deliveries are delayed in order, and deliveries may be dropped. Everything else is
+ * passed to the underlying channel.
+ */
+class FaultInjectingChannel implements InvocationHandler {
+    /**
+     * Logger.
+     */
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Connection the channel belongs to.
+     */
+    private final FaultInjectingConnection connection;
+
+    /**
+     * Provider faults are drawn from.
+     */
+    private final FaultInjectingConnectionProvider provider;
+
+    /**
+     * Underlying channel.
+     */
+    private final Channel delegate;
+
+    /**
+     * Proxy handed to callers.
+     */
+    private final Channel proxy;
+
+    /**
+     * Delays the channel's confirms, in order.
+     */
+    private final SerialDelay confirmDelay;
+
+    /**
+     * Confirm listeners given by the application, mapped to the listeners registered in their place.
+     */
+    private final ConcurrentMap<ConfirmListener, ConfirmListener> confirmListeners = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param connection Connection the channel belongs to.
+     * @param delegate   Underlying channel.
+     */
+    FaultInjectingChannel(FaultInjectingConnection connection, Channel delegate) {
+        this.connection = connection;
+        this.provider = connection.getProvider();
+        this.delegate = delegate;
+        this.confirmDelay = new SerialDelay(provider.getScheduler());
+        this.proxy = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class}, this);
+
+        delegate.addShutdownListener(cause -> connection.removeChannel(this));
+    }
+
+    /**
+     * Returns the proxy handed to callers.
+     *
+     * @return The proxy handed to callers.
+     */
+    Channel getProxy() {
+        return proxy;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+
+            case "hashCode":
+                return System.identityHashCode(proxy);
+
+            case "toString":
+                return "FaultInjectingChannel(" + delegate + ")";
+
+            case "getConnection":
+                return connection.getProxy();
+
+            case "basicPublish":
+                publish(method, args);
+                return null;
+
+            case "basicConsume":
+                return FaultInjectingConnection.forward(delegate, method, decorateConsumer(args));
+
+            case "addConfirmListener":
+                return addConfirmListener(args);
+
+            case "removeConfirmListener":
+                ConfirmListener registered = confirmListeners.remove(args[0]);
+                return registered != null && delegate.removeConfirmListener(registered);
+
+            case "clearConfirmListeners":
+                confirmListeners.clear();
+                delegate.clearConfirmListeners();
+                return null;
+
+            default:
+                return FaultInjectingConnection.forward(delegate, method, args);
+        }
+    }
+
+    /**
+     * Closes the underlying channel as the broker does on a channel error.
+     *
+     * @return Whether the channel was open.
+     */
+    boolean closeByBroker() {
+        if (!delegate.isOpen()) {
+            return false;
+        }
+
+        try {
+            delegate.abort(AMQP.INTERNAL_ERROR, "INTERNAL_ERROR - simulated channel failure");
+        }
+        catch (IOException e) {
+            log.debug("Failed to close " + delegate, e);
+        }
+
+        provider.channelClosed();
+
+        return true;
+    }
+
+    /**
+     * Publishes a message after the injected publish latency, unless the channel is closed first.
+     */
+    private void publish(Method method, Object[] args) throws Throwable {
+        if (provider.shouldCloseChannel()) {
+            closeByBroker();
+        }
+
+        long latency = provider.samplePublishLatency();
+
+        if (latency > 0) {
+            LockSupport.parkNanos(latency);
+        }
+
+        FaultInjectingConnection.forward(delegate, method, args);
+    }
+
+    /**
+     * Replaces the consumer or deliver callback among the arguments of a {@code basicConsume} call
+     * with one whose deliveries are delayed and may be dropped.
+     */
+    private Object[] decorateConsumer(Object[] args) {
+        Object[] decorated = args.clone();
+        SerialDelay deliveryDelay = new SerialDelay(provider.getScheduler());
+
+        for (int i = 0; i < decorated.length; i++) {
+            if (decorated[i] instanceof Consumer) {
+                decorated[i] = new FaultInjectingConsumer((Consumer) decorated[i], deliveryDelay);
+            }
+            else if (decorated[i] instanceof DeliverCallback) {
+                DeliverCallback callback = (DeliverCallback) decorated[i];
+
+                decorated[i] = (DeliverCallback) (consumerTag, delivery) -> {
+                    if (!provider.shouldDropReply()) {
+                        deliveryDelay.execute(provider.sampleDeliveryLatency(), () -> {
+                            try {
+                                callback.handle(consumerTag, delivery);
+                            }
+                            catch (IOException e) {
+                                log.warn("Unhandled exception from consumer " + consumerTag, e);
+                            }
+                        });
+                    }
+                };
+            }
+        }
+
+        return decorated;
+    }
+
+    /**
+     * Registers a confirm listener given either as a {@link ConfirmListener} or as a pair of
+     * callbacks, in place of which a listener whose confirms are delayed is registered.
+     */
+    private ConfirmListener addConfirmListener(Object[] args) {
+        ConfirmListener listener;
+
+        if (args.length == 1) {
+            listener = (ConfirmListener) args[0];
+        }
+        else {
+            ConfirmCallback ackCallback = (ConfirmCallback) args[0];
+            ConfirmCallback nackCallback = (ConfirmCallback) args[1];
+
+            listener = new ConfirmListener() {
+                @Override
+                public void handleAck(long deliveryTag, boolean multiple) throws IOException {
+                    ackCallback.handle(deliveryTag, multiple);
+                }
+
+                @Override
+                public void handleNack(long deliveryTag, boolean multiple) throws IOException {
+                    nackCallback.handle(deliveryTag, multiple);
+                }
+            };
+        }
+
+        ConfirmListener delayed = new ConfirmListener() {
+            @Override
+            public void handleAck(long deliveryTag, boolean multiple) {
+                confirmDelay.execute(provider.sampleConfirmLatency(), () -> {
+                    try {
+                        listener.handleAck(deliveryTag, multiple);
+                    }
+                    catch (IOException e) {
+                        log.warn("Unhandled exception from confirm listener of " + proxy, e);
+                    }
+                });
+            }
+
+            @Override
+            public void handleNack(long deliveryTag, boolean multiple) {
+                confirmDelay.execute(provider.sampleConfirmLatency(), () -> {
+                    try {
+                        listener.handleNack(deliveryTag, multiple);
+                    }
+                    catch (IOException e) {
+                        log.warn("Unhandled exception from confirm listener of " + proxy, e);
+                    }
+                });
+            }
+        };
+
+        confirmListeners.put(listener, delayed);
+        delegate.addConfirmListener(delayed);
+
+        return listener;
+    }
+
+    /**
+     * A consumer whose deliveries are delayed, in order, and may be dropped.
+     */
+    private class FaultInjectingConsumer implements Consumer {
+        /**
+         * The application's consumer.
+         */
+        private final Consumer consumer;
+
+        /**
+         * Delays the consumer's deliveries and the notifications that follow them.
+         */
+        private final SerialDelay deliveryDelay;
+
+        /**
+         * Constructor.
+         *
+         * @param consumer      The application's consumer.
+         * @param deliveryDelay Delays the consumer's deliveries.
+         */
+        FaultInjectingConsumer(Consumer consumer, SerialDelay deliveryDelay) {
+            this.consumer = consumer;
+            this.deliveryDelay = deliveryDelay;
+        }
+
+        @Override
+        public void handleConsumeOk(String consumerTag) {
+            consumer.handleConsumeOk(consumerTag);
+        }
+
+        @Override
+        public void handleCancelOk(String consumerTag) {
+            deliveryDelay.execute(0, () -> consumer.handleCancelOk(consumerTag));
+        }
+
+        @Override
+        public void handleCancel(String consumerTag) {
+            deliveryDelay.execute(0, () -> {
+                try {
+                    consumer.handleCancel(consumerTag);
+                }
+                catch (IOException e) {
+                    log.warn("Unhandled exception from consumer " + consumerTag, e);
+                }
+            });
+        }
+
+        @Override
+        public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+            deliveryDelay.execute(0, () -> consumer.handleShutdownSignal(consumerTag, sig));
+        }
+
+        @Override
+        public void handleRecoverOk(String consumerTag) {
+            consumer.handleRecoverOk(consumerTag);
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body) {
+            if (provider.shouldDropReply()) {
+                return;
+            }
+
+            deliveryDelay.execute(provider.sampleDeliveryLatency(), () -> {
+                try {
+                    consumer.handleDelivery(consumerTag, envelope, properties, body);
+                }
+                catch (IOException e) {
+                    log.warn("Unhandled exception from consumer " + consumerTag, e);
+                }
+            });
+        }
+    }
+}
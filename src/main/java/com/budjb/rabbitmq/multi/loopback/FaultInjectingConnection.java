@@ -0,0 +1,500 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.loopback;
+
+import com.budjb.rabbitmq.multi.config.ConnectionConfiguration;
+import com.budjb.rabbitmq.multi.config.ConnectionParameters;
+import com.budjb.rabbitmq.multi.connection.ConnectionException;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.BlockedCallback;
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.UnblockedCallback;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.lang.Nullable;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A connection decorated by the {@link FaultInjectingConnectionProvider}.
+ * <p>
+ * The connection is exposed as a dynamic proxy of {@link Connection} and {@link Recoverable}, and
+ * keeps its own shutdown, blocked, and recovery listeners so that they survive the underlying
+ * connection being replaced when the connection recovers from an interruption. Methods it does
+ * not decorate are passed to the current underlying connection.
+ */
+class FaultInjectingConnection implements InvocationHandler {
+    /**
+     * Logger.
+     */
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Provider that created the connection.
+     */
+    private final FaultInjectingConnectionProvider provider;
+
+    /**
+     * Connection configuration, used to reconnect.
+     */
+    private final ConnectionConfiguration connectionConfiguration;
+
+    /**
+     * Connection parameters of the node connected to, if given, used to reconnect.
+     */
+    private final ConnectionParameters connectionParameters;
+
+    /**
+     * Micrometer meter registry, used to reconnect.
+     */
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * Proxy handed to callers.
+     */
+    private final Connection proxy;
+
+    /**
+     * Open channels.
+     */
+    private final Set<FaultInjectingChannel> channels = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Shutdown listeners.
+     */
+    private final List<ShutdownListener> shutdownListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Blocked listeners.
+     */
+    private final List<BlockedListener> blockedListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Recovery listeners.
+     */
+    private final List<RecoveryListener> recoveryListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Current underlying connection.
+     */
+    private volatile Connection delegate;
+
+    /**
+     * Reason the connection is down while it is interrupted, or {@code null} while it is up.
+     */
+    private volatile ShutdownSignalException interruption;
+
+    /**
+     * Whether the application has closed the connection.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param provider                Provider that created the connection.
+     * @param connectionConfiguration Connection configuration.
+     * @param connectionParameters    Connection parameters of the node to connect to, if any.
+     * @param meterRegistry           Micrometer meter registry.
+     * @throws ConnectionException When the underlying connection can not be opened.
+     */
+    FaultInjectingConnection(FaultInjectingConnectionProvider provider, ConnectionConfiguration connectionConfiguration,
+                             @Nullable ConnectionParameters connectionParameters, @Nullable MeterRegistry meterRegistry) throws ConnectionException {
+        this.provider = provider;
+        this.connectionConfiguration = connectionConfiguration;
+        this.connectionParameters = connectionParameters;
+        this.meterRegistry = meterRegistry;
+        this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class, Recoverable.class}, this);
+
+        attach(provider.connect(connectionConfiguration, connectionParameters, meterRegistry));
+    }
+
+    /**
+     * Returns the proxy handed to callers.
+     *
+     * @return The proxy handed to callers.
+     */
+    Connection getProxy() {
+        return proxy;
+    }
+
+    /**
+     * Returns the provider that created the connection.
+     *
+     * @return The provider that created the connection.
+     */
+    FaultInjectingConnectionProvider getProvider() {
+        return provider;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+
+            case "hashCode":
+                return System.identityHashCode(proxy);
+
+            case "toString":
+                return "FaultInjectingConnection(" + delegate + ")";
+
+            case "createChannel":
+                return createChannel(method, args);
+
+            case "openChannel":
+                return Optional.ofNullable(createChannel(method, args));
+
+            case "isOpen":
+                return interruption == null && delegate.isOpen();
+
+            case "getCloseReason":
+                return interruption != null ? interruption : delegate.getCloseReason();
+
+            case "close":
+            case "abort":
+                closed = true;
+                provider.removeConnection(this);
+                return forward(delegate, method, args);
+
+            case "addShutdownListener":
+                shutdownListeners.add((ShutdownListener) args[0]);
+                return null;
+
+            case "removeShutdownListener":
+                shutdownListeners.remove(args[0]);
+                return null;
+
+            case "notifyListeners":
+                return null;
+
+            case "addBlockedListener":
+                return addBlockedListener(args);
+
+            case "removeBlockedListener":
+                return blockedListeners.remove(args[0]);
+
+            case "clearBlockedListeners":
+                blockedListeners.clear();
+                return null;
+
+            case "addRecoveryListener":
+                recoveryListeners.add((RecoveryListener) args[0]);
+                return null;
+
+            case "removeRecoveryListener":
+                recoveryListeners.remove(args[0]);
+                return null;
+
+            default:
+                return forward(delegate, method, args);
+        }
+    }
+
+    /**
+     * Closes every open channel, as the broker does on a channel error.
+     *
+     * @return The number of channels closed.
+     */
+    int closeChannels() {
+        int count = 0;
+
+        for (FaultInjectingChannel channel : channels) {
+            if (channel.closeByBroker()) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Removes a channel that has closed.
+     *
+     * @param channel Closed channel.
+     */
+    void removeChannel(FaultInjectingChannel channel) {
+        channels.remove(channel);
+    }
+
+    /**
+     * Notifies blocked listeners that the broker blocked the connection.
+     *
+     * @param reason Reason reported to blocked listeners.
+     */
+    void block(String reason) {
+        for (BlockedListener listener : blockedListeners) {
+            try {
+                listener.handleBlocked(reason);
+            }
+            catch (Exception e) {
+                log.debug("Unhandled exception from blocked listener of " + proxy, e);
+            }
+        }
+    }
+
+    /**
+     * Notifies blocked listeners that the broker unblocked the connection.
+     */
+    void unblock() {
+        for (BlockedListener listener : blockedListeners) {
+            try {
+                listener.handleUnblocked();
+            }
+            catch (Exception e) {
+                log.debug("Unhandled exception from blocked listener of " + proxy, e);
+            }
+        }
+    }
+
+    /**
+     * Takes the connection down as a network failure would, and schedules its recovery.
+     *
+     * @param downtime Time the connection stays down, in nanoseconds.
+     * @return Whether the connection was up and has been interrupted.
+     */
+    boolean interrupt(long downtime) {
+        ShutdownSignalException cause;
+        Connection lost;
+
+        synchronized (this) {
+            if (closed || interruption != null) {
+                return false;
+            }
+
+            AMQP.Connection.Close method = new AMQP.Connection.Close.Builder()
+                .replyCode(AMQP.CONNECTION_FORCED)
+                .replyText("CONNECTION_FORCED - simulated network failure")
+                .build();
+
+            cause = new ShutdownSignalException(true, false, method, proxy);
+            interruption = cause;
+            lost = delegate;
+        }
+
+        // The lost connection's own shutdown is not forwarded since the interruption is reported
+        // in its place; its channels report their own shutdown to their listeners.
+        lost.abort();
+
+        for (ShutdownListener listener : shutdownListeners) {
+            try {
+                listener.shutdownCompleted(cause);
+            }
+            catch (Exception e) {
+                log.debug("Unhandled exception from shutdown listener of " + proxy, e);
+            }
+        }
+
+        for (RecoveryListener listener : recoveryListeners) {
+            try {
+                listener.handleRecoveryStarted((Recoverable) proxy);
+            }
+            catch (Exception e) {
+                log.debug("Unhandled exception from recovery listener of " + proxy, e);
+            }
+        }
+
+        scheduleRecovery(downtime);
+
+        return true;
+    }
+
+    /**
+     * Schedules an attempt to recover the connection.
+     */
+    private void scheduleRecovery(long delay) {
+        try {
+            provider.getScheduler().schedule(() -> recover(delay), delay, TimeUnit.NANOSECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            log.debug("Fault injection has been shut down; " + proxy + " will not recover");
+        }
+    }
+
+    /**
+     * Replaces the lost connection with a new one, retrying after the same delay if the decorated
+     * provider can not connect.
+     */
+    private void recover(long retryDelay) {
+        Connection connection;
+
+        try {
+            connection = provider.connect(connectionConfiguration, connectionParameters, meterRegistry);
+        }
+        catch (ConnectionException e) {
+            log.warn("Failed to recover " + proxy + "; retrying", e);
+            scheduleRecovery(retryDelay);
+            return;
+        }
+
+        synchronized (this) {
+            if (closed) {
+                connection.abort();
+                return;
+            }
+
+            attach(connection);
+            interruption = null;
+        }
+
+        provider.connectionRecovered();
+
+        for (RecoveryListener listener : recoveryListeners) {
+            try {
+                listener.handleRecovery((Recoverable) proxy);
+            }
+            catch (Exception e) {
+                log.debug("Unhandled exception from recovery listener of " + proxy, e);
+            }
+        }
+    }
+
+    /**
+     * Makes a connection the underlying connection, forwarding its shutdown and blocked notifications.
+     */
+    private void attach(Connection connection) {
+        connection.addShutdownListener(cause -> {
+            if (delegate != connection || interruption != null) {
+                return;
+            }
+
+            if (!cause.isInitiatedByApplication()) {
+                provider.removeConnection(this);
+            }
+
+            for (ShutdownListener listener : shutdownListeners) {
+                try {
+                    listener.shutdownCompleted(cause);
+                }
+                catch (Exception e) {
+                    log.debug("Unhandled exception from shutdown listener of " + proxy, e);
+                }
+            }
+        });
+
+        connection.addBlockedListener(new BlockedListener() {
+            @Override
+            public void handleBlocked(String reason) {
+                if (delegate == connection) {
+                    block(reason);
+                }
+            }
+
+            @Override
+            public void handleUnblocked() {
+                if (delegate == connection) {
+                    unblock();
+                }
+            }
+        });
+
+        delegate = connection;
+    }
+
+    /**
+     * Opens a channel on the underlying connection and decorates it.
+     */
+    @Nullable
+    private Channel createChannel(Method method, Object[] args) throws Throwable {
+        ShutdownSignalException cause = interruption;
+
+        if (cause != null) {
+            throw new AlreadyClosedException(cause);
+        }
+
+        Channel channel = (Channel) forward(delegate, method.getName().equals("openChannel") ? Connection.class.getMethod("createChannel", method.getParameterTypes()) : method, args);
+
+        if (channel == null) {
+            return null;
+        }
+
+        FaultInjectingChannel decorated = new FaultInjectingChannel(this, channel);
+        channels.add(decorated);
+
+        return decorated.getProxy();
+    }
+
+    /**
+     * Adds a blocked listener given either as a {@link BlockedListener} or as a pair of callbacks.
+     */
+    private BlockedListener addBlockedListener(Object[] args) {
+        BlockedListener listener;
+
+        if (args.length == 1) {
+            listener = (BlockedListener) args[0];
+        }
+        else {
+            BlockedCallback blockedCallback = (BlockedCallback) args[0];
+            UnblockedCallback unblockedCallback = (UnblockedCallback) args[1];
+
+            listener = new BlockedListener() {
+                @Override
+                public void handleBlocked(String reason) throws IOException {
+                    blockedCallback.handle(reason);
+                }
+
+                @Override
+                public void handleUnblocked() throws IOException {
+                    unblockedCallback.handle();
+                }
+            };
+        }
+
+        blockedListeners.add(listener);
+
+        return listener;
+    }
+
+    /**
+     * Calls a method on an underlying connection or channel, rethrowing whatever it throws.
+     *
+     * @param target Underlying connection or channel.
+     * @param method Method to call.
+     * @param args   Arguments of the call.
+     * @return The result of the call.
+     * @throws Throwable What the method threw.
+     */
+    static Object forward(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        }
+        catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.loopback;
+
+import com.budjb.rabbitmq.multi.config.ConnectionConfiguration;
+import com.budjb.rabbitmq.multi.config.ConnectionParameters;
+import com.budjb.rabbitmq.multi.connection.ConnectionException;
+import com.budjb.rabbitmq.multi.connection.ConnectionProvider;
+import com.rabbitmq.client.Connection;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.lang.Nullable;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A connection provider that decorates the connections of another provider with injected latency
+ * and faults, so that timeouts, channel pool sizes, and recovery can be sized against a slow or
+ * unreliable broker. It is usually wrapped around a {@link LoopbackConnectionProvider}, but works
+ * with any provider.
+ * <p>
+ * Faults are scripted by calling the provider's methods while a test runs:
+ * <ul>
+ * <li>Publish latency is added on the publishing thread before a message is handed to the
+ * connection, as a slow socket would.</li>
+ * <li>Confirm and delivery latency hold back publisher confirms and consumer deliveries without
+ * reordering them.</li>
+ * <li>Deliveries to consumers opened through the provider, which for the publisher are RPC replies,
+ * may be dropped.</li>
+ * <li>Channels may be closed as a publish is made or all at once, as the broker does on a channel
+ * error.</li>
+ * <li>{@code connection.blocked} may be sent, and connections may be interrupted and recovered after
+ * a downtime, as an automatically recovering connection is.</li>
+ * </ul>
+ * Random faults and latencies are drawn from a single random number generator, so a provider
+ * created with a seed injects the same sequence of faults for the same sequence of calls.
+ */
+public class FaultInjectingConnectionProvider implements ConnectionProvider {
+    /**
+     * Provider of the connections that are decorated.
+     */
+    private final ConnectionProvider connectionProvider;
+
+    /**
+     * Random number generator faults and latencies are drawn from.
+     */
+    private final Random random;
+
+    /**
+     * Scheduler delayed confirms, deliveries, and recoveries run on.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Open connections.
+     */
+    private final Set<FaultInjectingConnection> connections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Number of upcoming deliveries to drop.
+     */
+    private final AtomicInteger repliesToDrop = new AtomicInteger();
+
+    /**
+     * Number of deliveries dropped.
+     */
+    private final AtomicLong droppedReplies = new AtomicLong();
+
+    /**
+     * Number of channels closed by the provider.
+     */
+    private final AtomicLong closedChannels = new AtomicLong();
+
+    /**
+     * Number of times a connection has recovered from an interruption.
+     */
+    private final AtomicLong recoveries = new AtomicLong();
+
+    /**
+     * Latency added to publishes.
+     */
+    private volatile LatencyDistribution publishLatency = LatencyDistribution.NONE;
+
+    /**
+     * Latency added to publisher confirms.
+     */
+    private volatile LatencyDistribution confirmLatency = LatencyDistribution.NONE;
+
+    /**
+     * Latency added to consumer deliveries.
+     */
+    private volatile LatencyDistribution deliveryLatency = LatencyDistribution.NONE;
+
+    /**
+     * Probability that a publish closes its channel.
+     */
+    private volatile double channelCloseProbability;
+
+    /**
+     * Probability that a delivery is dropped.
+     */
+    private volatile double replyDropProbability;
+
+    /**
+     * Constructor.
+     *
+     * @param connectionProvider Provider of the connections that are decorated.
+     */
+    public FaultInjectingConnectionProvider(ConnectionProvider connectionProvider) {
+        this(connectionProvider, new Random());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param connectionProvider Provider of the connections that are decorated.
+     * @param seed               Seed of the random number generator faults and latencies are drawn from.
+     */
+    public FaultInjectingConnectionProvider(ConnectionProvider connectionProvider, long seed) {
+        this(connectionProvider, new Random(seed));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param connectionProvider Provider of the connections that are decorated.
+     * @param random             Random number generator faults and latencies are drawn from.
+     */
+    private FaultInjectingConnectionProvider(ConnectionProvider connectionProvider, Random random) {
+        this.connectionProvider = connectionProvider;
+        this.random = random;
+
+        // A single thread runs delayed tasks in the order they are due, which keeps the confirms
+        // and deliveries of a channel in order.
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rabbitmq-fault-injection");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Connection createConnection(ConnectionConfiguration connectionConfiguration, @Nullable MeterRegistry meterRegistry) throws ConnectionException {
+        return createConnection(connectionConfiguration, null, meterRegistry);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Connection createConnection(ConnectionConfiguration connectionConfiguration, @Nullable ConnectionParameters connectionParameters, @Nullable MeterRegistry meterRegistry) throws ConnectionException {
+        FaultInjectingConnection connection = new FaultInjectingConnection(this, connectionConfiguration, connectionParameters, meterRegistry);
+        connections.add(connection);
+        return connection.getProxy();
+    }
+
+    /**
+     * Sets the latency added to publishes, on the publishing thread.
+     *
+     * @param publishLatency Latency added to publishes.
+     */
+    public void setPublishLatency(LatencyDistribution publishLatency) {
+        this.publishLatency = publishLatency;
+    }
+
+    /**
+     * Sets the latency added to publisher confirms.
+     *
+     * @param confirmLatency Latency added to publisher confirms.
+     */
+    public void setConfirmLatency(LatencyDistribution confirmLatency) {
+        this.confirmLatency = confirmLatency;
+    }
+
+    /**
+     * Sets the latency added to deliveries to consumers, including RPC replies.
+     *
+     * @param deliveryLatency Latency added to deliveries.
+     */
+    public void setDeliveryLatency(LatencyDistribution deliveryLatency) {
+        this.deliveryLatency = deliveryLatency;
+    }
+
+    /**
+     * Sets the probability that a publish closes its channel before the message is sent.
+     *
+     * @param channelCloseProbability Probability, between {@code 0} and {@code 1}.
+     */
+    public void setChannelCloseProbability(double channelCloseProbability) {
+        this.channelCloseProbability = requireProbability(channelCloseProbability);
+    }
+
+    /**
+     * Sets the probability that a delivery to a consumer, such as an RPC reply, is dropped.
+     * Dropped deliveries to consumers with manual acknowledgement are never acknowledged.
+     *
+     * @param replyDropProbability Probability, between {@code 0} and {@code 1}.
+     */
+    public void setReplyDropProbability(double replyDropProbability) {
+        this.replyDropProbability = requireProbability(replyDropProbability);
+    }
+
+    /**
+     * Drops the next deliveries to consumers, regardless of the reply drop probability.
+     *
+     * @param count Number of deliveries to drop.
+     */
+    public void dropReplies(int count) {
+        repliesToDrop.addAndGet(count);
+    }
+
+    /**
+     * Closes every open channel, as the broker does on a channel error.
+     *
+     * @return The number of channels closed.
+     */
+    public int closeChannels() {
+        int count = 0;
+
+        for (FaultInjectingConnection connection : connections) {
+            count += connection.closeChannels();
+        }
+
+        return count;
+    }
+
+    /**
+     * Sends {@code connection.blocked} to every open connection.
+     *
+     * @param reason Reason reported to blocked listeners.
+     */
+    public void block(String reason) {
+        for (FaultInjectingConnection connection : connections) {
+            connection.block(reason);
+        }
+    }
+
+    /**
+     * Sends {@code connection.unblocked} to every open connection.
+     */
+    public void unblock() {
+        for (FaultInjectingConnection connection : connections) {
+            connection.unblock();
+        }
+    }
+
+    /**
+     * Interrupts every open connection as a network failure would, and recovers each one after a
+     * downtime by opening a new connection through the decorated provider. Interrupted connections
+     * report themselves closed and refuse new channels until they recover, then notify their
+     * recovery listeners.
+     *
+     * @param downtime Time connections stay down.
+     * @param unit     Unit of the downtime.
+     * @return The number of connections interrupted.
+     */
+    public int interruptConnections(long downtime, TimeUnit unit) {
+        int count = 0;
+
+        for (FaultInjectingConnection connection : connections) {
+            if (connection.interrupt(unit.toNanos(downtime))) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Removes every latency and fault, leaving connections that are down to recover as scheduled.
+     */
+    public void reset() {
+        publishLatency = LatencyDistribution.NONE;
+        confirmLatency = LatencyDistribution.NONE;
+        deliveryLatency = LatencyDistribution.NONE;
+        channelCloseProbability = 0;
+        replyDropProbability = 0;
+        repliesToDrop.set(0);
+    }
+
+    /**
+     * Returns the number of deliveries that have been dropped.
+     *
+     * @return The number of deliveries that have been dropped.
+     */
+    public long getDroppedReplies() {
+        return droppedReplies.get();
+    }
+
+    /**
+     * Returns the number of channels the provider has closed.
+     *
+     * @return The number of channels the provider has closed.
+     */
+    public long getClosedChannels() {
+        return closedChannels.get();
+    }
+
+    /**
+     * Returns the number of times a connection has recovered from an interruption.
+     *
+     * @return The number of recoveries.
+     */
+    public long getRecoveries() {
+        return recoveries.get();
+    }
+
+    /**
+     * Stops the thread delayed tasks run on. Tasks that are already delayed are dropped.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Opens a connection through the decorated provider.
+     *
+     * @param connectionConfiguration Connection configuration.
+     * @param connectionParameters    Connection parameters of the node to connect to, if any.
+     * @param meterRegistry           Micrometer meter registry.
+     * @return A new connection.
+     * @throws ConnectionException When the connection can not be opened.
+     */
+    Connection connect(ConnectionConfiguration connectionConfiguration, @Nullable ConnectionParameters connectionParameters, @Nullable MeterRegistry meterRegistry) throws ConnectionException {
+        if (connectionParameters == null) {
+            return connectionProvider.createConnection(connectionConfiguration, meterRegistry);
+        }
+        return connectionProvider.createConnection(connectionConfiguration, connectionParameters, meterRegistry);
+    }
+
+    /**
+     * Returns the scheduler delayed tasks run on.
+     *
+     * @return The scheduler delayed tasks run on.
+     */
+    ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Draws a publish latency.
+     *
+     * @return The latency, in nanoseconds.
+     */
+    long samplePublishLatency() {
+        return publishLatency.sample(random);
+    }
+
+    /**
+     * Draws a confirm latency.
+     *
+     * @return The latency, in nanoseconds.
+     */
+    long sampleConfirmLatency() {
+        return confirmLatency.sample(random);
+    }
+
+    /**
+     * Draws a delivery latency.
+     *
+     * @return The latency, in nanoseconds.
+     */
+    long sampleDeliveryLatency() {
+        return deliveryLatency.sample(random);
+    }
+
+    /**
+     * Decides whether a publish closes its channel.
+     *
+     * @return Whether the channel should be closed.
+     */
+    boolean shouldCloseChannel() {
+        double probability = channelCloseProbability;
+
+        return probability > 0 && random.nextDouble() < probability;
+    }
+
+    /**
+     * Decides whether a delivery is dropped, and counts it if it is.
+     *
+     * @return Whether the delivery should be dropped.
+     */
+    boolean shouldDropReply() {
+        double probability = replyDropProbability;
+
+        if (repliesToDrop.getAndUpdate(count -> count > 0 ? count - 1 : 0) > 0 || (probability > 0 && random.nextDouble() < probability)) {
+            droppedReplies.incrementAndGet();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Counts a channel closed by the provider.
+     */
+    void channelClosed() {
+        closedChannels.incrementAndGet();
+    }
+
+    /**
+     * Counts a connection that recovered from an interruption.
+     */
+    void connectionRecovered() {
+        recoveries.incrementAndGet();
+    }
+
+    /**
+     * Removes a connection that the application closed.
+     *
+     * @param connection Closed connection.
+     */
+    void removeConnection(FaultInjectingConnection connection) {
+        connections.remove(connection);
+    }
+
+    /**
+     * Validates a probability.
+     */
+    private static double requireProbability(double probability) {
+        if (probability < 0 || probability > 1) {
+            throw new IllegalArgumentException("probability must be between 0 and 1");
+        }
+        return probability;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.loopback;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A distribution of latencies injected by the {@link FaultInjectingConnectionProvider}.
+ * <p>
+ * Distributions draw from the random number generator they are given, so a provider created with
+ * a fixed seed injects the same sequence of latencies on every run.
+ */
+@FunctionalInterface
+public interface LatencyDistribution {
+    /**
+     * A distribution that never adds latency.
+     */
+    LatencyDistribution NONE = random -> 0;
+
+    /**
+     * Draws a latency.
+     *
+     * @param random Random number generator to draw from.
+     * @return The latency, in nanoseconds.
+     */
+    long sample(Random random);
+
+    /**
+     * Returns a distribution that always adds the same latency.
+     *
+     * @param latency Latency to add.
+     * @param unit    Unit of the latency.
+     * @return A fixed distribution.
+     */
+    static LatencyDistribution fixed(long latency, TimeUnit unit) {
+        long nanos = unit.toNanos(latency);
+
+        return random -> nanos;
+    }
+
+    /**
+     * Returns a distribution whose latencies are uniformly distributed between a minimum and a maximum.
+     *
+     * @param min  Minimum latency.
+     * @param max  Maximum latency.
+     * @param unit Unit of the latencies.
+     * @return A uniform distribution.
+     */
+    static LatencyDistribution uniform(long min, long max, TimeUnit unit) {
+        if (max < min) {
+            throw new IllegalArgumentException("maximum latency must not be less than the minimum");
+        }
+
+        long minNanos = unit.toNanos(min);
+        long range = unit.toNanos(max) - minNanos;
+
+        return random -> minNanos + (long) (random.nextDouble() * range);
+    }
+
+    /**
+     * Returns a distribution whose latencies are exponentially distributed around a mean, as the
+     * time between independent events is.
+     *
+     * @param mean Mean latency.
+     * @param unit Unit of the latency.
+     * @return An exponential distribution.
+     */
+    static LatencyDistribution exponential(long mean, TimeUnit unit) {
+        double meanNanos = unit.toNanos(mean);
+
+        return random -> (long) (-meanNanos * Math.log(1 - random.nextDouble()));
+    }
+
+    /**
+     * Returns a distribution whose latencies are log-normally distributed, which models the long
+     * tail of network and broker latencies. Half of the latencies are below the median, and the
+     * tail grows longer as {@code sigma} grows; a {@code sigma} of {@code 1} puts the 99th
+     * percentile at roughly ten times the median.
+     *
+     * @param median Median latency.
+     * @param sigma  Standard deviation of the latency's natural logarithm.
+     * @param unit   Unit of the latency.
+     * @return A log-normal distribution.
+     */
+    static LatencyDistribution logNormal(long median, double sigma, TimeUnit unit) {
+        if (sigma < 0) {
+            throw new IllegalArgumentException("sigma must not be negative");
+        }
+
+        double medianNanos = unit.toNanos(median);
+
+        return random -> (long) (medianNanos * Math.exp(sigma * random.nextGaussian()));
+    }
+}
@@ -0,0 +1,555 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.loopback;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Connection;
+import org.springframework.lang.Nullable;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory AMQP broker that connections of the {@link LoopbackConnectionProvider} talk to.
+ * <p>
+ * The broker emulates the parts of RabbitMQ the publisher relies on: {@code direct}, {@code topic},
+ * and {@code fanout} exchanges, the default exchange, queues (including server-named, exclusive,
+ * and auto-delete queues), consumers with automatic or manual acknowledgement, {@code basicGet},
+ * publisher confirms, mandatory returns, direct reply-to, and {@code connection.blocked}. Routing
+ * happens on the publishing thread; deliveries, confirms, and returns are dispatched in order per
+ * channel on a shared pool of daemon threads, as the RabbitMQ client does.
+ * <p>
+ * Nothing is persisted and consumer prefetch, transactions, message TTLs, queue limits, and
+ * exchange-to-exchange bindings are not emulated. Errors that RabbitMQ reports by closing a
+ * channel, such as publishing to an exchange that does not exist, close the loopback channel the
+ * same way.
+ */
+public class LoopbackBroker {
+    /**
+     * Pseudo-queue used for RabbitMQ's direct reply-to feature.
+     */
+    public static final String DIRECT_REPLY_TO_QUEUE = "amq.rabbitmq.reply-to";
+
+    /**
+     * Prefix of the reply-to address direct reply-to requests are given.
+     */
+    static final String DIRECT_REPLY_TO_PREFIX = DIRECT_REPLY_TO_QUEUE + ".";
+
+    /**
+     * Exchanges keyed by name. The default exchange is not included.
+     */
+    private final ConcurrentMap<String, LoopbackExchange> exchanges = new ConcurrentHashMap<>();
+
+    /**
+     * Queues keyed by name.
+     */
+    private final ConcurrentMap<String, LoopbackQueue> queues = new ConcurrentHashMap<>();
+
+    /**
+     * Channels consuming direct reply-to replies, keyed by their reply-to address.
+     */
+    private final ConcurrentMap<String, LoopbackChannel> replyChannels = new ConcurrentHashMap<>();
+
+    /**
+     * Open connections.
+     */
+    private final Set<LoopbackConnection> connections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Pool of threads deliveries, confirms, and returns are dispatched on.
+     */
+    private final ExecutorService dispatchExecutor;
+
+    /**
+     * Sequence used to name server-named queues, consumer tags, and connections.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Reason the broker is blocking publishers, or {@code null} if it is not.
+     */
+    private volatile String blockedReason;
+
+    /**
+     * Constructor. Deliveries are dispatched on one thread per available processor.
+     */
+    public LoopbackBroker() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param dispatchThreads Number of threads deliveries, confirms, and returns are dispatched on.
+     */
+    public LoopbackBroker(int dispatchThreads) {
+        if (dispatchThreads < 1) {
+            throw new IllegalArgumentException("loopback broker requires at least one dispatch thread");
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+
+        this.dispatchExecutor = Executors.newFixedThreadPool(dispatchThreads, runnable -> {
+            Thread thread = new Thread(runnable, "rabbitmq-loopback-dispatch-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        exchanges.put("amq.direct", new LoopbackExchange("amq.direct", LoopbackExchange.DIRECT));
+        exchanges.put("amq.topic", new LoopbackExchange("amq.topic", LoopbackExchange.TOPIC));
+        exchanges.put("amq.fanout", new LoopbackExchange("amq.fanout", LoopbackExchange.FANOUT));
+    }
+
+    /**
+     * Opens a new connection to the broker.
+     *
+     * @return A new connection.
+     */
+    public Connection newConnection() {
+        return newConnection(null);
+    }
+
+    /**
+     * Opens a new connection to the broker.
+     *
+     * @param clientProvidedName Name the connection reports as its client-provided name.
+     * @return A new connection.
+     */
+    public Connection newConnection(@Nullable String clientProvidedName) {
+        LoopbackConnection connection = new LoopbackConnection(this, "loopback-" + sequence.incrementAndGet(), clientProvidedName);
+        connections.add(connection);
+
+        if (blockedReason != null) {
+            connection.block(blockedReason);
+        }
+
+        return connection.getProxy();
+    }
+
+    /**
+     * Declares an exchange, or verifies that an existing exchange has the given type.
+     *
+     * @param name Name of the exchange.
+     * @param type Type of the exchange: {@code direct}, {@code topic}, or {@code fanout}.
+     * @throws IllegalArgumentException When the type is not supported or the exchange exists with another type.
+     */
+    public void declareExchange(String name, String type) throws IllegalArgumentException {
+        try {
+            exchangeDeclare(name, type, false);
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Declares a durable, non-exclusive queue if it does not already exist.
+     *
+     * @param name Name of the queue.
+     */
+    public void declareQueue(String name) {
+        queueDeclare(name, null, false);
+    }
+
+    /**
+     * Binds a queue to an exchange.
+     *
+     * @param queue      Name of the queue.
+     * @param exchange   Name of the exchange.
+     * @param bindingKey Binding key.
+     * @throws IllegalArgumentException When the queue or exchange does not exist.
+     */
+    public void bindQueue(String queue, String exchange, String bindingKey) throws IllegalArgumentException {
+        try {
+            queueBind(queue, exchange, bindingKey);
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns the number of messages in a queue that are waiting for a consumer.
+     *
+     * @param queue Name of the queue.
+     * @return The number of messages waiting for a consumer.
+     * @throws IllegalArgumentException When the queue does not exist.
+     */
+    public int getMessageCount(String queue) throws IllegalArgumentException {
+        return requireQueue(queue).getMessageCount();
+    }
+
+    /**
+     * Returns the number of consumers of a queue.
+     *
+     * @param queue Name of the queue.
+     * @return The number of consumers.
+     * @throws IllegalArgumentException When the queue does not exist.
+     */
+    public int getConsumerCount(String queue) throws IllegalArgumentException {
+        return requireQueue(queue).getConsumerCount();
+    }
+
+    /**
+     * Returns whether a queue exists.
+     *
+     * @param queue Name of the queue.
+     * @return Whether the queue exists.
+     */
+    public boolean hasQueue(String queue) {
+        return queues.containsKey(queue);
+    }
+
+    /**
+     * Returns the number of open connections.
+     *
+     * @return The number of open connections.
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * Sends {@code connection.blocked} to every open connection, and to connections opened until
+     * {@link #unblock()} is called. Publishing is not actually refused; the publisher is expected
+     * to honor the notification.
+     *
+     * @param reason Reason reported to blocked listeners.
+     */
+    public void block(String reason) {
+        blockedReason = reason;
+
+        for (LoopbackConnection connection : connections) {
+            connection.block(reason);
+        }
+    }
+
+    /**
+     * Sends {@code connection.unblocked} to every open connection.
+     */
+    public void unblock() {
+        blockedReason = null;
+
+        for (LoopbackConnection connection : connections) {
+            connection.unblock();
+        }
+    }
+
+    /**
+     * Closes every open connection and stops the dispatch threads.
+     */
+    public void shutdown() {
+        for (LoopbackConnection connection : connections) {
+            connection.closeByBroker(320, "CONNECTION_FORCED - broker shutdown");
+        }
+
+        dispatchExecutor.shutdown();
+    }
+
+    /**
+     * Declares an exchange.
+     *
+     * @param name    Name of the exchange.
+     * @param type    Type of the exchange.
+     * @param passive Whether to only verify that the exchange exists.
+     * @throws LoopbackException When the exchange can not be declared; the caller's channel must be closed.
+     */
+    void exchangeDeclare(String name, @Nullable String type, boolean passive) throws LoopbackException {
+        if (name.isEmpty()) {
+            if (passive) {
+                return;
+            }
+            throw new LoopbackException(403, "ACCESS_REFUSED - operation not permitted on the default exchange");
+        }
+
+        LoopbackExchange exchange = exchanges.get(name);
+
+        if (passive) {
+            if (exchange == null) {
+                throw new LoopbackException(404, "NOT_FOUND - no exchange '" + name + "' in vhost '/'");
+            }
+            return;
+        }
+
+        if (type == null || !LoopbackExchange.isSupported(type)) {
+            throw new LoopbackException(503, "COMMAND_INVALID - unknown exchange type '" + type + "'");
+        }
+
+        if (exchange == null) {
+            exchange = exchanges.computeIfAbsent(name, it -> new LoopbackExchange(it, type));
+        }
+
+        if (!exchange.type.equals(type)) {
+            throw new LoopbackException(406, "PRECONDITION_FAILED - inequivalent arg 'type' for exchange '" + name +
+                "' in vhost '/': received '" + type + "' but current is '" + exchange.type + "'");
+        }
+    }
+
+    /**
+     * Deletes an exchange.
+     *
+     * @param name Name of the exchange.
+     */
+    void exchangeDelete(String name) {
+        exchanges.remove(name);
+    }
+
+    /**
+     * Declares a queue if it does not already exist.
+     *
+     * @param name       Name of the queue, or an empty string for a server-named queue.
+     * @param owner      Connection the queue is exclusive to, if any.
+     * @param autoDelete Whether the queue is deleted when its last consumer is cancelled.
+     * @return The declared queue.
+     */
+    LoopbackQueue queueDeclare(String name, @Nullable LoopbackConnection owner, boolean autoDelete) {
+        String queueName = name == null || name.isEmpty() ? "amq.gen-" + sequence.incrementAndGet() : name;
+
+        LoopbackQueue queue = queues.computeIfAbsent(queueName, it -> new LoopbackQueue(it, owner, autoDelete));
+
+        if (owner != null && queue.owner == owner) {
+            owner.addExclusiveQueue(queue);
+        }
+
+        return queue;
+    }
+
+    /**
+     * Returns a queue that must exist.
+     *
+     * @param name Name of the queue.
+     * @return The queue.
+     * @throws LoopbackException When the queue does not exist.
+     */
+    LoopbackQueue queue(String name) throws LoopbackException {
+        LoopbackQueue queue = queues.get(name);
+
+        if (queue == null) {
+            throw new LoopbackException(404, "NOT_FOUND - no queue '" + name + "' in vhost '/'");
+        }
+
+        return queue;
+    }
+
+    /**
+     * Binds a queue to an exchange.
+     *
+     * @param queue      Name of the queue.
+     * @param exchange   Name of the exchange.
+     * @param bindingKey Binding key.
+     * @throws LoopbackException When the queue or exchange does not exist.
+     */
+    void queueBind(String queue, String exchange, String bindingKey) throws LoopbackException {
+        if (exchange.isEmpty()) {
+            throw new LoopbackException(403, "ACCESS_REFUSED - operation not permitted on the default exchange");
+        }
+
+        exchange(exchange).bind(queue(queue), bindingKey);
+    }
+
+    /**
+     * Removes the binding of a queue to an exchange.
+     *
+     * @param queue      Name of the queue.
+     * @param exchange   Name of the exchange.
+     * @param bindingKey Binding key.
+     * @throws LoopbackException When the queue or exchange does not exist.
+     */
+    void queueUnbind(String queue, String exchange, String bindingKey) throws LoopbackException {
+        exchange(exchange).unbind(queue(queue), bindingKey);
+    }
+
+    /**
+     * Deletes a queue, removing its bindings and cancelling its consumers.
+     *
+     * @param queue Queue to delete.
+     * @return The number of messages the queue held.
+     */
+    int queueDelete(LoopbackQueue queue) {
+        if (!queues.remove(queue.name, queue)) {
+            return 0;
+        }
+
+        int messageCount = queue.getMessageCount();
+
+        for (LoopbackExchange exchange : exchanges.values()) {
+            exchange.unbindAll(queue);
+        }
+
+        List<LoopbackChannel.QueueConsumer> consumers = queue.delete();
+
+        for (LoopbackChannel.QueueConsumer consumer : consumers) {
+            consumer.cancelledByBroker();
+        }
+
+        if (queue.owner != null) {
+            queue.owner.removeExclusiveQueue(queue);
+        }
+
+        return messageCount;
+    }
+
+    /**
+     * Routes a published message to the queues it matches.
+     *
+     * @param message Message to route.
+     * @return Whether the message was routed to at least one queue.
+     * @throws LoopbackException When the exchange does not exist.
+     */
+    boolean route(LoopbackMessage message) throws LoopbackException {
+        if (message.exchange.isEmpty()) {
+            if (message.routingKey.startsWith(DIRECT_REPLY_TO_PREFIX)) {
+                LoopbackChannel channel = replyChannels.get(message.routingKey);
+
+                return channel != null && channel.deliverReply(message);
+            }
+
+            LoopbackQueue queue = queues.get(message.routingKey);
+
+            if (queue == null) {
+                return false;
+            }
+
+            queue.enqueue(message);
+            return true;
+        }
+
+        LoopbackQueue[] matched = exchange(message.exchange).route(message.routingKey);
+
+        for (LoopbackQueue queue : matched) {
+            queue.enqueue(message);
+        }
+
+        return matched.length > 0;
+    }
+
+    /**
+     * Registers a channel consuming direct reply-to replies.
+     *
+     * @param address Reply-to address of the channel.
+     * @param channel Channel consuming the replies.
+     */
+    void registerReplyChannel(String address, LoopbackChannel channel) {
+        replyChannels.put(address, channel);
+    }
+
+    /**
+     * Removes the registration of a channel consuming direct reply-to replies.
+     *
+     * @param address Reply-to address of the channel.
+     */
+    void unregisterReplyChannel(String address) {
+        replyChannels.remove(address);
+    }
+
+    /**
+     * Removes a connection that has been closed.
+     *
+     * @param connection Closed connection.
+     */
+    void removeConnection(LoopbackConnection connection) {
+        connections.remove(connection);
+    }
+
+    /**
+     * Generates a name that is unique for the lifetime of the broker.
+     *
+     * @param prefix Prefix of the name.
+     * @return A unique name.
+     */
+    String uniqueName(String prefix) {
+        return prefix + sequence.incrementAndGet();
+    }
+
+    /**
+     * Runs a task on a dispatch thread. Tasks submitted after the broker has shut down are dropped.
+     *
+     * @param task Task to run.
+     */
+    void dispatch(Runnable task) {
+        try {
+            dispatchExecutor.execute(task);
+        }
+        catch (RejectedExecutionException ignored) {
+            // The broker has been shut down.
+        }
+    }
+
+    /**
+     * Returns an exchange that must exist.
+     */
+    private LoopbackExchange exchange(String name) throws LoopbackException {
+        LoopbackExchange exchange = exchanges.get(name);
+
+        if (exchange == null) {
+            throw new LoopbackException(404, "NOT_FOUND - no exchange '" + name + "' in vhost '/'");
+        }
+
+        return exchange;
+    }
+
+    /**
+     * Returns a queue that must exist, for the public inspection methods.
+     */
+    private LoopbackQueue requireQueue(String name) throws IllegalArgumentException {
+        LoopbackQueue queue = queues.get(name);
+
+        if (queue == null) {
+            throw new IllegalArgumentException("no queue named " + name);
+        }
+
+        return queue;
+    }
+
+    /**
+     * An error that RabbitMQ reports by closing the channel, with the AMQP reply code and text
+     * the channel is closed with.
+     */
+    static class LoopbackException extends IOException {
+        /**
+         * AMQP reply code.
+         */
+        final int replyCode;
+
+        /**
+         * Constructor.
+         *
+         * @param replyCode AMQP reply code.
+         * @param replyText AMQP reply text.
+         */
+        LoopbackException(int replyCode, String replyText) {
+            super(replyText);
+            this.replyCode = replyCode;
+        }
+
+        /**
+         * Returns the {@code channel.close} method describing the error.
+         *
+         * @return The {@code channel.close} method describing the error.
+         */
+        AMQP.Channel.Close toCloseMethod() {
+            return new AMQP.Channel.Close.Builder().replyCode(replyCode).replyText(getMessage()).build();
+        }
+    }
+}
@@ -0,0 +1,1222 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.loopback;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.CancelCallback;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmCallback;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.ConsumerShutdownSignalCallback;
+import com.rabbitmq.client.DeliverCallback;
+import com.rabbitmq.client.Delivery;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.GetResponse;
+import com.rabbitmq.client.ReturnListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.lang.Nullable;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A channel of a loopback connection.
+ * <p>
+ * The channel is exposed as a dynamic proxy of {@link Channel}. Publishing routes the message on
+ * the calling thread. Deliveries, publisher confirms, returns, and consumer notifications are run
+ * in order on the broker's dispatch threads, a bounded batch at a time so that one busy channel
+ * does not starve the others. Confirms are coalesced: each dispatched confirm acknowledges every
+ * message published since the previous one with a single {@code multiple} ack.
+ */
+class LoopbackChannel implements InvocationHandler {
+    /**
+     * Maximum number of tasks a channel runs before yielding its dispatch thread.
+     */
+    private static final int DISPATCH_BATCH_SIZE = 256;
+
+    /**
+     * Properties given to messages published without any.
+     */
+    private static final BasicProperties EMPTY_PROPERTIES = new BasicProperties();
+
+    /**
+     * Logger.
+     */
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Connection the channel belongs to.
+     */
+    private final LoopbackConnection connection;
+
+    /**
+     * Broker the channel belongs to.
+     */
+    private final LoopbackBroker broker;
+
+    /**
+     * Channel number.
+     */
+    private final int channelNumber;
+
+    /**
+     * Proxy handed to callers.
+     */
+    private final Channel proxy;
+
+    /**
+     * Consumers keyed by consumer tag.
+     */
+    private final ConcurrentMap<String, QueueConsumer> consumers = new ConcurrentHashMap<>();
+
+    /**
+     * Messages delivered to manual-ack consumers that have not been acknowledged, keyed by delivery tag.
+     */
+    private final ConcurrentNavigableMap<Long, Unacked> unacked = new ConcurrentSkipListMap<>();
+
+    /**
+     * Shutdown listeners.
+     */
+    private final List<ShutdownListener> shutdownListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Confirm listeners.
+     */
+    private final List<ConfirmListener> confirmListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Return listeners.
+     */
+    private final List<ReturnListener> returnListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Tasks waiting to be run on a dispatch thread.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Whether a dispatch thread has been asked to run the channel's tasks.
+     */
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    /**
+     * Runs a batch of the channel's tasks.
+     */
+    private final Runnable drain = this::drain;
+
+    /**
+     * Sequence of delivery tags.
+     */
+    private final AtomicLong deliveryTags = new AtomicLong();
+
+    /**
+     * Sequence number of the last message published in confirm mode.
+     */
+    private final AtomicLong publishSequence = new AtomicLong();
+
+    /**
+     * Whether a confirm has been dispatched and not yet run.
+     */
+    private final AtomicBoolean confirmScheduled = new AtomicBoolean();
+
+    /**
+     * Acknowledges every message published since the last confirm.
+     */
+    private final Runnable confirm = this::confirm;
+
+    /**
+     * Monitor {@code waitForConfirms} callers wait on.
+     */
+    private final Object confirmMonitor = new Object();
+
+    /**
+     * Sequence number of the last message confirmed.
+     */
+    private volatile long confirmedSequence;
+
+    /**
+     * Whether the channel is in confirm mode.
+     */
+    private volatile boolean confirmMode;
+
+    /**
+     * Reason the channel was closed, or {@code null} while it is open.
+     */
+    private volatile ShutdownSignalException closeReason;
+
+    /**
+     * Consumer of direct reply-to replies, if any.
+     */
+    private volatile QueueConsumer replyConsumer;
+
+    /**
+     * Reply-to address of the channel's direct reply-to consumer, if any.
+     */
+    private volatile String replyAddress;
+
+    /**
+     * Consumer that receives messages for unknown consumer tags.
+     */
+    private volatile Consumer defaultConsumer;
+
+    /**
+     * Constructor.
+     *
+     * @param connection    Connection the channel belongs to.
+     * @param channelNumber Channel number.
+     */
+    LoopbackChannel(LoopbackConnection connection, int channelNumber) {
+        this.connection = connection;
+        this.broker = connection.getBroker();
+        this.channelNumber = channelNumber;
+        this.proxy = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class}, this);
+    }
+
+    /**
+     * Returns the proxy handed to callers.
+     *
+     * @return The proxy handed to callers.
+     */
+    Channel getProxy() {
+        return proxy;
+    }
+
+    /**
+     * Returns the channel number.
+     *
+     * @return The channel number.
+     */
+    int getChannelNumber() {
+        return channelNumber;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+
+            case "hashCode":
+                return System.identityHashCode(proxy);
+
+            case "toString":
+                return "LoopbackChannel(" + connection.getName() + "#" + channelNumber + ")";
+
+            case "getChannelNumber":
+                return channelNumber;
+
+            case "getConnection":
+                return connection.getProxy();
+
+            case "isOpen":
+                return closeReason == null;
+
+            case "getCloseReason":
+                return closeReason;
+
+            case "close":
+                ensureOpen();
+                close(args);
+                return null;
+
+            case "abort":
+                if (closeReason == null) {
+                    close(args);
+                }
+                return null;
+
+            case "addShutdownListener":
+                addShutdownListener((ShutdownListener) args[0]);
+                return null;
+
+            case "removeShutdownListener":
+                shutdownListeners.remove(args[0]);
+                return null;
+
+            case "notifyListeners":
+                return null;
+
+            case "addConfirmListener":
+                return addConfirmListener(args);
+
+            case "removeConfirmListener":
+                return confirmListeners.remove(args[0]);
+
+            case "clearConfirmListeners":
+                confirmListeners.clear();
+                return null;
+
+            case "addReturnListener":
+                if (!(args[0] instanceof ReturnListener)) {
+                    throw new UnsupportedOperationException("the loopback broker only supports return listeners");
+                }
+                returnListeners.add((ReturnListener) args[0]);
+                return args[0];
+
+            case "removeReturnListener":
+                return returnListeners.remove(args[0]);
+
+            case "clearReturnListeners":
+                returnListeners.clear();
+                return null;
+
+            case "getDefaultConsumer":
+                return defaultConsumer;
+
+            case "setDefaultConsumer":
+                defaultConsumer = (Consumer) args[0];
+                return null;
+
+            case "confirmSelect":
+                ensureOpen();
+                confirmMode = true;
+                return new AMQP.Confirm.SelectOk.Builder().build();
+
+            case "getNextPublishSeqNo":
+                return confirmMode ? publishSequence.get() + 1 : 0L;
+
+            case "waitForConfirms":
+                return waitForConfirms(args, false);
+
+            case "waitForConfirmsOrDie":
+                waitForConfirms(args, true);
+                return null;
+
+            case "basicPublish":
+                ensureOpen();
+                publish(args);
+                return null;
+
+            case "basicQos":
+                ensureOpen();
+                return null;
+
+            case "basicConsume":
+                ensureOpen();
+                return consume(method, args);
+
+            case "basicCancel":
+                ensureOpen();
+                cancel((String) args[0]);
+                return null;
+
+            case "basicGet":
+                ensureOpen();
+                return get((String) args[0], (Boolean) args[1]);
+
+            case "basicAck":
+                ensureOpen();
+                settle((Long) args[0], (Boolean) args[1], null);
+                return null;
+
+            case "basicNack":
+                ensureOpen();
+                settle((Long) args[0], (Boolean) args[1], (Boolean) args[2]);
+                return null;
+
+            case "basicReject":
+                ensureOpen();
+                settle((Long) args[0], false, (Boolean) args[1]);
+                return null;
+
+            case "basicRecover":
+                ensureOpen();
+                settle(Long.MAX_VALUE, true, true);
+                return new AMQP.Basic.RecoverOk.Builder().build();
+
+            case "exchangeDeclare":
+            case "exchangeDeclareNoWait":
+                ensureOpen();
+                declareExchange((String) args[0], args[1], false);
+                return method.getReturnType() == void.class ? null : new AMQP.Exchange.DeclareOk.Builder().build();
+
+            case "exchangeDeclarePassive":
+                ensureOpen();
+                declareExchange((String) args[0], null, true);
+                return new AMQP.Exchange.DeclareOk.Builder().build();
+
+            case "exchangeDelete":
+            case "exchangeDeleteNoWait":
+                ensureOpen();
+                broker.exchangeDelete((String) args[0]);
+                return method.getReturnType() == void.class ? null : new AMQP.Exchange.DeleteOk.Builder().build();
+
+            case "queueDeclare":
+            case "queueDeclareNoWait":
+                ensureOpen();
+                return declareQueue(method, args);
+
+            case "queueDeclarePassive":
+                ensureOpen();
+                return declareOk(call(() -> broker.queue((String) args[0])));
+
+            case "queueBind":
+            case "queueBindNoWait":
+                ensureOpen();
+                call(() -> {
+                    broker.queueBind((String) args[0], (String) args[1], (String) args[2]);
+                    return null;
+                });
+                return method.getReturnType() == void.class ? null : new AMQP.Queue.BindOk.Builder().build();
+
+            case "queueUnbind":
+                ensureOpen();
+                call(() -> {
+                    broker.queueUnbind((String) args[0], (String) args[1], (String) args[2]);
+                    return null;
+                });
+                return new AMQP.Queue.UnbindOk.Builder().build();
+
+            case "queueDelete":
+            case "queueDeleteNoWait":
+                ensureOpen();
+                return deleteQueue(method, (String) args[0]);
+
+            case "queuePurge":
+                ensureOpen();
+                return new AMQP.Queue.PurgeOk.Builder().messageCount(call(() -> broker.queue((String) args[0])).purge()).build();
+
+            case "messageCount":
+                ensureOpen();
+                return (long) call(() -> broker.queue((String) args[0])).getMessageCount();
+
+            case "consumerCount":
+                ensureOpen();
+                return (long) call(() -> broker.queue((String) args[0])).getConsumerCount();
+
+            default:
+                throw new UnsupportedOperationException(method.getName() + " is not supported by the loopback broker");
+        }
+    }
+
+    /**
+     * Delivers a message from a queue to one of the channel's consumers.
+     *
+     * @param consumer Consumer to deliver to.
+     * @param queue    Queue the message was taken from.
+     * @param message  Message to deliver.
+     */
+    private void deliver(QueueConsumer consumer, LoopbackQueue queue, LoopbackMessage message) {
+        long deliveryTag = deliveryTags.incrementAndGet();
+
+        if (!consumer.autoAck) {
+            unacked.put(deliveryTag, new Unacked(queue, message));
+        }
+
+        Envelope envelope = new Envelope(deliveryTag, message.redelivered, message.exchange, message.routingKey);
+
+        dispatch(() -> handleDelivery(consumer, envelope, message));
+    }
+
+    /**
+     * Delivers a direct reply-to reply to the channel's reply consumer.
+     *
+     * @param message Reply to deliver.
+     * @return Whether the channel has a reply consumer to deliver to.
+     */
+    boolean deliverReply(LoopbackMessage message) {
+        QueueConsumer consumer = replyConsumer;
+
+        if (consumer == null) {
+            return false;
+        }
+
+        Envelope envelope = new Envelope(deliveryTags.incrementAndGet(), false, message.exchange, message.routingKey);
+
+        dispatch(() -> handleDelivery(consumer, envelope, message));
+
+        return true;
+    }
+
+    /**
+     * Closes the channel and notifies its consumers and shutdown listeners.
+     *
+     * @param cause       Reason the channel is closing.
+     * @param synchronous Whether listeners are notified on the calling thread rather than after the
+     *                    channel's pending deliveries and confirms.
+     */
+    void shutdown(ShutdownSignalException cause, boolean synchronous) {
+        synchronized (this) {
+            if (closeReason != null) {
+                return;
+            }
+            closeReason = cause;
+        }
+
+        connection.removeChannel(this);
+
+        String replyAddress = this.replyAddress;
+
+        if (replyAddress != null) {
+            broker.unregisterReplyChannel(replyAddress);
+        }
+
+        List<QueueConsumer> cancelled = new ArrayList<>(consumers.values());
+        consumers.clear();
+
+        for (QueueConsumer consumer : cancelled) {
+            if (consumer.queue != null && consumer.queue.removeConsumer(consumer)) {
+                broker.queueDelete(consumer.queue);
+            }
+        }
+
+        requeue(unacked);
+
+        synchronized (confirmMonitor) {
+            confirmMonitor.notifyAll();
+        }
+
+        Runnable notification = () -> {
+            for (QueueConsumer consumer : cancelled) {
+                try {
+                    consumer.consumer.handleShutdownSignal(consumer.tag, cause);
+                }
+                catch (Exception e) {
+                    log.debug("Unhandled exception from consumer " + consumer.tag + " of loopback channel " + this, e);
+                }
+            }
+
+            for (ShutdownListener listener : shutdownListeners) {
+                notifyShutdownListener(listener, cause);
+            }
+        };
+
+        if (synchronous) {
+            notification.run();
+        }
+        else {
+            dispatch(notification);
+        }
+    }
+
+    /**
+     * Closes the channel on behalf of the application.
+     */
+    private void close(Object[] args) {
+        int replyCode = AMQP.REPLY_SUCCESS;
+        String replyText = "OK";
+
+        if (args != null && args.length == 2) {
+            replyCode = (Integer) args[0];
+            replyText = (String) args[1];
+        }
+
+        AMQP.Channel.Close method = new AMQP.Channel.Close.Builder().replyCode(replyCode).replyText(replyText).build();
+
+        shutdown(new ShutdownSignalException(false, true, method, proxy), true);
+    }
+
+    /**
+     * Closes the channel because of an error, as RabbitMQ does with a {@code channel.close} from the broker.
+     *
+     * @param error Error the channel is closed for.
+     * @return The shutdown signal the channel was closed with.
+     */
+    private ShutdownSignalException closeWithError(LoopbackBroker.LoopbackException error) {
+        ShutdownSignalException cause = new ShutdownSignalException(false, false, error.toCloseMethod(), proxy);
+        shutdown(cause, false);
+        return cause;
+    }
+
+    /**
+     * Runs a broker operation, closing the channel if the broker reports an error. The error is
+     * rethrown as an {@link IOException} caused by the shutdown signal, as the RabbitMQ client does.
+     */
+    private <T> T call(BrokerCall<T> call) throws IOException {
+        try {
+            return call.call();
+        }
+        catch (LoopbackBroker.LoopbackException e) {
+            throw new IOException(e.getMessage(), closeWithError(e));
+        }
+    }
+
+    /**
+     * Throws the reason the channel was closed, if it has been.
+     */
+    private void ensureOpen() {
+        ShutdownSignalException cause = closeReason;
+
+        if (cause != null) {
+            throw new AlreadyClosedException(cause);
+        }
+    }
+
+    /**
+     * Publishes a message. The arguments are those of any {@code basicPublish} overload.
+     */
+    private void publish(Object[] args) {
+        String exchange = (String) args[0];
+        String routingKey = (String) args[1];
+        boolean mandatory = args.length >= 5 && (Boolean) args[2];
+        BasicProperties properties = args[args.length - 2] != null ? (BasicProperties) args[args.length - 2] : EMPTY_PROPERTIES;
+        byte[] body = (byte[]) args[args.length - 1];
+
+        if (LoopbackBroker.DIRECT_REPLY_TO_QUEUE.equals(properties.getReplyTo())) {
+            String replyAddress = this.replyAddress;
+
+            if (replyAddress == null) {
+                closeWithError(new LoopbackBroker.LoopbackException(406, "PRECONDITION_FAILED - fast reply consumer does not exist"));
+                return;
+            }
+
+            properties = properties.builder().replyTo(replyAddress).build();
+        }
+
+        if (confirmMode) {
+            publishSequence.incrementAndGet();
+        }
+
+        // The body is copied because the caller may reuse its array once the publish returns, as it
+        // could if the message had been written to a socket.
+        LoopbackMessage message = new LoopbackMessage(exchange, routingKey, properties, body != null ? body.clone() : new byte[0], false);
+
+        boolean routed;
+
+        try {
+            routed = broker.route(message);
+        }
+        catch (LoopbackBroker.LoopbackException e) {
+            closeWithError(e);
+            return;
+        }
+
+        if (!routed && mandatory && !returnListeners.isEmpty()) {
+            dispatch(() -> handleReturn(message));
+        }
+
+        if (confirmMode && confirmScheduled.compareAndSet(false, true)) {
+            dispatch(confirm);
+        }
+    }
+
+    /**
+     * Acknowledges every message published since the last confirm with a single ack.
+     */
+    private void confirm() {
+        confirmScheduled.set(false);
+
+        long last = confirmedSequence;
+        long upTo = publishSequence.get();
+
+        if (upTo <= last) {
+            return;
+        }
+
+        confirmedSequence = upTo;
+
+        for (ConfirmListener listener : confirmListeners) {
+            try {
+                listener.handleAck(upTo, upTo - last > 1);
+            }
+            catch (Exception e) {
+                log.debug("Unhandled exception from confirm listener of loopback channel " + this, e);
+            }
+        }
+
+        synchronized (confirmMonitor) {
+            confirmMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until every message published so far has been confirmed.
+     *
+     * @param args Arguments of the call, which contain the timeout in milliseconds if one was given.
+     * @param die  Whether to close the channel if the wait times out.
+     * @return {@code true}, since the loopback broker never nacks.
+     */
+    private boolean waitForConfirms(Object[] args, boolean die) throws InterruptedException, TimeoutException {
+        if (!confirmMode) {
+            throw new IllegalStateException("Confirms not selected");
+        }
+
+        long target = publishSequence.get();
+        long timeout = args != null && args.length == 1 ? (Long) args[0] : 0;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        synchronized (confirmMonitor) {
+            while (confirmedSequence < target) {
+                ensureOpen();
+
+                if (timeout <= 0) {
+                    confirmMonitor.wait();
+                    continue;
+                }
+
+                long remaining = deadline - System.nanoTime();
+
+                if (remaining <= 0) {
+                    if (die) {
+                        closeWithError(new LoopbackBroker.LoopbackException(AMQP.REPLY_SUCCESS, "NACKS RECEIVED"));
+                    }
+                    throw new TimeoutException("timed out waiting for confirms on loopback channel " + this);
+                }
+
+                TimeUnit.NANOSECONDS.timedWait(confirmMonitor, remaining);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Starts a consumer. The arguments are those of any {@code basicConsume} overload.
+     *
+     * @return The consumer tag.
+     */
+    private String consume(Method method, Object[] args) throws IOException {
+        Class<?>[] types = method.getParameterTypes();
+
+        String queueName = (String) args[0];
+        boolean autoAck = types.length > 1 && types[1] == boolean.class && (Boolean) args[1];
+        String tag = types.length > 2 && types[2] == String.class ? (String) args[2] : null;
+
+        Consumer consumer = null;
+        DeliverCallback deliverCallback = null;
+        CancelCallback cancelCallback = null;
+        ConsumerShutdownSignalCallback shutdownCallback = null;
+
+        for (Object arg : args) {
+            if (arg instanceof Consumer) {
+                consumer = (Consumer) arg;
+            }
+            else if (arg instanceof DeliverCallback) {
+                deliverCallback = (DeliverCallback) arg;
+            }
+            else if (arg instanceof CancelCallback) {
+                cancelCallback = (CancelCallback) arg;
+            }
+            else if (arg instanceof ConsumerShutdownSignalCallback) {
+                shutdownCallback = (ConsumerShutdownSignalCallback) arg;
+            }
+        }
+
+        if (consumer == null) {
+            if (deliverCallback == null) {
+                throw new IllegalArgumentException("a consumer or deliver callback is required");
+            }
+            consumer = new CallbackConsumer(deliverCallback, cancelCallback, shutdownCallback);
+        }
+
+        String consumerTag = tag == null || tag.isEmpty() ? broker.uniqueName("amq.ctag-loopback-") : tag;
+
+        if (consumers.containsKey(consumerTag)) {
+            throw new IOException("consumer tag " + consumerTag + " is already in use", closeWithError(
+                new LoopbackBroker.LoopbackException(530, "NOT_ALLOWED - attempt to reuse consumer tag '" + consumerTag + "'")));
+        }
+
+        if (LoopbackBroker.DIRECT_REPLY_TO_QUEUE.equals(queueName)) {
+            return consumeReplies(consumerTag, consumer, autoAck);
+        }
+
+        LoopbackQueue queue = call(() -> broker.queue(queueName));
+        QueueConsumer queueConsumer = new QueueConsumer(consumerTag, queue, consumer, autoAck);
+
+        consumers.put(consumerTag, queueConsumer);
+
+        Consumer started = consumer;
+        dispatch(() -> started.handleConsumeOk(consumerTag));
+
+        if (!queue.addConsumer(queueConsumer)) {
+            consumers.remove(consumerTag);
+            LoopbackBroker.LoopbackException error = new LoopbackBroker.LoopbackException(404, "NOT_FOUND - no queue '" + queueName + "' in vhost '/'");
+            throw new IOException(error.getMessage(), closeWithError(error));
+        }
+
+        return consumerTag;
+    }
+
+    /**
+     * Starts the channel's direct reply-to consumer.
+     */
+    private String consumeReplies(String consumerTag, Consumer consumer, boolean autoAck) throws IOException {
+        if (!autoAck) {
+            throw new IOException("direct reply-to requires automatic acknowledgement", closeWithError(
+                new LoopbackBroker.LoopbackException(406, "PRECONDITION_FAILED - reply consumer cannot acknowledge")));
+        }
+
+        synchronized (this) {
+            if (replyConsumer != null) {
+                throw new IOException("direct reply-to consumer already exists", closeWithError(
+                    new LoopbackBroker.LoopbackException(406, "PRECONDITION_FAILED - reply consumer already set")));
+            }
+
+            QueueConsumer queueConsumer = new QueueConsumer(consumerTag, null, consumer, true);
+            String address = LoopbackBroker.DIRECT_REPLY_TO_PREFIX + broker.uniqueName(connection.getName() + "." + channelNumber + ".");
+
+            consumers.put(consumerTag, queueConsumer);
+            replyConsumer = queueConsumer;
+            replyAddress = address;
+            broker.registerReplyChannel(address, this);
+        }
+
+        dispatch(() -> consumer.handleConsumeOk(consumerTag));
+
+        return consumerTag;
+    }
+
+    /**
+     * Cancels a consumer.
+     */
+    private void cancel(String consumerTag) throws IOException {
+        QueueConsumer consumer = consumers.remove(consumerTag);
+
+        if (consumer == null) {
+            throw new IOException("Unknown consumerTag " + consumerTag);
+        }
+
+        if (consumer.queue == null) {
+            synchronized (this) {
+                broker.unregisterReplyChannel(replyAddress);
+                replyConsumer = null;
+                replyAddress = null;
+            }
+        }
+        else if (consumer.queue.removeConsumer(consumer)) {
+            broker.queueDelete(consumer.queue);
+        }
+
+        dispatch(() -> consumer.consumer.handleCancelOk(consumerTag));
+    }
+
+    /**
+     * Takes a single message from a queue.
+     */
+    @Nullable
+    private GetResponse get(String queueName, boolean autoAck) throws IOException {
+        LoopbackQueue queue = call(() -> broker.queue(queueName));
+        LoopbackMessage message = queue.poll();
+
+        if (message == null) {
+            return null;
+        }
+
+        long deliveryTag = deliveryTags.incrementAndGet();
+
+        if (!autoAck) {
+            unacked.put(deliveryTag, new Unacked(queue, message));
+        }
+
+        Envelope envelope = new Envelope(deliveryTag, message.redelivered, message.exchange, message.routingKey);
+
+        return new GetResponse(envelope, message.properties, message.body, queue.getMessageCount());
+    }
+
+    /**
+     * Acknowledges, requeues, or discards unacknowledged messages.
+     *
+     * @param deliveryTag Delivery tag of the message.
+     * @param multiple    Whether every message up to and including the delivery tag is settled.
+     * @param requeue     {@code null} to acknowledge, otherwise whether rejected messages are requeued.
+     */
+    private void settle(long deliveryTag, boolean multiple, @Nullable Boolean requeue) {
+        if (multiple) {
+            ConcurrentNavigableMap<Long, Unacked> settled = unacked.headMap(deliveryTag, true);
+
+            if (requeue != null && requeue) {
+                requeue(settled);
+            }
+            else {
+                settled.clear();
+            }
+            return;
+        }
+
+        Unacked settled = unacked.remove(deliveryTag);
+
+        if (settled == null) {
+            closeWithError(new LoopbackBroker.LoopbackException(406, "PRECONDITION_FAILED - unknown delivery tag " + deliveryTag));
+            return;
+        }
+
+        if (requeue != null && requeue) {
+            settled.queue.requeue(settled.message);
+        }
+    }
+
+    /**
+     * Requeues and removes the given unacknowledged messages, in delivery order.
+     */
+    private static void requeue(ConcurrentNavigableMap<Long, Unacked> messages) {
+        Map.Entry<Long, Unacked> entry;
+
+        while ((entry = messages.pollFirstEntry()) != null) {
+            entry.getValue().queue.requeue(entry.getValue().message);
+        }
+    }
+
+    /**
+     * Declares an exchange, where the type is given either as a string or a {@link BuiltinExchangeType}.
+     */
+    private void declareExchange(String name, @Nullable Object type, boolean passive) throws IOException {
+        String typeName = type instanceof BuiltinExchangeType ? ((BuiltinExchangeType) type).getType() : (String) type;
+
+        call(() -> {
+            broker.exchangeDeclare(name, typeName, passive);
+            return null;
+        });
+    }
+
+    /**
+     * Declares a queue. The arguments are those of any {@code queueDeclare} overload.
+     */
+    @Nullable
+    private AMQP.Queue.DeclareOk declareQueue(Method method, @Nullable Object[] args) {
+        LoopbackQueue queue;
+
+        if (args == null || args.length == 0) {
+            queue = broker.queueDeclare("", connection, true);
+        }
+        else {
+            boolean exclusive = (Boolean) args[2];
+            boolean autoDelete = (Boolean) args[3];
+            queue = broker.queueDeclare((String) args[0], exclusive ? connection : null, autoDelete);
+        }
+
+        return method.getReturnType() == void.class ? null : declareOk(queue);
+    }
+
+    /**
+     * Deletes a queue.
+     */
+    @Nullable
+    private AMQP.Queue.DeleteOk deleteQueue(Method method, String name) throws IOException {
+        LoopbackQueue queue = call(() -> broker.queue(name));
+        int messageCount = broker.queueDelete(queue);
+
+        return method.getReturnType() == void.class ? null : new AMQP.Queue.DeleteOk.Builder().messageCount(messageCount).build();
+    }
+
+    /**
+     * Builds the reply to a queue declaration.
+     */
+    private static AMQP.Queue.DeclareOk declareOk(LoopbackQueue queue) {
+        return new AMQP.Queue.DeclareOk.Builder().queue(queue.name).messageCount(queue.getMessageCount()).consumerCount(queue.getConsumerCount()).build();
+    }
+
+    /**
+     * Adds a confirm listener given either as a {@link ConfirmListener} or as a pair of callbacks.
+     */
+    private ConfirmListener addConfirmListener(Object[] args) {
+        ConfirmListener listener;
+
+        if (args.length == 1) {
+            listener = (ConfirmListener) args[0];
+        }
+        else {
+            ConfirmCallback ackCallback = (ConfirmCallback) args[0];
+            ConfirmCallback nackCallback = (ConfirmCallback) args[1];
+
+            listener = new ConfirmListener() {
+                @Override
+                public void handleAck(long deliveryTag, boolean multiple) throws IOException {
+                    ackCallback.handle(deliveryTag, multiple);
+                }
+
+                @Override
+                public void handleNack(long deliveryTag, boolean multiple) throws IOException {
+                    nackCallback.handle(deliveryTag, multiple);
+                }
+            };
+        }
+
+        confirmListeners.add(listener);
+
+        return listener;
+    }
+
+    /**
+     * Adds a shutdown listener. A listener added after the channel has closed is notified immediately.
+     */
+    private void addShutdownListener(ShutdownListener listener) {
+        shutdownListeners.add(listener);
+
+        ShutdownSignalException cause = closeReason;
+
+        if (cause != null) {
+            notifyShutdownListener(listener, cause);
+        }
+    }
+
+    /**
+     * Notifies a shutdown listener, logging rather than propagating any failure.
+     */
+    private void notifyShutdownListener(ShutdownListener listener, ShutdownSignalException cause) {
+        try {
+            listener.shutdownCompleted(cause);
+        }
+        catch (Exception e) {
+            log.debug("Unhandled exception from shutdown listener of loopback channel " + this, e);
+        }
+    }
+
+    /**
+     * Hands a delivery to a consumer, logging rather than propagating any failure.
+     */
+    private void handleDelivery(QueueConsumer consumer, Envelope envelope, LoopbackMessage message) {
+        try {
+            consumer.consumer.handleDelivery(consumer.tag, envelope, message.properties, message.body);
+        }
+        catch (Exception e) {
+            log.warn("Unhandled exception from consumer " + consumer.tag + " of loopback channel " + this, e);
+        }
+    }
+
+    /**
+     * Returns an unroutable mandatory message to the return listeners.
+     */
+    private void handleReturn(LoopbackMessage message) {
+        for (ReturnListener listener : returnListeners) {
+            try {
+                listener.handleReturn(312, "NO_ROUTE", message.exchange, message.routingKey, message.properties, message.body);
+            }
+            catch (Exception e) {
+                log.debug("Unhandled exception from return listener of loopback channel " + this, e);
+            }
+        }
+    }
+
+    /**
+     * Queues a task to run on a dispatch thread after the channel's earlier tasks.
+     */
+    private void dispatch(Runnable task) {
+        tasks.offer(task);
+
+        if (draining.compareAndSet(false, true)) {
+            broker.dispatch(drain);
+        }
+    }
+
+    /**
+     * Runs a batch of queued tasks, and asks for another dispatch thread if tasks remain.
+     */
+    private void drain() {
+        Runnable task;
+
+        for (int i = 0; i < DISPATCH_BATCH_SIZE && (task = tasks.poll()) != null; i++) {
+            try {
+                task.run();
+            }
+            catch (Exception e) {
+                log.warn("Unhandled exception dispatching on loopback channel " + this, e);
+            }
+        }
+
+        draining.set(false);
+
+        if (!tasks.isEmpty() && draining.compareAndSet(false, true)) {
+            broker.dispatch(drain);
+        }
+    }
+
+    /**
+     * A broker operation that may fail with an error that closes the channel.
+     */
+    @FunctionalInterface
+    private interface BrokerCall<T> {
+        /**
+         * Runs the operation.
+         *
+         * @return The result of the operation.
+         * @throws LoopbackBroker.LoopbackException When the broker reports an error.
+         */
+        T call() throws LoopbackBroker.LoopbackException;
+    }
+
+    /**
+     * A message delivered to a manual-ack consumer or taken with {@code basicGet} that has not been acknowledged.
+     */
+    private static class Unacked {
+        /**
+         * Queue the message was taken from.
+         */
+        final LoopbackQueue queue;
+
+        /**
+         * The message.
+         */
+        final LoopbackMessage message;
+
+        /**
+         * Constructor.
+         *
+         * @param queue   Queue the message was taken from.
+         * @param message The message.
+         */
+        Unacked(LoopbackQueue queue, LoopbackMessage message) {
+            this.queue = queue;
+            this.message = message;
+        }
+    }
+
+    /**
+     * A consumer registered on the channel.
+     */
+    class QueueConsumer {
+        /**
+         * Consumer tag.
+         */
+        final String tag;
+
+        /**
+         * Queue consumed from, or {@code null} for the direct reply-to consumer.
+         */
+        @Nullable
+        final LoopbackQueue queue;
+
+        /**
+         * The application's consumer.
+         */
+        final Consumer consumer;
+
+        /**
+         * Whether deliveries are acknowledged automatically.
+         */
+        final boolean autoAck;
+
+        /**
+         * Constructor.
+         *
+         * @param tag      Consumer tag.
+         * @param queue    Queue consumed from.
+         * @param consumer The application's consumer.
+         * @param autoAck  Whether deliveries are acknowledged automatically.
+         */
+        QueueConsumer(String tag, @Nullable LoopbackQueue queue, Consumer consumer, boolean autoAck) {
+            this.tag = tag;
+            this.queue = queue;
+            this.consumer = consumer;
+            this.autoAck = autoAck;
+        }
+
+        /**
+         * Delivers a message from the queue to the consumer.
+         *
+         * @param queue   Queue the message was taken from.
+         * @param message Message to deliver.
+         */
+        void deliver(LoopbackQueue queue, LoopbackMessage message) {
+            LoopbackChannel.this.deliver(this, queue, message);
+        }
+
+        /**
+         * Notifies the consumer that the broker cancelled it because its queue was deleted.
+         */
+        void cancelledByBroker() {
+            if (consumers.remove(tag, this)) {
+                dispatch(() -> {
+                    try {
+                        consumer.handleCancel(tag);
+                    }
+                    catch (IOException e) {
+                        log.debug("Unhandled exception from consumer " + tag + " of loopback channel " + LoopbackChannel.this, e);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Adapts the callback flavor of {@code basicConsume} to a {@link Consumer}.
+     */
+    private static class CallbackConsumer implements Consumer {
+        /**
+         * Receives deliveries.
+         */
+        private final DeliverCallback deliverCallback;
+
+        /**
+         * Notified when the broker cancels the consumer, if given.
+         */
+        private final CancelCallback cancelCallback;
+
+        /**
+         * Notified when the channel shuts down, if given.
+         */
+        private final ConsumerShutdownSignalCallback shutdownCallback;
+
+        /**
+         * Constructor.
+         *
+         * @param deliverCallback  Receives deliveries.
+         * @param cancelCallback   Notified when the broker cancels the consumer.
+         * @param shutdownCallback Notified when the channel shuts down.
+         */
+        CallbackConsumer(DeliverCallback deliverCallback, @Nullable CancelCallback cancelCallback, @Nullable ConsumerShutdownSignalCallback shutdownCallback) {
+            this.deliverCallback = deliverCallback;
+            this.cancelCallback = cancelCallback;
+            this.shutdownCallback = shutdownCallback;
+        }
+
+        @Override
+        public void handleConsumeOk(String consumerTag) {
+        }
+
+        @Override
+        public void handleCancelOk(String consumerTag) {
+        }
+
+        @Override
+        public void handleCancel(String consumerTag) throws IOException {
+            if (cancelCallback != null) {
+                cancelCallback.handle(consumerTag);
+            }
+        }
+
+        @Override
+        public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+            if (shutdownCallback != null) {
+                shutdownCallback.handleShutdownSignal(consumerTag, sig);
+            }
+        }
+
+        @Override
+        public void handleRecoverOk(String consumerTag) {
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body) throws IOException {
+            deliverCallback.handle(consumerTag, new Delivery(envelope, properties, body));
+        }
+    }
+}
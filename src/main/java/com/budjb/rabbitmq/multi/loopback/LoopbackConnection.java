@@ -0,0 +1,491 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.loopback;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.BlockedCallback;
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.UnblockedCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.lang.Nullable;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A connection to the loopback broker.
+ * <p>
+ * The connection is exposed as a dynamic proxy of {@link Connection}, so that it does not depend
+ * on methods added to the interface by later versions of the RabbitMQ client. Methods the
+ * loopback broker does not emulate throw {@link UnsupportedOperationException}.
+ */
+class LoopbackConnection implements InvocationHandler {
+    /**
+     * Highest channel number a connection may open.
+     */
+    private static final int CHANNEL_MAX = 2047;
+
+    /**
+     * Logger.
+     */
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Broker the connection belongs to.
+     */
+    private final LoopbackBroker broker;
+
+    /**
+     * Name of the connection, unique within the broker.
+     */
+    private final String name;
+
+    /**
+     * Client-provided name of the connection.
+     */
+    private final String clientProvidedName;
+
+    /**
+     * Proxy handed to callers.
+     */
+    private final Connection proxy;
+
+    /**
+     * Open channels keyed by channel number.
+     */
+    private final ConcurrentMap<Integer, LoopbackChannel> channels = new ConcurrentHashMap<>();
+
+    /**
+     * Exclusive queues owned by the connection.
+     */
+    private final Set<LoopbackQueue> exclusiveQueues = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Shutdown listeners.
+     */
+    private final List<ShutdownListener> shutdownListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Blocked listeners.
+     */
+    private final List<BlockedListener> blockedListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Reason the connection was closed, or {@code null} while it is open.
+     */
+    private volatile ShutdownSignalException closeReason;
+
+    /**
+     * Identifier set by the application.
+     */
+    private volatile String id;
+
+    /**
+     * Channel number the next channel is given when the caller does not choose one.
+     */
+    private int nextChannelNumber = 1;
+
+    /**
+     * Constructor.
+     *
+     * @param broker             Broker the connection belongs to.
+     * @param name               Name of the connection, unique within the broker.
+     * @param clientProvidedName Client-provided name of the connection.
+     */
+    LoopbackConnection(LoopbackBroker broker, String name, @Nullable String clientProvidedName) {
+        this.broker = broker;
+        this.name = name;
+        this.clientProvidedName = clientProvidedName;
+        this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, this);
+    }
+
+    /**
+     * Returns the proxy handed to callers.
+     *
+     * @return The proxy handed to callers.
+     */
+    Connection getProxy() {
+        return proxy;
+    }
+
+    /**
+     * Returns the broker the connection belongs to.
+     *
+     * @return The broker the connection belongs to.
+     */
+    LoopbackBroker getBroker() {
+        return broker;
+    }
+
+    /**
+     * Returns the name of the connection.
+     *
+     * @return The name of the connection.
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Returns whether the connection is open.
+     *
+     * @return Whether the connection is open.
+     */
+    boolean isOpen() {
+        return closeReason == null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+
+            case "hashCode":
+                return System.identityHashCode(proxy);
+
+            case "toString":
+                return "LoopbackConnection(" + name + ")";
+
+            case "createChannel":
+                return createChannel(args != null && args.length == 1 ? (Integer) args[0] : 0);
+
+            case "openChannel":
+                return Optional.ofNullable(createChannel(args != null && args.length == 1 ? (Integer) args[0] : 0));
+
+            case "isOpen":
+                return isOpen();
+
+            case "getCloseReason":
+                return closeReason;
+
+            case "close":
+                if (closeReason != null) {
+                    throw new AlreadyClosedException(closeReason);
+                }
+                close(args);
+                return null;
+
+            case "abort":
+                if (closeReason == null) {
+                    close(args);
+                }
+                return null;
+
+            case "addShutdownListener":
+                addShutdownListener((ShutdownListener) args[0]);
+                return null;
+
+            case "removeShutdownListener":
+                shutdownListeners.remove(args[0]);
+                return null;
+
+            case "notifyListeners":
+                return null;
+
+            case "addBlockedListener":
+                return addBlockedListener(args);
+
+            case "removeBlockedListener":
+                return blockedListeners.remove(args[0]);
+
+            case "clearBlockedListeners":
+                blockedListeners.clear();
+                return null;
+
+            case "getId":
+                return id;
+
+            case "setId":
+                id = (String) args[0];
+                return null;
+
+            case "getClientProvidedName":
+                return clientProvidedName;
+
+            case "getAddress":
+                return InetAddress.getLoopbackAddress();
+
+            case "getPort":
+                return AMQP.PROTOCOL.PORT;
+
+            case "getChannelMax":
+                return CHANNEL_MAX;
+
+            case "getFrameMax":
+            case "getHeartbeat":
+                return 0;
+
+            case "getClientProperties":
+            case "getServerProperties":
+                return Collections.<String, Object>emptyMap();
+
+            case "getExceptionHandler":
+                return null;
+
+            default:
+                throw new UnsupportedOperationException(method.getName() + " is not supported by the loopback broker");
+        }
+    }
+
+    /**
+     * Opens a channel.
+     *
+     * @param channelNumber Number of the channel to open, or 0 to choose one.
+     * @return The channel, or {@code null} if the requested number is in use.
+     */
+    @Nullable
+    private Channel createChannel(int channelNumber) throws IOException {
+        if (closeReason != null) {
+            throw new AlreadyClosedException(closeReason);
+        }
+
+        LoopbackChannel channel;
+
+        synchronized (this) {
+            int number = channelNumber > 0 ? channelNumber : allocateChannelNumber();
+
+            if (channels.containsKey(number)) {
+                return null;
+            }
+
+            channel = new LoopbackChannel(this, number);
+            channels.put(number, channel);
+        }
+
+        return channel.getProxy();
+    }
+
+    /**
+     * Returns the lowest unused channel number at or after the last one given out.
+     */
+    private int allocateChannelNumber() throws IOException {
+        for (int i = 0; i < CHANNEL_MAX; i++) {
+            int number = nextChannelNumber;
+            nextChannelNumber = number == CHANNEL_MAX ? 1 : number + 1;
+
+            if (!channels.containsKey(number)) {
+                return number;
+            }
+        }
+
+        throw new IOException("all " + CHANNEL_MAX + " channels of loopback connection " + name + " are in use");
+    }
+
+    /**
+     * Removes a channel that has been closed.
+     *
+     * @param channel Closed channel.
+     */
+    void removeChannel(LoopbackChannel channel) {
+        channels.remove(channel.getChannelNumber(), channel);
+    }
+
+    /**
+     * Records an exclusive queue owned by the connection.
+     *
+     * @param queue Exclusive queue.
+     */
+    void addExclusiveQueue(LoopbackQueue queue) {
+        exclusiveQueues.add(queue);
+    }
+
+    /**
+     * Forgets an exclusive queue that has been deleted.
+     *
+     * @param queue Deleted queue.
+     */
+    void removeExclusiveQueue(LoopbackQueue queue) {
+        exclusiveQueues.remove(queue);
+    }
+
+    /**
+     * Notifies blocked listeners that the broker has blocked the connection.
+     *
+     * @param reason Reason the connection was blocked.
+     */
+    void block(String reason) {
+        for (BlockedListener listener : blockedListeners) {
+            try {
+                listener.handleBlocked(reason);
+            }
+            catch (Exception e) {
+                log.debug("Unhandled exception from blocked listener of loopback connection " + name, e);
+            }
+        }
+    }
+
+    /**
+     * Notifies blocked listeners that the broker has unblocked the connection.
+     */
+    void unblock() {
+        for (BlockedListener listener : blockedListeners) {
+            try {
+                listener.handleUnblocked();
+            }
+            catch (Exception e) {
+                log.debug("Unhandled exception from blocked listener of loopback connection " + name, e);
+            }
+        }
+    }
+
+    /**
+     * Closes the connection on behalf of the broker, as RabbitMQ does when a connection is forced
+     * closed. Shutdown listeners are notified on a dispatch thread.
+     *
+     * @param replyCode AMQP reply code.
+     * @param replyText AMQP reply text.
+     */
+    void closeByBroker(int replyCode, String replyText) {
+        AMQP.Connection.Close method = new AMQP.Connection.Close.Builder().replyCode(replyCode).replyText(replyText).build();
+
+        shutdown(new ShutdownSignalException(true, false, method, proxy), false);
+    }
+
+    /**
+     * Closes the connection on behalf of the application.
+     */
+    private void close(Object[] args) {
+        int replyCode = AMQP.REPLY_SUCCESS;
+        String replyText = "OK";
+
+        if (args != null && args.length >= 2 && args[0] instanceof Integer && args[1] instanceof String) {
+            replyCode = (Integer) args[0];
+            replyText = (String) args[1];
+        }
+
+        AMQP.Connection.Close method = new AMQP.Connection.Close.Builder().replyCode(replyCode).replyText(replyText).build();
+
+        shutdown(new ShutdownSignalException(true, true, method, proxy), true);
+    }
+
+    /**
+     * Closes every channel, deletes exclusive queues, and notifies shutdown listeners.
+     *
+     * @param cause       Reason the connection is closing.
+     * @param synchronous Whether listeners are notified on the calling thread.
+     */
+    private void shutdown(ShutdownSignalException cause, boolean synchronous) {
+        synchronized (this) {
+            if (closeReason != null) {
+                return;
+            }
+            closeReason = cause;
+        }
+
+        broker.removeConnection(this);
+
+        for (LoopbackChannel channel : new ArrayList<>(channels.values())) {
+            channel.shutdown(cause, synchronous);
+        }
+
+        for (LoopbackQueue queue : new ArrayList<>(exclusiveQueues)) {
+            broker.queueDelete(queue);
+        }
+
+        if (synchronous) {
+            notifyShutdownListeners(cause);
+        }
+        else {
+            broker.dispatch(() -> notifyShutdownListeners(cause));
+        }
+    }
+
+    /**
+     * Notifies every shutdown listener.
+     */
+    private void notifyShutdownListeners(ShutdownSignalException cause) {
+        for (ShutdownListener listener : shutdownListeners) {
+            notifyShutdownListener(listener, cause);
+        }
+    }
+
+    /**
+     * Notifies a shutdown listener, logging rather than propagating any failure.
+     */
+    private void notifyShutdownListener(ShutdownListener listener, ShutdownSignalException cause) {
+        try {
+            listener.shutdownCompleted(cause);
+        }
+        catch (Exception e) {
+            log.debug("Unhandled exception from shutdown listener of loopback connection " + name, e);
+        }
+    }
+
+    /**
+     * Adds a shutdown listener. A listener added after the connection has closed is notified immediately.
+     */
+    private void addShutdownListener(ShutdownListener listener) {
+        shutdownListeners.add(listener);
+
+        ShutdownSignalException cause = closeReason;
+
+        if (cause != null) {
+            notifyShutdownListener(listener, cause);
+        }
+    }
+
+    /**
+     * Adds a blocked listener given either as a {@link BlockedListener} or as a pair of callbacks.
+     */
+    private BlockedListener addBlockedListener(Object[] args) {
+        BlockedListener listener;
+
+        if (args.length == 1) {
+            listener = (BlockedListener) args[0];
+        }
+        else {
+            BlockedCallback blockedCallback = (BlockedCallback) args[0];
+            UnblockedCallback unblockedCallback = (UnblockedCallback) args[1];
+
+            listener = new BlockedListener() {
+                @Override
+                public void handleBlocked(String reason) throws IOException {
+                    blockedCallback.handle(reason);
+                }
+
+                @Override
+                public void handleUnblocked() throws IOException {
+                    unblockedCallback.handle();
+                }
+            };
+        }
+
+        blockedListeners.add(listener);
+
+        return listener;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.loopback;
+
+import com.budjb.rabbitmq.multi.config.ConnectionConfiguration;
+import com.budjb.rabbitmq.multi.connection.ConnectionProvider;
+import com.rabbitmq.client.Connection;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.lang.Nullable;
+
+/**
+ * A connection provider whose connections talk to an in-memory {@link LoopbackBroker} instead of
+ * a RabbitMQ broker, so that the publishing and RPC paths can be load tested without a network
+ * or a broker in the measurement.
+ * <p>
+ * Declaring a bean of this type replaces the default connection provider. Every connection of
+ * every configured connection context is made to the same broker, whose exchanges, queues, and
+ * bindings may be declared up front through {@link #getBroker()}.
+ */
+public class LoopbackConnectionProvider implements ConnectionProvider {
+    /**
+     * Client property RabbitMQ reports as the name of a connection.
+     */
+    private static final String CONNECTION_NAME_PROPERTY = "connection_name";
+
+    /**
+     * Broker connections are made to.
+     */
+    private final LoopbackBroker broker;
+
+    /**
+     * Constructor that creates a broker with the default number of dispatch threads.
+     */
+    public LoopbackConnectionProvider() {
+        this(new LoopbackBroker());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param broker Broker connections are made to.
+     */
+    public LoopbackConnectionProvider(LoopbackBroker broker) {
+        this.broker = broker;
+    }
+
+    /**
+     * Returns the broker connections are made to.
+     *
+     * @return The broker connections are made to.
+     */
+    public LoopbackBroker getBroker() {
+        return broker;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Connection createConnection(ConnectionConfiguration connectionConfiguration, @Nullable MeterRegistry meterRegistry) {
+        Object name = connectionConfiguration.getClientProperties().get(CONNECTION_NAME_PROPERTY);
+
+        return broker.newConnection(name != null ? name.toString() : null);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.loopback;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An exchange of the loopback broker, of type {@code direct}, {@code topic}, or {@code fanout}.
+ * <p>
+ * Bindings are replaced as a whole when they change, so routing reads them without locking. The
+ * queues a routing key resolves to are cached until the bindings next change, so steady traffic
+ * to the same routing keys does not re-evaluate bindings or split topic routing keys.
+ */
+class LoopbackExchange {
+    /**
+     * Direct exchange type.
+     */
+    static final String DIRECT = "direct";
+
+    /**
+     * Topic exchange type.
+     */
+    static final String TOPIC = "topic";
+
+    /**
+     * Fanout exchange type.
+     */
+    static final String FANOUT = "fanout";
+
+    /**
+     * Maximum number of distinct routing keys whose resolved queues are cached. Routing keys beyond
+     * the bound are resolved without being cached.
+     */
+    private static final int MAX_CACHED_ROUTES = 1024;
+
+    /**
+     * Resolution of a routing key that matches no queue.
+     */
+    private static final LoopbackQueue[] NO_QUEUES = new LoopbackQueue[0];
+
+    /**
+     * Name of the exchange.
+     */
+    final String name;
+
+    /**
+     * Type of the exchange.
+     */
+    final String type;
+
+    /**
+     * Current bindings.
+     */
+    private volatile Binding[] bindings = new Binding[0];
+
+    /**
+     * Queues keyed by routing key, for the current bindings.
+     */
+    private volatile ConcurrentMap<String, LoopbackQueue[]> routes = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param name Name of the exchange.
+     * @param type Type of the exchange.
+     */
+    LoopbackExchange(String name, String type) {
+        this.name = name;
+        this.type = type;
+    }
+
+    /**
+     * Returns whether the given exchange type is supported.
+     *
+     * @param type Exchange type.
+     * @return Whether the exchange type is supported.
+     */
+    static boolean isSupported(String type) {
+        return DIRECT.equals(type) || TOPIC.equals(type) || FANOUT.equals(type);
+    }
+
+    /**
+     * Binds a queue to the exchange. Binding the same queue with the same key twice has no effect.
+     *
+     * @param queue      Queue to bind.
+     * @param bindingKey Binding key.
+     */
+    synchronized void bind(LoopbackQueue queue, String bindingKey) {
+        for (Binding binding : bindings) {
+            if (binding.queue == queue && binding.key.equals(bindingKey)) {
+                return;
+            }
+        }
+
+        Binding[] updated = Arrays.copyOf(bindings, bindings.length + 1);
+        updated[bindings.length] = new Binding(queue, bindingKey);
+        replaceBindings(updated);
+    }
+
+    /**
+     * Removes the binding of a queue with the given key.
+     *
+     * @param queue      Bound queue.
+     * @param bindingKey Binding key.
+     */
+    synchronized void unbind(LoopbackQueue queue, String bindingKey) {
+        replaceBindings(Arrays.stream(bindings).filter(it -> it.queue != queue || !it.key.equals(bindingKey)).toArray(Binding[]::new));
+    }
+
+    /**
+     * Removes every binding of a queue.
+     *
+     * @param queue Bound queue.
+     */
+    synchronized void unbindAll(LoopbackQueue queue) {
+        if (Arrays.stream(bindings).anyMatch(it -> it.queue == queue)) {
+            replaceBindings(Arrays.stream(bindings).filter(it -> it.queue != queue).toArray(Binding[]::new));
+        }
+    }
+
+    /**
+     * Returns the queues a message with the given routing key is routed to.
+     *
+     * @param routingKey Routing key of the message.
+     * @return The queues the message is routed to, which must not be modified.
+     */
+    LoopbackQueue[] route(String routingKey) {
+        ConcurrentMap<String, LoopbackQueue[]> routes = this.routes;
+        LoopbackQueue[] queues = routes.get(routingKey);
+
+        if (queues != null) {
+            return queues;
+        }
+
+        queues = resolve(bindings, routingKey);
+
+        if (routes.size() < MAX_CACHED_ROUTES) {
+            routes.putIfAbsent(routingKey, queues);
+        }
+
+        return queues;
+    }
+
+    /**
+     * Installs a new set of bindings and discards cached routes.
+     */
+    private void replaceBindings(Binding[] bindings) {
+        this.bindings = bindings;
+        this.routes = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Resolves the queues a routing key matches with the given bindings. A queue bound more than
+     * once receives the message once.
+     */
+    private LoopbackQueue[] resolve(Binding[] bindings, String routingKey) {
+        if (bindings.length == 0) {
+            return NO_QUEUES;
+        }
+
+        String[] words = TOPIC.equals(type) ? routingKey.split("\\.", -1) : null;
+
+        Set<LoopbackQueue> queues = new LinkedHashSet<>();
+
+        for (Binding binding : bindings) {
+            if (FANOUT.equals(type) || (words != null ? matches(binding.words, 0, words, 0) : binding.key.equals(routingKey))) {
+                queues.add(binding.queue);
+            }
+        }
+
+        return queues.isEmpty() ? NO_QUEUES : queues.toArray(new LoopbackQueue[0]);
+    }
+
+    /**
+     * Matches topic routing key words against binding key words, where {@code *} matches exactly
+     * one word and {@code #} matches zero or more words.
+     */
+    private static boolean matches(String[] pattern, int p, String[] words, int w) {
+        while (p < pattern.length) {
+            String part = pattern[p];
+
+            if (part.equals("#")) {
+                if (p == pattern.length - 1) {
+                    return true;
+                }
+
+                for (int i = w; i <= words.length; i++) {
+                    if (matches(pattern, p + 1, words, i)) {
+                        return true;
+                    }
+                }
+
+                return false;
+            }
+
+            if (w >= words.length || (!part.equals("*") && !part.equals(words[w]))) {
+                return false;
+            }
+
+            p++;
+            w++;
+        }
+
+        return w == words.length;
+    }
+
+    /**
+     * A binding of a queue to the exchange.
+     */
+    private static class Binding {
+        /**
+         * Bound queue.
+         */
+        final LoopbackQueue queue;
+
+        /**
+         * Binding key.
+         */
+        final String key;
+
+        /**
+         * Words of the binding key, for topic matching.
+         */
+        final String[] words;
+
+        /**
+         * Constructor.
+         *
+         * @param queue Bound queue.
+         * @param key   Binding key.
+         */
+        Binding(LoopbackQueue queue, String key) {
+            this.queue = queue;
+            this.key = key;
+            this.words = key.split("\\.", -1);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.loopback;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * A message held by the loopback broker.
+ */
+class LoopbackMessage {
+    /**
+     * Exchange the message was published to.
+     */
+    final String exchange;
+
+    /**
+     * Routing key the message was published with.
+     */
+    final String routingKey;
+
+    /**
+     * Message properties.
+     */
+    final BasicProperties properties;
+
+    /**
+     * Body of the message.
+     */
+    final byte[] body;
+
+    /**
+     * Whether the message has been delivered before.
+     */
+    final boolean redelivered;
+
+    /**
+     * Constructor.
+     *
+     * @param exchange    Exchange the message was published to.
+     * @param routingKey  Routing key the message was published with.
+     * @param properties  Message properties.
+     * @param body        Body of the message.
+     * @param redelivered Whether the message has been delivered before.
+     */
+    LoopbackMessage(String exchange, String routingKey, BasicProperties properties, byte[] body, boolean redelivered) {
+        this.exchange = exchange;
+        this.routingKey = routingKey;
+        this.properties = properties;
+        this.body = body;
+        this.redelivered = redelivered;
+    }
+
+    /**
+     * Returns a copy of the message marked as redelivered.
+     *
+     * @return A copy of the message marked as redelivered.
+     */
+    LoopbackMessage redeliver() {
+        return redelivered ? this : new LoopbackMessage(exchange, routingKey, properties, body, true);
+    }
+}
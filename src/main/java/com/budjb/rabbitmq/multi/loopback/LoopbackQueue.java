@@ -0,0 +1,218 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.loopback;
+
+import org.springframework.lang.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A queue of the loopback broker.
+ * <p>
+ * Messages are handed to the queue's consumers round-robin as soon as they are enqueued, and are
+ * only held by the queue while it has no consumers. Consumer prefetch is not emulated.
+ */
+class LoopbackQueue {
+    /**
+     * Name of the queue.
+     */
+    final String name;
+
+    /**
+     * Connection the queue is exclusive to, if any.
+     */
+    @Nullable
+    final LoopbackConnection owner;
+
+    /**
+     * Whether the queue is deleted when its last consumer is cancelled.
+     */
+    final boolean autoDelete;
+
+    /**
+     * Messages waiting for a consumer.
+     */
+    private final Deque<LoopbackMessage> messages = new ArrayDeque<>();
+
+    /**
+     * Consumers of the queue.
+     */
+    private final List<LoopbackChannel.QueueConsumer> consumers = new ArrayList<>();
+
+    /**
+     * Index of the consumer the next message is handed to.
+     */
+    private int nextConsumer;
+
+    /**
+     * Whether the queue has been deleted.
+     */
+    private boolean deleted;
+
+    /**
+     * Constructor.
+     *
+     * @param name       Name of the queue.
+     * @param owner      Connection the queue is exclusive to, if any.
+     * @param autoDelete Whether the queue is deleted when its last consumer is cancelled.
+     */
+    LoopbackQueue(String name, @Nullable LoopbackConnection owner, boolean autoDelete) {
+        this.name = name;
+        this.owner = owner;
+        this.autoDelete = autoDelete;
+    }
+
+    /**
+     * Enqueues a message, handing it to a consumer if the queue has any.
+     *
+     * @param message Message to enqueue.
+     */
+    synchronized void enqueue(LoopbackMessage message) {
+        if (deleted) {
+            return;
+        }
+
+        if (consumers.isEmpty()) {
+            messages.addLast(message);
+        }
+        else {
+            handOff(message);
+        }
+    }
+
+    /**
+     * Returns a message that was delivered but not acknowledged to the head of the queue.
+     *
+     * @param message Message to requeue.
+     */
+    synchronized void requeue(LoopbackMessage message) {
+        if (deleted) {
+            return;
+        }
+
+        if (consumers.isEmpty()) {
+            messages.addFirst(message.redeliver());
+        }
+        else {
+            handOff(message.redeliver());
+        }
+    }
+
+    /**
+     * Removes and returns the message at the head of the queue.
+     *
+     * @return The message at the head of the queue, or {@code null} if the queue is empty.
+     */
+    @Nullable
+    synchronized LoopbackMessage poll() {
+        return messages.pollFirst();
+    }
+
+    /**
+     * Adds a consumer and hands it any messages that are waiting.
+     *
+     * @param consumer Consumer to add.
+     * @return Whether the consumer was added; {@code false} if the queue has been deleted.
+     */
+    synchronized boolean addConsumer(LoopbackChannel.QueueConsumer consumer) {
+        if (deleted) {
+            return false;
+        }
+
+        consumers.add(consumer);
+
+        LoopbackMessage message;
+
+        while ((message = messages.pollFirst()) != null) {
+            handOff(message);
+        }
+
+        return true;
+    }
+
+    /**
+     * Removes a consumer.
+     *
+     * @param consumer Consumer to remove.
+     * @return Whether the queue should be deleted because its last consumer was removed.
+     */
+    synchronized boolean removeConsumer(LoopbackChannel.QueueConsumer consumer) {
+        if (!consumers.remove(consumer)) {
+            return false;
+        }
+
+        return autoDelete && consumers.isEmpty() && !deleted;
+    }
+
+    /**
+     * Removes every waiting message.
+     *
+     * @return The number of messages removed.
+     */
+    synchronized int purge() {
+        int count = messages.size();
+        messages.clear();
+        return count;
+    }
+
+    /**
+     * Marks the queue deleted and discards its messages.
+     *
+     * @return The consumers the queue had, which must be told their subscription was cancelled.
+     */
+    synchronized List<LoopbackChannel.QueueConsumer> delete() {
+        deleted = true;
+        messages.clear();
+
+        List<LoopbackChannel.QueueConsumer> cancelled = new ArrayList<>(consumers);
+        consumers.clear();
+
+        return cancelled;
+    }
+
+    /**
+     * Returns the number of messages waiting for a consumer.
+     *
+     * @return The number of messages waiting for a consumer.
+     */
+    synchronized int getMessageCount() {
+        return messages.size();
+    }
+
+    /**
+     * Returns the number of consumers.
+     *
+     * @return The number of consumers.
+     */
+    synchronized int getConsumerCount() {
+        return consumers.size();
+    }
+
+    /**
+     * Hands a message to the next consumer. Must be called while holding the queue's monitor and
+     * while the queue has at least one consumer.
+     */
+    private void handOff(LoopbackMessage message) {
+        if (nextConsumer >= consumers.size()) {
+            nextConsumer = 0;
+        }
+
+        consumers.get(nextConsumer++).deliver(this, message);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.loopback;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks after an injected delay without reordering them.
+ * <p>
+ * A task never runs before a task submitted ahead of it, so a long delay holds back the tasks
+ * behind it, as a slow network does. Tasks submitted without a delay while nothing is waiting run
+ * on the calling thread.
+ */
+class SerialDelay {
+    /**
+     * Logger.
+     */
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Scheduler delayed tasks run on. It must run tasks due at the same time in the order they were scheduled.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Time, per {@link System#nanoTime()}, the last delayed task is due.
+     */
+    private long lastDue;
+
+    /**
+     * Number of delayed tasks that have not yet run.
+     */
+    private int pending;
+
+    /**
+     * Constructor.
+     *
+     * @param scheduler Scheduler delayed tasks run on.
+     */
+    SerialDelay(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Runs a task after a delay, and after every task submitted before it.
+     *
+     * @param delay Delay, in nanoseconds.
+     * @param task  Task to run.
+     */
+    void execute(long delay, Runnable task) {
+        long wait;
+
+        synchronized (this) {
+            long now = System.nanoTime();
+
+            if (delay <= 0 && pending == 0) {
+                wait = -1;
+            }
+            else {
+                long due = Math.max(now + Math.max(delay, 0), lastDue);
+                lastDue = due;
+                pending++;
+                wait = due - now;
+            }
+        }
+
+        if (wait < 0) {
+            task.run();
+            return;
+        }
+
+        try {
+            scheduler.schedule(() -> {
+                try {
+                    task.run();
+                }
+                catch (Exception e) {
+                    log.warn("Unhandled exception from a delayed task", e);
+                }
+                finally {
+                    synchronized (this) {
+                        pending--;
+                    }
+                }
+            }, wait, TimeUnit.NANOSECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            synchronized (this) {
+                pending--;
+            }
+            task.run();
+        }
+    }
+}
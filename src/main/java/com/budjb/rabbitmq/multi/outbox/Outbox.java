@@ -0,0 +1,566 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.outbox;
+
+import com.budjb.rabbitmq.multi.config.OutboxConfiguration;
+import com.budjb.rabbitmq.multi.connection.ConfirmChannel;
+import com.budjb.rabbitmq.multi.connection.ConnectionContext;
+import com.budjb.rabbitmq.multi.connection.ConnectionManager;
+import com.budjb.rabbitmq.multi.connection.ContextNotFoundException;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.lang.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A durable local outbox that decouples publishing from broker availability.
+ * <p>
+ * Messages are appended to a log of fixed-size, memory-mapped segment files and the caller is
+ * acknowledged as soon as the message is in the log. A background drainer replays the log in
+ * order through publisher confirm channels whenever the target connection is available, and
+ * records how far the broker has confirmed in each segment so that a restart resumes where it left
+ * off. Delivery is at-least-once: messages that were published but not yet confirmed when a replay
+ * failed or the application stopped are published again.
+ * <p>
+ * Segments are deleted once every message in them has been confirmed. Disk usage is bounded by the
+ * segment size multiplied by the maximum number of segments; appends are rejected with an
+ * {@link OutboxFullException} once that limit is reached.
+ */
+public class Outbox {
+    /**
+     * Outcome of a drain attempt.
+     */
+    private enum DrainResult {
+        /**
+         * A batch was replayed and confirmed.
+         */
+        PROGRESS,
+
+        /**
+         * There was nothing to replay.
+         */
+        IDLE,
+
+        /**
+         * A connection needed by the batch was unavailable.
+         */
+        UNAVAILABLE
+    }
+
+    /**
+     * Logger.
+     */
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Outbox configuration.
+     */
+    private final OutboxConfiguration outboxConfiguration;
+
+    /**
+     * Connection manager.
+     */
+    private final ConnectionManager connectionManager;
+
+    /**
+     * Directory the segments are stored in.
+     */
+    private final Path directory;
+
+    /**
+     * Segments, oldest first. Guarded by {@code this}.
+     */
+    private final Deque<OutboxSegment> segments = new ArrayDeque<>();
+
+    /**
+     * Buffer messages are serialized into before being appended. Guarded by {@code this}.
+     */
+    private final SerializationBuffer serializationBuffer = new SerializationBuffer();
+
+    /**
+     * Stream writing into the serialization buffer. Guarded by {@code this}.
+     */
+    private final DataOutputStream serializer = new DataOutputStream(serializationBuffer);
+
+    /**
+     * Number of messages in the outbox that have not been confirmed.
+     */
+    private final AtomicLong pending = new AtomicLong();
+
+    /**
+     * Number of messages appended.
+     */
+    private final LongAdder appended = new LongAdder();
+
+    /**
+     * Number of messages confirmed by the broker.
+     */
+    private final LongAdder delivered = new LongAdder();
+
+    /**
+     * Number of messages rejected because the outbox was full.
+     */
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Number of messages dropped because their connection does not exist.
+     */
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Number of replays that failed and were retried.
+     */
+    private final LongAdder replayFailures = new LongAdder();
+
+    /**
+     * Sequence number of the next segment. Guarded by {@code this}.
+     */
+    private long nextSegmentId;
+
+    /**
+     * Whether the outbox is accepting messages and draining.
+     */
+    private volatile boolean running;
+
+    /**
+     * Drainer thread.
+     */
+    private volatile Thread drainer;
+
+    /**
+     * Held by the drainer while it reads or confirms segments, and by {@link #stop()} while it
+     * closes them, so that segments are never closed under the drainer. Acquired before {@code this}.
+     */
+    private final Object drainLock = new Object();
+
+    /**
+     * Constructor.
+     *
+     * @param outboxConfiguration Outbox configuration.
+     * @param connectionManager   Connection manager.
+     * @param meterRegistry       Micrometer meter registry.
+     */
+    public Outbox(OutboxConfiguration outboxConfiguration, ConnectionManager connectionManager, @Nullable MeterRegistry meterRegistry) {
+        this.outboxConfiguration = outboxConfiguration;
+        this.connectionManager = connectionManager;
+        this.directory = Paths.get(outboxConfiguration.getDirectory());
+
+        if (meterRegistry != null) {
+            Gauge.builder("rabbitmq.outbox.pending", pending, AtomicLong::get)
+                .description("Messages in the outbox that have not been confirmed by the broker").register(meterRegistry);
+            Gauge.builder("rabbitmq.outbox.segments", this, Outbox::getSegmentCount)
+                .description("Segment files used by the outbox").register(meterRegistry);
+            FunctionCounter.builder("rabbitmq.outbox.messages", appended, LongAdder::sum).tag("result", "appended")
+                .description("Messages appended to the outbox").register(meterRegistry);
+            FunctionCounter.builder("rabbitmq.outbox.messages", delivered, LongAdder::sum).tag("result", "delivered")
+                .description("Messages replayed from the outbox and confirmed by the broker").register(meterRegistry);
+            FunctionCounter.builder("rabbitmq.outbox.messages", rejected, LongAdder::sum).tag("result", "rejected")
+                .description("Messages rejected because the outbox was full").register(meterRegistry);
+            FunctionCounter.builder("rabbitmq.outbox.messages", dropped, LongAdder::sum).tag("result", "dropped")
+                .description("Messages dropped because their connection does not exist").register(meterRegistry);
+            FunctionCounter.builder("rabbitmq.outbox.replay.failures", replayFailures, LongAdder::sum)
+                .description("Outbox replays that failed and were retried").register(meterRegistry);
+        }
+    }
+
+    /**
+     * Opens the existing segments, if any, and starts the drainer.
+     *
+     * @throws IOException When the outbox directory or its segments can not be opened.
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+
+        Files.createDirectories(directory);
+
+        List<Path> paths;
+
+        try (Stream<Path> files = Files.list(directory)) {
+            paths = files.filter(OutboxSegment::isSegment).sorted().collect(Collectors.toList());
+        }
+
+        for (Path path : paths) {
+            OutboxSegment segment = OutboxSegment.open(path);
+
+            OutboxSegment previous = segments.peekLast();
+
+            if (previous != null) {
+                previous.seal();
+            }
+
+            segments.addLast(segment);
+            pending.addAndGet(segment.getRecoveredRecords());
+            nextSegmentId = segment.getId() + 1;
+        }
+
+        if (pending.get() > 0) {
+            log.info("Recovered " + pending.get() + " unconfirmed messages from the RabbitMQ outbox in " + directory);
+        }
+
+        running = true;
+
+        Thread thread = new Thread(this::drain, "rabbitmq-outbox-drainer");
+        thread.setDaemon(true);
+        drainer = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops the drainer and closes the segments. Messages that have not been confirmed stay on disk
+     * and are replayed when the outbox is started again.
+     * <p>
+     * The drainer is interrupted and given up to the confirm timeout to exit. A drainer that is
+     * still replaying a batch after that never touches the segments again, so the batch is
+     * replayed again after a restart.
+     */
+    public void stop() {
+        Thread thread;
+
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+
+            running = false;
+            thread = drainer;
+            drainer = null;
+        }
+
+        if (thread != null) {
+            thread.interrupt();
+
+            try {
+                thread.join(outboxConfiguration.getConfirmTimeout());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized (drainLock) {
+            synchronized (this) {
+                for (OutboxSegment segment : segments) {
+                    try {
+                        segment.close();
+                    }
+                    catch (IOException e) {
+                        log.error("Unable to close RabbitMQ outbox segment " + segment.getId(), e);
+                    }
+                }
+
+                segments.clear();
+            }
+        }
+    }
+
+    /**
+     * Appends a message to the outbox. The message is published by the drainer once its connection
+     * is available.
+     *
+     * @param connection      Name of the connection to publish to, or {@code null} for the default connection.
+     * @param exchange        Exchange to publish to.
+     * @param routingKey      Routing key of the message.
+     * @param basicProperties Message properties.
+     * @param body            Body of the message.
+     * @throws OutboxFullException   When every segment is full.
+     * @throws IOException           When the message can not be written.
+     * @throws IllegalStateException When the outbox is not running.
+     */
+    public void append(String connection, String exchange, String routingKey, BasicProperties basicProperties, byte[] body) throws IOException, IllegalStateException {
+        synchronized (this) {
+            if (!running) {
+                throw new IllegalStateException("the RabbitMQ outbox is not running");
+            }
+
+            serializationBuffer.reset();
+            OutboxRecord.write(serializer, connection, exchange, routingKey, basicProperties, body);
+
+            byte[] payload = serializationBuffer.array();
+            int length = serializationBuffer.size();
+            boolean force = outboxConfiguration.isSyncOnWrite();
+
+            OutboxSegment tail = segments.peekLast();
+
+            if (tail == null || !tail.append(payload, length, force)) {
+                if (OutboxSegment.HEADER_SIZE + OutboxSegment.RECORD_HEADER_SIZE + length > outboxConfiguration.getSegmentSize()) {
+                    throw new IllegalArgumentException("message of " + length + " bytes does not fit in an outbox segment");
+                }
+
+                if (segments.size() >= outboxConfiguration.getMaxSegments()) {
+                    rejected.increment();
+                    throw new OutboxFullException("the RabbitMQ outbox in " + directory + " is full");
+                }
+
+                if (tail != null) {
+                    tail.seal();
+                }
+
+                tail = OutboxSegment.create(directory, nextSegmentId++, outboxConfiguration.getSegmentSize());
+                segments.addLast(tail);
+                tail.append(payload, length, force);
+            }
+
+            pending.incrementAndGet();
+        }
+
+        appended.increment();
+
+        Thread drainer = this.drainer;
+
+        if (drainer != null) {
+            LockSupport.unpark(drainer);
+        }
+    }
+
+    /**
+     * Returns the number of messages in the outbox that have not been confirmed by the broker.
+     *
+     * @return The number of messages in the outbox that have not been confirmed by the broker.
+     */
+    public long getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Returns the number of segment files used by the outbox.
+     *
+     * @return The number of segment files used by the outbox.
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Drainer loop.
+     */
+    private void drain() {
+        long retryInterval = TimeUnit.MILLISECONDS.toNanos(outboxConfiguration.getRetryInterval());
+
+        while (isDraining()) {
+            try {
+                DrainResult result = drainBatch();
+
+                if (result == DrainResult.IDLE) {
+                    LockSupport.parkNanos(this, retryInterval);
+                }
+                else if (result == DrainResult.UNAVAILABLE) {
+                    backOff(retryInterval);
+                }
+            }
+            catch (Exception e) {
+                if (!isDraining()) {
+                    return;
+                }
+
+                replayFailures.increment();
+                log.warn("Unable to replay messages from the RabbitMQ outbox; retrying in " + outboxConfiguration.getRetryInterval() + "ms", e);
+                backOff(retryInterval);
+            }
+        }
+    }
+
+    /**
+     * Replays one batch from the oldest segment and records it as confirmed. Segments are only
+     * read and confirmed while the drainer holds the drain lock and has not been stopped.
+     */
+    private DrainResult drainBatch() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        OutboxSegment segment;
+        int position;
+        List<OutboxRecord> batch = new ArrayList<>();
+
+        synchronized (drainLock) {
+            if (!isDraining()) {
+                return DrainResult.IDLE;
+            }
+
+            segment = nextSegment();
+
+            if (segment == null) {
+                return DrainResult.IDLE;
+            }
+
+            position = segment.getConfirmedPosition();
+
+            while (batch.size() < outboxConfiguration.getBatchSize()) {
+                byte[] payload = segment.read(position);
+
+                if (payload == null) {
+                    break;
+                }
+
+                batch.add(OutboxRecord.read(payload));
+                position += OutboxSegment.RECORD_HEADER_SIZE + payload.length;
+            }
+        }
+
+        if (batch.isEmpty()) {
+            return DrainResult.IDLE;
+        }
+
+        if (!replay(batch)) {
+            return DrainResult.UNAVAILABLE;
+        }
+
+        synchronized (drainLock) {
+            if (!isDraining()) {
+                return DrainResult.IDLE;
+            }
+
+            segment.confirm(position);
+            pending.addAndGet(-batch.size());
+        }
+
+        return DrainResult.PROGRESS;
+    }
+
+    /**
+     * Returns whether the calling thread is the outbox's current drainer. A drainer that has been
+     * stopped, or replaced after a restart, stops draining.
+     */
+    private boolean isDraining() {
+        return running && drainer == Thread.currentThread();
+    }
+
+    /**
+     * Returns the oldest segment with unconfirmed messages, deleting segments that have been fully confirmed.
+     */
+    private OutboxSegment nextSegment() {
+        while (true) {
+            OutboxSegment segment;
+
+            synchronized (this) {
+                segment = segments.peekFirst();
+
+                if (segment == null || !segment.isDrained()) {
+                    return segment;
+                }
+
+                segments.pollFirst();
+            }
+
+            try {
+                segment.delete();
+            }
+            catch (IOException e) {
+                log.error("Unable to delete confirmed RabbitMQ outbox segment " + segment.getId(), e);
+            }
+        }
+    }
+
+    /**
+     * Publishes a batch with confirms and waits for the broker to confirm all of it.
+     *
+     * @return Whether every message was confirmed; {@code false} if a connection was unavailable.
+     */
+    private boolean replay(List<OutboxRecord> batch) throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        Map<ConnectionContext, ConfirmChannel> confirmChannels = new IdentityHashMap<>();
+        List<CompletableFuture<Void>> confirms = new ArrayList<>(batch.size());
+        int skipped = 0;
+
+        for (OutboxRecord record : batch) {
+            ConnectionContext connectionContext;
+
+            try {
+                connectionContext = record.getConnection() != null ? connectionManager.resolveContext(record.getConnection()) : connectionManager.resolveContext();
+            }
+            catch (ContextNotFoundException e) {
+                skipped++;
+                log.error("Dropping a message in the RabbitMQ outbox because its connection " + record.getConnection() + " does not exist");
+                continue;
+            }
+
+            if (!connectionContext.isAvailable()) {
+                return false;
+            }
+
+            ConfirmChannel confirmChannel = confirmChannels.get(connectionContext);
+
+            if (confirmChannel == null) {
+                confirmChannel = connectionContext.getConfirmChannel();
+                confirmChannels.put(connectionContext, confirmChannel);
+            }
+
+            confirms.add(confirmChannel.publish(record.getExchange(), record.getRoutingKey(), record.getBasicProperties(), record.getBody()));
+        }
+
+        CompletableFuture.allOf(confirms.toArray(new CompletableFuture<?>[0])).get(outboxConfiguration.getConfirmTimeout(), TimeUnit.MILLISECONDS);
+        delivered.add(confirms.size());
+        dropped.add(skipped);
+
+        return true;
+    }
+
+    /**
+     * Waits for the given amount of time, or until the outbox is stopped.
+     */
+    private void backOff(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        long remaining;
+
+        while (isDraining() && (remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, remaining);
+        }
+    }
+
+    /**
+     * A byte array output stream that exposes its internal array to avoid a copy per message.
+     */
+    private static class SerializationBuffer extends ByteArrayOutputStream {
+        /**
+         * Constructor.
+         */
+        SerializationBuffer() {
+            super(1024);
+        }
+
+        /**
+         * Returns the internal array; only the first {@link #size()} bytes are valid.
+         *
+         * @return The internal array.
+         */
+        byte[] array() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.outbox;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.impl.ContentHeaderPropertyWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A message stored in the outbox.
+ * <p>
+ * Message properties are serialized in the same format as an AMQP content header, so every
+ * property, including headers, survives the round trip.
+ */
+class OutboxRecord {
+    /**
+     * Name of the connection the message is published to, or {@code null} for the default connection.
+     */
+    private final String connection;
+
+    /**
+     * Exchange the message is published to.
+     */
+    private final String exchange;
+
+    /**
+     * Routing key of the message.
+     */
+    private final String routingKey;
+
+    /**
+     * Message properties.
+     */
+    private final BasicProperties basicProperties;
+
+    /**
+     * Body of the message.
+     */
+    private final byte[] body;
+
+    /**
+     * Constructor.
+     *
+     * @param connection      Name of the connection the message is published to.
+     * @param exchange        Exchange the message is published to.
+     * @param routingKey      Routing key of the message.
+     * @param basicProperties Message properties.
+     * @param body            Body of the message.
+     */
+    OutboxRecord(String connection, String exchange, String routingKey, BasicProperties basicProperties, byte[] body) {
+        this.connection = connection;
+        this.exchange = exchange;
+        this.routingKey = routingKey;
+        this.basicProperties = basicProperties;
+        this.body = body;
+    }
+
+    /**
+     * Writes a message to the given stream.
+     *
+     * @param out             Stream to write to.
+     * @param connection      Name of the connection the message is published to.
+     * @param exchange        Exchange the message is published to.
+     * @param routingKey      Routing key of the message.
+     * @param basicProperties Message properties.
+     * @param body            Body of the message.
+     * @throws IOException When an underlying IO exception occurs.
+     */
+    static void write(DataOutputStream out, String connection, String exchange, String routingKey, BasicProperties basicProperties, byte[] body) throws IOException {
+        out.writeBoolean(connection != null);
+
+        if (connection != null) {
+            out.writeUTF(connection);
+        }
+
+        out.writeUTF(exchange != null ? exchange : "");
+        out.writeUTF(routingKey != null ? routingKey : "");
+
+        // Properties are written in the AMQP content header encoding, which is preceded by a weight
+        // and body size that the BasicProperties constructor expects but the outbox does not use.
+        out.writeShort(0);
+        out.writeLong(0);
+        (basicProperties != null ? basicProperties : new BasicProperties()).writePropertiesTo(new ContentHeaderPropertyWriter(out));
+
+        if (body == null) {
+            out.writeInt(-1);
+        }
+        else {
+            out.writeInt(body.length);
+            out.write(body);
+        }
+    }
+
+    /**
+     * Reads a message written by {@link #write}.
+     *
+     * @param payload Serialized message.
+     * @return The message.
+     * @throws IOException When the payload can not be read.
+     */
+    static OutboxRecord read(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+        String connection = in.readBoolean() ? in.readUTF() : null;
+        String exchange = in.readUTF();
+        String routingKey = in.readUTF();
+        BasicProperties basicProperties = new BasicProperties(in);
+
+        int length = in.readInt();
+        byte[] body = null;
+
+        if (length >= 0) {
+            body = new byte[length];
+            in.readFully(body);
+        }
+
+        return new OutboxRecord(connection, exchange, routingKey, basicProperties, body);
+    }
+
+    /**
+     * Returns the name of the connection the message is published to.
+     *
+     * @return The name of the connection the message is published to, or {@code null} for the default connection.
+     */
+    String getConnection() {
+        return connection;
+    }
+
+    /**
+     * Returns the exchange the message is published to.
+     *
+     * @return The exchange the message is published to.
+     */
+    String getExchange() {
+        return exchange;
+    }
+
+    /**
+     * Returns the routing key of the message.
+     *
+     * @return The routing key of the message.
+     */
+    String getRoutingKey() {
+        return routingKey;
+    }
+
+    /**
+     * Returns the message properties.
+     *
+     * @return The message properties.
+     */
+    BasicProperties getBasicProperties() {
+        return basicProperties;
+    }
+
+    /**
+     * Returns the body of the message.
+     *
+     * @return The body of the message.
+     */
+    byte[] getBody() {
+        return body;
+    }
+}
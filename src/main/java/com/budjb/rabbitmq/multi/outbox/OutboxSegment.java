@@ -0,0 +1,407 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.outbox;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A fixed-size, memory-mapped, append-only file holding a contiguous run of outbox records.
+ * <p>
+ * The file starts with a header holding a magic number and the position up to which records
+ * have been confirmed by the broker. Each record is a length, a CRC-32 of the payload, and the
+ * payload. The length is written last, so a record only becomes visible once it is complete,
+ * and a zero length marks the end of the written records.
+ * <p>
+ * A segment has a single writer and a single reader. The writer publishes its position through a
+ * volatile field, and the reader never reads past it.
+ */
+class OutboxSegment implements Closeable {
+    /**
+     * File name suffix of segment files.
+     */
+    static final String SUFFIX = ".seg";
+
+    /**
+     * Size of the segment header, in bytes.
+     */
+    static final int HEADER_SIZE = 16;
+
+    /**
+     * Size of the header preceding each record, in bytes.
+     */
+    static final int RECORD_HEADER_SIZE = 8;
+
+    /**
+     * Magic number identifying segment files.
+     */
+    private static final int MAGIC = 0x52514f42;
+
+    /**
+     * Offset of the confirmed position within the header.
+     */
+    private static final int CONFIRMED_POSITION_OFFSET = 4;
+
+    /**
+     * Sequence number of the segment.
+     */
+    private final long id;
+
+    /**
+     * Path of the segment file.
+     */
+    private final Path path;
+
+    /**
+     * Channel of the segment file.
+     */
+    private final FileChannel fileChannel;
+
+    /**
+     * Mapping of the whole segment file.
+     */
+    private final MappedByteBuffer buffer;
+
+    /**
+     * View of the mapping used by the writer.
+     */
+    private final ByteBuffer writeBuffer;
+
+    /**
+     * View of the mapping used by the reader.
+     */
+    private final ByteBuffer readBuffer;
+
+    /**
+     * Checksum used by the writer.
+     */
+    private final CRC32 writeChecksum = new CRC32();
+
+    /**
+     * Checksum used by the reader.
+     */
+    private final CRC32 readChecksum = new CRC32();
+
+    /**
+     * Number of complete records found past the confirmed position when the segment was opened.
+     */
+    private final int recoveredRecords;
+
+    /**
+     * Position the next record is written at.
+     */
+    private volatile int writePosition;
+
+    /**
+     * Position up to which records have been confirmed.
+     */
+    private volatile int confirmedPosition;
+
+    /**
+     * Whether the writer has moved on to another segment.
+     */
+    private volatile boolean sealed;
+
+    /**
+     * Constructor.
+     */
+    private OutboxSegment(long id, Path path, FileChannel fileChannel, MappedByteBuffer buffer, int confirmedPosition, int writePosition, int recoveredRecords) {
+        this.id = id;
+        this.path = path;
+        this.fileChannel = fileChannel;
+        this.buffer = buffer;
+        this.writeBuffer = buffer.duplicate();
+        this.readBuffer = buffer.duplicate();
+        this.confirmedPosition = confirmedPosition;
+        this.writePosition = writePosition;
+        this.recoveredRecords = recoveredRecords;
+    }
+
+    /**
+     * Creates a new, empty segment.
+     *
+     * @param directory Directory the segment is created in.
+     * @param id        Sequence number of the segment.
+     * @param size      Size of the segment file, in bytes.
+     * @return The new segment.
+     * @throws IOException When the file can not be created or mapped.
+     */
+    static OutboxSegment create(Path directory, long id, int size) throws IOException {
+        Path path = directory.resolve(fileName(id));
+        FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        try {
+            MappedByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(CONFIRMED_POSITION_OFFSET, HEADER_SIZE);
+            buffer.putInt(HEADER_SIZE, 0);
+
+            return new OutboxSegment(id, path, fileChannel, buffer, HEADER_SIZE, HEADER_SIZE, 0);
+        }
+        catch (IOException | RuntimeException e) {
+            fileChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing segment, recovering the write position by scanning the records past the
+     * confirmed position. Scanning stops at the first incomplete or corrupt record.
+     *
+     * @param path Path of the segment file.
+     * @return The opened segment.
+     * @throws IOException When the file can not be mapped or is not a segment.
+     */
+    static OutboxSegment open(Path path) throws IOException {
+        FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        try {
+            MappedByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, fileChannel.size());
+
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                throw new IOException(path + " is not an outbox segment");
+            }
+
+            int confirmedPosition = buffer.getInt(CONFIRMED_POSITION_OFFSET);
+
+            if (confirmedPosition < HEADER_SIZE || confirmedPosition > buffer.capacity()) {
+                throw new IOException(path + " has an invalid confirmed position");
+            }
+
+            ByteBuffer scan = buffer.duplicate();
+            CRC32 checksum = new CRC32();
+            int position = confirmedPosition;
+            int records = 0;
+
+            while (position + RECORD_HEADER_SIZE <= scan.capacity()) {
+                int length = scan.getInt(position);
+
+                if (length <= 0 || position + RECORD_HEADER_SIZE + length > scan.capacity()) {
+                    break;
+                }
+
+                byte[] payload = new byte[length];
+                scan.position(position + RECORD_HEADER_SIZE);
+                scan.get(payload);
+
+                checksum.reset();
+                checksum.update(payload, 0, length);
+
+                if ((int) checksum.getValue() != scan.getInt(position + 4)) {
+                    break;
+                }
+
+                position += RECORD_HEADER_SIZE + length;
+                records++;
+            }
+
+            return new OutboxSegment(parseId(path), path, fileChannel, buffer, confirmedPosition, position, records);
+        }
+        catch (IOException | RuntimeException e) {
+            fileChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns whether the given path names a segment file.
+     *
+     * @param path Path to check.
+     * @return Whether the given path names a segment file.
+     */
+    static boolean isSegment(Path path) {
+        String name = path.getFileName().toString();
+        return name.endsWith(SUFFIX) && name.length() > SUFFIX.length() && name.substring(0, name.length() - SUFFIX.length()).chars().allMatch(Character::isDigit);
+    }
+
+    /**
+     * Returns the sequence number encoded in a segment file name.
+     *
+     * @param path Path of the segment file.
+     * @return The sequence number of the segment.
+     */
+    static long parseId(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * Returns the file name of the segment with the given sequence number.
+     */
+    private static String fileName(long id) {
+        return String.format("%020d%s", id, SUFFIX);
+    }
+
+    /**
+     * Appends a record. Only called by the writer.
+     *
+     * @param payload Array holding the record payload.
+     * @param length  Length of the payload.
+     * @param force   Whether the record is forced to disk before returning.
+     * @return Whether the record fit in the segment.
+     */
+    boolean append(byte[] payload, int length, boolean force) {
+        int position = writePosition;
+        int end = position + RECORD_HEADER_SIZE + length;
+
+        if (end > writeBuffer.capacity()) {
+            return false;
+        }
+
+        writeChecksum.reset();
+        writeChecksum.update(payload, 0, length);
+
+        writeBuffer.position(position + RECORD_HEADER_SIZE);
+        writeBuffer.put(payload, 0, length);
+        writeBuffer.putInt(position + 4, (int) writeChecksum.getValue());
+
+        if (end + 4 <= writeBuffer.capacity()) {
+            writeBuffer.putInt(end, 0);
+        }
+
+        writeBuffer.putInt(position, length);
+
+        if (force) {
+            buffer.force();
+        }
+
+        writePosition = end;
+
+        return true;
+    }
+
+    /**
+     * Reads the payload of the record at the given position. Only called by the reader.
+     *
+     * @param position Position of the record.
+     * @return The payload of the record, or {@code null} if no record has been written at the position yet.
+     * @throws IOException When the record is corrupt.
+     */
+    byte[] read(int position) throws IOException {
+        if (position >= writePosition) {
+            return null;
+        }
+
+        int length = readBuffer.getInt(position);
+        byte[] payload = new byte[length];
+
+        readBuffer.position(position + RECORD_HEADER_SIZE);
+        readBuffer.get(payload);
+
+        readChecksum.reset();
+        readChecksum.update(payload, 0, length);
+
+        if ((int) readChecksum.getValue() != readBuffer.getInt(position + 4)) {
+            throw new IOException("corrupt outbox record at position " + position + " of " + path);
+        }
+
+        return payload;
+    }
+
+    /**
+     * Records that every record before the given position has been confirmed. Only called by the reader.
+     *
+     * @param position Position up to which records have been confirmed.
+     */
+    void confirm(int position) {
+        buffer.putInt(CONFIRMED_POSITION_OFFSET, position);
+        confirmedPosition = position;
+    }
+
+    /**
+     * Marks the segment as no longer being written to.
+     */
+    void seal() {
+        sealed = true;
+    }
+
+    /**
+     * Returns whether the segment is sealed and every record in it has been confirmed.
+     *
+     * @return Whether the segment is sealed and every record in it has been confirmed.
+     */
+    boolean isDrained() {
+        return sealed && confirmedPosition >= writePosition;
+    }
+
+    /**
+     * Returns the sequence number of the segment.
+     *
+     * @return The sequence number of the segment.
+     */
+    long getId() {
+        return id;
+    }
+
+    /**
+     * Returns the position up to which records have been confirmed.
+     *
+     * @return The position up to which records have been confirmed.
+     */
+    int getConfirmedPosition() {
+        return confirmedPosition;
+    }
+
+    /**
+     * Returns the position the next record is written at.
+     *
+     * @return The position the next record is written at.
+     */
+    int getWritePosition() {
+        return writePosition;
+    }
+
+    /**
+     * Returns the number of unconfirmed records found when the segment was opened.
+     *
+     * @return The number of unconfirmed records found when the segment was opened.
+     */
+    int getRecoveredRecords() {
+        return recoveredRecords;
+    }
+
+    /**
+     * Forces the segment to disk and closes its file.
+     *
+     * @throws IOException When an underlying IO exception occurs.
+     */
+    @Override
+    public void close() throws IOException {
+        if (fileChannel.isOpen()) {
+            buffer.force();
+            fileChannel.close();
+        }
+    }
+
+    /**
+     * Closes and deletes the segment file.
+     *
+     * @throws IOException When an underlying IO exception occurs.
+     */
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+}
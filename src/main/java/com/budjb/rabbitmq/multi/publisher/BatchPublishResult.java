@@ -0,0 +1,81 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.publisher;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Contains the outcome of publishing a batch of messages.
+ */
+public class BatchPublishResult {
+    /**
+     * Number of messages in the batch.
+     */
+    private final int total;
+
+    /**
+     * Messages that could not be published.
+     */
+    private final List<PublishFailure> failures;
+
+    /**
+     * Constructor.
+     *
+     * @param total    Number of messages in the batch.
+     * @param failures Messages that could not be published.
+     */
+    public BatchPublishResult(int total, List<PublishFailure> failures) {
+        this.total = total;
+        this.failures = Collections.unmodifiableList(failures);
+    }
+
+    /**
+     * Returns the number of messages in the batch.
+     *
+     * @return The number of messages in the batch.
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * Returns the number of messages that were published successfully.
+     *
+     * @return The number of messages that were published successfully.
+     */
+    public int getPublished() {
+        return total - failures.size();
+    }
+
+    /**
+     * Returns the messages that could not be published, in batch order.
+     *
+     * @return The messages that could not be published.
+     */
+    public List<PublishFailure> getFailures() {
+        return failures;
+    }
+
+    /**
+     * Returns whether every message in the batch was published.
+     *
+     * @return Whether every message in the batch was published.
+     */
+    public boolean isSuccessful() {
+        return failures.isEmpty();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.publisher;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Contains the outcome of publishing a message to several connections.
+ */
+public class BroadcastResult {
+    /**
+     * Connections the message was published to, in the order they were given.
+     */
+    private final List<String> connections;
+
+    /**
+     * Causes of the failures keyed by the connection that failed.
+     */
+    private final Map<String, Throwable> failures;
+
+    /**
+     * Constructor.
+     *
+     * @param connections Connections the message was published to, in the order they were given.
+     * @param failures    Causes of the failures keyed by the connection that failed.
+     */
+    public BroadcastResult(List<String> connections, Map<String, Throwable> failures) {
+        this.connections = Collections.unmodifiableList(connections);
+        this.failures = Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * Returns the connections the message was published to, in the order they were given.
+     *
+     * @return The connections the message was published to.
+     */
+    public List<String> getConnections() {
+        return connections;
+    }
+
+    /**
+     * Returns the connections that confirmed the message, in the order they were given.
+     *
+     * @return The connections that confirmed the message.
+     */
+    public List<String> getSucceeded() {
+        return connections.stream().filter(it -> !failures.containsKey(it)).collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the causes of the failures keyed by the connection that failed.
+     *
+     * @return The causes of the failures keyed by the connection that failed.
+     */
+    public Map<String, Throwable> getFailures() {
+        return failures;
+    }
+
+    /**
+     * Returns whether every connection confirmed the message.
+     *
+     * @return Whether every connection confirmed the message.
+     */
+    public boolean isSuccessful() {
+        return failures.isEmpty();
+    }
+}
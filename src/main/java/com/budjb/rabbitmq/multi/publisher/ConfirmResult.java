@@ -0,0 +1,69 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.publisher;
+
+/**
+ * Describes the outcome of publishing a single message with publisher confirms.
+ */
+public class ConfirmResult {
+    /**
+     * Properties of the message.
+     */
+    private final RabbitMessageProperties properties;
+
+    /**
+     * Cause of the failure, or {@code null} if the message was confirmed.
+     */
+    private final Throwable cause;
+
+    /**
+     * Constructor.
+     *
+     * @param properties Properties of the message.
+     * @param cause      Cause of the failure, or {@code null} if the message was confirmed.
+     */
+    public ConfirmResult(RabbitMessageProperties properties, Throwable cause) {
+        this.properties = properties;
+        this.cause = cause;
+    }
+
+    /**
+     * Returns the properties of the message.
+     *
+     * @return The properties of the message.
+     */
+    public RabbitMessageProperties getProperties() {
+        return properties;
+    }
+
+    /**
+     * Returns the cause of the failure, or {@code null} if the message was confirmed.
+     *
+     * @return The cause of the failure, or {@code null} if the message was confirmed.
+     */
+    public Throwable getCause() {
+        return cause;
+    }
+
+    /**
+     * Returns whether the broker confirmed the message.
+     *
+     * @return Whether the broker confirmed the message.
+     */
+    public boolean isConfirmed() {
+        return cause == null;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.publisher;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable description of a message's destination and static AMQP properties.
+ * <p>
+ * The static properties are built into a {@link BasicProperties} once, when the template is
+ * created, and shared by every message published from it. Properties that change per message
+ * (correlation ID, message ID, timestamp, and additional headers) are applied with
+ * {@link #toBasicProperties(String, String, Instant, Map)}, which builds a single new
+ * {@link BasicProperties} directly rather than through a builder. Headers are only merged
+ * into a new map when additional headers are given.
+ * <p>
+ * Templates are safe to share across threads.
+ */
+public final class MessageTemplate {
+    /**
+     * Name of the connection messages are published to, or {@code null} for the default connection.
+     */
+    private final String connection;
+
+    /**
+     * Exchange messages are published to.
+     */
+    private final String exchange;
+
+    /**
+     * Routing key messages are published with.
+     */
+    private final String routingKey;
+
+    /**
+     * Static message properties.
+     */
+    private final BasicProperties basicProperties;
+
+    /**
+     * Constructor.
+     *
+     * @param connection      Name of the connection messages are published to.
+     * @param exchange        Exchange messages are published to.
+     * @param routingKey      Routing key messages are published with.
+     * @param basicProperties Static message properties.
+     */
+    private MessageTemplate(String connection, String exchange, String routingKey, BasicProperties basicProperties) {
+        this.connection = connection;
+        this.exchange = exchange;
+        this.routingKey = routingKey;
+        this.basicProperties = basicProperties;
+    }
+
+    /**
+     * Creates a template from the given message properties. The body, channel, timeout, and
+     * conversion settings of the properties are not part of the template. The properties are
+     * copied, so later changes to them do not affect the template.
+     *
+     * @param properties Rabbit message properties.
+     * @return A new message template.
+     */
+    public static MessageTemplate from(RabbitMessageProperties properties) {
+        // BasicProperties keeps an unmodifiable copy of the headers, so later changes to the
+        // message properties do not leak into the template.
+        return new MessageTemplate(
+            properties.getConnection(),
+            properties.getExchange() != null ? properties.getExchange() : "",
+            properties.getRoutingKey() != null ? properties.getRoutingKey() : "",
+            properties.toBasicProperties()
+        );
+    }
+
+    /**
+     * Returns the name of the connection messages are published to, or {@code null} for the default connection.
+     *
+     * @return The name of the connection messages are published to.
+     */
+    public String getConnection() {
+        return connection;
+    }
+
+    /**
+     * Returns the exchange messages are published to.
+     *
+     * @return The exchange messages are published to.
+     */
+    public String getExchange() {
+        return exchange;
+    }
+
+    /**
+     * Returns the routing key messages are published with.
+     *
+     * @return The routing key messages are published with.
+     */
+    public String getRoutingKey() {
+        return routingKey;
+    }
+
+    /**
+     * Returns the static message properties. The returned instance is shared and its headers are unmodifiable.
+     *
+     * @return The static message properties.
+     */
+    public BasicProperties getBasicProperties() {
+        return basicProperties;
+    }
+
+    /**
+     * Returns a template that is identical to this one except for its content type.
+     *
+     * @param contentType Content type.
+     * @return A template with the given content type.
+     */
+    public MessageTemplate withContentType(String contentType) {
+        return new MessageTemplate(connection, exchange, routingKey, basicProperties.builder().contentType(contentType).build());
+    }
+
+    /**
+     * Returns a template that is identical to this one except for its content encoding.
+     *
+     * @param contentEncoding Content encoding.
+     * @return A template with the given content encoding.
+     */
+    public MessageTemplate withContentEncoding(String contentEncoding) {
+        return new MessageTemplate(connection, exchange, routingKey, basicProperties.builder().contentEncoding(contentEncoding).build());
+    }
+
+    /**
+     * Returns the message properties of a single message, applying the given per-message properties
+     * on top of the static ones. {@code null} values keep the template's value.
+     *
+     * @param correlationId Correlation ID of the message.
+     * @param messageId     ID of the message.
+     * @param timestamp     Timestamp of the message.
+     * @return The message properties of the message.
+     */
+    public BasicProperties toBasicProperties(String correlationId, String messageId, Instant timestamp) {
+        return toBasicProperties(correlationId, messageId, timestamp, null);
+    }
+
+    /**
+     * Returns the message properties of a single message, applying the given per-message properties
+     * on top of the static ones. {@code null} values keep the template's value, and the given headers
+     * are added to the template's headers.
+     *
+     * @param correlationId Correlation ID of the message.
+     * @param messageId     ID of the message.
+     * @param timestamp     Timestamp of the message.
+     * @param headers       Additional headers of the message.
+     * @return The message properties of the message.
+     */
+    public BasicProperties toBasicProperties(String correlationId, String messageId, Instant timestamp, Map<String, Object> headers) {
+        Map<String, Object> mergedHeaders = basicProperties.getHeaders();
+
+        if (headers != null && !headers.isEmpty()) {
+            mergedHeaders = mergedHeaders != null ? new HashMap<>(mergedHeaders) : new HashMap<>();
+            mergedHeaders.putAll(headers);
+        }
+
+        return new BasicProperties(
+            basicProperties.getContentType(),
+            basicProperties.getContentEncoding(),
+            mergedHeaders,
+            basicProperties.getDeliveryMode(),
+            basicProperties.getPriority(),
+            correlationId != null ? correlationId : basicProperties.getCorrelationId(),
+            basicProperties.getReplyTo(),
+            basicProperties.getExpiration(),
+            messageId != null ? messageId : basicProperties.getMessageId(),
+            timestamp != null ? Date.from(timestamp) : basicProperties.getTimestamp(),
+            basicProperties.getType(),
+            basicProperties.getUserId(),
+            basicProperties.getAppId(),
+            basicProperties.getClusterId()
+        );
+    }
+}
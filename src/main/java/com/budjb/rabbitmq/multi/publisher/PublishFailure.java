@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.publisher;
+
+/**
+ * Describes a single message of a batch that could not be published.
+ */
+public class PublishFailure {
+    /**
+     * Position of the message in the batch.
+     */
+    private final int index;
+
+    /**
+     * Properties of the message that failed.
+     */
+    private final RabbitMessageProperties properties;
+
+    /**
+     * Cause of the failure.
+     */
+    private final Throwable cause;
+
+    /**
+     * Constructor.
+     *
+     * @param index      Position of the message in the batch.
+     * @param properties Properties of the message that failed.
+     * @param cause      Cause of the failure.
+     */
+    public PublishFailure(int index, RabbitMessageProperties properties, Throwable cause) {
+        this.index = index;
+        this.properties = properties;
+        this.cause = cause;
+    }
+
+    /**
+     * Returns the position of the message in the batch.
+     *
+     * @return The position of the message in the batch.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the properties of the message that failed.
+     *
+     * @return The properties of the message that failed.
+     */
+    public RabbitMessageProperties getProperties() {
+        return properties;
+    }
+
+    /**
+     * Returns the cause of the failure.
+     *
+     * @return The cause of the failure.
+     */
+    public Throwable getCause() {
+        return cause;
+    }
+}
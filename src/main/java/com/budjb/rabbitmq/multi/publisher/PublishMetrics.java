@@ -0,0 +1,290 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.publisher;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.lang.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Publish-path meters, tagged by connection and exchange.
+ * <p>
+ * The meters of each destination are created once and cached, keyed by connection name and then
+ * by exchange, so recording a publish looks up two maps with the caller's own strings and
+ * allocates nothing. Error counters are cached per exception class in the same way.
+ * <p>
+ * Meters are tagged with the name of the configured connection a message is addressed to, so
+ * messages that do not name a connection share the meters of messages that name the default
+ * connection explicitly. Names that are not configured share the meters tagged with
+ * {@link #OTHER_CONNECTION} rather than creating meters of their own.
+ */
+class PublishMetrics {
+    /**
+     * Maximum number of distinct exchanges, per connection, whose meters are cached. Exchanges
+     * beyond the bound share the meters tagged with {@link #OTHER_EXCHANGE}.
+     */
+    private static final int MAX_CACHED_EXCHANGES = 256;
+
+    /**
+     * Tag value of the default exchange, which has an empty name.
+     */
+    static final String DEFAULT_EXCHANGE = "amq.default";
+
+    /**
+     * Tag value shared by exchanges beyond {@link #MAX_CACHED_EXCHANGES}.
+     */
+    static final String OTHER_EXCHANGE = "other";
+
+    /**
+     * Key of the meters shared by exchanges beyond {@link #MAX_CACHED_EXCHANGES}. Exchange names
+     * can not contain a NUL character, so the key never collides with a real exchange.
+     */
+    private static final String OTHER_EXCHANGE_KEY = "\u0000" + OTHER_EXCHANGE;
+
+    /**
+     * Tag value shared by connection names that are not configured.
+     */
+    static final String OTHER_CONNECTION = "other";
+
+    /**
+     * Tag value of the default connection when its name can not be determined.
+     */
+    private static final String DEFAULT_CONNECTION = "default";
+
+    /**
+     * Key used in place of a missing connection name.
+     */
+    static final String DEFAULT_CONNECTION_KEY = "";
+
+    /**
+     * Key of the meters shared by connection names that are not configured. Connection names
+     * used as keys are configured names, which never contain a NUL character.
+     */
+    static final String OTHER_CONNECTION_KEY = "\u0000" + OTHER_CONNECTION;
+
+    /**
+     * Micrometer meter registry.
+     */
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * Resolves the name a message is addressed to, or {@code null} for the default connection, to
+     * the name of the configured connection, failing if no such connection is configured.
+     */
+    private final Function<String, String> connectionNames;
+
+    /**
+     * Meters keyed by connection name and then by exchange.
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, Destination>> destinations = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param meterRegistry   Micrometer meter registry.
+     * @param connectionNames Resolves connection names to the names of configured connections.
+     */
+    PublishMetrics(MeterRegistry meterRegistry, Function<String, String> connectionNames) {
+        this.meterRegistry = meterRegistry;
+        this.connectionNames = connectionNames;
+    }
+
+    /**
+     * Returns the meters of the given destination, creating them on first use.
+     *
+     * @param connection Name of the connection, or {@code null} for the default connection.
+     * @param exchange   Exchange messages are published to.
+     * @return The meters of the destination.
+     */
+    Destination destination(@Nullable String connection, @Nullable String exchange) {
+        String connectionKey = connection != null ? connection : DEFAULT_CONNECTION_KEY;
+        String exchangeKey = exchange != null ? exchange : "";
+
+        ConcurrentMap<String, Destination> byExchange = destinations.get(connectionKey);
+
+        if (byExchange != null) {
+            Destination destination = byExchange.get(exchangeKey);
+
+            if (destination != null) {
+                return destination;
+            }
+        }
+
+        String connectionName = resolveConnectionName(connectionNames, connection);
+        String connectionTag = connectionName != null ? connectionName : OTHER_CONNECTION;
+
+        if (byExchange == null) {
+            byExchange = byConnection(destinations, connectionKey, connectionName);
+        }
+
+        if (byExchange.size() >= MAX_CACHED_EXCHANGES) {
+            return byExchange.computeIfAbsent(OTHER_EXCHANGE_KEY, it -> new Destination(connectionTag, OTHER_EXCHANGE));
+        }
+
+        return byExchange.computeIfAbsent(exchangeKey, it -> new Destination(connectionTag, it.isEmpty() ? DEFAULT_EXCHANGE : it));
+    }
+
+    /**
+     * Records a message that was published.
+     *
+     * @param connection Name of the connection, or {@code null} for the default connection.
+     * @param exchange   Exchange the message was published to.
+     * @param start      Time the publish started, per {@link System#nanoTime()}.
+     * @param body       Body of the message.
+     */
+    void recordPublish(@Nullable String connection, @Nullable String exchange, long start, @Nullable byte[] body) {
+        destination(connection, exchange).recordPublish(start, body);
+    }
+
+    /**
+     * Records a message that could not be published.
+     *
+     * @param connection Name of the connection, or {@code null} for the default connection.
+     * @param exchange   Exchange the message was addressed to.
+     * @param error      Reason the message could not be published.
+     */
+    void recordError(@Nullable String connection, @Nullable String exchange, Throwable error) {
+        destination(connection, exchange).recordError(error);
+    }
+
+    /**
+     * Returns the name of the configured connection the given name addresses, or {@code "default"}
+     * if the default connection can not be determined.
+     *
+     * @param connectionNames Resolves connection names to the names of configured connections.
+     * @param connection      Name of the connection, or {@code null} for the default connection.
+     * @return The name of the configured connection, or {@code null} if no such connection is configured.
+     */
+    @Nullable
+    static String resolveConnectionName(Function<String, String> connectionNames, @Nullable String connection) {
+        try {
+            String name = connectionNames.apply(connection);
+
+            if (name != null) {
+                return name;
+            }
+        }
+        catch (RuntimeException ignored) {
+            // Unknown names and a missing default connection are handled below.
+        }
+
+        return connection != null ? null : DEFAULT_CONNECTION;
+    }
+
+    /**
+     * Returns the meters of a connection from a map keyed by connection name, creating them on first
+     * use. The meters are stored under the configured connection's name, and the caller's own key is made
+     * an alias of them, so every name that addresses the same configured connection shares its meters
+     * and its bound on cached exchanges. Names that are not configured are never cached.
+     *
+     * @param byConnection   Meters keyed by connection name.
+     * @param connectionKey  Key of the name the caller addressed the connection by.
+     * @param connectionName Name of the configured connection, or {@code null} if it is not configured.
+     * @param <T>            Type of the connection's meters.
+     * @return The meters of the connection.
+     */
+    static <T> ConcurrentMap<String, T> byConnection(ConcurrentMap<String, ConcurrentMap<String, T>> byConnection, String connectionKey, @Nullable String connectionName) {
+        if (connectionName == null) {
+            return byConnection.computeIfAbsent(OTHER_CONNECTION_KEY, it -> new ConcurrentHashMap<>());
+        }
+
+        ConcurrentMap<String, T> meters = byConnection.computeIfAbsent(connectionName, it -> new ConcurrentHashMap<>());
+        byConnection.putIfAbsent(connectionKey, meters);
+
+        return meters;
+    }
+
+    /**
+     * The meters of a single connection and exchange.
+     */
+    class Destination {
+        /**
+         * Name of the connection.
+         */
+        private final String connection;
+
+        /**
+         * Exchange tag value.
+         */
+        private final String exchange;
+
+        /**
+         * Time spent publishing messages.
+         */
+        private final Timer publishTimer;
+
+        /**
+         * Size of published message bodies.
+         */
+        private final DistributionSummary bodySize;
+
+        /**
+         * Publish errors keyed by exception class.
+         */
+        private final ConcurrentMap<Class<?>, Counter> errors = new ConcurrentHashMap<>();
+
+        /**
+         * Constructor.
+         *
+         * @param connection Name of the connection.
+         * @param exchange   Exchange tag value.
+         */
+        Destination(String connection, String exchange) {
+            this.connection = connection;
+            this.exchange = exchange;
+
+            publishTimer = Timer.builder("rabbitmq.publish").tag("connection", connection).tag("exchange", exchange)
+                .description("Time spent publishing a message, including conversion and rate limiting").register(meterRegistry);
+            bodySize = DistributionSummary.builder("rabbitmq.publish.size").tag("connection", connection).tag("exchange", exchange)
+                .baseUnit("bytes").description("Size of published message bodies").register(meterRegistry);
+        }
+
+        /**
+         * Records a message that was published.
+         *
+         * @param start Time the publish started, per {@link System#nanoTime()}.
+         * @param body  Body of the message.
+         */
+        void recordPublish(long start, @Nullable byte[] body) {
+            publishTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            bodySize.record(body != null ? body.length : 0);
+        }
+
+        /**
+         * Records a message that could not be published.
+         *
+         * @param error Reason the message could not be published.
+         */
+        void recordError(Throwable error) {
+            Counter counter = errors.get(error.getClass());
+
+            if (counter == null) {
+                counter = errors.computeIfAbsent(error.getClass(), type -> Counter.builder("rabbitmq.publish.errors")
+                    .tag("connection", connection).tag("exchange", exchange).tag("type", type.getSimpleName().isEmpty() ? type.getName() : type.getSimpleName())
+                    .description("Messages that could not be published, by exception type").register(meterRegistry));
+            }
+
+            counter.increment();
+        }
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.publisher;
+
+import com.budjb.rabbitmq.multi.compression.CompressionManager;
+import com.budjb.rabbitmq.multi.connection.ConnectionContext;
+import com.budjb.rabbitmq.multi.connection.PooledChannel;
+import com.budjb.rabbitmq.multi.converter.MessageConverterManager;
+import com.budjb.rabbitmq.multi.converter.MimeTypes;
+import com.budjb.rabbitmq.multi.converter.ObjectToByteConverter;
+import com.budjb.rabbitmq.multi.converter.ObjectToByteInput;
+import com.budjb.rabbitmq.multi.converter.ObjectToByteResult;
+import com.budjb.rabbitmq.multi.ratelimit.RateLimitExceededException;
+import com.budjb.rabbitmq.multi.ratelimit.RateLimiter;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import org.springframework.lang.Nullable;
+import org.springframework.util.MimeType;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A fixed publishing destination whose connection is resolved and whose destination is validated
+ * once, when the route is created.
+ * <p>
+ * Routes are meant for high-volume destinations: publishing through a route skips the connection
+ * lookup, routing validation, and message property construction that {@link RabbitMessagePublisher}
+ * performs for every message. The route's {@link MessageTemplate} supplies message properties that
+ * are built once and shared by every message. The converters for the body type are resolved on the
+ * first message and reused for as long as the route keeps seeing the same body type.
+ * <p>
+ * Routes are thread safe. When the route's connection has a failover chain, each message follows
+ * it as described by {@link ConnectionContext#resolve()}. The rate limit that applies to the
+ * route's destination, if any, is also looked up once and every message is counted against it,
+ * as are the meters of the destination when publishing is instrumented.
+ * <p>
+ * When compression is enabled and the template does not set a content encoding, bodies that reach
+ * the compression threshold are compressed and published with a copy of the template that carries
+ * the compression content encoding, which is built once per content type.
+ */
+public class PublishRoute {
+    /**
+     * Connection context messages are published to.
+     */
+    private final ConnectionContext connectionContext;
+
+    /**
+     * Message converter manager.
+     */
+    private final MessageConverterManager messageConverterManager;
+
+    /**
+     * Template of the messages published through the route.
+     */
+    private final MessageTemplate template;
+
+    /**
+     * Rate limit messages published through the route are counted against, if any.
+     */
+    private final RateLimiter rateLimiter;
+
+    /**
+     * Meters of the route's destination, if publishing is instrumented.
+     */
+    private final PublishMetrics.Destination metrics;
+
+    /**
+     * Character set bodies are encoded with.
+     */
+    private final Charset charset;
+
+    /**
+     * Whether the template declares a content type, in which case converted bodies keep it.
+     */
+    private final boolean hasContentType;
+
+    /**
+     * Compresses published bodies, if compression is enabled and the template sets no content encoding.
+     */
+    private final CompressionManager compressionManager;
+
+    /**
+     * Template of compressed messages whose body is not converted.
+     */
+    private final MessageTemplate compressedTemplate;
+
+    /**
+     * Converters and message template resolved for the most recent body type.
+     */
+    private volatile Binding binding;
+
+    /**
+     * Constructor.
+     *
+     * @param connectionContext       Connection context messages are published to.
+     * @param messageConverterManager Message converter manager.
+     * @param template                Template of the messages published through the route.
+     */
+    PublishRoute(ConnectionContext connectionContext, MessageConverterManager messageConverterManager, MessageTemplate template) {
+        this(connectionContext, messageConverterManager, template, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param connectionContext       Connection context messages are published to.
+     * @param messageConverterManager Message converter manager.
+     * @param template                Template of the messages published through the route.
+     * @param rateLimiter             Rate limit messages published through the route are counted against.
+     */
+    PublishRoute(ConnectionContext connectionContext, MessageConverterManager messageConverterManager, MessageTemplate template, @Nullable RateLimiter rateLimiter) {
+        this(connectionContext, messageConverterManager, template, rateLimiter, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param connectionContext       Connection context messages are published to.
+     * @param messageConverterManager Message converter manager.
+     * @param template                Template of the messages published through the route.
+     * @param rateLimiter             Rate limit messages published through the route are counted against.
+     * @param metrics                 Meters of the route's destination.
+     */
+    PublishRoute(
+        ConnectionContext connectionContext,
+        MessageConverterManager messageConverterManager,
+        MessageTemplate template,
+        @Nullable RateLimiter rateLimiter,
+        @Nullable PublishMetrics.Destination metrics
+    ) {
+        this(connectionContext, messageConverterManager, template, rateLimiter, metrics, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param connectionContext       Connection context messages are published to.
+     * @param messageConverterManager Message converter manager.
+     * @param template                Template of the messages published through the route.
+     * @param rateLimiter             Rate limit messages published through the route are counted against.
+     * @param metrics                 Meters of the route's destination.
+     * @param compressionManager      Compresses published bodies.
+     */
+    PublishRoute(
+        ConnectionContext connectionContext,
+        MessageConverterManager messageConverterManager,
+        MessageTemplate template,
+        @Nullable RateLimiter rateLimiter,
+        @Nullable PublishMetrics.Destination metrics,
+        @Nullable CompressionManager compressionManager
+    ) {
+        String contentType = template.getBasicProperties().getContentType();
+        String contentEncoding = template.getBasicProperties().getContentEncoding();
+
+        this.connectionContext = connectionContext;
+        this.messageConverterManager = messageConverterManager;
+        this.template = template;
+        this.rateLimiter = rateLimiter;
+        this.metrics = metrics;
+        this.hasContentType = contentType != null && !contentType.isEmpty();
+        this.charset = new ObjectToByteInput(null, hasContentType ? MimeTypes.valueOf(contentType) : null).getCharset();
+        this.compressionManager = contentEncoding == null || contentEncoding.isEmpty() ? compressionManager : null;
+        this.compressedTemplate = compressedTemplate(template);
+    }
+
+    /**
+     * Returns the connection context messages are published to.
+     *
+     * @return The connection context messages are published to.
+     */
+    public ConnectionContext getConnectionContext() {
+        return connectionContext;
+    }
+
+    /**
+     * Returns the template of the messages published through the route.
+     *
+     * @return The template of the messages published through the route.
+     */
+    public MessageTemplate getTemplate() {
+        return template;
+    }
+
+    /**
+     * Publishes a message through a pooled channel.
+     *
+     * @param body Body of the message.
+     * @throws IOException      When an underlying IO exception occurs.
+     * @throws TimeoutException When no pooled channel became available in time.
+     */
+    public void send(Object body) throws IOException, TimeoutException {
+        send(body, null, null, null);
+    }
+
+    /**
+     * Publishes a message through a pooled channel, applying the given per-message properties on
+     * top of the template's. {@code null} values keep the template's value.
+     *
+     * @param body          Body of the message.
+     * @param correlationId Correlation ID of the message.
+     * @param messageId     ID of the message.
+     * @param timestamp     Timestamp of the message.
+     * @throws IOException      When an underlying IO exception occurs.
+     * @throws TimeoutException When no pooled channel became available in time.
+     */
+    public void send(Object body, String correlationId, String messageId, Instant timestamp) throws IOException, TimeoutException {
+        long start = metrics != null ? System.nanoTime() : 0;
+
+        try {
+            Converted converted = convert(body);
+            publish(basicProperties(converted, correlationId, messageId, timestamp), converted.bytes);
+
+            if (metrics != null) {
+                metrics.recordPublish(start, converted.bytes);
+            }
+        }
+        catch (IOException | TimeoutException | RuntimeException e) {
+            if (metrics != null) {
+                metrics.recordError(e);
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Publishes a message through a confirm channel and returns a future that completes once the
+     * broker has confirmed the message.
+     *
+     * @param body Body of the message.
+     * @return A future that completes when the broker confirms the message.
+     * @see RabbitMessagePublisher#sendAsync(RabbitMessageProperties)
+     */
+    public CompletableFuture<Void> sendAsync(Object body) {
+        return sendAsync(body, null, null, null);
+    }
+
+    /**
+     * Publishes a message through a confirm channel, applying the given per-message properties on
+     * top of the template's, and returns a future that completes once the broker has confirmed the
+     * message. {@code null} values keep the template's value.
+     *
+     * @param body          Body of the message.
+     * @param correlationId Correlation ID of the message.
+     * @param messageId     ID of the message.
+     * @param timestamp     Timestamp of the message.
+     * @return A future that completes when the broker confirms the message.
+     * @see RabbitMessagePublisher#sendAsync(RabbitMessageProperties)
+     */
+    public CompletableFuture<Void> sendAsync(Object body, String correlationId, String messageId, Instant timestamp) {
+        long start = metrics != null ? System.nanoTime() : 0;
+
+        try {
+            Converted converted = convert(body);
+
+            BasicProperties basicProperties = basicProperties(converted, correlationId, messageId, timestamp);
+
+            throttle(converted.bytes);
+
+            ConnectionContext target = connectionContext.resolve();
+
+            CompletableFuture<Void> confirm = target.deferIfBlocked(template.getExchange(), template.getRoutingKey(), basicProperties, converted.bytes);
+
+            if (confirm == null) {
+                confirm = target.getConfirmChannel().publish(template.getExchange(), template.getRoutingKey(), basicProperties, converted.bytes);
+            }
+
+            if (metrics != null) {
+                metrics.recordPublish(start, converted.bytes);
+            }
+
+            return confirm;
+        }
+        catch (Exception e) {
+            if (metrics != null) {
+                metrics.recordError(e);
+            }
+
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    /**
+     * Publishes a converted message through a pooled channel.
+     */
+    private void publish(BasicProperties basicProperties, byte[] bytes) throws IOException, TimeoutException {
+        throttle(bytes);
+
+        ConnectionContext target = connectionContext.resolve();
+
+        if (target.deferIfBlocked(template.getExchange(), template.getRoutingKey(), basicProperties, bytes) != null) {
+            return;
+        }
+
+        try (PooledChannel pooledChannel = target.borrowChannel()) {
+            pooledChannel.getChannel().basicPublish(template.getExchange(), template.getRoutingKey(), basicProperties, bytes);
+        }
+    }
+
+    /**
+     * Returns the message properties of a converted message, applying the given per-message
+     * properties on top of the template's. The template's shared properties are returned as-is
+     * when no per-message property is given.
+     */
+    private static BasicProperties basicProperties(Converted converted, String correlationId, String messageId, Instant timestamp) {
+        if (correlationId == null && messageId == null && timestamp == null) {
+            return converted.template.getBasicProperties();
+        }
+
+        return converted.template.toBasicProperties(correlationId, messageId, timestamp);
+    }
+
+    /**
+     * Counts a message against the route's rate limit, if it has one.
+     */
+    private void throttle(byte[] bytes) throws RateLimitExceededException {
+        if (rateLimiter != null) {
+            rateLimiter.acquire(bytes != null ? bytes.length : 0);
+        }
+    }
+
+    /**
+     * Converts a body and returns it along with the template it must be published with.
+     */
+    private Converted convert(Object body) {
+        if (body == null || body instanceof byte[]) {
+            return compress((byte[]) body, template, compressedTemplate);
+        }
+
+        Class<?> type = body.getClass();
+        Binding binding = this.binding;
+
+        if (binding == null || binding.type != type) {
+            binding = new Binding(type, messageConverterManager.getObjectToByteConverters(type), null, template, compressedTemplate);
+            this.binding = binding;
+        }
+
+        ObjectToByteResult result = messageConverterManager.convert(new ObjectToByteInput(body, charset), binding.converters);
+
+        if (hasContentType) {
+            return compress(result.getResult(), template, compressedTemplate);
+        }
+
+        MimeType mimeType = result.getMimeType();
+
+        if (!mimeType.equals(binding.mimeType)) {
+            MessageTemplate typed = template.withContentType(mimeType.toString());
+            binding = new Binding(type, binding.converters, mimeType, typed, compressedTemplate(typed));
+            this.binding = binding;
+        }
+
+        return compress(result.getResult(), binding.template, binding.compressedTemplate);
+    }
+
+    /**
+     * Compresses a converted body if compression is enabled and the body reaches the threshold, and
+     * returns it along with the template it must be published with.
+     */
+    private Converted compress(byte[] bytes, MessageTemplate template, MessageTemplate compressedTemplate) {
+        if (compressionManager != null) {
+            byte[] compressed = compressionManager.compress(bytes);
+
+            if (compressed != null) {
+                return new Converted(compressed, compressedTemplate);
+            }
+        }
+
+        return new Converted(bytes, template);
+    }
+
+    /**
+     * Returns a copy of a template that carries the compression content encoding, or {@code null}
+     * when compression is not enabled.
+     */
+    private MessageTemplate compressedTemplate(MessageTemplate template) {
+        return compressionManager != null ? template.withContentEncoding(compressionManager.getEncoding()) : null;
+    }
+
+    /**
+     * Converters resolved for a body type, along with the template for the content type they most
+     * recently produced.
+     */
+    private static class Binding {
+        /**
+         * Body type.
+         */
+        private final Class<?> type;
+
+        /**
+         * Converters that support the body type.
+         */
+        private final List<ObjectToByteConverter> converters;
+
+        /**
+         * Content type most recently produced by the converters.
+         */
+        private final MimeType mimeType;
+
+        /**
+         * Template carrying the content type.
+         */
+        private final MessageTemplate template;
+
+        /**
+         * Template carrying the content type and the compression content encoding, if compression is enabled.
+         */
+        private final MessageTemplate compressedTemplate;
+
+        /**
+         * Constructor.
+         */
+        Binding(Class<?> type, List<ObjectToByteConverter> converters, MimeType mimeType, MessageTemplate template, MessageTemplate compressedTemplate) {
+            this.type = type;
+            this.converters = converters;
+            this.mimeType = mimeType;
+            this.template = template;
+            this.compressedTemplate = compressedTemplate;
+        }
+    }
+
+    /**
+     * A converted body and the template it is published with.
+     */
+    private static class Converted {
+        /**
+         * Converted body.
+         */
+        private final byte[] bytes;
+
+        /**
+         * Template of the message.
+         */
+        private final MessageTemplate template;
+
+        /**
+         * Constructor.
+         */
+        Converted(byte[] bytes, MessageTemplate template) {
+            this.bytes = bytes;
+            this.template = template;
+        }
+    }
+}
@@ -504,6 +504,17 @@ public class RabbitMessageProperties {
      * @return An AMQP basic properties object suitable for use in publishing messages.
      */
     public BasicProperties toBasicProperties() {
+        return toBasicProperties(contentEncoding);
+    }
+
+    /**
+     * Creates an AMQP basic properties object that carries the given content encoding in place of the
+     * message's own, such as the encoding the publisher compressed the body with.
+     *
+     * @param contentEncoding Content encoding of the body as it is published.
+     * @return An AMQP basic properties object suitable for use in publishing messages.
+     */
+    BasicProperties toBasicProperties(String contentEncoding) {
         BasicProperties.Builder builder = new BasicProperties.Builder();
 
         builder.headers(headers);
@@ -15,154 +15,1200 @@
  */
 package com.budjb.rabbitmq.multi.publisher;
 
+import com.budjb.rabbitmq.multi.HashedWheelTimer;
 import com.budjb.rabbitmq.multi.MessageContext;
+import com.budjb.rabbitmq.multi.compression.CompressionManager;
+import com.budjb.rabbitmq.multi.connection.ConfirmChannel;
+import com.budjb.rabbitmq.multi.connection.ConnectionBlockedException;
+import com.budjb.rabbitmq.multi.connection.ConnectionContext;
 import com.budjb.rabbitmq.multi.connection.ConnectionManager;
+import com.budjb.rabbitmq.multi.connection.ContextNotFoundException;
+import com.budjb.rabbitmq.multi.connection.PooledChannel;
+import com.budjb.rabbitmq.multi.connection.RpcReplyDispatcher;
 import com.budjb.rabbitmq.multi.converter.*;
+import com.budjb.rabbitmq.multi.outbox.Outbox;
+import com.budjb.rabbitmq.multi.ratelimit.PublishRateLimiters;
+import com.budjb.rabbitmq.multi.ratelimit.RateLimitExceededException;
+import com.budjb.rabbitmq.multi.ratelimit.RateLimiter;
 import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.DefaultConsumer;
 import com.rabbitmq.client.Envelope;
 import com.rabbitmq.client.ShutdownSignalException;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.lang.Nullable;
+import org.springframework.util.MimeType;
 
 import java.io.IOException;
-import java.util.UUID;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 public class RabbitMessagePublisher {
+    /**
+     * Message properties of fast-path messages that have no content type.
+     */
+    private static final BasicProperties EMPTY_BASIC_PROPERTIES = new BasicProperties.Builder()
+        .headers(Collections.emptyMap())
+        .priority(0)
+        .build();
+
+    /**
+     * Maximum number of content types whose fast-path message properties are cached.
+     */
+    private static final int MAX_CACHED_BASIC_PROPERTIES = 64;
+
     /**
      * Connection manager.
      */
-    private final ConnectionManager connectionManager;
+    private final ConnectionManager connectionManager;
+
+    /**
+     * Message converter manager.
+     */
+    private final MessageConverterManager messageConverterManager;
+
+    /**
+     * Timer used to expire asynchronous RPC calls.
+     */
+    private final HashedWheelTimer rpcTimer;
+
+    /**
+     * Message properties of fast-path messages keyed by content type.
+     */
+    private final Map<MimeType, BasicProperties> basicPropertiesCache = new ConcurrentHashMap<>();
+
+    /**
+     * Local outbox fire-and-forget sends are spooled to, if enabled.
+     */
+    private final Outbox outbox;
+
+    /**
+     * Rate limits applied to published messages, if any.
+     */
+    private final PublishRateLimiters rateLimiters;
+
+    /**
+     * Publish-path meters, if a meter registry was given.
+     */
+    private final PublishMetrics publishMetrics;
+
+    /**
+     * RPC meters, if a meter registry was given.
+     */
+    private final RpcMetrics rpcMetrics;
+
+    /**
+     * Compresses published bodies and decompresses replies, if compression is enabled.
+     */
+    private final CompressionManager compressionManager;
+
+    /**
+     * Fast-path message properties carrying the compression content encoding, keyed by the shared
+     * properties they were derived from.
+     */
+    private final Map<BasicProperties, BasicProperties> compressedBasicPropertiesCache = new ConcurrentHashMap<>();
+
+    /**
+     * Whether the RPC timer was created by the publisher, in which case {@link #stop()} stops it.
+     */
+    private boolean ownsRpcTimer;
+
+    /**
+     * Constructor.
+     * <p>
+     * The publisher creates its own timer for asynchronous RPC calls, which must be released by
+     * calling {@link #stop()} once the publisher is no longer used.
+     *
+     * @param connectionManager       Connection manager.
+     * @param messageConverterManager Message converter manager.
+     */
+    public RabbitMessagePublisher(ConnectionManager connectionManager, MessageConverterManager messageConverterManager) {
+        this(connectionManager, messageConverterManager, new HashedWheelTimer("rabbitmq-rpc-timer"));
+        this.ownsRpcTimer = true;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param connectionManager       Connection manager.
+     * @param messageConverterManager Message converter manager.
+     * @param rpcTimer                Timer used to expire asynchronous RPC calls.
+     */
+    public RabbitMessagePublisher(ConnectionManager connectionManager, MessageConverterManager messageConverterManager, HashedWheelTimer rpcTimer) {
+        this(connectionManager, messageConverterManager, rpcTimer, null);
+    }
+
+    /**
+     * Constructor.
+     * <p>
+     * When an outbox is given, {@link #send(RabbitMessageProperties)}, {@link #send(String, Object)}, and
+     * {@link #send(String, String, Object)} append the converted message to the outbox and return
+     * immediately instead of publishing it. Messages sent on a caller-provided channel, and every other
+     * kind of publish, still go directly to the broker.
+     *
+     * @param connectionManager       Connection manager.
+     * @param messageConverterManager Message converter manager.
+     * @param rpcTimer                Timer used to expire asynchronous RPC calls.
+     * @param outbox                  Local outbox fire-and-forget sends are spooled to.
+     */
+    public RabbitMessagePublisher(ConnectionManager connectionManager, MessageConverterManager messageConverterManager, HashedWheelTimer rpcTimer, @Nullable Outbox outbox) {
+        this(connectionManager, messageConverterManager, rpcTimer, outbox, null);
+    }
+
+    /**
+     * Constructor.
+     * <p>
+     * When rate limiters are given, every message is counted against the limit of the connection
+     * and exchange it is addressed to before it is published, and either waits for the limit or
+     * fails with a {@link RateLimitExceededException}, depending on how the limit is configured.
+     *
+     * @param connectionManager       Connection manager.
+     * @param messageConverterManager Message converter manager.
+     * @param rpcTimer                Timer used to expire asynchronous RPC calls.
+     * @param outbox                  Local outbox fire-and-forget sends are spooled to.
+     * @param rateLimiters            Rate limits applied to published messages.
+     */
+    public RabbitMessagePublisher(ConnectionManager connectionManager, MessageConverterManager messageConverterManager, HashedWheelTimer rpcTimer, @Nullable Outbox outbox, @Nullable PublishRateLimiters rateLimiters) {
+        this(connectionManager, messageConverterManager, rpcTimer, outbox, rateLimiters, null);
+    }
+
+    /**
+     * Constructor.
+     * <p>
+     * When a meter registry is given, the time spent publishing each message, the size of its body,
+     * and failed publishes by exception type are recorded as {@code rabbitmq.publish},
+     * {@code rabbitmq.publish.size}, and {@code rabbitmq.publish.errors}, tagged by connection and
+     * exchange. RPC round-trip latency, calls waiting for a reply, timeouts, and reply sizes are
+     * recorded as {@code rabbitmq.rpc}, {@code rabbitmq.rpc.in.flight}, {@code rabbitmq.rpc.timeouts},
+     * and {@code rabbitmq.rpc.reply.size}, tagged by connection, exchange, and routing key.
+     *
+     * @param connectionManager       Connection manager.
+     * @param messageConverterManager Message converter manager.
+     * @param rpcTimer                Timer used to expire asynchronous RPC calls.
+     * @param outbox                  Local outbox fire-and-forget sends are spooled to.
+     * @param rateLimiters            Rate limits applied to published messages.
+     * @param meterRegistry           Micrometer meter registry.
+     */
+    public RabbitMessagePublisher(
+        ConnectionManager connectionManager,
+        MessageConverterManager messageConverterManager,
+        HashedWheelTimer rpcTimer,
+        @Nullable Outbox outbox,
+        @Nullable PublishRateLimiters rateLimiters,
+        @Nullable MeterRegistry meterRegistry
+    ) {
+        this(connectionManager, messageConverterManager, rpcTimer, outbox, rateLimiters, null, meterRegistry);
+    }
+
+    /**
+     * Constructor.
+     * <p>
+     * When a compression manager is given, converted bodies that reach its threshold are compressed
+     * before they are published and the message's {@code content-encoding} is set accordingly, unless
+     * the message properties already set a content encoding. RPC replies whose content encoding is
+     * supported by the compression manager are decompressed before they are returned or converted.
+     * Without a compression manager, replies are returned and converted as they arrive, so callers that
+     * disable compression but receive compressed replies must decompress them themselves.
+     *
+     * @param connectionManager       Connection manager.
+     * @param messageConverterManager Message converter manager.
+     * @param rpcTimer                Timer used to expire asynchronous RPC calls.
+     * @param outbox                  Local outbox fire-and-forget sends are spooled to.
+     * @param rateLimiters            Rate limits applied to published messages.
+     * @param compressionManager      Compresses published bodies and decompresses replies.
+     * @param meterRegistry           Micrometer meter registry.
+     */
+    public RabbitMessagePublisher(
+        ConnectionManager connectionManager,
+        MessageConverterManager messageConverterManager,
+        HashedWheelTimer rpcTimer,
+        @Nullable Outbox outbox,
+        @Nullable PublishRateLimiters rateLimiters,
+        @Nullable CompressionManager compressionManager,
+        @Nullable MeterRegistry meterRegistry
+    ) {
+        this.connectionManager = connectionManager;
+        this.messageConverterManager = messageConverterManager;
+        this.rpcTimer = rpcTimer;
+        this.outbox = outbox;
+        this.rateLimiters = rateLimiters != null && !rateLimiters.isEmpty() ? rateLimiters : null;
+        this.publishMetrics = meterRegistry != null ? new PublishMetrics(meterRegistry, this::getConfiguredConnectionName) : null;
+        this.rpcMetrics = meterRegistry != null ? new RpcMetrics(meterRegistry, this::getConfiguredConnectionName) : null;
+        this.compressionManager = compressionManager;
+    }
+
+    /**
+     * Stops the timer used to expire asynchronous RPC calls if the publisher created it. A timer
+     * given to the publisher is left to its owner. Asynchronous RPC calls fail once the timer has
+     * been stopped.
+     */
+    public void stop() {
+        if (ownsRpcTimer) {
+            rpcTimer.stop();
+        }
+    }
+
+    /**
+     * Returns the connection manager.
+     *
+     * @return The connection manager.
+     */
+    public ConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    /**
+     * Returns the message converter manager.
+     *
+     * @return The message converter manager.
+     */
+    public MessageConverterManager getMessageConverterManager() {
+        return messageConverterManager;
+    }
+
+    /**
+     * Returns the compression manager, if compression is enabled.
+     *
+     * @return The compression manager, or {@code null} if compression is not enabled.
+     */
+    @Nullable
+    public CompressionManager getCompressionManager() {
+        return compressionManager;
+    }
+
+    /**
+     * Sends a Rabbit message with a given set of message properties.
+     *
+     * @param properties Rabbit message properties.
+     */
+    public void send(RabbitMessageProperties properties) throws IOException, TimeoutException {
+        if (publishMetrics == null) {
+            publish(properties);
+            return;
+        }
+
+        long start = System.nanoTime();
+
+        try {
+            publishMetrics.recordPublish(properties.getConnection(), properties.getExchange(), start, publish(properties));
+        }
+        catch (IOException | TimeoutException | RuntimeException e) {
+            publishMetrics.recordError(properties.getConnection(), properties.getExchange(), e);
+            throw e;
+        }
+    }
+
+    /**
+     * Publishes a Rabbit message with a given set of message properties.
+     *
+     * @param properties Rabbit message properties.
+     * @return The converted body of the message.
+     */
+    private byte[] publish(RabbitMessageProperties properties) throws IOException, TimeoutException {
+        verifyRoutingRequirements(properties);
+
+        Encoded encoded = encode(properties);
+        byte[] body = encoded.bytes;
+
+        BasicProperties basicProperties = encoded.basicProperties(properties);
+
+        throttle(properties.getConnection(), properties.getExchange(), body);
+
+        Channel channel = properties.getChannel();
+
+        if (channel != null) {
+            channel.basicPublish(properties.getExchange(), properties.getRoutingKey(), basicProperties, body);
+            return body;
+        }
+
+        if (outbox != null) {
+            outbox.append(properties.getConnection(), properties.getExchange(), properties.getRoutingKey(), basicProperties, body);
+            return body;
+        }
+
+        if (connectionManager.deferIfBlocked(properties.getConnection(), properties.getExchange(), properties.getRoutingKey(), basicProperties, body) != null) {
+            return body;
+        }
+
+        try (PooledChannel pooledChannel = connectionManager.borrowChannel(properties.getConnection())) {
+            pooledChannel.getChannel().basicPublish(properties.getExchange(), properties.getRoutingKey(), basicProperties, body);
+        }
+
+        return body;
+    }
+
+    /**
+     * Creates a publish route for a fixed destination. The connection, exchange, routing key, and
+     * message properties of the template are resolved and validated once, here, rather than for
+     * every message published through the route.
+     * <p>
+     * The message properties are shared by every message published through the route, so properties
+     * that must be unique per message should be passed when sending instead.
+     *
+     * @param template Rabbit message properties describing the route. Its body and channel are ignored.
+     * @return A publish route.
+     * @throws IllegalArgumentException When neither an exchange nor a routing key is present.
+     */
+    public PublishRoute route(RabbitMessageProperties template) throws IllegalArgumentException {
+        verifyRoutingRequirements(template);
+
+        return route(MessageTemplate.from(template));
+    }
+
+    /**
+     * Creates a publish route for the destination of a message template. The connection is resolved
+     * and the destination is validated once, here, rather than for every message published through
+     * the route.
+     *
+     * @param template Message template describing the route.
+     * @return A publish route.
+     * @throws IllegalArgumentException When neither an exchange nor a routing key is present.
+     */
+    public PublishRoute route(MessageTemplate template) throws IllegalArgumentException {
+        if (template.getRoutingKey().isEmpty() && template.getExchange().isEmpty()) {
+            throw new IllegalArgumentException("exchange and/or routing key required");
+        }
+
+        RateLimiter rateLimiter = rateLimiters != null ? rateLimiters.getRateLimiter(template.getConnection(), template.getExchange()) : null;
+
+        PublishMetrics.Destination metrics = publishMetrics != null ? publishMetrics.destination(template.getConnection(), template.getExchange()) : null;
+
+        return new PublishRoute(connectionManager.getContext(template.getConnection()), messageConverterManager, template, rateLimiter, metrics, compressionManager);
+    }
+
+    /**
+     * Sends a Rabbit message through a channel in publisher confirm mode and returns a future that
+     * completes once the broker has confirmed the message.
+     * <p>
+     * Messages are pipelined; the calling thread does not wait for the broker. The returned future
+     * completes exceptionally if the message could not be published, was negatively acknowledged,
+     * or the channel closed before the confirm arrived. Since futures are completed on the
+     * connection's dispatch thread, blocking follow-up work should use the {@code *Async} variants
+     * of {@link CompletableFuture}'s composition methods.
+     * <p>
+     * Confirmed publishing always uses the connection's confirm channels, so a channel set
+     * on the message properties is not supported.
+     *
+     * @param properties Rabbit message properties.
+     * @return A future that completes when the broker confirms the message.
+     */
+    public CompletableFuture<Void> sendAsync(RabbitMessageProperties properties) {
+        long start = publishMetrics != null ? System.nanoTime() : 0;
+
+        try {
+            if (properties.getChannel() != null) {
+                throw new IllegalArgumentException("confirmed publishing does not support a caller-provided channel");
+            }
+
+            verifyRoutingRequirements(properties);
+
+            Encoded encoded = encode(properties);
+            byte[] body = encoded.bytes;
+
+            BasicProperties basicProperties = encoded.basicProperties(properties);
+
+            throttle(properties.getConnection(), properties.getExchange(), body);
+
+            ConnectionContext connectionContext = connectionManager.resolveContext(properties.getConnection());
+
+            CompletableFuture<Void> confirm = connectionContext.deferIfBlocked(properties.getExchange(), properties.getRoutingKey(), basicProperties, body);
+
+            if (confirm == null) {
+                confirm = connectionContext.getConfirmChannel().publish(properties.getExchange(), properties.getRoutingKey(), basicProperties, body);
+            }
+
+            if (publishMetrics != null) {
+                publishMetrics.recordPublish(properties.getConnection(), properties.getExchange(), start, body);
+            }
+
+            return confirm;
+        }
+        catch (Exception e) {
+            if (publishMetrics != null) {
+                publishMetrics.recordError(properties.getConnection(), properties.getExchange(), e);
+            }
+
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    /**
+     * Sends a batch of Rabbit messages.
+     * <p>
+     * Messages are published in iteration order. A single pooled channel is borrowed per connection
+     * for the duration of the batch, so publishes to the same connection are pipelined on one channel.
+     * A message that fails does not stop the rest of the batch; each failure is reported in the
+     * returned result instead.
+     *
+     * @param messages Rabbit message properties of each message to send.
+     * @return The outcome of the batch.
+     */
+    public BatchPublishResult sendAll(Collection<RabbitMessageProperties> messages) {
+        return sendAll(messages.iterator());
+    }
+
+    /**
+     * Sends a stream of Rabbit messages.
+     * <p>
+     * Messages are consumed from the iterator and published as they arrive. A single pooled channel
+     * is borrowed per connection for the duration of the batch, so publishes to the same connection
+     * are pipelined on one channel. The connection's blocked policy is applied to every message, so
+     * a connection the broker blocks partway through the batch is waited on, failed, or buffered
+     * just as it is for individual sends. A message that fails does not stop the rest of the batch;
+     * each failure is reported in the returned result instead.
+     *
+     * @param messages Rabbit message properties of each message to send.
+     * @return The outcome of the batch.
+     */
+    public BatchPublishResult sendAll(Iterator<RabbitMessageProperties> messages) {
+        Map<String, PooledChannel> channels = new HashMap<>();
+        List<PublishFailure> failures = new ArrayList<>();
+        int index = 0;
+
+        try {
+            while (messages.hasNext()) {
+                RabbitMessageProperties properties = messages.next();
+                long start = publishMetrics != null ? System.nanoTime() : 0;
+
+                try {
+                    verifyRoutingRequirements(properties);
+
+                    Encoded encoded = encode(properties);
+                    byte[] body = encoded.bytes;
+
+                    BasicProperties basicProperties = encoded.basicProperties(properties);
+
+                    throttle(properties.getConnection(), properties.getExchange(), body);
+
+                    Channel channel = properties.getChannel();
+
+                    if (channel != null) {
+                        channel.basicPublish(properties.getExchange(), properties.getRoutingKey(), basicProperties, body);
+                    }
+                    else if (connectionManager.deferIfBlocked(properties.getConnection(), properties.getExchange(), properties.getRoutingKey(), basicProperties, body) == null) {
+                        PooledChannel pooledChannel = channels.get(properties.getConnection());
+
+                        if (pooledChannel == null || !pooledChannel.isOpen()) {
+                            if (pooledChannel != null) {
+                                pooledChannel.close();
+                            }
+
+                            pooledChannel = connectionManager.borrowChannel(properties.getConnection());
+                            channels.put(properties.getConnection(), pooledChannel);
+                        }
+
+                        pooledChannel.getChannel().basicPublish(properties.getExchange(), properties.getRoutingKey(), basicProperties, body);
+                    }
+
+                    if (publishMetrics != null) {
+                        publishMetrics.recordPublish(properties.getConnection(), properties.getExchange(), start, body);
+                    }
+                }
+                catch (Exception e) {
+                    if (publishMetrics != null) {
+                        publishMetrics.recordError(properties.getConnection(), properties.getExchange(), e);
+                    }
+
+                    failures.add(new PublishFailure(index, properties, e));
+                }
+
+                index++;
+            }
+        }
+        finally {
+            channels.values().forEach(PooledChannel::close);
+        }
+
+        return new BatchPublishResult(index, failures);
+    }
+
+    /**
+     * Sends a batch of Rabbit messages with publisher confirms, waiting once for the whole batch
+     * to be confirmed.
+     * <p>
+     * Messages are pipelined through one confirm channel per connection and the calling thread waits
+     * for all confirms at the end of the batch, up to the given timeout. Messages that could not be
+     * published, were negatively acknowledged, or were not confirmed in time are reported in the
+     * returned result.
+     *
+     * @param messages Rabbit message properties of each message to send.
+     * @param timeout  Amount of time, in milliseconds, to wait for the batch to be confirmed. A negative value waits indefinitely.
+     * @return The outcome of the batch.
+     * @throws InterruptedException When the thread is interrupted while waiting for confirms.
+     */
+    public BatchPublishResult sendAllConfirmed(Collection<RabbitMessageProperties> messages, long timeout) throws InterruptedException {
+        return sendAllConfirmed(messages.iterator(), timeout);
+    }
+
+    /**
+     * Sends a stream of Rabbit messages with publisher confirms, waiting once for the whole batch
+     * to be confirmed.
+     * <p>
+     * Messages are pipelined through one confirm channel per connection and the calling thread waits
+     * for all confirms at the end of the batch, up to the given timeout. The connection's blocked
+     * policy is applied to every message, and buffered messages are confirmed along with the rest of
+     * the batch. Messages that could not be published, were negatively acknowledged, or were not
+     * confirmed in time are reported in the returned result.
+     *
+     * @param messages Rabbit message properties of each message to send.
+     * @param timeout  Amount of time, in milliseconds, to wait for the batch to be confirmed. A negative value waits indefinitely.
+     * @return The outcome of the batch.
+     * @throws InterruptedException When the thread is interrupted while waiting for confirms.
+     */
+    public BatchPublishResult sendAllConfirmed(Iterator<RabbitMessageProperties> messages, long timeout) throws InterruptedException {
+        Map<String, ConfirmChannel> channels = new HashMap<>();
+        List<RabbitMessageProperties> published = new ArrayList<>();
+        List<CompletableFuture<Void>> confirms = new ArrayList<>();
+        List<PublishFailure> failures = new ArrayList<>();
+
+        while (messages.hasNext()) {
+            RabbitMessageProperties properties = messages.next();
+            CompletableFuture<Void> confirm = null;
+            long start = publishMetrics != null ? System.nanoTime() : 0;
+
+            try {
+                if (properties.getChannel() != null) {
+                    throw new IllegalArgumentException("confirmed publishing does not support a caller-provided channel");
+                }
+
+                verifyRoutingRequirements(properties);
+
+                Encoded encoded = encode(properties);
+                byte[] body = encoded.bytes;
+
+                BasicProperties basicProperties = encoded.basicProperties(properties);
+
+                throttle(properties.getConnection(), properties.getExchange(), body);
+
+                confirm = connectionManager.deferIfBlocked(properties.getConnection(), properties.getExchange(), properties.getRoutingKey(), basicProperties, body);
+
+                if (confirm == null) {
+                    ConfirmChannel confirmChannel = channels.get(properties.getConnection());
+
+                    if (confirmChannel == null || !confirmChannel.isOpen()) {
+                        confirmChannel = connectionManager.resolveContext(properties.getConnection()).getConfirmChannel();
+                        channels.put(properties.getConnection(), confirmChannel);
+                    }
+
+                    confirm = confirmChannel.publish(properties.getExchange(), properties.getRoutingKey(), basicProperties, body);
+                }
+
+                if (publishMetrics != null) {
+                    publishMetrics.recordPublish(properties.getConnection(), properties.getExchange(), start, body);
+                }
+            }
+            catch (Exception e) {
+                if (publishMetrics != null) {
+                    publishMetrics.recordError(properties.getConnection(), properties.getExchange(), e);
+                }
+
+                failures.add(new PublishFailure(published.size(), properties, e));
+            }
+
+            published.add(properties);
+            confirms.add(confirm);
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        for (int i = 0; i < confirms.size(); i++) {
+            CompletableFuture<Void> confirm = confirms.get(i);
+
+            if (confirm == null) {
+                continue;
+            }
+
+            try {
+                if (timeout < 0) {
+                    confirm.get();
+                }
+                else {
+                    confirm.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+                }
+            }
+            catch (ExecutionException e) {
+                failures.add(new PublishFailure(i, published.get(i), e.getCause()));
+            }
+            catch (TimeoutException e) {
+                failures.add(new PublishFailure(i, published.get(i), new TimeoutException("timeout of " + timeout +
+                    " milliseconds reached while waiting for the broker to confirm the message")));
+            }
+        }
+
+        failures.sort(Comparator.comparingInt(PublishFailure::getIndex));
+
+        return new BatchPublishResult(published.size(), failures);
+    }
+
+    /**
+     * Sends a Rabbit message to every given connection with publisher confirms and waits for the
+     * confirms, up to the "timeout" property.
+     * <p>
+     * The body is converted and the message properties are built once, and the same bytes are
+     * published to every connection. The message is published to all connections before waiting
+     * for any confirm, so connections are confirmed in parallel. The "connection" property is
+     * ignored; a {@code null} connection name targets the default connection.
+     * <p>
+     * Connection names that resolve to the same connection, for example through failover, are
+     * published to once and share its confirm. Publishing never waits for a connection: one that
+     * the broker has blocked, or whose rate limit does not allow the message right away, is
+     * reported as failed.
+     *
+     * @param connections Names of the connections to publish to.
+     * @param properties  Rabbit message properties.
+     * @return The outcome of the publish for each connection.
+     * @throws IllegalArgumentException When the message properties are invalid.
+     * @throws InterruptedException     When the thread is interrupted while waiting for confirms.
+     */
+    public BroadcastResult sendToAll(Collection<String> connections, RabbitMessageProperties properties) throws IllegalArgumentException, InterruptedException {
+        Map<String, CompletableFuture<Void>> confirms = publishToAll(connections, properties);
+        Map<String, Throwable> failures = new HashMap<>();
+
+        long timeout = properties.getTimeout();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        for (Map.Entry<String, CompletableFuture<Void>> entry : confirms.entrySet()) {
+            try {
+                if (timeout < 0) {
+                    entry.getValue().get();
+                }
+                else {
+                    entry.getValue().get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+                }
+            }
+            catch (ExecutionException e) {
+                failures.put(entry.getKey(), e.getCause());
+            }
+            catch (TimeoutException e) {
+                failures.put(entry.getKey(), new TimeoutException("timeout of " + timeout +
+                    " milliseconds reached while waiting for the broker to confirm the message"));
+            }
+        }
+
+        return new BroadcastResult(new ArrayList<>(confirms.keySet()), failures);
+    }
+
+    /**
+     * Sends a Rabbit message to every given connection with publisher confirms and returns a future
+     * that completes once every connection has confirmed or failed.
+     * <p>
+     * The body is converted and the message properties are built once, and the same bytes are
+     * published to every connection. The "connection" property is ignored; a {@code null} connection
+     * name targets the default connection. The returned future only completes exceptionally when the
+     * message properties are invalid; failures of individual connections are reported in the result.
+     * Connections are de-duplicated and blocked or throttled connections fail as they do for
+     * {@link #sendToAll(Collection, RabbitMessageProperties)}.
+     *
+     * @param connections Names of the connections to publish to.
+     * @param properties  Rabbit message properties.
+     * @return A future that completes with the outcome of the publish for each connection.
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<BroadcastResult> sendToAllAsync(Collection<String> connections, RabbitMessageProperties properties) {
+        Map<String, CompletableFuture<Void>> confirms;
+
+        try {
+            confirms = publishToAll(connections, properties);
+        }
+        catch (Exception e) {
+            CompletableFuture<BroadcastResult> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        return CompletableFuture.allOf(confirms.values().toArray(new CompletableFuture<?>[0])).handle((ignored, throwable) -> {
+            Map<String, Throwable> failures = new HashMap<>();
+
+            // Every confirm is complete at this point, so joining does not block.
+            confirms.forEach((connection, confirm) -> {
+                try {
+                    confirm.join();
+                }
+                catch (CompletionException e) {
+                    failures.put(connection, e.getCause());
+                }
+                catch (CancellationException e) {
+                    failures.put(connection, e);
+                }
+            });
+
+            return new BroadcastResult(new ArrayList<>(confirms.keySet()), failures);
+        });
+    }
+
+    /**
+     * Sends a Rabbit message with a given routing key and payload to the default connection.
+     *
+     * @param routingKey Routing key.
+     * @param body       Body of the message.
+     */
+    public void send(String routingKey, Object body) throws IOException, TimeoutException {
+        send("", routingKey, body);
+    }
+
+    /**
+     * Sends a rabbit message with a given exchange, routing key, and payload to the default connection.
+     * <p>
+     * This is a fast path that publishes without building a {@link RabbitMessageProperties}; the
+     * message properties are shared between every message with the same content type.
+     *
+     * @param exchange   Exchange.
+     * @param routingKey Routing key.
+     * @param body       Body of the message.
+     */
+    public void send(String exchange, String routingKey, Object body) throws IllegalArgumentException, IOException, TimeoutException {
+        if (publishMetrics == null) {
+            publish(exchange, routingKey, body);
+            return;
+        }
+
+        long start = System.nanoTime();
+
+        try {
+            publishMetrics.recordPublish(null, exchange, start, publish(exchange, routingKey, body));
+        }
+        catch (IOException | TimeoutException | RuntimeException e) {
+            publishMetrics.recordError(null, exchange, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Publishes a message with a given exchange, routing key, and payload to the default connection.
+     *
+     * @param exchange   Exchange.
+     * @param routingKey Routing key.
+     * @param body       Body of the message.
+     * @return The converted body of the message.
+     */
+    private byte[] publish(String exchange, String routingKey, Object body) throws IllegalArgumentException, IOException, TimeoutException {
+        if ((routingKey == null || routingKey.isEmpty()) && (exchange == null || exchange.isEmpty())) {
+            throw new IllegalArgumentException("exchange and/or routing key required");
+        }
+
+        byte[] bytes;
+        BasicProperties basicProperties;
+
+        if (body instanceof byte[]) {
+            bytes = (byte[]) body;
+            basicProperties = EMPTY_BASIC_PROPERTIES;
+        }
+        else {
+            ObjectToByteResult result = messageConverterManager.convert(new ObjectToByteInput(body));
+
+            if (result != null) {
+                bytes = result.getResult();
+                basicProperties = getBasicProperties(result.getMimeType());
+            }
+            else {
+                bytes = null;
+                basicProperties = EMPTY_BASIC_PROPERTIES;
+            }
+        }
+
+        if (compressionManager != null) {
+            byte[] compressed = compressionManager.compress(bytes);
+
+            if (compressed != null) {
+                bytes = compressed;
+                basicProperties = getCompressedBasicProperties(basicProperties);
+            }
+        }
+
+        throttle(null, exchange, bytes);
+
+        if (outbox != null) {
+            outbox.append(null, exchange, routingKey, basicProperties, bytes);
+            return bytes;
+        }
+
+        if (connectionManager.deferIfBlocked(null, exchange, routingKey, basicProperties, bytes) != null) {
+            return bytes;
+        }
+
+        try (PooledChannel pooledChannel = connectionManager.borrowChannel()) {
+            pooledChannel.getChannel().basicPublish(exchange, routingKey, basicProperties, bytes);
+        }
+
+        return bytes;
+    }
 
     /**
-     * Message converter manager.
+     * Sends a message to the bus and waits for a reply, up to the "timeout" property.
+     * <p>
+     * This method returns a Message object if autoConvert is set to false, or some
+     * other object type (string, list, map) if autoConvert is true.
+     * <p>
+     * Unless a channel is provided in the message properties, the request is sent through the
+     * connection's shared {@link RpcReplyDispatcher}, which multiplexes all in-flight calls over a
+     * single reply consumer. When a channel is provided, a reply consumer is registered on that
+     * channel for the duration of the call; the logic for that handler is based on the RPC handler
+     * found in spring's RabbitTemplate.
+     * <p>
+     * Replies are only decompressed when the publisher has a {@link CompressionManager}; otherwise
+     * a compressed reply is returned, or converted, as it arrived.
      */
-    private final MessageConverterManager messageConverterManager;
+    @SuppressWarnings("unchecked")
+    public <T> T rpc(RabbitMessageProperties properties) throws TimeoutException, ShutdownSignalException, IOException, IllegalArgumentException, InterruptedException {
+        verifyRoutingRequirements(properties);
+
+        Encoded encoded = encode(properties);
+
+        throttle(properties.getConnection(), properties.getExchange(), encoded.bytes);
+
+        RpcMetrics.Target metrics = rpcMetrics != null ? rpcMetrics.target(properties.getConnection(), properties.getExchange(), properties.getRoutingKey()) : null;
+        long start = metrics != null ? metrics.begin() : 0;
+
+        MessageContext reply;
+
+        try {
+            reply = properties.getChannel() != null ? rpcOnChannel(properties, encoded) : rpcThroughDispatcher(properties, encoded);
+        }
+        catch (TimeoutException | IOException | InterruptedException | RuntimeException e) {
+            if (metrics != null) {
+                metrics.end(start, null, e);
+            }
+
+            throw e;
+        }
+
+        if (metrics != null) {
+            metrics.end(start, reply, null);
+        }
+
+        if (compressionManager != null) {
+            reply = compressionManager.decompress(reply);
+        }
+
+        if (!properties.getAutoConvert()) {
+            return (T) reply;
+        }
+
+        return (T) convert(reply);
+    }
 
     /**
-     * Constructor.
+     * Sends a message to the bus and returns a future that completes with the reply, or fails
+     * with a {@link TimeoutException} if no reply arrives within the "timeout" property.
+     * <p>
+     * The future completes with a Message object if autoConvert is set to false, or some
+     * other object type (string, list, map) if autoConvert is true.
+     * <p>
+     * The calling thread never waits for the reply. Timeouts are tracked by a single timer shared
+     * by every connection rather than a thread or scheduled task per call. Futures are completed on
+     * the connection's dispatch thread or the timer thread, so blocking follow-up work should use the
+     * {@code *Async} variants of {@link CompletableFuture}'s composition methods. Cancelling the
+     * returned future stops waiting for the reply and releases the pending call.
+     * <p>
+     * Asynchronous RPC calls always use the connection's shared reply consumer, so a channel set on
+     * the message properties is not supported. As with {@link #rpc(RabbitMessageProperties)}, replies are
+     * only decompressed when the publisher has a {@link CompressionManager}.
      *
-     * @param connectionManager Connection manager.
+     * @param properties Rabbit message properties.
+     * @return A future that completes with the reply.
      */
-    public RabbitMessagePublisher(ConnectionManager connectionManager, MessageConverterManager messageConverterManager) {
-        this.connectionManager = connectionManager;
-        this.messageConverterManager = messageConverterManager;
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> rpcAsync(RabbitMessageProperties properties) {
+        try {
+            if (properties.getChannel() != null) {
+                throw new IllegalArgumentException("asynchronous RPC does not support a caller-provided channel");
+            }
+
+            verifyRoutingRequirements(properties);
+
+            Encoded encoded = encode(properties);
+
+            throttle(properties.getConnection(), properties.getExchange(), encoded.bytes);
+
+            ConnectionContext connectionContext = connectionManager.resolveContext(properties.getConnection());
+            connectionContext.awaitUnblocked();
+
+            RpcReplyDispatcher dispatcher = connectionContext.getRpcReplyDispatcher();
+
+            RpcMetrics.Target metrics = rpcMetrics != null ? rpcMetrics.target(properties.getConnection(), properties.getExchange(), properties.getRoutingKey()) : null;
+            long start = metrics != null ? metrics.begin() : 0;
+
+            CompletableFuture<MessageContext> future;
+
+            try {
+                future = dispatchRpc(dispatcher, properties, encoded);
+            }
+            catch (IOException | RuntimeException e) {
+                if (metrics != null) {
+                    metrics.end(start, null, e);
+                }
+
+                throw e;
+            }
+
+            if (metrics != null) {
+                future.whenComplete((reply, throwable) -> metrics.end(start, reply, throwable));
+            }
+
+            String correlationId = properties.getCorrelationId();
+
+            if (properties.getTimeout() >= 0) {
+                HashedWheelTimer.Timeout timeout = rpcTimer.schedule(() -> {
+                    dispatcher.cancel(correlationId);
+                    future.completeExceptionally(rpcTimeout(properties));
+                }, properties.getTimeout(), TimeUnit.MILLISECONDS);
+
+                future.whenComplete((reply, throwable) -> timeout.cancel());
+            }
+
+            future.whenComplete((reply, throwable) -> {
+                if (future.isCancelled()) {
+                    dispatcher.cancel(correlationId);
+                }
+            });
+
+            boolean autoConvert = properties.getAutoConvert();
+
+            if (compressionManager == null && !autoConvert) {
+                return (CompletableFuture<T>) future;
+            }
+
+            CompletableFuture<T> converted = future.thenApply(reply -> {
+                if (compressionManager != null) {
+                    try {
+                        reply = compressionManager.decompress(reply);
+                    }
+                    catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }
+
+                return autoConvert ? (T) convert(reply) : (T) reply;
+            });
+
+            // Cancelling the converted future does not propagate to the reply future on its own.
+            converted.whenComplete((reply, throwable) -> {
+                if (converted.isCancelled()) {
+                    future.cancel(false);
+                }
+            });
+
+            return converted;
+        }
+        catch (Exception e) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
     }
 
     /**
-     * Returns the connection manager.
+     * Sends a message to the bus and waits for a reply, up to the "timeout" property.
+     * <p>
+     * This method returns a Message object if autoConvert is set to false, or some
+     * other object type (string, list, map) if autoConvert is true.
      *
-     * @return The connection manager.
+     * @param routingKey Routing key to send the message to.
+     * @param body       Message payload.
      */
-    public ConnectionManager getConnectionManager() {
-        return connectionManager;
+    public <T> T rpc(String routingKey, Object body) throws TimeoutException, ShutdownSignalException, IOException, IllegalArgumentException, InterruptedException {
+        RabbitMessageProperties properties = new RabbitMessageProperties();
+        properties.setRoutingKey(routingKey);
+        properties.setBody(body);
+        return rpc(properties);
     }
 
     /**
-     * Returns the message converter manager.
+     * Sends a message to the bus and waits for a reply, up to the "timeout" property.
+     * <p>
+     * This method returns a Message object if autoConvert is set to false, or some
+     * other object type (string, list, map) if autoConvert is true.
      *
-     * @return The message converter manager.
+     * @param exchange   Exchange to send the message to.
+     * @param routingKey Routing key to send the message to.
+     * @param body       Message payload.
      */
-    public MessageConverterManager getMessageConverterManager() {
-        return messageConverterManager;
+    public <T> T rpc(String exchange, String routingKey, Object body) throws TimeoutException, ShutdownSignalException, IOException, IllegalArgumentException, InterruptedException {
+        RabbitMessageProperties properties = new RabbitMessageProperties();
+        properties.setExchange(exchange);
+        properties.setRoutingKey(routingKey);
+        properties.setBody(body);
+        return rpc(properties);
     }
 
     /**
-     * Sends a Rabbit message with a given set of message properties.
+     * Sends an RPC request through the connection's shared reply dispatcher and waits for the reply.
      *
      * @param properties Rabbit message properties.
+     * @param encoded    Converted body of the request.
+     * @return The reply.
      */
-    public void send(RabbitMessageProperties properties) throws IOException, TimeoutException {
-        verifyRoutingRequirements(properties);
-
-        byte[] body = convert(properties);
-
-        BasicProperties basicProperties = properties.toBasicProperties();
-
-        boolean closeChannel = false;
+    private MessageContext rpcThroughDispatcher(RabbitMessageProperties properties, Encoded encoded) throws TimeoutException, IOException, InterruptedException {
+        ConnectionContext connectionContext = connectionManager.resolveContext(properties.getConnection());
+        connectionContext.awaitUnblocked();
 
-        Channel channel = properties.getChannel();
+        RpcReplyDispatcher dispatcher = connectionContext.getRpcReplyDispatcher();
 
-        if (channel == null) {
-            channel = connectionManager.createChannel(properties.getConnection());
-            closeChannel = true;
-        }
+        CompletableFuture<MessageContext> future = dispatchRpc(dispatcher, properties, encoded);
 
         try {
-            channel.basicPublish(properties.getExchange(), properties.getRoutingKey(), basicProperties, body);
+            return properties.getTimeout() < 0 ? future.get() : future.get(properties.getTimeout(), TimeUnit.MILLISECONDS);
         }
-        finally {
-            if (closeChannel) {
-                channel.close();
+        catch (TimeoutException e) {
+            throw rpcTimeout(properties);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof ShutdownSignalException) {
+                throw (ShutdownSignalException) e.getCause();
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
             }
+            throw new IOException(e.getCause());
+        }
+        finally {
+            dispatcher.cancel(properties.getCorrelationId());
         }
     }
 
     /**
-     * Sends a Rabbit message with a given routing key and payload.
+     * Registers an RPC call with the reply dispatcher and publishes the request.
      *
-     * @param routingKey Routing key.
-     * @param body       Body of the message.
+     * @param dispatcher RPC reply dispatcher of the connection.
+     * @param properties Rabbit message properties.
+     * @param encoded    Converted body of the request.
+     * @return A future that completes with the reply.
      */
-    public void send(String routingKey, Object body) throws IOException, TimeoutException {
-        send(new RabbitMessageProperties() {{
-            setRoutingKey(routingKey);
-            setBody(body);
-        }});
+    private CompletableFuture<MessageContext> dispatchRpc(RpcReplyDispatcher dispatcher, RabbitMessageProperties properties, Encoded encoded) throws IOException {
+        if (properties.getCorrelationId() == null || properties.getCorrelationId().isEmpty()) {
+            properties.setCorrelationId(dispatcher.nextCorrelationId());
+        }
+
+        properties.setReplyTo(dispatcher.getReplyTo());
+
+        String correlationId = properties.getCorrelationId();
+
+        CompletableFuture<MessageContext> future = dispatcher.register(correlationId);
+
+        try {
+            dispatcher.publish(properties.getExchange(), properties.getRoutingKey(), encoded.basicProperties(properties), encoded.bytes);
+        }
+        catch (IOException | RuntimeException e) {
+            dispatcher.cancel(correlationId);
+            throw e;
+        }
+
+        return future;
     }
 
     /**
-     * Sends a rabbit message with a given exchange, routing key, and payload.
+     * Creates the exception reported when an RPC call does not receive a reply in time.
      *
-     * @param exchange   Exchange.
-     * @param routingKey Routing key.
-     * @param body       Body of the message.
+     * @param properties Rabbit message properties.
+     * @return A timeout exception describing the call.
      */
-    public void send(String exchange, String routingKey, Object body) throws IllegalArgumentException, IOException, TimeoutException {
-        send(new RabbitMessageProperties() {{
-            setRoutingKey(routingKey);
-            setExchange(exchange);
-            setBody(body);
-        }});
+    private TimeoutException rpcTimeout(RabbitMessageProperties properties) {
+        return new TimeoutException("timeout of " + properties.getTimeout() + " milliseconds reached while waiting for a response in an RPC message to exchange " +
+            properties.getExchange() + " and routingKey " + properties.getRoutingKey());
     }
 
     /**
-     * Sends a message to the bus and waits for a reply, up to the "timeout" property.
-     * <p>
-     * This method returns a Message object if autoConvert is set to false, or some
-     * other object type (string, list, map) if autoConvert is true.
-     * <p>
-     * The logic for the handler is based on the RPC handler found in spring's RabbitTemplate.
+     * Converts a message once and publishes it to every given connection through their confirm channels.
+     * Names that resolve to a context that was already published to share its confirm, and contexts
+     * that are blocked or throttled fail without waiting.
+     *
+     * @param connections Names of the connections to publish to.
+     * @param properties  Rabbit message properties.
+     * @return The confirm of each connection, in the order the connections were given.
      */
-    @SuppressWarnings("unchecked")
-    public <T> T rpc(RabbitMessageProperties properties) throws TimeoutException, ShutdownSignalException, IOException, IllegalArgumentException, InterruptedException {
+    private Map<String, CompletableFuture<Void>> publishToAll(Collection<String> connections, RabbitMessageProperties properties) {
+        if (properties.getChannel() != null) {
+            throw new IllegalArgumentException("confirmed publishing does not support a caller-provided channel");
+        }
+
         verifyRoutingRequirements(properties);
 
-        byte[] body = convert(properties);
+        Encoded encoded = encode(properties);
+        byte[] body = encoded.bytes;
+
+        BasicProperties basicProperties = encoded.basicProperties(properties);
+
+        Map<String, CompletableFuture<Void>> confirms = new LinkedHashMap<>();
+        Map<ConnectionContext, CompletableFuture<Void>> published = new HashMap<>();
+
+        for (String connection : connections) {
+            if (confirms.containsKey(connection)) {
+                continue;
+            }
+
+            CompletableFuture<Void> confirm;
+            long start = publishMetrics != null ? System.nanoTime() : 0;
+
+            try {
+                ConnectionContext connectionContext = connectionManager.resolveContext(connection);
+
+                confirm = published.get(connectionContext);
+
+                if (confirm == null) {
+                    if (connectionContext.isBlocked()) {
+                        throw new ConnectionBlockedException("RabbitMQ connection " + connectionContext.getName() + " is blocked by the broker");
+                    }
+
+                    if (rateLimiters != null && !rateLimiters.tryAcquire(connection, properties.getExchange(), body != null ? body.length : 0)) {
+                        throw new RateLimitExceededException("rate limit of connection " + connectionContext.getName() + " exceeded");
+                    }
 
+                    confirm = connectionContext.getConfirmChannel().publish(properties.getExchange(), properties.getRoutingKey(), basicProperties, body);
+                    published.put(connectionContext, confirm);
 
-        boolean closeChannel = false;
+                    if (publishMetrics != null) {
+                        publishMetrics.recordPublish(connection, properties.getExchange(), start, body);
+                    }
+                }
+            }
+            catch (Exception e) {
+                if (publishMetrics != null) {
+                    publishMetrics.recordError(connection, properties.getExchange(), e);
+                }
+
+                confirm = new CompletableFuture<>();
+                confirm.completeExceptionally(e);
+            }
+
+            confirms.put(connection, confirm);
+        }
+
+        return confirms;
+    }
+
+    /**
+     * Sends an RPC request through a caller-provided channel, consuming the reply on that channel.
+     *
+     * @param properties Rabbit message properties.
+     * @param encoded    Converted body of the request.
+     * @return The reply.
+     */
+    private MessageContext rpcOnChannel(RabbitMessageProperties properties, Encoded encoded) throws TimeoutException, IOException, InterruptedException {
+        boolean directReplyTo = connectionManager.resolveContext(properties.getConnection()).getConnectionConfiguration().isDirectReplyTo();
 
         boolean consuming = false;
 
-        String temporaryQueue;
+        String replyQueue;
 
         Channel channel = properties.getChannel();
-        if (channel == null) {
-            channel = connectionManager.createChannel(properties.getConnection());
-            closeChannel = true;
-        }
 
-        String consumerTag = UUID.randomUUID().toString();
+        String consumerTag = null;
 
         try {
-            temporaryQueue = channel.queueDeclare().getQueue();
+            replyQueue = directReplyTo ? RpcReplyDispatcher.DIRECT_REPLY_TO_QUEUE : channel.queueDeclare().getQueue();
 
-            properties.setReplyTo(temporaryQueue);
+            properties.setReplyTo(replyQueue);
 
-            BasicProperties basicProperties = properties.toBasicProperties();
+            BasicProperties basicProperties = encoded.basicProperties(properties);
 
             SynchronousQueue<MessageContext> replyHandOff = new SynchronousQueue<>();
 
@@ -180,23 +1226,20 @@ public class RabbitMessagePublisher {
                 }
             };
 
-            channel.basicConsume(temporaryQueue, false, consumerTag, true, true, null, consumer);
+            // Direct reply-to requires the consumer to be registered in auto-ack mode on the
+            // same channel the request is published on, before the request is published.
+            consumerTag = channel.basicConsume(replyQueue, directReplyTo, "", true, true, null, consumer);
             consuming = true;
 
-            channel.basicPublish(properties.getExchange(), properties.getRoutingKey(), basicProperties, body);
+            channel.basicPublish(properties.getExchange(), properties.getRoutingKey(), basicProperties, encoded.bytes);
 
             MessageContext reply = (properties.getTimeout() < 0) ? replyHandOff.take() : replyHandOff.poll(properties.getTimeout(), TimeUnit.MILLISECONDS);
 
             if (reply == null) {
-                throw new TimeoutException("timeout of " + properties.getTimeout() + " milliseconds reached while waiting for a response in an RPC message to exchange " +
-                    properties.getExchange() + " and routingKey " + properties.getRoutingKey());
-            }
-
-            if (!properties.getAutoConvert()) {
-                return (T) reply;
+                throw rpcTimeout(properties);
             }
 
-            return (T) convert(reply);
+            return reply;
         }
         finally {
             // If we've started consuming, stop consumption.
@@ -206,45 +1249,78 @@ public class RabbitMessagePublisher {
             if (consuming) {
                 channel.basicCancel(consumerTag);
             }
+        }
+    }
 
-            if (closeChannel) {
-                channel.close();
-            }
+    /**
+     * Returns the shared message properties for fast-path messages with the given content type.
+     *
+     * @param mimeType Content type of the message.
+     * @return The message properties.
+     */
+    private BasicProperties getBasicProperties(MimeType mimeType) {
+        BasicProperties basicProperties = basicPropertiesCache.get(mimeType);
+
+        if (basicProperties != null) {
+            return basicProperties;
+        }
+
+        basicProperties = EMPTY_BASIC_PROPERTIES.builder().contentType(mimeType.toString()).build();
+
+        if (basicPropertiesCache.size() < MAX_CACHED_BASIC_PROPERTIES) {
+            basicPropertiesCache.putIfAbsent(mimeType, basicProperties);
         }
+
+        return basicProperties;
     }
 
     /**
-     * Sends a message to the bus and waits for a reply, up to the "timeout" property.
-     * <p>
-     * This method returns a Message object if autoConvert is set to false, or some
-     * other object type (string, list, map) if autoConvert is true.
+     * Returns fast-path message properties that are identical to the given shared properties except
+     * that they carry the compression content encoding.
      *
-     * @param routingKey Routing key to send the message to.
-     * @param body       Message payload.
+     * @param basicProperties Shared message properties.
+     * @return The message properties of the compressed message.
      */
-    public <T> T rpc(String routingKey, Object body) throws TimeoutException, ShutdownSignalException, IOException, IllegalArgumentException, InterruptedException {
-        return this.rpc(new RabbitMessageProperties() {{
-            setRoutingKey(routingKey);
-            setBody(body);
-        }});
+    private BasicProperties getCompressedBasicProperties(BasicProperties basicProperties) {
+        BasicProperties compressed = compressedBasicPropertiesCache.get(basicProperties);
+
+        if (compressed != null) {
+            return compressed;
+        }
+
+        compressed = basicProperties.builder().contentEncoding(compressionManager.getEncoding()).build();
+
+        if (compressedBasicPropertiesCache.size() < MAX_CACHED_BASIC_PROPERTIES) {
+            compressedBasicPropertiesCache.putIfAbsent(basicProperties, compressed);
+        }
+
+        return compressed;
     }
 
     /**
-     * Sends a message to the bus and waits for a reply, up to the "timeout" property.
-     * <p>
-     * This method returns a Message object if autoConvert is set to false, or some
-     * other object type (string, list, map) if autoConvert is true.
+     * Counts a message against the rate limit of the connection and exchange it is addressed to.
      *
-     * @param exchange   Exchange to send the message to.
-     * @param routingKey Routing key to send the message to.
-     * @param body       Message payload.
+     * @param connection Name of the connection, or {@code null} for the default connection.
+     * @param exchange   Exchange the message is published to.
+     * @param body       Body of the message.
+     * @throws RateLimitExceededException When the message is not allowed by the limit.
      */
-    public <T> T rpc(String exchange, String routingKey, Object body) throws TimeoutException, ShutdownSignalException, IOException, IllegalArgumentException, InterruptedException {
-        return rpc(new RabbitMessageProperties() {{
-            setExchange(exchange);
-            setRoutingKey(routingKey);
-            setBody(body);
-        }});
+    private void throttle(String connection, String exchange, byte[] body) throws RateLimitExceededException {
+        if (rateLimiters != null) {
+            rateLimiters.acquire(connection, exchange, body != null ? body.length : 0);
+        }
+    }
+
+    /**
+     * Returns the name of the configured connection a message addressed to the given connection is
+     * tagged with in metrics.
+     *
+     * @param connection Name of the connection, or {@code null} for the default connection.
+     * @return The name of the configured connection.
+     * @throws ContextNotFoundException When no connection with the given name is configured.
+     */
+    private String getConfiguredConnectionName(String connection) throws ContextNotFoundException {
+        return connection != null ? connectionManager.getContext(connection).getName() : connectionManager.getContext().getName();
     }
 
     /**
@@ -258,6 +1334,29 @@ public class RabbitMessagePublisher {
         }
     }
 
+    /**
+     * Converts the body contained in the message properties and, when compression is enabled, compresses
+     * it. Bodies are never compressed when the message properties set a content encoding of their own.
+     *
+     * @param properties Rabbit message properties.
+     * @return The body as it is published, along with the content encoding it was compressed with.
+     */
+    private Encoded encode(RabbitMessageProperties properties) {
+        byte[] body = convert(properties);
+
+        if (compressionManager == null || (properties.getContentEncoding() != null && !properties.getContentEncoding().isEmpty())) {
+            return new Encoded(body, null);
+        }
+
+        byte[] compressed = compressionManager.compress(body);
+
+        if (compressed == null) {
+            return new Encoded(body, null);
+        }
+
+        return new Encoded(compressed, compressionManager.getEncoding());
+    }
+
     /**
      * Converts the body contained in the message properties. This will set the content type of
      * the message if one has not already been set.
@@ -299,4 +1398,35 @@ public class RabbitMessagePublisher {
 
         return null;
     }
+
+    /**
+     * A converted body as it is published, along with the content encoding it was compressed with.
+     */
+    private static class Encoded {
+        /**
+         * Body as it is published.
+         */
+        private final byte[] bytes;
+
+        /**
+         * Content encoding the body was compressed with, or {@code null} if it was not compressed.
+         */
+        private final String contentEncoding;
+
+        /**
+         * Constructor.
+         */
+        Encoded(byte[] bytes, String contentEncoding) {
+            this.bytes = bytes;
+            this.contentEncoding = contentEncoding;
+        }
+
+        /**
+         * Returns the AMQP basic properties the body is published with, which carry the content encoding
+         * the body was compressed with unless the message properties set one of their own.
+         */
+        BasicProperties basicProperties(RabbitMessageProperties properties) {
+            return properties.toBasicProperties(contentEncoding != null ? contentEncoding : properties.getContentEncoding());
+        }
+    }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.publisher;
+
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A Project Reactor facade over {@link RabbitMessagePublisher} for non-blocking applications.
+ * <p>
+ * Publishing uses the connections' confirm channels and RPC calls use the connections' shared
+ * reply consumers, so no thread waits on the broker. Signals are emitted on the connection's
+ * dispatch thread or the RPC timer thread; operators that block should be moved to another
+ * scheduler with {@code publishOn}.
+ */
+public class ReactiveRabbitMessagePublisher {
+    /**
+     * Default number of unconfirmed messages a publish stream keeps in flight.
+     */
+    public static final int DEFAULT_MAX_OUTSTANDING_CONFIRMS = 256;
+
+    /**
+     * Publisher the facade delegates to.
+     */
+    private final RabbitMessagePublisher rabbitMessagePublisher;
+
+    /**
+     * Maximum number of unconfirmed messages a publish stream keeps in flight.
+     */
+    private final int maxOutstandingConfirms;
+
+    /**
+     * Constructor.
+     *
+     * @param rabbitMessagePublisher Publisher the facade delegates to.
+     */
+    public ReactiveRabbitMessagePublisher(RabbitMessagePublisher rabbitMessagePublisher) {
+        this(rabbitMessagePublisher, DEFAULT_MAX_OUTSTANDING_CONFIRMS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param rabbitMessagePublisher Publisher the facade delegates to.
+     * @param maxOutstandingConfirms Maximum number of unconfirmed messages a publish stream keeps in flight.
+     */
+    public ReactiveRabbitMessagePublisher(RabbitMessagePublisher rabbitMessagePublisher, int maxOutstandingConfirms) {
+        if (maxOutstandingConfirms < 1) {
+            throw new IllegalArgumentException("the maximum number of outstanding confirms must be at least 1");
+        }
+
+        this.rabbitMessagePublisher = rabbitMessagePublisher;
+        this.maxOutstandingConfirms = maxOutstandingConfirms;
+    }
+
+    /**
+     * Returns the publisher the facade delegates to.
+     *
+     * @return The publisher the facade delegates to.
+     */
+    public RabbitMessagePublisher getRabbitMessagePublisher() {
+        return rabbitMessagePublisher;
+    }
+
+    /**
+     * Returns the maximum number of unconfirmed messages a publish stream keeps in flight.
+     *
+     * @return The maximum number of unconfirmed messages a publish stream keeps in flight.
+     */
+    public int getMaxOutstandingConfirms() {
+        return maxOutstandingConfirms;
+    }
+
+    /**
+     * Publishes a message with publisher confirms.
+     * <p>
+     * The message is published when the returned {@link Mono} is subscribed to, which completes
+     * once the broker confirms the message or fails if it could not be published or was negatively
+     * acknowledged.
+     *
+     * @param properties Rabbit message properties.
+     * @return A {@link Mono} that completes when the broker confirms the message.
+     */
+    public Mono<Void> send(RabbitMessageProperties properties) {
+        return Mono.defer(() -> Mono.fromFuture(rabbitMessagePublisher.sendAsync(properties)));
+    }
+
+    /**
+     * Publishes a stream of messages with publisher confirms and emits the outcome of each one.
+     * <p>
+     * Demand on the upstream publisher is bounded by the outstanding-confirm window: at most
+     * {@link #getMaxOutstandingConfirms()} messages are published without having been confirmed,
+     * and a new message is requested as each confirm arrives. Results are emitted in the order
+     * the broker settles the messages. A message that fails does not terminate the stream; its
+     * result carries the cause instead.
+     *
+     * @param messages Rabbit message properties of each message to send.
+     * @return A {@link Flux} of the outcome of each message.
+     */
+    public Flux<ConfirmResult> send(Publisher<RabbitMessageProperties> messages) {
+        return Flux.from(messages).flatMap(properties -> Mono.fromFuture(rabbitMessagePublisher.sendAsync(properties))
+            .then(Mono.fromSupplier(() -> new ConfirmResult(properties, null)))
+            .onErrorResume(e -> Mono.just(new ConfirmResult(properties, e))), maxOutstandingConfirms, 1);
+    }
+
+    /**
+     * Sends a message to the bus and emits the reply, or fails with a
+     * {@link java.util.concurrent.TimeoutException} if no reply arrives within the "timeout" property.
+     * <p>
+     * The request is sent when the returned {@link Mono} is subscribed to. Cancelling the subscription
+     * stops waiting for the reply and releases the pending call.
+     *
+     * @param properties Rabbit message properties.
+     * @return A {@link Mono} of the reply.
+     * @see RabbitMessagePublisher#rpcAsync(RabbitMessageProperties)
+     */
+    public <T> Mono<T> rpc(RabbitMessageProperties properties) {
+        return Mono.defer(() -> {
+            CompletableFuture<T> future = rabbitMessagePublisher.rpcAsync(properties);
+            return Mono.fromFuture(future).doOnCancel(() -> future.cancel(false));
+        });
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.budjb.rabbitmq.multi.publisher;
+
+import com.budjb.rabbitmq.multi.MessageContext;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.lang.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * RPC meters, tagged by connection, exchange and routing key.
+ * <p>
+ * The meters of each call target are created once and cached, keyed by connection name, then by
+ * exchange and then by routing key, so recording a call looks up three maps with the caller's own
+ * strings and allocates nothing. As with publish meters, calls are tagged with the name of the
+ * configured connection they are addressed to, so calls that do not name a connection share the
+ * meters of calls that name the default connection explicitly, and names that are not configured
+ * share the meters tagged with {@link PublishMetrics#OTHER_CONNECTION}.
+ * <p>
+ * Every target publishes a percentile histogram, so the number of targets is kept small: at most
+ * {@link #MAX_CACHED_EXCHANGES} exchanges per connection and {@link #MAX_CACHED_ROUTING_KEYS}
+ * routing keys per exchange are tagged individually. Round-trip latency is recorded by a timer that publishes a
+ * percentile histogram; Micrometer backs it with HdrHistogram recorders, which writers update
+ * without locking, so concurrent RPC threads do not serialize on the measurement.
+ */
+class RpcMetrics {
+    /**
+     * Maximum number of distinct exchanges per connection whose meters are cached. Exchanges
+     * beyond the bound share the meters tagged with {@link #OTHER}.
+     */
+    private static final int MAX_CACHED_EXCHANGES = 16;
+
+    /**
+     * Maximum number of distinct routing keys per exchange whose meters are cached. Routing keys
+     * beyond the bound share the meters tagged with {@link #OTHER}.
+     */
+    private static final int MAX_CACHED_ROUTING_KEYS = 8;
+
+    /**
+     * Tag value of the default exchange, which has an empty name.
+     */
+    static final String DEFAULT_EXCHANGE = PublishMetrics.DEFAULT_EXCHANGE;
+
+    /**
+     * Tag value shared by exchanges and routing keys beyond the cached bounds.
+     */
+    static final String OTHER = PublishMetrics.OTHER_EXCHANGE;
+
+    /**
+     * Key of the meters shared by exchanges and routing keys beyond the cached bounds.
+     * Exchange names and routing keys can not contain a NUL character, so the key never collides
+     * with a real one.
+     */
+    private static final String OTHER_KEY = "\u0000" + OTHER;
+
+    /**
+     * Percentiles published by the round-trip timer.
+     */
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+
+    /**
+     * Micrometer meter registry.
+     */
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * Resolves the name a call is addressed to, or {@code null} for the default connection, to
+     * the name of the configured connection, failing if no such connection is configured.
+     */
+    private final Function<String, String> connectionNames;
+
+    /**
+     * Meters keyed by connection name, then by exchange and then by routing key.
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, Target>>> targets = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param meterRegistry   Micrometer meter registry.
+     * @param connectionNames Resolves connection names to the names of configured connections.
+     */
+    RpcMetrics(MeterRegistry meterRegistry, Function<String, String> connectionNames) {
+        this.meterRegistry = meterRegistry;
+        this.connectionNames = connectionNames;
+    }
+
+    /**
+     * Returns the meters of the given call target, creating them on first use.
+     *
+     * @param connection Name of the connection, or {@code null} for the default connection.
+     * @param exchange   Exchange requests are published to.
+     * @param routingKey Routing key of the requests.
+     * @return The meters of the call target.
+     */
+    Target target(@Nullable String connection, @Nullable String exchange, @Nullable String routingKey) {
+        String connectionKey = connection != null ? connection : PublishMetrics.DEFAULT_CONNECTION_KEY;
+        String exchangeKey = exchange != null ? exchange : "";
+        String routingKeyKey = routingKey != null ? routingKey : "";
+
+        ConcurrentMap<String, ConcurrentMap<String, Target>> byExchange = targets.get(connectionKey);
+
+        if (byExchange != null) {
+            ConcurrentMap<String, Target> byRoutingKey = byExchange.get(exchangeKey);
+
+            if (byRoutingKey != null) {
+                Target target = byRoutingKey.get(routingKeyKey);
+
+                if (target != null) {
+                    return target;
+                }
+            }
+        }
+
+        String connectionName = PublishMetrics.resolveConnectionName(connectionNames, connection);
+        String connectionTag = connectionName != null ? connectionName : PublishMetrics.OTHER_CONNECTION;
+
+        if (byExchange == null) {
+            byExchange = PublishMetrics.byConnection(targets, connectionKey, connectionName);
+        }
+
+        ConcurrentMap<String, Target> byRoutingKey = byExchange.get(exchangeKey);
+        String exchangeTag = exchangeKey.isEmpty() ? DEFAULT_EXCHANGE : exchangeKey;
+
+        if (byRoutingKey == null) {
+            if (byExchange.size() >= MAX_CACHED_EXCHANGES) {
+                byRoutingKey = byExchange.computeIfAbsent(OTHER_KEY, it -> new ConcurrentHashMap<>());
+                exchangeTag = OTHER;
+            }
+            else {
+                byRoutingKey = byExchange.computeIfAbsent(exchangeKey, it -> new ConcurrentHashMap<>());
+            }
+        }
+
+        String resolvedExchangeTag = exchangeTag;
+
+        if (byRoutingKey.size() >= MAX_CACHED_ROUTING_KEYS) {
+            return byRoutingKey.computeIfAbsent(OTHER_KEY, it -> new Target(connectionTag, resolvedExchangeTag, OTHER));
+        }
+
+        return byRoutingKey.computeIfAbsent(routingKeyKey, it -> new Target(connectionTag, resolvedExchangeTag, it));
+    }
+
+    /**
+     * The meters of a single connection, exchange and routing key.
+     */
+    class Target {
+        /**
+         * Round-trip time of calls that received a reply.
+         */
+        private final Timer roundTrip;
+
+        /**
+         * Size of reply bodies.
+         */
+        private final DistributionSummary replySize;
+
+        /**
+         * Calls that did not receive a reply in time.
+         */
+        private final Counter timeouts;
+
+        /**
+         * Calls currently waiting for a reply.
+         */
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        /**
+         * Constructor.
+         *
+         * @param connection Name of the connection.
+         * @param exchange   Exchange tag value.
+         * @param routingKey Routing key tag value.
+         */
+        Target(String connection, String exchange, String routingKey) {
+            roundTrip = Timer.builder("rabbitmq.rpc").tag("connection", connection).tag("exchange", exchange).tag("routingKey", routingKey)
+                .publishPercentiles(PERCENTILES).publishPercentileHistogram()
+                .description("Time between publishing an RPC request and receiving its reply").register(meterRegistry);
+            replySize = DistributionSummary.builder("rabbitmq.rpc.reply.size").tag("connection", connection).tag("exchange", exchange).tag("routingKey", routingKey)
+                .baseUnit("bytes").description("Size of RPC reply bodies").register(meterRegistry);
+            timeouts = Counter.builder("rabbitmq.rpc.timeouts").tag("connection", connection).tag("exchange", exchange).tag("routingKey", routingKey)
+                .description("RPC calls that did not receive a reply in time").register(meterRegistry);
+            Gauge.builder("rabbitmq.rpc.in.flight", inFlight, AtomicInteger::get).tag("connection", connection).tag("exchange", exchange).tag("routingKey", routingKey)
+                .description("RPC calls waiting for a reply").register(meterRegistry);
+        }
+
+        /**
+         * Records the start of a call.
+         *
+         * @return Time the call started, per {@link System#nanoTime()}.
+         */
+        long begin() {
+            inFlight.incrementAndGet();
+            return System.nanoTime();
+        }
+
+        /**
+         * Records the end of a call started with {@link #begin()}.
+         *
+         * @param start Time the call started.
+         * @param reply Reply of the call, or {@code null} if it failed.
+         * @param error Reason the call failed, or {@code null} if it received a reply.
+         */
+        void end(long start, @Nullable MessageContext reply, @Nullable Throwable error) {
+            inFlight.decrementAndGet();
+
+            if (reply != null) {
+                roundTrip.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                replySize.record(reply.getBody() != null ? reply.getBody().length : 0);
+            }
+            else if (error instanceof TimeoutException) {
+                timeouts.increment();
+            }
+        }
+    }
+}
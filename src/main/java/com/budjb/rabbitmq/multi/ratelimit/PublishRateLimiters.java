@@ -0,0 +1,177 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.ratelimit;
+
+import com.budjb.rabbitmq.multi.config.ConnectionConfiguration;
+import com.budjb.rabbitmq.multi.config.RabbitConfigurationProperties;
+import com.budjb.rabbitmq.multi.config.RateLimitConfiguration;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.lang.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The rate limiters configured for each connection, and for specific exchanges on a connection.
+ * <p>
+ * Limits are keyed by the connection a message is addressed to, so traffic that is routed to a
+ * failover connection still counts against the limit of the connection it was addressed to. A
+ * message published to an exchange with its own limit is counted against that limit and against
+ * the connection's, so an exchange limit can only tighten the connection limit.
+ */
+public class PublishRateLimiters {
+    /**
+     * Limits of each connection that has any configured.
+     */
+    private final Map<String, ConnectionLimits> connections;
+
+    /**
+     * Name of the default connection.
+     */
+    private final String defaultConnection;
+
+    /**
+     * Constructor.
+     *
+     * @param rabbitConfigurationProperties Rabbit configuration properties.
+     * @param meterRegistry                 Micrometer meter registry.
+     */
+    public PublishRateLimiters(RabbitConfigurationProperties rabbitConfigurationProperties, @Nullable MeterRegistry meterRegistry) {
+        Map<String, ConnectionLimits> connections = new HashMap<>();
+        String defaultConnection = null;
+
+        for (Map.Entry<String, ConnectionConfiguration> entry : rabbitConfigurationProperties.getConnections().entrySet()) {
+            String name = entry.getKey();
+            ConnectionConfiguration configuration = entry.getValue();
+
+            if (configuration.isDefault()) {
+                defaultConnection = name;
+            }
+
+            RateLimitConfiguration rateLimit = configuration.getRateLimit();
+            RateLimiter connectionLimiter = rateLimit != null && rateLimit.isEnabled() ? new RateLimiter(name, null, rateLimit, meterRegistry) : null;
+
+            Map<String, RateLimiter> exchangeLimiters = new HashMap<>();
+
+            if (configuration.getExchangeRateLimits() != null) {
+                configuration.getExchangeRateLimits().forEach((exchange, exchangeLimit) -> {
+                    if (exchangeLimit != null && exchangeLimit.isEnabled()) {
+                        exchangeLimiters.put(exchange, new RateLimiter(name, exchange, exchangeLimit, meterRegistry, connectionLimiter));
+                    }
+                });
+            }
+
+            if (connectionLimiter != null || !exchangeLimiters.isEmpty()) {
+                connections.put(name, new ConnectionLimits(connectionLimiter, exchangeLimiters));
+            }
+        }
+
+        this.connections = Collections.unmodifiableMap(connections);
+        this.defaultConnection = defaultConnection;
+    }
+
+    /**
+     * Returns whether any rate limit is configured.
+     *
+     * @return Whether any rate limit is configured.
+     */
+    public boolean isEmpty() {
+        return connections.isEmpty();
+    }
+
+    /**
+     * Returns the rate limiter that applies to messages published to the given exchange through
+     * the given connection. An exchange's limiter also charges the connection's limit.
+     *
+     * @param connection Name of the connection, or {@code null} for the default connection.
+     * @param exchange   Name of the exchange.
+     * @return The rate limiter that applies, or {@code null} if the messages are not limited.
+     */
+    @Nullable
+    public RateLimiter getRateLimiter(@Nullable String connection, @Nullable String exchange) {
+        if (connections.isEmpty()) {
+            return null;
+        }
+
+        ConnectionLimits limits = connections.get(connection != null ? connection : defaultConnection);
+
+        if (limits == null) {
+            return null;
+        }
+
+        RateLimiter exchangeLimiter = exchange != null ? limits.exchanges.get(exchange) : null;
+
+        return exchangeLimiter != null ? exchangeLimiter : limits.connection;
+    }
+
+    /**
+     * Takes the permits for a message published to the given exchange through the given connection.
+     *
+     * @param connection Name of the connection, or {@code null} for the default connection.
+     * @param exchange   Name of the exchange.
+     * @param size       Size of the message body, in bytes.
+     * @throws RateLimitExceededException When the message is not allowed by the limit that applies.
+     * @see RateLimiter#acquire(int)
+     */
+    public void acquire(@Nullable String connection, @Nullable String exchange, int size) throws RateLimitExceededException {
+        RateLimiter rateLimiter = getRateLimiter(connection, exchange);
+
+        if (rateLimiter != null) {
+            rateLimiter.acquire(size);
+        }
+    }
+
+    /**
+     * Takes the permits for a message published to the given exchange through the given connection
+     * if they are available now, without waiting.
+     *
+     * @param connection Name of the connection, or {@code null} for the default connection.
+     * @param exchange   Name of the exchange.
+     * @param size       Size of the message body, in bytes.
+     * @return Whether the message is allowed.
+     * @see RateLimiter#tryAcquire(int)
+     */
+    public boolean tryAcquire(@Nullable String connection, @Nullable String exchange, int size) {
+        RateLimiter rateLimiter = getRateLimiter(connection, exchange);
+
+        return rateLimiter == null || rateLimiter.tryAcquire(size);
+    }
+
+    /**
+     * The limits configured for a single connection.
+     */
+    private static class ConnectionLimits {
+        /**
+         * Limit applied to the whole connection, if configured.
+         */
+        private final RateLimiter connection;
+
+        /**
+         * Limits applied to specific exchanges, keyed by exchange name.
+         */
+        private final Map<String, RateLimiter> exchanges;
+
+        /**
+         * Constructor.
+         */
+        ConnectionLimits(RateLimiter connection, Map<String, RateLimiter> exchanges) {
+            this.connection = connection;
+            this.exchanges = exchanges;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.ratelimit;
+
+import com.budjb.rabbitmq.multi.config.RateLimitConfiguration;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.lang.Nullable;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Limits the rate of messages and message body bytes published to a connection or exchange.
+ * <p>
+ * Each limit is a {@link TokenBucket}. In blocking mode a publish reserves its permits and waits
+ * until they are available, up to the configured maximum wait; in non-blocking mode a publish
+ * that is not allowed immediately is rejected. Time spent waiting is recorded as
+ * {@code rabbitmq.publish.throttle} and rejections are counted as {@code rabbitmq.publish.throttle.rejected}.
+ * <p>
+ * An exchange limit may have its connection's limit as a parent, in which case every message is
+ * charged against both. The exchange limit's blocking mode and maximum wait apply to the combined
+ * wait, and a message that either limit rejects consumes no permits from the other.
+ */
+public class RateLimiter {
+    /**
+     * Name of the connection the limit applies to.
+     */
+    private final String connection;
+
+    /**
+     * Name of the exchange the limit applies to, or {@code null} for the whole connection.
+     */
+    private final String exchange;
+
+    /**
+     * Limit on the number of messages, if configured.
+     */
+    private final TokenBucket messages;
+
+    /**
+     * Limit on the number of message body bytes, if configured.
+     */
+    private final TokenBucket bytes;
+
+    /**
+     * Limit that is charged along with this one, if any.
+     */
+    private final RateLimiter parent;
+
+    /**
+     * Whether publishes wait for the limit to allow them.
+     */
+    private final boolean blocking;
+
+    /**
+     * Maximum amount of time, in nanoseconds, a blocking publish waits.
+     */
+    private final long maxWait;
+
+    /**
+     * Records time spent waiting for the limit.
+     */
+    private final Timer throttleTimer;
+
+    /**
+     * Counts publishes rejected by the limit.
+     */
+    private final Counter rejectedCounter;
+
+    /**
+     * Constructor.
+     *
+     * @param connection    Name of the connection the limit applies to.
+     * @param exchange      Name of the exchange the limit applies to, or {@code null} for the whole connection.
+     * @param configuration Rate limit configuration.
+     * @param meterRegistry Micrometer meter registry.
+     */
+    public RateLimiter(String connection, @Nullable String exchange, RateLimitConfiguration configuration, @Nullable MeterRegistry meterRegistry) {
+        this(connection, exchange, configuration, meterRegistry, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param connection    Name of the connection the limit applies to.
+     * @param exchange      Name of the exchange the limit applies to, or {@code null} for the whole connection.
+     * @param configuration Rate limit configuration.
+     * @param meterRegistry Micrometer meter registry.
+     * @param parent        Limit that is charged along with this one, typically the connection's limit.
+     */
+    public RateLimiter(String connection, @Nullable String exchange, RateLimitConfiguration configuration, @Nullable MeterRegistry meterRegistry, @Nullable RateLimiter parent) {
+        this.connection = connection;
+        this.exchange = exchange;
+        this.messages = configuration.getMessagesPerSecond() > 0 ? new TokenBucket(configuration.getMessagesPerSecond(), configuration.getBurst()) : null;
+        this.bytes = configuration.getBytesPerSecond() > 0 ? new TokenBucket(configuration.getBytesPerSecond(), configuration.getBurst()) : null;
+        this.blocking = configuration.isBlocking();
+        this.maxWait = TimeUnit.MILLISECONDS.toNanos(configuration.getMaxWait());
+        this.parent = parent;
+
+        if (meterRegistry != null) {
+            String scope = exchange != null ? exchange : "*";
+
+            throttleTimer = Timer.builder("rabbitmq.publish.throttle").tag("connection", connection).tag("exchange", scope)
+                .description("Time publishes spent waiting for a rate limit").register(meterRegistry);
+            rejectedCounter = Counter.builder("rabbitmq.publish.throttle.rejected").tag("connection", connection).tag("exchange", scope)
+                .description("Publishes rejected by a rate limit").register(meterRegistry);
+        }
+        else {
+            throttleTimer = null;
+            rejectedCounter = null;
+        }
+    }
+
+    /**
+     * Takes the permits for a message, waiting for them in blocking mode.
+     *
+     * @param size Size of the message body, in bytes.
+     * @throws RateLimitExceededException When the message is not allowed in time, or immediately in non-blocking mode.
+     */
+    public void acquire(int size) throws RateLimitExceededException {
+        long wait = reserve(size, blocking ? maxWait : 0);
+
+        if (wait < 0) {
+            if (rejectedCounter != null) {
+                rejectedCounter.increment();
+            }
+
+            throw new RateLimitExceededException("rate limit of " + describe() + " exceeded");
+        }
+
+        if (wait == 0) {
+            return;
+        }
+
+        if (throttleTimer != null) {
+            throttleTimer.record(wait, TimeUnit.NANOSECONDS);
+        }
+
+        long deadline = System.nanoTime() + wait;
+
+        for (long remaining = wait; remaining > 0; remaining = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(this, remaining);
+
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new RateLimitExceededException("interrupted while waiting for the rate limit of " + describe());
+            }
+        }
+    }
+
+    /**
+     * Takes the permits for a message if they are available now, without waiting.
+     *
+     * @param size Size of the message body, in bytes.
+     * @return Whether the message is allowed.
+     */
+    public boolean tryAcquire(int size) {
+        return reserve(size, 0) == 0;
+    }
+
+    /**
+     * Reserves the permits of this limit and of its parent, returning the longest wait, or {@code -1}
+     * if any limit does not allow the message in time.
+     */
+    private long reserve(int size, long maxWait) {
+        long wait = reserveOwn(size, maxWait);
+
+        if (wait < 0 || parent == null) {
+            return wait;
+        }
+
+        long parentWait = parent.reserve(size, maxWait);
+
+        if (parentWait < 0) {
+            refund(size);
+            return -1;
+        }
+
+        return Math.max(wait, parentWait);
+    }
+
+    /**
+     * Reserves the message and byte permits, returning the longer of the two waits, or {@code -1}
+     * if either limit does not allow the message in time.
+     */
+    private long reserveOwn(int size, long maxWait) {
+        long wait = 0;
+
+        if (messages != null) {
+            wait = messages.reserve(1, maxWait);
+
+            if (wait < 0) {
+                return -1;
+            }
+        }
+
+        if (bytes != null && size > 0) {
+            long byteWait = bytes.reserve(size, maxWait);
+
+            if (byteWait < 0) {
+                if (messages != null) {
+                    messages.refund(1);
+                }
+                return -1;
+            }
+
+            wait = Math.max(wait, byteWait);
+        }
+
+        return wait;
+    }
+
+    /**
+     * Returns the message and byte permits reserved by {@link #reserveOwn(int, long)}.
+     */
+    private void refund(int size) {
+        if (messages != null) {
+            messages.refund(1);
+        }
+
+        if (bytes != null && size > 0) {
+            bytes.refund(size);
+        }
+    }
+
+    /**
+     * Describes the scope of the limit for exception messages.
+     */
+    private String describe() {
+        return exchange != null ? "exchange " + exchange + " on connection " + connection : "connection " + connection;
+    }
+}
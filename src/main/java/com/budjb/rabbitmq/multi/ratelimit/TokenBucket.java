@@ -0,0 +1,123 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.ratelimit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket implemented with the generic cell rate algorithm.
+ * <p>
+ * Instead of a token count that is refilled over time, the bucket tracks a single theoretical
+ * arrival time: the instant at which the bucket would be full again if nothing else were taken
+ * from it. Taking permits pushes that instant forward by the permits' cost, and a request is
+ * allowed without waiting as long as the instant is no more than the burst tolerance ahead of
+ * now. The state is one {@link AtomicLong} updated with compare-and-set, so concurrent publishers
+ * never block each other.
+ * <p>
+ * A request larger than the whole burst is allowed when the bucket is full, and the debt it
+ * leaves behind is paid off by the requests that follow it.
+ */
+public class TokenBucket {
+    /**
+     * Cost of a single permit, in nanoseconds.
+     */
+    private final double permitCost;
+
+    /**
+     * Amount of time, in nanoseconds, the theoretical arrival time may run ahead of now.
+     */
+    private final long tolerance;
+
+    /**
+     * Theoretical arrival time, per {@link System#nanoTime()}.
+     */
+    private final AtomicLong arrivalTime = new AtomicLong(System.nanoTime());
+
+    /**
+     * Constructor.
+     *
+     * @param permitsPerSecond Number of permits replenished per second.
+     * @param burst            Amount of time, in milliseconds, worth of permits that may be taken at once.
+     */
+    public TokenBucket(double permitsPerSecond, long burst) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("permits per second must be greater than 0");
+        }
+        if (burst <= 0) {
+            throw new IllegalArgumentException("burst must be greater than 0");
+        }
+
+        this.permitCost = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+        this.tolerance = TimeUnit.MILLISECONDS.toNanos(burst);
+    }
+
+    /**
+     * Takes the given number of permits if they are available now.
+     *
+     * @param permits Number of permits to take.
+     * @return Whether the permits were taken.
+     */
+    public boolean tryAcquire(long permits) {
+        return reserve(permits, 0) == 0;
+    }
+
+    /**
+     * Reserves the given number of permits if they become available within the given amount of
+     * time. The caller is responsible for waiting the returned amount of time before proceeding.
+     *
+     * @param permits Number of permits to reserve.
+     * @param maxWait Maximum amount of time, in nanoseconds, the caller is willing to wait.
+     * @return The amount of time, in nanoseconds, to wait before the permits are available, or
+     * {@code -1} if they would not be available in time, in which case nothing was reserved.
+     */
+    public long reserve(long permits, long maxWait) {
+        long cost = cost(permits);
+
+        while (true) {
+            long now = System.nanoTime();
+            long arrival = arrivalTime.get();
+            boolean full = arrival - now <= 0;
+            long next = (full ? now : arrival) + cost;
+            long wait = full ? 0 : Math.max(0, next - now - tolerance);
+
+            if (wait > maxWait) {
+                return -1;
+            }
+
+            if (arrivalTime.compareAndSet(arrival, next)) {
+                return wait;
+            }
+        }
+    }
+
+    /**
+     * Returns previously reserved permits to the bucket.
+     *
+     * @param permits Number of permits to return.
+     */
+    public void refund(long permits) {
+        arrivalTime.addAndGet(-cost(permits));
+    }
+
+    /**
+     * Returns the cost of the given number of permits, in nanoseconds.
+     */
+    private long cost(long permits) {
+        return (long) Math.ceil(permits * permitCost);
+    }
+}
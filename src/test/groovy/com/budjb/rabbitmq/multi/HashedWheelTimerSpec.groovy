@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi
+
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class HashedWheelTimerSpec extends Specification {
+    HashedWheelTimer timer
+
+    def setup() {
+        timer = new HashedWheelTimer('test-timer', 5, TimeUnit.MILLISECONDS, 8)
+    }
+
+    def cleanup() {
+        timer.stop()
+    }
+
+    def 'A scheduled task runs once its delay has elapsed'() {
+        setup:
+        CountDownLatch latch = new CountDownLatch(1)
+        long start = System.nanoTime()
+
+        when:
+        timer.schedule({ latch.countDown() }, 50, TimeUnit.MILLISECONDS)
+
+        then:
+        latch.await(5, TimeUnit.SECONDS)
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 50
+    }
+
+    def 'A task whose delay spans several revolutions of the wheel runs after the full delay'() {
+        setup:
+        CountDownLatch latch = new CountDownLatch(1)
+        long start = System.nanoTime()
+
+        when:
+        timer.schedule({ latch.countDown() }, 120, TimeUnit.MILLISECONDS)
+
+        then:
+        latch.await(5, TimeUnit.SECONDS)
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 120
+    }
+
+    def 'A cancelled task does not run'() {
+        setup:
+        boolean ran = false
+        CountDownLatch latch = new CountDownLatch(1)
+
+        when:
+        HashedWheelTimer.Timeout timeout = timer.schedule({ ran = true }, 20, TimeUnit.MILLISECONDS)
+        boolean cancelled = timeout.cancel()
+        timer.schedule({ latch.countDown() }, 60, TimeUnit.MILLISECONDS)
+        latch.await(5, TimeUnit.SECONDS)
+
+        then:
+        cancelled
+        !timeout.cancel()
+        !ran
+    }
+
+    def 'A stopped timer rejects new tasks'() {
+        when:
+        timer.stop()
+        timer.schedule({}, 10, TimeUnit.MILLISECONDS)
+
+        then:
+        thrown IllegalStateException
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.compression
+
+import com.budjb.rabbitmq.multi.MessageContext
+import com.rabbitmq.client.AMQP.BasicProperties
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.util.zip.GZIPInputStream
+import java.util.zip.InflaterInputStream
+
+class CompressionManagerSpec extends Specification {
+    static final byte[] TEXT = ('The quick brown fox jumps over the lazy dog. ' * 200).bytes
+
+    @Unroll
+    def 'The #compressor.encoding compressor restores the bodies it compresses'() {
+        when:
+        byte[] compressed = compressor.compress(TEXT)
+
+        then:
+        compressed.length < TEXT.length
+        compressor.decompress(compressed) == TEXT
+
+        where:
+        compressor << [new GzipCompressor(), new DeflateCompressor(), new Lz4Compressor(), new ZstdCompressor(), new GzipCompressor(1), new ZstdCompressor(19)]
+    }
+
+    def 'Gzip and deflate bodies are readable by the standard library streams'() {
+        expect:
+        new GZIPInputStream(new ByteArrayInputStream(new GzipCompressor().compress(TEXT))).bytes == TEXT
+        new InflaterInputStream(new ByteArrayInputStream(new DeflateCompressor().compress(TEXT))).bytes == TEXT
+    }
+
+    @Unroll
+    def 'The #compressor.encoding compressor does not compress bodies that would not become smaller'() {
+        setup:
+        byte[] random = new byte[4096]
+        new Random(42).nextBytes(random)
+
+        expect:
+        compressor.compress(random) == null
+        compressor.compress(new byte[0]) == null
+
+        where:
+        compressor << [new GzipCompressor(), new DeflateCompressor(), new Lz4Compressor(), new ZstdCompressor()]
+    }
+
+    def 'Corrupt bodies fail to decompress'() {
+        when:
+        new GzipCompressor().decompress([1, 2, 3, 4] as byte[])
+
+        then:
+        thrown IOException
+
+        when:
+        byte[] truncated = new DeflateCompressor().compress(TEXT)
+        new DeflateCompressor().decompress(Arrays.copyOf(truncated, truncated.length - 8))
+
+        then:
+        thrown IOException
+    }
+
+    def 'Bodies below the threshold are not compressed'() {
+        setup:
+        CompressionManager compressionManager = new CompressionManager([new GzipCompressor()], 'gzip', 1024)
+
+        expect:
+        compressionManager.compress(Arrays.copyOf(TEXT, 1023)) == null
+        compressionManager.compress(Arrays.copyOf(TEXT, 1024)) != null
+        compressionManager.compress(null) == null
+    }
+
+    def 'Bodies are decompressed by the compressor of their content encoding'() {
+        setup:
+        CompressionManager compressionManager = new CompressionManager([new GzipCompressor(), new DeflateCompressor()], 'gzip', 0)
+        byte[] deflated = new DeflateCompressor().compress(TEXT)
+
+        expect:
+        compressionManager.encoding == 'gzip'
+        compressionManager.decompress(compressionManager.compress(TEXT), 'gzip') == TEXT
+        compressionManager.decompress(deflated, 'Deflate') == TEXT
+        compressionManager.decompress(deflated, 'utf-8').is(deflated)
+        compressionManager.decompress(deflated, null).is(deflated)
+    }
+
+    def 'A decompressed message no longer carries its content encoding'() {
+        setup:
+        CompressionManager compressionManager = new CompressionManager([new GzipCompressor()], 'gzip', 0)
+        MessageContext compressed = new MessageContext(new BasicProperties.Builder().contentType('text/plain').contentEncoding('gzip').correlationId('foo').build(), compressionManager.compress(TEXT))
+        MessageContext plain = new MessageContext(new BasicProperties.Builder().contentEncoding('utf-8').build(), TEXT)
+
+        when:
+        MessageContext decompressed = compressionManager.decompress(compressed)
+
+        then:
+        decompressed.body == TEXT
+        decompressed.properties.contentEncoding == null
+        decompressed.properties.contentType == 'text/plain'
+        decompressed.properties.correlationId == 'foo'
+        compressionManager.decompress(plain).is(plain)
+    }
+
+    def 'A content encoding without a compressor is rejected'() {
+        when:
+        new CompressionManager([new GzipCompressor()], 'br', 0)
+
+        then:
+        thrown IllegalArgumentException
+    }
+
+    def 'Compression ratios, incompressible bodies, and compression time are recorded per encoding'() {
+        setup:
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry()
+        CompressionManager compressionManager = new CompressionManager([new GzipCompressor()], 'gzip', 0, meterRegistry)
+        byte[] random = new byte[4096]
+        new Random(42).nextBytes(random)
+
+        when:
+        byte[] compressed = compressionManager.compress(TEXT)
+        compressionManager.compress(random)
+        compressionManager.decompress(compressed, 'gzip')
+
+        then:
+        meterRegistry.get('rabbitmq.compression.ratio').tag('encoding', 'gzip').summary().count() == 1
+        meterRegistry.get('rabbitmq.compression.ratio').tag('encoding', 'gzip').summary().max() == (TEXT.length as double) / compressed.length
+        meterRegistry.get('rabbitmq.compression.incompressible').tag('encoding', 'gzip').counter().count() == 1
+        meterRegistry.get('rabbitmq.compression.time').tags('encoding', 'gzip', 'operation', 'compress').timer().count() == 2
+        meterRegistry.get('rabbitmq.compression.time').tags('encoding', 'gzip', 'operation', 'decompress').timer().count() == 1
+    }
+}
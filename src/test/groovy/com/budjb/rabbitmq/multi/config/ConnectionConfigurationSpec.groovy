@@ -31,6 +31,17 @@ class ConnectionConfigurationSpec extends Specification {
         configuration.getThreadPoolSize() == 0
         configuration.getClientProperties().isEmpty()
         configuration.getRequestedHeartbeat() == ConnectionFactory.DEFAULT_HEARTBEAT
+        configuration.getChannelPoolSize() == 16
+        configuration.getChannelPoolIdleTimeout() == 60000
+        configuration.getChannelPoolBorrowTimeout() == 5000
+        configuration.getConfirmChannelCount() == 1
+        !configuration.isDirectReplyTo()
+        configuration.getConnectionCount() == 1
+        configuration.getStripeSelection() == StripeSelection.ROUND_ROBIN
+        configuration.getUris().isEmpty()
+        configuration.getNodeUris().isEmpty()
+        !configuration.isUriConfigured()
+        configuration.getNodeEjectionTime() == 5000
     }
 
     def 'Non-default values are returned correctly'() {
@@ -44,6 +55,14 @@ class ConnectionConfigurationSpec extends Specification {
         configuration.threadPoolSize = 1
         configuration.clientProperties = ['foo': 'bar']
         configuration.requestedHeartbeat = 1234
+        configuration.channelPoolSize = 4
+        configuration.channelPoolIdleTimeout = 10
+        configuration.channelPoolBorrowTimeout = 20
+        configuration.confirmChannelCount = 3
+        configuration.directReplyTo = true
+        configuration.connectionCount = 4
+        configuration.stripeSelection = StripeSelection.LEAST_CHANNELS
+        configuration.nodeEjectionTime = 100
 
         expect:
         configuration.uri.is uri
@@ -52,5 +71,26 @@ class ConnectionConfigurationSpec extends Specification {
         configuration.getThreadPoolSize() == 1
         configuration.getClientProperties() == ['foo': 'bar']
         configuration.getRequestedHeartbeat() == 1234
+        configuration.getChannelPoolSize() == 4
+        configuration.getChannelPoolIdleTimeout() == 10
+        configuration.getChannelPoolBorrowTimeout() == 20
+        configuration.getConfirmChannelCount() == 3
+        configuration.isDirectReplyTo()
+        configuration.getConnectionCount() == 4
+        configuration.getStripeSelection() == StripeSelection.LEAST_CHANNELS
+        configuration.getNodeUris() == [uri]
+        configuration.isUriConfigured()
+        configuration.getNodeEjectionTime() == 100
+    }
+
+    def 'Cluster URIs take precedence over the single URI'() {
+        setup:
+        ConnectionConfiguration configuration = new ConnectionConfiguration()
+        configuration.uri = new URI('amqp://foo.com')
+        configuration.uris = [new URI('amqp://node1.com'), new URI('amqp://node2.com')]
+
+        expect:
+        configuration.getNodeUris() == [new URI('amqp://node1.com'), new URI('amqp://node2.com')]
+        configuration.getConnectionParameters().host == 'node1.com'
     }
 }
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.connection
+
+import com.budjb.rabbitmq.multi.config.BlockedPolicy
+import com.budjb.rabbitmq.multi.config.ConnectionConfiguration
+import com.rabbitmq.client.AMQP.BasicProperties
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+
+class BlockedPublishGateSpec extends Specification {
+    List<String> published = Collections.synchronizedList([])
+
+    BlockedPublishGate createGate(BlockedPolicy policy, Map options = [:]) {
+        ConnectionConfiguration configuration = new ConnectionConfiguration(blockedPolicy: policy)
+        options.each { key, value -> configuration[key] = value }
+
+        return new BlockedPublishGate('foo', configuration, { String exchange, String routingKey, BasicProperties properties, byte[] body ->
+            published << new String(body)
+            return CompletableFuture.completedFuture(null)
+        }, null)
+    }
+
+    def 'Publishes proceed untouched while the connection is not blocked'() {
+        setup:
+        BlockedPublishGate gate = createGate(policy)
+
+        when:
+        gate.awaitUnblocked()
+        CompletableFuture<Void> deferred = gate.deferIfBlocked('ex', 'rk', new BasicProperties(), 'a'.bytes)
+
+        then:
+        deferred == null
+        !gate.blocked
+
+        where:
+        policy << BlockedPolicy.values()
+    }
+
+    def 'The fail-fast policy rejects publishes while the connection is blocked'() {
+        setup:
+        BlockedPublishGate gate = createGate(BlockedPolicy.FAIL_FAST)
+        gate.setBlocked(true)
+
+        when:
+        gate.deferIfBlocked('ex', 'rk', new BasicProperties(), 'a'.bytes)
+
+        then:
+        thrown ConnectionBlockedException
+    }
+
+    def 'The block policy waits for the connection to be unblocked'() {
+        setup:
+        BlockedPublishGate gate = createGate(BlockedPolicy.BLOCK, [blockedTimeout: 5000])
+        gate.setBlocked(true)
+
+        when:
+        CompletableFuture<Void> waiter = CompletableFuture.runAsync { gate.awaitUnblocked() }
+        sleep(50)
+
+        then:
+        !waiter.isDone()
+
+        when:
+        gate.setBlocked(false)
+        waiter.get(5, TimeUnit.SECONDS)
+
+        then:
+        noExceptionThrown()
+    }
+
+    def 'The block policy fails once the timeout passes'() {
+        setup:
+        BlockedPublishGate gate = createGate(BlockedPolicy.BLOCK, [blockedTimeout: 20])
+        gate.setBlocked(true)
+
+        when:
+        gate.awaitUnblocked()
+
+        then:
+        thrown ConnectionBlockedException
+    }
+
+    def 'The buffer policy holds messages until the connection is unblocked and publishes them in order'() {
+        setup:
+        BlockedPublishGate gate = createGate(BlockedPolicy.BUFFER)
+        gate.setBlocked(true)
+
+        when:
+        List<CompletableFuture<Void>> futures = (1..3).collect { gate.deferIfBlocked('ex', 'rk', new BasicProperties(), "message-${it}".toString().bytes) }
+
+        then:
+        futures.every { it != null && !it.isDone() }
+        gate.bufferedCount == 3
+        published.isEmpty()
+
+        when:
+        gate.setBlocked(false)
+        CompletableFuture.allOf(futures as CompletableFuture[]).get(5, TimeUnit.SECONDS)
+
+        then:
+        published == ['message-1', 'message-2', 'message-3']
+        gate.bufferedCount == 0
+    }
+
+    def 'The buffer policy rejects messages once its byte budget is spent'() {
+        setup:
+        BlockedPublishGate gate = createGate(BlockedPolicy.BUFFER, [blockedBufferSize: 10])
+        gate.setBlocked(true)
+
+        when:
+        gate.deferIfBlocked('ex', 'rk', new BasicProperties(), new byte[6])
+
+        then:
+        gate.bufferedCount == 1
+
+        when:
+        gate.deferIfBlocked('ex', 'rk', new BasicProperties(), new byte[6])
+
+        then:
+        thrown ConnectionBlockedException
+        gate.bufferedCount == 1
+    }
+
+    def 'Closing the gate fails buffered messages'() {
+        setup:
+        BlockedPublishGate gate = createGate(BlockedPolicy.BUFFER)
+        gate.setBlocked(true)
+        CompletableFuture<Void> future = gate.deferIfBlocked('ex', 'rk', new BasicProperties(), 'a'.bytes)
+
+        when:
+        gate.close()
+        future.get()
+
+        then:
+        ExecutionException e = thrown ExecutionException
+        e.cause instanceof IOException
+        !gate.blocked
+        published.isEmpty()
+    }
+
+    def 'Buffered messages that fail to be published are counted'() {
+        setup:
+        SimpleMeterRegistry registry = new SimpleMeterRegistry()
+        String flushThread = null
+        BlockedPublishGate gate = new BlockedPublishGate('foo', new ConnectionConfiguration(blockedPolicy: BlockedPolicy.BUFFER), { a, b, c, d ->
+            flushThread = Thread.currentThread().name
+            CompletableFuture<Void> confirm = new CompletableFuture<>()
+            confirm.completeExceptionally(new MessageNackedException('nacked'))
+            return confirm
+        }, registry)
+        gate.setBlocked(true)
+        List<CompletableFuture<Void>> futures = (1..2).collect { gate.deferIfBlocked('ex', 'rk', new BasicProperties(), "message-${it}".toString().bytes) }
+
+        when:
+        gate.setBlocked(false)
+        CompletableFuture.allOf(futures as CompletableFuture[]).get(5, TimeUnit.SECONDS)
+
+        then:
+        ExecutionException e = thrown ExecutionException
+        e.cause instanceof MessageNackedException
+        futures.every { it.isCompletedExceptionally() }
+        flushThread == 'rabbitmq-blocked-flush-foo'
+        registry.get('rabbitmq.connection.blocked.buffer.failed').tag('connection', 'foo').counter().count() == 2
+    }
+
+    def 'The time a connection is blocked is recorded'() {
+        setup:
+        SimpleMeterRegistry registry = new SimpleMeterRegistry()
+        BlockedPublishGate gate = new BlockedPublishGate('foo', new ConnectionConfiguration(), { a, b, c, d -> null }, registry)
+
+        when:
+        gate.setBlocked(true)
+        sleep(20)
+        gate.setBlocked(false)
+
+        then:
+        registry.get('rabbitmq.connection.blocked').tag('connection', 'foo').timer().count() == 1
+        registry.get('rabbitmq.connection.blocked').timer().totalTime(TimeUnit.MILLISECONDS) >= 20
+    }
+}
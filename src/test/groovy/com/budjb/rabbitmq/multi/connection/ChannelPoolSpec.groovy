@@ -0,0 +1,187 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.connection
+
+import com.rabbitmq.client.Channel
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+
+import java.util.concurrent.TimeoutException
+
+class ChannelPoolSpec extends Specification {
+    def 'A returned channel is reused by the next borrow'() {
+        setup:
+        Channel channel = Mock(Channel)
+        channel.isOpen() >> true
+        ChannelPool.ChannelFactory factory = Mock(ChannelPool.ChannelFactory)
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry()
+        ChannelPool pool = new ChannelPool('foo', factory, 2, 60000, 100, meterRegistry)
+
+        when:
+        PooledChannel first = pool.borrow()
+        first.close()
+        PooledChannel second = pool.borrow()
+
+        then:
+        1 * factory.createChannel() >> channel
+        second.channel.is first.channel
+        meterRegistry.get('rabbitmq.channel.pool.borrow').tag('result', 'hit').counter().count() == 1
+        meterRegistry.get('rabbitmq.channel.pool.borrow').tag('result', 'miss').counter().count() == 1
+    }
+
+    def 'A channel closed while borrowed is discarded when it is returned'() {
+        setup:
+        Channel channel = Mock(Channel)
+        channel.isOpen() >> false
+        ChannelPool.ChannelFactory factory = Mock(ChannelPool.ChannelFactory)
+        factory.createChannel() >> channel
+        ChannelPool pool = new ChannelPool('foo', factory, 2, 60000, 100, null)
+
+        when:
+        pool.borrow().close()
+
+        then:
+        pool.idleCount == 0
+        pool.availablePermits == 2
+    }
+
+    def 'Borrowing from an exhausted pool times out'() {
+        setup:
+        ChannelPool.ChannelFactory factory = Mock(ChannelPool.ChannelFactory)
+        factory.createChannel() >> Mock(Channel)
+        ChannelPool pool = new ChannelPool('foo', factory, 1, 60000, 10, null)
+        pool.borrow()
+
+        when:
+        pool.borrow()
+
+        then:
+        thrown TimeoutException
+    }
+
+    def 'Channels idle longer than the idle timeout are closed'() {
+        setup:
+        Channel channel = Mock(Channel)
+        channel.isOpen() >> true
+        ChannelPool.ChannelFactory factory = Mock(ChannelPool.ChannelFactory)
+        factory.createChannel() >> channel
+        ChannelPool pool = new ChannelPool('foo', factory, 2, 0, 100, null)
+
+        PooledChannel first = pool.borrow()
+        PooledChannel second = pool.borrow()
+        first.close()
+        sleep(5)
+
+        when:
+        second.close()
+
+        then:
+        1 * channel.close()
+    }
+
+    def 'Clearing the pool closes idle channels'() {
+        setup:
+        Channel channel = Mock(Channel)
+        channel.isOpen() >> true
+        ChannelPool.ChannelFactory factory = Mock(ChannelPool.ChannelFactory)
+        factory.createChannel() >> channel
+        ChannelPool pool = new ChannelPool('foo', factory, 2, 60000, 100, null)
+        pool.borrow().close()
+
+        when:
+        pool.clear()
+
+        then:
+        1 * channel.close()
+        pool.idleCount == 0
+    }
+
+    def 'Closing a pooled channel twice returns it to the pool once'() {
+        setup:
+        Channel channel = Mock(Channel) { isOpen() >> true }
+        Channel other = Mock(Channel) { isOpen() >> true }
+        ChannelPool.ChannelFactory factory = Mock(ChannelPool.ChannelFactory)
+        ChannelPool pool = new ChannelPool('foo', factory, 2, 60000, 100, null)
+
+        when:
+        PooledChannel first = pool.borrow()
+        first.close()
+        first.close()
+        PooledChannel second = pool.borrow()
+        PooledChannel third = pool.borrow()
+
+        then:
+        2 * factory.createChannel() >>> [channel, other]
+        second.channel.is first.channel
+        !third.channel.is(first.channel)
+        pool.availablePermits == 0
+
+        when:
+        second.close()
+        second.close()
+
+        then:
+        pool.idleCount == 1
+        pool.availablePermits == 1
+    }
+
+    def 'Channels idle longer than the idle timeout are closed when a channel is borrowed'() {
+        setup:
+        Channel stale = Mock(Channel)
+        stale.isOpen() >> true
+        Channel fresh = Mock(Channel) { isOpen() >> true }
+        ChannelPool.ChannelFactory factory = Mock(ChannelPool.ChannelFactory)
+        ChannelPool pool = new ChannelPool('foo', factory, 2, 0, 100, null)
+
+        when:
+        pool.borrow().close()
+        sleep(5)
+        pool.borrow()
+
+        then:
+        2 * factory.createChannel() >>> [stale, fresh]
+        1 * stale.close()
+        pool.idleCount == 0
+    }
+
+    def 'Closing a pooled channel after its channel was borrowed again does not return the new borrow'() {
+        setup:
+        Channel channel = Mock(Channel) { isOpen() >> true }
+        ChannelPool.ChannelFactory factory = Mock(ChannelPool.ChannelFactory)
+        factory.createChannel() >> channel
+        ChannelPool pool = new ChannelPool('foo', factory, 2, 60000, 100, null)
+
+        when:
+        PooledChannel stale = pool.borrow()
+        stale.close()
+        PooledChannel current = pool.borrow()
+        stale.close()
+
+        then:
+        current.channel.is channel
+        !current.is(stale)
+        pool.idleCount == 0
+        pool.availablePermits == 1
+
+        when:
+        current.close()
+
+        then:
+        pool.idleCount == 1
+        pool.availablePermits == 2
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.connection
+
+import com.rabbitmq.client.AMQP.BasicProperties
+import com.rabbitmq.client.Channel
+import com.rabbitmq.client.ShutdownSignalException
+import spock.lang.Specification
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+
+class ConfirmChannelSpec extends Specification {
+    Channel channel
+    long sequence
+
+    def setup() {
+        sequence = 1
+        channel = Mock(Channel)
+        channel.getNextPublishSeqNo() >> { sequence++ }
+    }
+
+    def 'Creating a confirm channel places the channel in confirm mode'() {
+        when:
+        new ConfirmChannel(channel)
+
+        then:
+        1 * channel.confirmSelect()
+        1 * channel.addConfirmListener(_ as ConfirmChannel)
+        1 * channel.addShutdownListener(_ as ConfirmChannel)
+    }
+
+    def 'A multiple ack completes every outstanding future up to the delivery tag'() {
+        setup:
+        ConfirmChannel confirmChannel = new ConfirmChannel(channel)
+        List<CompletableFuture<Void>> futures = (1..5).collect {
+            confirmChannel.publish('foo', 'bar', new BasicProperties(), new byte[0])
+        }
+
+        when:
+        confirmChannel.handleAck(3, true)
+
+        then:
+        futures[0..2].every { it.isDone() && !it.isCompletedExceptionally() }
+        futures[3..4].every { !it.isDone() }
+        confirmChannel.outstandingCount == 2
+
+        when:
+        confirmChannel.handleAck(5, false)
+
+        then:
+        futures[4].isDone()
+        !futures[3].isDone()
+        confirmChannel.outstandingCount == 1
+    }
+
+    def 'A nack completes the future exceptionally'() {
+        setup:
+        ConfirmChannel confirmChannel = new ConfirmChannel(channel)
+        CompletableFuture<Void> future = confirmChannel.publish('foo', 'bar', new BasicProperties(), new byte[0])
+
+        when:
+        confirmChannel.handleNack(1, false)
+        future.get()
+
+        then:
+        ExecutionException e = thrown ExecutionException
+        e.cause instanceof MessageNackedException
+    }
+
+    def 'A channel shutdown fails all outstanding futures'() {
+        setup:
+        ConfirmChannel confirmChannel = new ConfirmChannel(channel)
+        List<CompletableFuture<Void>> futures = (1..3).collect {
+            confirmChannel.publish('foo', 'bar', new BasicProperties(), new byte[0])
+        }
+
+        when:
+        confirmChannel.shutdownCompleted(new ShutdownSignalException(false, false, null, null))
+
+        then:
+        futures.every { it.isCompletedExceptionally() }
+        confirmChannel.outstandingCount == 0
+    }
+
+    def 'Outstanding confirms grow beyond their initial capacity'() {
+        setup:
+        ConfirmChannel confirmChannel = new ConfirmChannel(channel)
+        List<CompletableFuture<Void>> futures = (1..200).collect {
+            confirmChannel.publish('foo', 'bar', new BasicProperties(), new byte[0])
+        }
+
+        when:
+        confirmChannel.handleAck(150, true)
+
+        then:
+        futures[0..149].every { it.isDone() }
+        futures[150..199].every { !it.isDone() }
+        confirmChannel.outstandingCount == 50
+    }
+
+    def 'A failed publish is not tracked'() {
+        setup:
+        ConfirmChannel confirmChannel = new ConfirmChannel(channel)
+        channel.basicPublish(*_) >> { throw new IOException() }
+
+        when:
+        confirmChannel.publish('foo', 'bar', new BasicProperties(), new byte[0])
+
+        then:
+        thrown IOException
+        confirmChannel.outstandingCount == 0
+    }
+
+    def 'Confirm latency is sampled for one in every 16 messages'() {
+        setup:
+        List<Long> latencies = []
+        ConfirmChannel confirmChannel = new ConfirmChannel(channel, { long latency -> latencies << latency })
+        (1..32).each { confirmChannel.publish('foo', 'bar', new BasicProperties(), new byte[0]) }
+
+        when:
+        confirmChannel.handleAck(32, true)
+
+        then:
+        latencies.size() == 2
+        latencies.every { it >= 0 }
+    }
+}
@@ -17,10 +17,15 @@
 package com.budjb.rabbitmq.multi.connection
 
 import com.budjb.rabbitmq.multi.RunningState
+import com.budjb.rabbitmq.multi.config.BlockedPolicy
 import com.budjb.rabbitmq.multi.config.ConnectionConfiguration
 import com.budjb.rabbitmq.multi.config.MockConnectionProvider
+import com.budjb.rabbitmq.multi.config.StripeSelection
+import com.rabbitmq.client.BlockedCallback
+import com.rabbitmq.client.Channel
 import com.rabbitmq.client.Connection
 import com.rabbitmq.client.ConnectionFactory
+import com.rabbitmq.client.UnblockedCallback
 import spock.lang.Specification
 
 import java.util.concurrent.ExecutorService
@@ -107,6 +112,275 @@ class ConnectionContextSpec extends Specification {
         context.createChannel()
 
         then:
-        1 * connection.createChannel()
+        1 * connection.createChannel() >> { Mock(Channel) }
+    }
+
+    def 'Channels are spread round-robin across stripes and closed stripes are skipped'() {
+        setup:
+        Connection first = Mock(Connection)
+        Connection second = Mock(Connection)
+        Connection third = Mock(Connection)
+        ConnectionFactory factory = Mock(ConnectionFactory)
+        factory.newConnection((ExecutorService) _) >>> [first, second, third]
+        ConnectionProvider provider = new MockConnectionProvider(factory)
+
+        ConnectionConfiguration configuration = new ConnectionConfiguration()
+        configuration.uri = new URI('amqps://localhost/foo')
+        configuration.connectionCount = 3
+
+        ConnectionContext context = new ConnectionContext('foo', configuration, provider, null)
+        context.start()
+
+        first.isOpen() >> true
+        second.isOpen() >> false
+        third.isOpen() >> true
+
+        when:
+        4.times { context.createChannel() }
+
+        then:
+        context.stripes.size() == 3
+        2 * first.createChannel() >> { Mock(Channel) }
+        0 * second.createChannel()
+        2 * third.createChannel() >> { Mock(Channel) }
+    }
+
+    def 'Pooled channels are borrowed from the stripe selected for each borrow'() {
+        setup:
+        Channel firstChannel = Mock(Channel) { isOpen() >> true }
+        Channel secondChannel = Mock(Channel) { isOpen() >> true }
+        Channel thirdChannel = Mock(Channel) { isOpen() >> true }
+        Connection first = Mock(Connection) { isOpen() >> true }
+        Connection second = Mock(Connection) { isOpen() >> true }
+        Connection third = Mock(Connection) { isOpen() >> true }
+        ConnectionFactory factory = Mock(ConnectionFactory)
+        factory.newConnection((ExecutorService) _) >>> [first, second, third]
+
+        ConnectionConfiguration configuration = new ConnectionConfiguration()
+        configuration.uri = new URI('amqps://localhost/foo')
+        configuration.connectionCount = 3
+
+        ConnectionContext context = new ConnectionContext('foo', configuration, new MockConnectionProvider(factory), null)
+        context.start()
+
+        when:
+        List<Channel> borrowed = (1..6).collect {
+            PooledChannel pooledChannel = context.borrowChannel()
+            pooledChannel.close()
+            return pooledChannel.channel
+        }
+
+        then:
+        1 * first.createChannel() >> firstChannel
+        1 * second.createChannel() >> secondChannel
+        1 * third.createChannel() >> thirdChannel
+        borrowed == [firstChannel, secondChannel, thirdChannel, firstChannel, secondChannel, thirdChannel]
+        context.stripes*.channelPool*.idleCount == [1, 1, 1]
+    }
+
+    def 'Idle channels of a blocked stripe are not borrowed'() {
+        setup:
+        BlockedCallback blocked
+        Channel firstChannel = Mock(Channel) { isOpen() >> true }
+        Channel secondChannel = Mock(Channel) { isOpen() >> true }
+        Connection first = Mock(Connection) {
+            isOpen() >> true
+            createChannel() >> firstChannel
+            addBlockedListener(_ as BlockedCallback, _ as UnblockedCallback) >> { BlockedCallback b, UnblockedCallback u ->
+                blocked = b
+                return null
+            }
+        }
+        Connection second = Mock(Connection) {
+            isOpen() >> true
+            createChannel() >> secondChannel
+        }
+        ConnectionFactory factory = Mock(ConnectionFactory)
+        factory.newConnection((ExecutorService) _) >>> [first, second]
+
+        ConnectionConfiguration configuration = new ConnectionConfiguration()
+        configuration.uri = new URI('amqps://localhost/foo')
+        configuration.connectionCount = 2
+
+        ConnectionContext context = new ConnectionContext('foo', configuration, new MockConnectionProvider(factory), null)
+        context.start()
+
+        2.times { context.borrowChannel().close() }
+
+        when:
+        blocked.handle('low on memory')
+        List<Channel> borrowed = (1..4).collect {
+            PooledChannel pooledChannel = context.borrowChannel()
+            pooledChannel.close()
+            return pooledChannel.channel
+        }
+
+        then:
+        !context.blocked
+        borrowed.every { it.is(secondChannel) }
+        context.stripes[0].channelPool.idleCount == 1
+    }
+
+    def 'Least-channels selection opens channels on the stripe with the fewest open channels'() {
+        setup:
+        Connection first = Mock(Connection)
+        Connection second = Mock(Connection)
+        ConnectionFactory factory = Mock(ConnectionFactory)
+        factory.newConnection((ExecutorService) _) >>> [first, second]
+        ConnectionProvider provider = new MockConnectionProvider(factory)
+
+        ConnectionConfiguration configuration = new ConnectionConfiguration()
+        configuration.uri = new URI('amqps://localhost/foo')
+        configuration.connectionCount = 2
+        configuration.stripeSelection = StripeSelection.LEAST_CHANNELS
+
+        ConnectionContext context = new ConnectionContext('foo', configuration, provider, null)
+        context.start()
+
+        first.isOpen() >> true
+        second.isOpen() >> true
+        first.createChannel() >> { Mock(Channel) }
+        second.createChannel() >> { Mock(Channel) }
+
+        when:
+        3.times { context.createChannel() }
+
+        then:
+        context.stripes*.openChannels == [2, 1]
+    }
+
+    def 'Stopping a striped context closes every connection'() {
+        setup:
+        Connection first = Mock(Connection)
+        Connection second = Mock(Connection)
+        ConnectionFactory factory = Mock(ConnectionFactory)
+        factory.newConnection((ExecutorService) _) >>> [first, second]
+        ConnectionProvider provider = new MockConnectionProvider(factory)
+
+        ConnectionConfiguration configuration = new ConnectionConfiguration()
+        configuration.uri = new URI('amqps://localhost/foo')
+        configuration.connectionCount = 2
+
+        ConnectionContext context = new ConnectionContext('foo', configuration, provider, null)
+        context.start()
+
+        first.isOpen() >> true
+        second.isOpen() >> true
+
+        when:
+        context.stop()
+
+        then:
+        1 * first.close()
+        1 * second.close()
+        context.runningState == RunningState.STOPPED
+    }
+
+    def 'A connection is opened to every cluster node and channels are spread across them'() {
+        setup:
+        Connection first = Mock(Connection)
+        Connection second = Mock(Connection)
+        ConnectionFactory factory = Mock(ConnectionFactory)
+        factory.newConnection((ExecutorService) _) >>> [first, second]
+        ConnectionProvider provider = new MockConnectionProvider(factory)
+
+        ConnectionConfiguration configuration = new ConnectionConfiguration()
+        configuration.uris = [new URI('amqp://node1/foo'), new URI('amqp://node2/foo')]
+
+        ConnectionContext context = new ConnectionContext('foo', configuration, provider, null)
+
+        first.isOpen() >> true
+        second.isOpen() >> true
+
+        when:
+        context.start()
+
+        then:
+        1 * factory.setHost('node1')
+        1 * factory.setHost('node2')
+        context.stripes*.connectionParameters*.host == ['node1', 'node2']
+
+        when:
+        2.times { context.createChannel() }
+
+        then:
+        1 * first.createChannel() >> { Mock(Channel) }
+        1 * second.createChannel() >> { Mock(Channel) }
+    }
+
+    def 'A custom stripe selector is used to pick stripes'() {
+        setup:
+        Connection first = Mock(Connection)
+        Connection second = Mock(Connection)
+        ConnectionFactory factory = Mock(ConnectionFactory)
+        factory.newConnection((ExecutorService) _) >>> [first, second]
+        ConnectionProvider provider = new MockConnectionProvider(factory)
+
+        ConnectionConfiguration configuration = new ConnectionConfiguration()
+        configuration.uri = new URI('amqp://localhost/foo')
+        configuration.connectionCount = 2
+
+        StripeSelector selector = { List<ConnectionStripe> stripes -> stripes[1] } as StripeSelector
+        ConnectionContext context = new ConnectionContext('foo', configuration, provider, null, selector)
+        context.start()
+
+        when:
+        3.times { context.createChannel() }
+
+        then:
+        0 * first.createChannel()
+        3 * second.createChannel() >> { Mock(Channel) }
+    }
+
+    def 'A context is blocked only while every open connection is blocked'() {
+        setup:
+        Map<Connection, BlockedCallback> blocked = [:]
+        Map<Connection, UnblockedCallback> unblocked = [:]
+        Connection first = Mock(Connection)
+        Connection second = Mock(Connection)
+        [first, second].each { connection ->
+            connection.isOpen() >> true
+            connection.addBlockedListener(_ as BlockedCallback, _ as UnblockedCallback) >> { BlockedCallback b, UnblockedCallback u ->
+                blocked[connection] = b
+                unblocked[connection] = u
+                return null
+            }
+        }
+        ConnectionFactory factory = Mock(ConnectionFactory)
+        factory.newConnection((ExecutorService) _) >>> [first, second]
+
+        ConnectionConfiguration configuration = new ConnectionConfiguration(blockedPolicy: BlockedPolicy.FAIL_FAST)
+        configuration.uri = new URI('amqps://localhost/foo')
+        configuration.connectionCount = 2
+
+        ConnectionContext context = new ConnectionContext('foo', configuration, new MockConnectionProvider(factory), null)
+        context.start()
+
+        when:
+        blocked[first].handle('low on memory')
+
+        then:
+        !context.blocked
+        context.available
+
+        when:
+        blocked[second].handle('low on memory')
+
+        then:
+        context.blocked
+        !context.available
+
+        when:
+        context.borrowChannel()
+
+        then:
+        thrown ConnectionBlockedException
+
+        when:
+        unblocked[second].handle()
+
+        then:
+        !context.blocked
+        context.available
     }
 }
@@ -16,9 +16,16 @@
 
 package com.budjb.rabbitmq.multi.connection
 
+import com.budjb.rabbitmq.multi.RunningState
+import com.budjb.rabbitmq.multi.config.ConnectionConfiguration
 import com.budjb.rabbitmq.multi.config.RabbitConfigurationProperties
+import com.rabbitmq.client.Connection
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
 import spock.lang.Specification
 
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
 class ConnectionManagerSpec extends Specification {
     def 'When a default connection is requested and a connection is configured as default, it is returned'() {
         setup:
@@ -48,4 +55,151 @@ class ConnectionManagerSpec extends Specification {
         then:
         thrown IllegalArgumentException
     }
+
+    ConnectionContext createContext(String name, String failover, ConnectionProvider provider, SimpleMeterRegistry meterRegistry = null) {
+        ConnectionConfiguration configuration = new ConnectionConfiguration(uri: new URI("amqp://${name}"), failover: failover, failoverRetryInterval: 10)
+        return new ConnectionContext(name, configuration, provider, meterRegistry)
+    }
+
+    def 'A failover to an unknown connection is rejected'() {
+        when:
+        new ConnectionManager(new RabbitConfigurationProperties(), [primary: createContext('primary', 'missing', null)])
+
+        then:
+        thrown IllegalArgumentException
+    }
+
+    def 'A failover chain that loops is rejected'() {
+        when:
+        new ConnectionManager(new RabbitConfigurationProperties(), [
+            a: createContext('a', 'b', null),
+            b: createContext('b', 'c', null),
+            c: createContext('c', 'a', null)
+        ])
+
+        then:
+        thrown IllegalArgumentException
+    }
+
+    def 'Publishing fails over to the next available connection in the chain and fails back automatically'() {
+        setup:
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry()
+        ConnectionProvider provider = { ConnectionConfiguration configuration, registry -> Stub(Connection) { isOpen() >> true } } as ConnectionProvider
+
+        ConnectionContext primary = createContext('primary', 'secondary', provider, meterRegistry)
+        ConnectionContext secondary = createContext('secondary', 'tertiary', provider, meterRegistry)
+        ConnectionContext tertiary = createContext('tertiary', null, provider, meterRegistry)
+        ConnectionManager connectionManager = new ConnectionManager(new RabbitConfigurationProperties(), [primary: primary, secondary: secondary, tertiary: tertiary])
+
+        when:
+        tertiary.start()
+
+        then:
+        connectionManager.resolveContext('primary').is tertiary
+        connectionManager.resolveContext('secondary').is tertiary
+        connectionManager.resolveContext('tertiary').is tertiary
+
+        when:
+        primary.start()
+
+        then:
+        connectionManager.resolveContext('primary').is primary
+        meterRegistry.get('rabbitmq.connection.failover').tags('connection', 'primary', 'to', 'tertiary').counter().count() == 1
+        meterRegistry.get('rabbitmq.connection.failover').tags('connection', 'primary', 'to', 'primary').counter().count() == 1
+    }
+
+    def 'A connection with a failover that fails to start is retried until it starts'() {
+        setup:
+        int attempts = 0
+        ConnectionProvider provider = { ConnectionConfiguration configuration, registry ->
+            if (configuration.uri.host == 'primary' && attempts++ < 2) {
+                throw new ConnectionException(new IOException())
+            }
+            return Stub(Connection) { isOpen() >> true }
+        } as ConnectionProvider
+
+        ConnectionContext primary = createContext('primary', 'secondary', provider)
+        ConnectionContext secondary = createContext('secondary', null, provider)
+        ConnectionManager connectionManager = new ConnectionManager(new RabbitConfigurationProperties(), [primary: primary, secondary: secondary])
+
+        when:
+        connectionManager.start()
+
+        then:
+        connectionManager.resolveContext('primary').is secondary
+
+        when:
+        long deadline = System.currentTimeMillis() + 5000
+        while (primary.runningState == RunningState.STOPPED && System.currentTimeMillis() < deadline) {
+            sleep(10)
+        }
+
+        then:
+        primary.runningState == RunningState.RUNNING
+        attempts == 3
+        connectionManager.resolveContext('primary').is primary
+
+        cleanup:
+        connectionManager.stop()
+    }
+
+    def 'Stopping the manager cancels pending retries'() {
+        setup:
+        int attempts = 0
+        ConnectionProvider provider = { ConnectionConfiguration configuration, registry ->
+            if (configuration.uri.host == 'primary') {
+                attempts++
+                throw new ConnectionException(new IOException())
+            }
+            return Stub(Connection) { isOpen() >> true }
+        } as ConnectionProvider
+
+        ConnectionContext primary = createContext('primary', 'secondary', provider)
+        ConnectionContext secondary = createContext('secondary', null, provider)
+        ConnectionManager connectionManager = new ConnectionManager(new RabbitConfigurationProperties(), [primary: primary, secondary: secondary])
+
+        when:
+        connectionManager.start()
+        connectionManager.stop()
+        int attemptsAtStop = attempts
+        sleep(100)
+
+        then:
+        attempts == attemptsAtStop
+        primary.runningState == RunningState.STOPPED
+    }
+
+    def 'A retry that is starting a connection while the manager stops does not leave the connection open'() {
+        setup:
+        int attempts = 0
+        CountDownLatch retrying = new CountDownLatch(1)
+        CountDownLatch release = new CountDownLatch(1)
+        ConnectionProvider provider = { ConnectionConfiguration configuration, registry ->
+            if (configuration.uri.host == 'primary' && attempts++ == 0) {
+                throw new ConnectionException(new IOException())
+            }
+            if (configuration.uri.host == 'primary') {
+                retrying.countDown()
+                release.await()
+            }
+            return Stub(Connection) { isOpen() >> true }
+        } as ConnectionProvider
+
+        ConnectionContext primary = createContext('primary', 'secondary', provider)
+        ConnectionContext secondary = createContext('secondary', null, provider)
+        ConnectionManager connectionManager = new ConnectionManager(new RabbitConfigurationProperties(), [primary: primary, secondary: secondary])
+
+        when:
+        connectionManager.start()
+        retrying.await(5, TimeUnit.SECONDS)
+        Thread stopping = Thread.start { connectionManager.stop() }
+        sleep(50)
+        release.countDown()
+        stopping.join(5000)
+
+        then:
+        !stopping.alive
+        primary.runningState == RunningState.STOPPED
+        secondary.runningState == RunningState.STOPPED
+    }
 }
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.connection
+
+import com.budjb.rabbitmq.multi.config.ConnectionParameters
+import com.rabbitmq.client.BlockedCallback
+import com.rabbitmq.client.Channel
+import com.rabbitmq.client.Connection
+import com.rabbitmq.client.Recoverable
+import com.rabbitmq.client.RecoveryListener
+import com.rabbitmq.client.ShutdownListener
+import com.rabbitmq.client.ShutdownSignalException
+import com.rabbitmq.client.UnblockedCallback
+import spock.lang.Specification
+
+class ConnectionStripeSpec extends Specification {
+    /**
+     * A channel that supports automatic recovery.
+     */
+    interface RecoverableChannel extends Channel, Recoverable {}
+
+    Connection connection
+    ShutdownListener shutdownListener
+
+    def setup() {
+        connection = Mock(Connection)
+        connection.addShutdownListener(_) >> { ShutdownListener listener -> shutdownListener = listener }
+    }
+
+    ConnectionStripe createStripe(long ejectionTime) {
+        return new ConnectionStripe(0, ConnectionParameters.from(new URI('amqp://localhost')), connection, 1, ejectionTime)
+    }
+
+    def 'An unexpected connection shutdown ejects the stripe'() {
+        setup:
+        connection.isOpen() >> true
+        ConnectionStripe stripe = createStripe(60000)
+
+        when:
+        shutdownListener.shutdownCompleted(new ShutdownSignalException(true, false, null, null))
+
+        then:
+        stripe.ejected
+        !stripe.available
+        stripe.failures == 1
+    }
+
+    def 'A shutdown initiated by the application does not eject the stripe'() {
+        setup:
+        connection.isOpen() >> true
+        ConnectionStripe stripe = createStripe(60000)
+
+        when:
+        shutdownListener.shutdownCompleted(new ShutdownSignalException(true, true, null, null))
+
+        then:
+        !stripe.ejected
+        stripe.available
+    }
+
+    def 'A failure to open a channel ejects the stripe'() {
+        setup:
+        connection.isOpen() >> true
+        connection.createChannel() >> { throw new IOException() }
+        ConnectionStripe stripe = createStripe(60000)
+
+        when:
+        stripe.createChannel()
+
+        then:
+        thrown IOException
+        stripe.ejected
+    }
+
+    def 'An ejected stripe is not probed before its ejection time has passed'() {
+        setup:
+        connection.isOpen() >> true
+        ConnectionStripe stripe = createStripe(60000)
+        stripe.eject()
+
+        when:
+        stripe.probeIfDue()
+
+        then:
+        0 * connection.createChannel()
+        stripe.ejected
+    }
+
+    def 'A successful probe re-admits the stripe'() {
+        setup:
+        Channel channel = Mock(Channel)
+        connection.isOpen() >> true
+        ConnectionStripe stripe = createStripe(0)
+        stripe.eject()
+
+        when:
+        stripe.probeIfDue()
+
+        then:
+        1 * connection.createChannel() >> channel
+        1 * channel.close()
+        !stripe.ejected
+        stripe.available
+    }
+
+    def 'A failed probe keeps the stripe ejected'() {
+        setup:
+        connection.isOpen() >> true
+        ConnectionStripe stripe = createStripe(0)
+        stripe.eject()
+
+        when:
+        stripe.probeIfDue()
+
+        then:
+        1 * connection.createChannel() >> { throw new IOException() }
+        stripe.ejected
+        stripe.failures == 2
+    }
+
+    def 'Open channels are counted until they shut down'() {
+        setup:
+        ShutdownListener channelListener = null
+        Channel channel = Mock(Channel) {
+            addShutdownListener(_) >> { ShutdownListener listener -> channelListener = listener }
+        }
+        connection.createChannel() >> channel
+        ConnectionStripe stripe = createStripe(0)
+
+        when:
+        stripe.createChannel()
+
+        then:
+        stripe.openChannels == 1
+
+        when:
+        channelListener.shutdownCompleted(new ShutdownSignalException(false, true, null, null))
+
+        then:
+        stripe.openChannels == 0
+    }
+
+    def 'Channels reopened by automatic recovery are counted as open again'() {
+        setup:
+        ShutdownListener channelListener = null
+        RecoveryListener recoveryListener = null
+        Channel channel = Mock(RecoverableChannel) {
+            addShutdownListener(_) >> { ShutdownListener listener -> channelListener = listener }
+            addRecoveryListener(_) >> { RecoveryListener listener -> recoveryListener = listener }
+        }
+        connection.createChannel() >> channel
+        ConnectionStripe stripe = createStripe(0)
+
+        when:
+        stripe.createChannel()
+        channelListener.shutdownCompleted(new ShutdownSignalException(true, false, null, null))
+
+        then:
+        stripe.openChannels == 0
+
+        when:
+        recoveryListener.handleRecoveryStarted((Recoverable) channel)
+        recoveryListener.handleRecovery((Recoverable) channel)
+
+        then:
+        stripe.openChannels == 1
+    }
+
+    def 'Opening a channel fails when the connection has no channels left'() {
+        setup:
+        connection.isOpen() >> true
+        connection.createChannel() >> null
+        ConnectionStripe stripe = createStripe(0)
+
+        when:
+        stripe.createChannel()
+
+        then:
+        thrown IOException
+        stripe.openChannels == 0
+    }
+
+    def 'A connection blocked by the broker takes the stripe out of rotation until it is unblocked'() {
+        setup:
+        BlockedCallback blocked
+        UnblockedCallback unblocked
+        connection.isOpen() >> true
+        connection.addBlockedListener(_ as BlockedCallback, _ as UnblockedCallback) >> { BlockedCallback b, UnblockedCallback u ->
+            blocked = b
+            unblocked = u
+            return null
+        }
+        int notifications = 0
+        ConnectionStripe stripe = new ConnectionStripe(0, ConnectionParameters.from(new URI('amqp://localhost')), connection, 1, 60000, { notifications++ })
+
+        when:
+        blocked.handle('low on memory')
+
+        then:
+        stripe.blocked
+        !stripe.available
+        !stripe.ejected
+        notifications == 1
+
+        when:
+        unblocked.handle()
+
+        then:
+        !stripe.blocked
+        stripe.available
+        notifications == 2
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.connection
+
+import com.budjb.rabbitmq.multi.MessageContext
+import com.rabbitmq.client.AMQP
+import com.rabbitmq.client.AMQP.BasicProperties
+import com.rabbitmq.client.Channel
+import com.rabbitmq.client.Consumer
+import com.rabbitmq.client.Envelope
+import com.rabbitmq.client.ShutdownListener
+import com.rabbitmq.client.ShutdownSignalException
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+
+import java.util.concurrent.CompletableFuture
+
+class RpcReplyDispatcherSpec extends Specification {
+    Channel channel
+    Consumer consumer
+    ShutdownListener shutdownListener
+    ChannelPool.ChannelFactory channelFactory
+
+    def setup() {
+        channel = Mock(Channel)
+        channel.isOpen() >> true
+        channel.queueDeclare() >> new AMQP.Queue.DeclareOk.Builder().queue('reply-queue').build()
+        channel.basicConsume(*_) >> {
+            consumer = it[6]
+            return 'tag'
+        }
+        channel.addShutdownListener(_) >> { shutdownListener = it[0] }
+        channelFactory = Mock(ChannelPool.ChannelFactory)
+    }
+
+    def 'Replies are routed to the pending call with the matching correlation ID'() {
+        setup:
+        RpcReplyDispatcher dispatcher = new RpcReplyDispatcher('foo', channelFactory, false)
+
+        when:
+        String replyTo = dispatcher.getReplyTo()
+        CompletableFuture<MessageContext> first = dispatcher.register('a')
+        CompletableFuture<MessageContext> second = dispatcher.register('b')
+        consumer.handleDelivery('tag', new Envelope(1, false, '', 'reply-queue'), new BasicProperties.Builder().correlationId('b').build(), [2] as byte[])
+
+        then:
+        1 * channelFactory.createChannel() >> channel
+        replyTo == 'reply-queue'
+        !first.isDone()
+        second.get().body == [2] as byte[]
+        dispatcher.pendingCount == 1
+    }
+
+    def 'The consumer and channel are shared between calls'() {
+        setup:
+        RpcReplyDispatcher dispatcher = new RpcReplyDispatcher('foo', channelFactory, false)
+
+        when:
+        dispatcher.publish('', 'foo', new BasicProperties(), new byte[0])
+        dispatcher.publish('', 'bar', new BasicProperties(), new byte[0])
+
+        then:
+        1 * channelFactory.createChannel() >> channel
+        1 * channel.basicPublish('', 'foo', _, _)
+        1 * channel.basicPublish('', 'bar', _, _)
+    }
+
+    def 'Direct reply-to consumes from the pseudo-queue without declaring a queue'() {
+        setup:
+        RpcReplyDispatcher dispatcher = new RpcReplyDispatcher('foo', channelFactory, true)
+        channelFactory.createChannel() >> channel
+
+        when:
+        String replyTo = dispatcher.getReplyTo()
+
+        then:
+        replyTo == RpcReplyDispatcher.DIRECT_REPLY_TO_QUEUE
+        0 * channel.queueDeclare()
+    }
+
+    def 'Replies with an unknown correlation ID are discarded'() {
+        setup:
+        RpcReplyDispatcher dispatcher = new RpcReplyDispatcher('foo', channelFactory, false)
+        channelFactory.createChannel() >> channel
+        dispatcher.getReplyTo()
+        CompletableFuture<MessageContext> future = dispatcher.register('a')
+
+        when:
+        consumer.handleDelivery('tag', new Envelope(1, false, '', 'reply-queue'), new BasicProperties.Builder().correlationId('z').build(), new byte[0])
+
+        then:
+        !future.isDone()
+        dispatcher.pendingCount == 1
+    }
+
+    def 'Replies that arrive after their call stopped waiting are counted as late'() {
+        setup:
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry()
+        RpcReplyDispatcher dispatcher = new RpcReplyDispatcher('foo', channelFactory, false, meterRegistry)
+        channelFactory.createChannel() >> channel
+        dispatcher.getReplyTo()
+        dispatcher.register('a')
+        dispatcher.cancel('a')
+
+        when:
+        consumer.handleDelivery('tag', new Envelope(1, false, '', 'reply-queue'), new BasicProperties.Builder().correlationId('a').build(), new byte[0])
+
+        then:
+        meterRegistry.get('rabbitmq.rpc.replies.late').tag('connection', 'foo').counter().count() == 1
+    }
+
+    def 'Cancelled calls are removed'() {
+        setup:
+        RpcReplyDispatcher dispatcher = new RpcReplyDispatcher('foo', channelFactory, false)
+        dispatcher.register('a')
+
+        when:
+        dispatcher.cancel('a')
+
+        then:
+        dispatcher.pendingCount == 0
+    }
+
+    def 'A channel shutdown fails pending calls and a new channel is opened on the next call'() {
+        setup:
+        RpcReplyDispatcher dispatcher = new RpcReplyDispatcher('foo', channelFactory, false)
+        Channel replacement = Mock(Channel)
+        replacement.isOpen() >> true
+        replacement.queueDeclare() >> new AMQP.Queue.DeclareOk.Builder().queue('other-queue').build()
+        channelFactory.createChannel() >>> [channel, replacement]
+        dispatcher.getReplyTo()
+        CompletableFuture<MessageContext> future = dispatcher.register('a')
+
+        when:
+        shutdownListener.shutdownCompleted(new ShutdownSignalException(false, false, null, null))
+
+        then:
+        future.isCompletedExceptionally()
+        1 * channel.abort()
+
+        when:
+        String replyTo = dispatcher.getReplyTo()
+
+        then:
+        replyTo == 'other-queue'
+    }
+}
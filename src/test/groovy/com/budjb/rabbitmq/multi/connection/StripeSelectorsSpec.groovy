@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.connection
+
+import com.budjb.rabbitmq.multi.config.StripeSelection
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class StripeSelectorsSpec extends Specification {
+    ConnectionStripe stripe(boolean available, int openChannels = 0, int outstandingConfirms = 0, long confirmLatency = 0) {
+        return Stub(ConnectionStripe) {
+            isAvailable() >> available
+            getOpenChannels() >> openChannels
+            getOutstandingConfirms() >> outstandingConfirms
+            getConfirmLatency() >> confirmLatency
+        }
+    }
+
+    def 'Round-robin selection cycles through available stripes'() {
+        setup:
+        List<ConnectionStripe> stripes = [stripe(true), stripe(false), stripe(true)]
+        StripeSelector selector = StripeSelectors.roundRobin()
+
+        expect:
+        (1..4).collect { selector.select(stripes) } == [stripes[0], stripes[2], stripes[2], stripes[0]]
+    }
+
+    def 'Least-channels selection picks the available stripe with the fewest open channels'() {
+        setup:
+        List<ConnectionStripe> stripes = [stripe(true, 5), stripe(false, 0), stripe(true, 2)]
+
+        expect:
+        StripeSelectors.leastChannels().select(stripes).is stripes[2]
+    }
+
+    def 'Least-outstanding-confirms selection picks the available stripe with the fewest unconfirmed messages'() {
+        setup:
+        List<ConnectionStripe> stripes = [stripe(true, 0, 10), stripe(false, 0, 0), stripe(true, 0, 3)]
+
+        expect:
+        StripeSelectors.leastOutstandingConfirms().select(stripes).is stripes[2]
+    }
+
+    def 'Latency-weighted selection favors faster stripes and skips unavailable ones'() {
+        setup:
+        List<ConnectionStripe> stripes = [stripe(true, 0, 0, 1000000), stripe(false, 0, 0, 1), stripe(true, 0, 0, 10000000)]
+        StripeSelector selector = StripeSelectors.latencyWeighted()
+
+        when:
+        Map<ConnectionStripe, Integer> counts = (1..1000).collect { selector.select(stripes) }.countBy { it }
+
+        then:
+        !counts.containsKey(stripes[1])
+        counts[stripes[0]] > counts[stripes[2]] * 3
+    }
+
+    @Unroll
+    def 'No stripe is selected by #strategy when none are available'() {
+        expect:
+        StripeSelectors.forStrategy(strategy).select([stripe(false), stripe(false)]) == null
+
+        where:
+        strategy << StripeSelection.values()
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.converter
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import org.springframework.util.MimeType
+import spock.lang.Specification
+
+class MessageConverterManagerSpec extends Specification {
+    def 'Object-to-byte converters are resolved once per body class'() {
+        setup:
+        ObjectToByteConverter converter = Mock(ObjectToByteConverter)
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry()
+        MessageConverterManager messageConverterManager = new MessageConverterManager([converter], meterRegistry)
+
+        when:
+        3.times { messageConverterManager.convert(new ObjectToByteInput('foo')) }
+
+        then:
+        1 * converter.supports(String) >> true
+        3 * converter.convert(_) >> new ObjectToByteResult([1] as byte[], MimeType.valueOf('text/plain'))
+        meterRegistry.get('rabbitmq.converter.cache').tag('result', 'miss').functionCounter().count() == 1
+        meterRegistry.get('rabbitmq.converter.cache').tag('result', 'hit').functionCounter().count() == 2
+    }
+
+    def 'Byte-to-object converters are resolved once per mime type and class filter'() {
+        setup:
+        ByteToObjectConverter converter = Mock(ByteToObjectConverter)
+        MessageConverterManager messageConverterManager = new MessageConverterManager([converter])
+
+        when:
+        3.times { messageConverterManager.convert(new ByteToObjectInput([1] as byte[], 'text/plain', MessageConvertMethod.HEADER, [String])) }
+
+        then:
+        1 * converter.supports(MimeType.valueOf('text/plain')) >> true
+        1 * converter.supports(String) >> true
+        3 * converter.convert(_) >> new ByteToObjectResult('foo')
+    }
+
+    def 'Registering a converter invalidates cached resolutions'() {
+        setup:
+        ObjectToByteConverter first = Mock(ObjectToByteConverter)
+        ObjectToByteConverter second = Mock(ObjectToByteConverter)
+        MessageConverterManager messageConverterManager = new MessageConverterManager([first])
+        first.supports(String) >> false
+        second.supports(String) >> true
+
+        when:
+        messageConverterManager.convert(new ObjectToByteInput('foo'))
+
+        then:
+        thrown NoConverterFoundException
+
+        when:
+        messageConverterManager.registerConverter(second)
+        ObjectToByteResult result = messageConverterManager.convert(new ObjectToByteInput('foo'))
+
+        then:
+        1 * second.convert(_) >> new ObjectToByteResult([1] as byte[], MimeType.valueOf('text/plain'))
+        result.result == [1] as byte[]
+        messageConverterManager.objectToByteConverters == [first, second]
+    }
+
+    def 'Successful conversions are timed per converter and direction'() {
+        setup:
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry()
+        MessageConverterManager messageConverterManager = new MessageConverterManager([new StringMessageConverter()], meterRegistry)
+
+        when:
+        ObjectToByteResult serialized = messageConverterManager.convert(new ObjectToByteInput('foo'))
+        messageConverterManager.convert(new ByteToObjectInput(serialized.result, 'text/plain', MessageConvertMethod.HEADER, [String]))
+
+        then:
+        meterRegistry.get('rabbitmq.converter.convert').tags('converter', 'StringMessageConverter', 'direction', 'serialize').timer().count() == 1
+        meterRegistry.get('rabbitmq.converter.convert').tags('converter', 'StringMessageConverter', 'direction', 'deserialize').timer().count() == 1
+    }
+}
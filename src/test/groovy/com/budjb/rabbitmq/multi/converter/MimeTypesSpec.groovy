@@ -0,0 +1,55 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.converter
+
+import org.springframework.util.MimeType
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+
+class MimeTypesSpec extends Specification {
+    def 'Parsed content types are interned'() {
+        when:
+        MimeType first = MimeTypes.valueOf('application/json;charset=UTF-8')
+        MimeType second = MimeTypes.valueOf('application/json;charset=UTF-8')
+
+        then:
+        first.is(second)
+        first == MimeType.valueOf('application/json;charset=UTF-8')
+    }
+
+    def 'Mime types with a charset are built once per charset'() {
+        setup:
+        CharsetMimeType mimeType = new CharsetMimeType('text/plain')
+
+        when:
+        MimeType utf8 = mimeType.withCharset(StandardCharsets.UTF_8)
+
+        then:
+        utf8 == MimeType.valueOf('text/plain;charset=UTF-8')
+        utf8.is(mimeType.withCharset(StandardCharsets.UTF_8))
+        mimeType.withCharset(StandardCharsets.ISO_8859_1) == MimeType.valueOf('text/plain;charset=ISO-8859-1')
+    }
+
+    def 'Converters report the charset they encoded with'() {
+        when:
+        ObjectToByteResult result = new StringMessageConverter().convert(new ObjectToByteInput('foo', 'text/plain;charset=ISO-8859-1'))
+
+        then:
+        result.mimeType == MimeType.valueOf('text/plain;charset=ISO-8859-1')
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.loopback
+
+import com.budjb.rabbitmq.multi.MessageContext
+import com.budjb.rabbitmq.multi.config.ConnectionConfiguration
+import com.budjb.rabbitmq.multi.config.RabbitConfigurationProperties
+import com.budjb.rabbitmq.multi.connection.ConnectionContext
+import com.budjb.rabbitmq.multi.connection.ConnectionManager
+import com.budjb.rabbitmq.multi.converter.MessageConverterManager
+import com.budjb.rabbitmq.multi.converter.StringMessageConverter
+import com.budjb.rabbitmq.multi.publisher.RabbitMessageProperties
+import com.budjb.rabbitmq.multi.publisher.RabbitMessagePublisher
+import com.rabbitmq.client.AMQP
+import com.rabbitmq.client.AMQP.BasicProperties
+import com.rabbitmq.client.AlreadyClosedException
+import com.rabbitmq.client.BlockedListener
+import com.rabbitmq.client.Channel
+import com.rabbitmq.client.Connection
+import com.rabbitmq.client.DefaultConsumer
+import com.rabbitmq.client.Envelope
+import com.rabbitmq.client.Recoverable
+import com.rabbitmq.client.RecoveryListener
+import com.rabbitmq.client.ShutdownSignalException
+import spock.lang.Specification
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+class FaultInjectingConnectionProviderSpec extends Specification {
+    LoopbackBroker broker
+    FaultInjectingConnectionProvider connectionProvider
+    ConnectionManager connectionManager
+    RabbitMessagePublisher publisher
+
+    def setup() {
+        broker = new LoopbackBroker()
+        connectionProvider = new FaultInjectingConnectionProvider(new LoopbackConnectionProvider(broker), 42)
+
+        ConnectionConfiguration connectionConfiguration = new ConnectionConfiguration(uri: URI.create('amqp://localhost'), default: true, directReplyTo: true)
+        ConnectionContext connectionContext = new ConnectionContext('faulty', connectionConfiguration, connectionProvider, null)
+
+        connectionManager = new ConnectionManager(new RabbitConfigurationProperties(), [faulty: connectionContext])
+        connectionManager.start()
+
+        publisher = new RabbitMessagePublisher(connectionManager, new MessageConverterManager([new StringMessageConverter()]))
+    }
+
+    def cleanup() {
+        publisher.stop()
+        connectionManager.stop()
+        connectionProvider.shutdown()
+        broker.shutdown()
+    }
+
+    def 'Publish latency is added on the publishing thread'() {
+        setup:
+        broker.declareQueue('work')
+        connectionProvider.publishLatency = LatencyDistribution.fixed(50, TimeUnit.MILLISECONDS)
+
+        when:
+        long start = System.nanoTime()
+        3.times { publisher.send('', 'work', 'hello') }
+        long elapsed = System.nanoTime() - start
+
+        then:
+        elapsed >= TimeUnit.MILLISECONDS.toNanos(150)
+        broker.getMessageCount('work') == 3
+    }
+
+    def 'Confirm latency holds back publisher confirms'() {
+        setup:
+        broker.declareQueue('work')
+        connectionProvider.confirmLatency = LatencyDistribution.fixed(300, TimeUnit.MILLISECONDS)
+
+        when:
+        CompletableFuture<Void> future = publisher.sendAsync(new RabbitMessageProperties(routingKey: 'work', body: [1] as byte[], autoConvert: false))
+        Thread.sleep(50)
+
+        then:
+        !future.isDone()
+        broker.getMessageCount('work') == 1
+
+        when:
+        future.get(5, TimeUnit.SECONDS)
+
+        then:
+        notThrown(Exception)
+    }
+
+    def 'Dropped replies make RPC calls time out'() {
+        setup:
+        broker.declareQueue('rpc')
+        Channel responder = broker.newConnection().createChannel()
+        responder.basicConsume('rpc', true, new DefaultConsumer(responder) {
+            @Override
+            void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body) {
+                responder.basicPublish('', properties.replyTo, new BasicProperties.Builder().correlationId(properties.correlationId).build(), body)
+            }
+        })
+        connectionProvider.dropReplies(1)
+
+        when:
+        publisher.rpc(new RabbitMessageProperties(routingKey: 'rpc', body: 'first'.bytes, timeout: 200, autoConvert: false))
+
+        then:
+        thrown TimeoutException
+        connectionProvider.droppedReplies == 1
+
+        when:
+        MessageContext reply = publisher.rpc(new RabbitMessageProperties(routingKey: 'rpc', body: 'second'.bytes, timeout: 5000, autoConvert: false))
+
+        then:
+        new String(reply.body) == 'second'
+    }
+
+    def 'Open channels can be closed as the broker would on a channel error'() {
+        setup:
+        Channel channel = connectionProvider.createConnection(new ConnectionConfiguration(), null).createChannel()
+
+        when:
+        int closed = connectionProvider.closeChannels()
+
+        then:
+        closed >= 1
+        connectionProvider.closedChannels == closed
+        !channel.isOpen()
+        (channel.closeReason.reason as AMQP.Channel.Close).replyCode == AMQP.INTERNAL_ERROR
+
+        when:
+        channel.basicPublish('', 'work', null, [1] as byte[])
+
+        then:
+        thrown AlreadyClosedException
+    }
+
+    def 'Blocked listeners are notified when the connection is blocked and unblocked'() {
+        setup:
+        Connection connection = connectionProvider.createConnection(new ConnectionConfiguration(), null)
+        BlockedListener listener = Mock(BlockedListener)
+        connection.addBlockedListener(listener)
+
+        when:
+        connectionProvider.block('low on memory')
+        connectionProvider.unblock()
+
+        then:
+        1 * listener.handleBlocked('low on memory')
+
+        then:
+        1 * listener.handleUnblocked()
+    }
+
+    def 'Interrupted connections report the failure and recover after the downtime'() {
+        setup:
+        Connection connection = connectionProvider.createConnection(new ConnectionConfiguration(), null)
+        ShutdownSignalException cause = null
+        connection.addShutdownListener { cause = it }
+        CountDownLatch recovered = new CountDownLatch(1)
+        (connection as Recoverable).addRecoveryListener(new RecoveryListener() {
+            @Override
+            void handleRecovery(Recoverable recoverable) {
+                recovered.countDown()
+            }
+
+            @Override
+            void handleRecoveryStarted(Recoverable recoverable) {
+            }
+        })
+
+        when:
+        int interrupted = connectionProvider.interruptConnections(200, TimeUnit.MILLISECONDS)
+
+        then:
+        interrupted >= 1
+        !connection.isOpen()
+        !cause.isInitiatedByApplication()
+        (cause.reason as AMQP.Connection.Close).replyCode == AMQP.CONNECTION_FORCED
+
+        when:
+        connection.createChannel()
+
+        then:
+        thrown AlreadyClosedException
+
+        when:
+        recovered.await(5, TimeUnit.SECONDS)
+
+        then:
+        connection.isOpen()
+        connection.createChannel().isOpen()
+        connectionProvider.recoveries >= 1
+    }
+}
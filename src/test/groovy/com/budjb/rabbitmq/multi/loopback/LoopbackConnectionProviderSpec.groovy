@@ -0,0 +1,190 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.loopback
+
+import com.budjb.rabbitmq.multi.MessageContext
+import com.budjb.rabbitmq.multi.config.ConnectionConfiguration
+import com.budjb.rabbitmq.multi.config.RabbitConfigurationProperties
+import com.budjb.rabbitmq.multi.connection.ConnectionContext
+import com.budjb.rabbitmq.multi.connection.ConnectionManager
+import com.budjb.rabbitmq.multi.converter.MessageConverterManager
+import com.budjb.rabbitmq.multi.converter.StringMessageConverter
+import com.budjb.rabbitmq.multi.publisher.RabbitMessageProperties
+import com.budjb.rabbitmq.multi.publisher.RabbitMessagePublisher
+import com.rabbitmq.client.AMQP
+import com.rabbitmq.client.AMQP.BasicProperties
+import com.rabbitmq.client.AlreadyClosedException
+import com.rabbitmq.client.Channel
+import com.rabbitmq.client.Connection
+import com.rabbitmq.client.DefaultConsumer
+import com.rabbitmq.client.Envelope
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class LoopbackConnectionProviderSpec extends Specification {
+    LoopbackConnectionProvider connectionProvider
+    LoopbackBroker broker
+    ConnectionManager connectionManager
+    RabbitMessagePublisher publisher
+
+    def setup() {
+        connectionProvider = new LoopbackConnectionProvider()
+        broker = connectionProvider.broker
+
+        ConnectionConfiguration connectionConfiguration = new ConnectionConfiguration(uri: URI.create('amqp://localhost'), default: true, directReplyTo: true)
+        ConnectionContext connectionContext = new ConnectionContext('loopback', connectionConfiguration, connectionProvider, null)
+
+        connectionManager = new ConnectionManager(new RabbitConfigurationProperties(), [loopback: connectionContext])
+        connectionManager.start()
+
+        publisher = new RabbitMessagePublisher(connectionManager, new MessageConverterManager([new StringMessageConverter()]))
+    }
+
+    def cleanup() {
+        publisher.stop()
+        connectionManager.stop()
+        broker.shutdown()
+    }
+
+    def 'Messages published to the default exchange are held by the named queue'() {
+        setup:
+        broker.declareQueue('work')
+        Channel channel = broker.newConnection().createChannel()
+
+        when:
+        publisher.send('', 'work', 'hello')
+
+        then:
+        broker.getMessageCount('work') == 1
+
+        when:
+        def response = channel.basicGet('work', true)
+
+        then:
+        new String(response.body) == 'hello'
+        response.envelope.routingKey == 'work'
+        broker.getMessageCount('work') == 0
+    }
+
+    def 'Topic and fanout exchanges route to the queues whose bindings match'() {
+        setup:
+        broker.declareExchange('events', 'topic')
+        broker.declareExchange('broadcast', 'fanout')
+        ['orders', 'everything', 'audit-1', 'audit-2'].each { broker.declareQueue(it) }
+        broker.bindQueue('orders', 'events', 'order.*')
+        broker.bindQueue('everything', 'events', '#')
+        broker.bindQueue('audit-1', 'broadcast', '')
+        broker.bindQueue('audit-2', 'broadcast', '')
+
+        when:
+        publisher.send('events', 'order.created', 'a')
+        publisher.send('events', 'order.created.eu', 'b')
+        publisher.send('broadcast', 'anything', 'c')
+
+        then:
+        broker.getMessageCount('orders') == 1
+        broker.getMessageCount('everything') == 2
+        broker.getMessageCount('audit-1') == 1
+        broker.getMessageCount('audit-2') == 1
+    }
+
+    def 'Asynchronous publishes are confirmed'() {
+        setup:
+        broker.declareQueue('work')
+
+        when:
+        (1..100).collect {
+            publisher.sendAsync(new RabbitMessageProperties(routingKey: 'work', body: [it] as byte[], autoConvert: false))
+        }*.get(5, TimeUnit.SECONDS)
+
+        then:
+        broker.getMessageCount('work') == 100
+    }
+
+    def 'RPC replies are delivered through direct reply-to'() {
+        setup:
+        broker.declareQueue('rpc')
+        Channel responder = broker.newConnection().createChannel()
+        responder.basicConsume('rpc', true, new DefaultConsumer(responder) {
+            @Override
+            void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body) {
+                BasicProperties reply = new BasicProperties.Builder().correlationId(properties.correlationId).build()
+                responder.basicPublish('', properties.replyTo, reply, (new String(body) + '-pong').bytes)
+            }
+        })
+
+        when:
+        MessageContext reply = publisher.rpc(new RabbitMessageProperties(routingKey: 'rpc', body: 'ping'.bytes, timeout: 5000, autoConvert: false))
+
+        then:
+        new String(reply.body) == 'ping-pong'
+    }
+
+    def 'Unacknowledged messages are redelivered when their channel closes'() {
+        setup:
+        broker.declareQueue('work')
+        Connection connection = broker.newConnection()
+        Channel first = connection.createChannel()
+        Channel second = connection.createChannel()
+        CountDownLatch delivered = new CountDownLatch(1)
+        CountDownLatch redelivered = new CountDownLatch(1)
+        Envelope redelivery = null
+
+        first.basicConsume('work', false, new DefaultConsumer(first) {
+            @Override
+            void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body) {
+                delivered.countDown()
+            }
+        })
+
+        when:
+        publisher.send('', 'work', 'hello')
+
+        then:
+        delivered.await(5, TimeUnit.SECONDS)
+
+        when:
+        first.close()
+        second.basicConsume('work', true, new DefaultConsumer(second) {
+            @Override
+            void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body) {
+                redelivery = envelope
+                redelivered.countDown()
+            }
+        })
+
+        then:
+        redelivered.await(5, TimeUnit.SECONDS)
+        redelivery.isRedeliver()
+    }
+
+    def 'Publishing to an exchange that does not exist closes the channel'() {
+        setup:
+        Channel channel = broker.newConnection().createChannel()
+
+        when:
+        channel.basicPublish('missing', 'foo', null, [1] as byte[])
+        channel.basicPublish('missing', 'foo', null, [1] as byte[])
+
+        then:
+        thrown AlreadyClosedException
+        (channel.closeReason.reason as AMQP.Channel.Close).replyCode == 404
+        !channel.isOpen()
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.outbox
+
+import com.budjb.rabbitmq.multi.config.OutboxConfiguration
+import com.budjb.rabbitmq.multi.connection.ConfirmChannel
+import com.budjb.rabbitmq.multi.connection.ConnectionContext
+import com.budjb.rabbitmq.multi.connection.ConnectionManager
+import com.rabbitmq.client.AMQP.BasicProperties
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.CompletableFuture
+
+class OutboxSpec extends Specification {
+    Path directory
+    ConnectionManager connectionManager
+    ConnectionContext connectionContext
+    ConfirmChannel confirmChannel
+    OutboxConfiguration configuration
+    List<String> published
+    boolean available
+
+    def setup() {
+        directory = Files.createTempDirectory('outbox')
+        published = Collections.synchronizedList([])
+        available = false
+
+        confirmChannel = Stub(ConfirmChannel) {
+            publish(*_) >> { String exchange, String routingKey, BasicProperties properties, byte[] body ->
+                published << new String(body)
+                return CompletableFuture.completedFuture(null)
+            }
+        }
+        connectionContext = Stub(ConnectionContext) {
+            isAvailable() >> { available }
+            getConfirmChannel() >> confirmChannel
+        }
+        connectionManager = Stub(ConnectionManager) {
+            resolveContext() >> connectionContext
+            resolveContext(_) >> connectionContext
+        }
+
+        configuration = new OutboxConfiguration(directory: directory.toString(), segmentSize: 4096, retryInterval: 10)
+    }
+
+    def cleanup() {
+        directory.toFile().deleteDir()
+    }
+
+    void waitFor(Closure<Boolean> condition) {
+        long deadline = System.currentTimeMillis() + 5000
+        while (!condition() && System.currentTimeMillis() < deadline) {
+            sleep(5)
+        }
+    }
+
+    def 'Messages survive serialization with every property intact'() {
+        setup:
+        BasicProperties properties = new BasicProperties.Builder()
+            .contentType('application/json')
+            .correlationId('abc')
+            .headers([foo: 'bar', count: 5])
+            .priority(3)
+            .timestamp(new Date(1000))
+            .build()
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream()
+
+        when:
+        OutboxRecord.write(new DataOutputStream(buffer), connection, 'ex', 'rk', properties, body)
+        OutboxRecord record = OutboxRecord.read(buffer.toByteArray())
+
+        then:
+        record.connection == connection
+        record.exchange == 'ex'
+        record.routingKey == 'rk'
+        record.basicProperties.contentType == 'application/json'
+        record.basicProperties.correlationId == 'abc'
+        record.basicProperties.headers.foo.toString() == 'bar'
+        record.basicProperties.headers.count == 5
+        record.basicProperties.priority == 3
+        record.basicProperties.timestamp == new Date(1000)
+        record.body == body
+
+        where:
+        connection | body
+        'foo'      | 'hello'.bytes
+        null       | null
+    }
+
+    def 'Messages are replayed in order once the connection is available and confirmed segments are deleted'() {
+        setup:
+        Outbox outbox = new Outbox(configuration, connectionManager, null)
+        outbox.start()
+
+        when:
+        (1..200).each { outbox.append(null, 'ex', 'rk', new BasicProperties(), "message-${it}".toString().bytes) }
+
+        then:
+        outbox.pendingCount == 200
+        outbox.segmentCount > 1
+        published.isEmpty()
+
+        when:
+        available = true
+        waitFor { outbox.pendingCount == 0 && outbox.segmentCount == 1 }
+
+        then:
+        published == (1..200).collect { "message-${it}".toString() }
+        outbox.pendingCount == 0
+        outbox.segmentCount == 1
+
+        cleanup:
+        outbox.stop()
+    }
+
+    def 'Unconfirmed messages are recovered when the outbox is restarted'() {
+        setup:
+        Outbox outbox = new Outbox(configuration, connectionManager, null)
+        outbox.start()
+        (1..3).each { outbox.append('foo', 'ex', 'rk', new BasicProperties(), "message-${it}".toString().bytes) }
+        outbox.stop()
+
+        when:
+        Outbox restarted = new Outbox(configuration, connectionManager, null)
+        restarted.start()
+
+        then:
+        restarted.pendingCount == 3
+
+        when:
+        available = true
+        waitFor { restarted.pendingCount == 0 }
+
+        then:
+        published == ['message-1', 'message-2', 'message-3']
+
+        cleanup:
+        restarted.stop()
+    }
+
+    def 'Appends are rejected once every segment is full'() {
+        setup:
+        configuration.maxSegments = 2
+        Outbox outbox = new Outbox(configuration, connectionManager, null)
+        outbox.start()
+
+        when:
+        1000.times { outbox.append(null, 'ex', 'rk', new BasicProperties(), new byte[100]) }
+
+        then:
+        thrown OutboxFullException
+        outbox.segmentCount == 2
+
+        cleanup:
+        outbox.stop()
+    }
+
+    def 'A batch that is not confirmed is replayed again'() {
+        setup:
+        int attempts = 0
+        ConfirmChannel flaky = Stub(ConfirmChannel) {
+            publish(*_) >> { String exchange, String routingKey, BasicProperties properties, byte[] body ->
+                published << new String(body)
+                CompletableFuture<Void> future = new CompletableFuture<>()
+                attempts++ == 0 ? future.completeExceptionally(new IOException()) : future.complete(null)
+                return future
+            }
+        }
+        ConnectionContext context = Stub(ConnectionContext) {
+            isAvailable() >> true
+            getConfirmChannel() >> flaky
+        }
+        ConnectionManager manager = Stub(ConnectionManager) {
+            resolveContext() >> context
+        }
+        Outbox outbox = new Outbox(configuration, manager, null)
+        outbox.start()
+
+        when:
+        outbox.append(null, 'ex', 'rk', new BasicProperties(), 'hello'.bytes)
+        waitFor { outbox.pendingCount == 0 }
+
+        then:
+        published == ['hello', 'hello']
+        outbox.pendingCount == 0
+
+        cleanup:
+        outbox.stop()
+    }
+
+    def 'Stopping the outbox while a batch is waiting for its confirm leaves the batch to be replayed after a restart'() {
+        setup:
+        configuration.confirmTimeout = 60000
+        ConfirmChannel unconfirmed = Stub(ConfirmChannel) {
+            publish(*_) >> { String exchange, String routingKey, BasicProperties properties, byte[] body ->
+                published << new String(body)
+                return new CompletableFuture<Void>()
+            }
+        }
+        ConnectionContext context = Stub(ConnectionContext) {
+            isAvailable() >> true
+            getConfirmChannel() >> unconfirmed
+        }
+        ConnectionManager manager = Stub(ConnectionManager) {
+            resolveContext() >> context
+        }
+        Outbox outbox = new Outbox(configuration, manager, null)
+        outbox.start()
+        outbox.append(null, 'ex', 'rk', new BasicProperties(), 'hello'.bytes)
+        waitFor { published == ['hello'] }
+
+        when:
+        long start = System.currentTimeMillis()
+        outbox.stop()
+        long elapsed = System.currentTimeMillis() - start
+
+        then:
+        elapsed < 5000
+        outbox.segmentCount == 0
+
+        when:
+        Outbox restarted = new Outbox(configuration, connectionManager, null)
+        restarted.start()
+
+        then:
+        restarted.pendingCount == 1
+
+        cleanup:
+        restarted?.stop()
+    }
+}
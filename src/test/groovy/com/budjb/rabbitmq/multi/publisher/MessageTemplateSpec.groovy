@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.publisher
+
+import com.rabbitmq.client.AMQP.BasicProperties
+import spock.lang.Specification
+
+import java.time.Instant
+
+class MessageTemplateSpec extends Specification {
+    def 'A template captures the destination and static properties of the message properties'() {
+        setup:
+        RabbitMessageProperties properties = new RabbitMessageProperties(
+            connection: 'foo',
+            exchange: 'ex',
+            routingKey: 'rk',
+            contentType: 'text/plain',
+            deliveryMode: 2,
+            appId: 'app',
+            headers: [a: 'b']
+        )
+
+        when:
+        MessageTemplate template = MessageTemplate.from(properties)
+        properties.headers.c = 'd'
+
+        then:
+        template.connection == 'foo'
+        template.exchange == 'ex'
+        template.routingKey == 'rk'
+        template.basicProperties.contentType == 'text/plain'
+        template.basicProperties.deliveryMode == 2
+        template.basicProperties.appId == 'app'
+        template.basicProperties.headers == [a: 'b']
+    }
+
+    def 'The static headers of a template can not be modified'() {
+        when:
+        MessageTemplate.from(new RabbitMessageProperties(routingKey: 'rk', headers: [a: 'b'])).basicProperties.headers.c = 'd'
+
+        then:
+        thrown UnsupportedOperationException
+    }
+
+    def 'Per-message properties are applied on top of the static properties'() {
+        setup:
+        MessageTemplate template = MessageTemplate.from(new RabbitMessageProperties(routingKey: 'rk', appId: 'app', headers: [a: 'b']))
+        Instant now = Instant.ofEpochSecond(1000)
+
+        when:
+        BasicProperties properties = template.toBasicProperties('corr', 'msg', now, [c: 'd'])
+
+        then:
+        properties.correlationId == 'corr'
+        properties.messageId == 'msg'
+        properties.timestamp.toInstant() == now
+        properties.appId == 'app'
+        properties.headers == [a: 'b', c: 'd']
+        template.basicProperties.headers == [a: 'b']
+        template.basicProperties.correlationId == null
+    }
+
+    def 'Per-message properties that are not given keep the static values'() {
+        setup:
+        MessageTemplate template = MessageTemplate.from(new RabbitMessageProperties(routingKey: 'rk', messageId: 'static', headers: [a: 'b']))
+
+        when:
+        BasicProperties properties = template.toBasicProperties('corr', null, null)
+
+        then:
+        properties.correlationId == 'corr'
+        properties.messageId == 'static'
+        properties.timestamp == null
+        properties.headers == [a: 'b']
+    }
+}
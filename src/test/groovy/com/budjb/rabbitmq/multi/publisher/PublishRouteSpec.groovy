@@ -0,0 +1,153 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.publisher
+
+import com.budjb.rabbitmq.multi.HashedWheelTimer
+import com.budjb.rabbitmq.multi.compression.CompressionManager
+import com.budjb.rabbitmq.multi.compression.GzipCompressor
+import com.budjb.rabbitmq.multi.connection.ConfirmChannel
+import com.budjb.rabbitmq.multi.connection.ConnectionContext
+import com.budjb.rabbitmq.multi.connection.ConnectionManager
+import com.budjb.rabbitmq.multi.connection.PooledChannel
+import com.budjb.rabbitmq.multi.converter.MessageConverterManager
+import com.budjb.rabbitmq.multi.converter.StringMessageConverter
+import com.rabbitmq.client.AMQP.BasicProperties
+import com.rabbitmq.client.Channel
+import spock.lang.Specification
+
+import java.util.concurrent.CompletableFuture
+
+class PublishRouteSpec extends Specification {
+    ConnectionManager connectionManager
+    ConnectionContext connectionContext
+    Channel channel
+    RabbitMessagePublisher rabbitMessagePublisher
+
+    def setup() {
+        channel = Mock(Channel)
+        connectionContext = Mock(ConnectionContext) {
+            borrowChannel() >> Mock(PooledChannel) { getChannel() >> channel }
+        }
+        connectionContext.resolve() >> connectionContext
+        connectionManager = Mock(ConnectionManager)
+        rabbitMessagePublisher = new RabbitMessagePublisher(connectionManager, new MessageConverterManager([new StringMessageConverter()]))
+    }
+
+    def 'A route resolves its connection once and publishes with the template properties'() {
+        setup:
+        List<BasicProperties> published = []
+
+        when:
+        PublishRoute route = rabbitMessagePublisher.route(new RabbitMessageProperties(connection: 'foo', exchange: 'ex', routingKey: 'rk', headers: [a: 'b']))
+        route.send('one')
+        route.send('two')
+        route.send([3] as byte[])
+
+        then:
+        1 * connectionManager.getContext('foo') >> connectionContext
+        1 * channel.basicPublish('ex', 'rk', _, 'one'.bytes) >> { published << it[2] }
+        1 * channel.basicPublish('ex', 'rk', _, 'two'.bytes) >> { published << it[2] }
+        1 * channel.basicPublish('ex', 'rk', _, [3] as byte[]) >> { published << it[2] }
+        published[0].is(published[1])
+        published[0].contentType == 'text/plain;charset=UTF-8'
+        published[0].headers == [a: 'b']
+        published[2].contentType == null
+        published[2].headers == [a: 'b']
+    }
+
+    def 'A route with a content type encodes with its charset and keeps the content type'() {
+        setup:
+        connectionManager.getContext(null) >> connectionContext
+        BasicProperties properties
+
+        when:
+        rabbitMessagePublisher.route(new RabbitMessageProperties(routingKey: 'rk', contentType: 'text/plain;charset=UTF-16')).send('foo')
+
+        then:
+        1 * channel.basicPublish('', 'rk', _, 'foo'.getBytes('UTF-16')) >> { properties = it[2] }
+        properties.contentType == 'text/plain;charset=UTF-16'
+    }
+
+    def 'A route publishes confirmed messages through the connection confirm channel'() {
+        setup:
+        ConfirmChannel confirmChannel = Mock(ConfirmChannel)
+        connectionManager.getContext(null) >> connectionContext
+        connectionContext.getConfirmChannel() >> confirmChannel
+
+        when:
+        CompletableFuture<Void> future = rabbitMessagePublisher.route(new RabbitMessageProperties(routingKey: 'rk')).sendAsync('foo')
+
+        then:
+        1 * confirmChannel.publish('', 'rk', _, 'foo'.bytes) >> CompletableFuture.completedFuture(null)
+        future.isDone()
+    }
+
+    def 'Per-message properties are applied on top of the route template'() {
+        setup:
+        connectionManager.getContext(null) >> connectionContext
+        BasicProperties properties
+
+        when:
+        rabbitMessagePublisher.route(new RabbitMessageProperties(routingKey: 'rk', appId: 'app')).send('foo', 'corr', 'msg', null)
+
+        then:
+        1 * channel.basicPublish('', 'rk', _, 'foo'.bytes) >> { properties = it[2] }
+        properties.correlationId == 'corr'
+        properties.messageId == 'msg'
+        properties.appId == 'app'
+        properties.contentType == 'text/plain;charset=UTF-8'
+    }
+
+    def 'A route without an exchange or routing key can not be created'() {
+        when:
+        rabbitMessagePublisher.route(new RabbitMessageProperties())
+
+        then:
+        thrown IllegalArgumentException
+    }
+
+    def 'A route compresses bodies that reach the compression threshold with a template carrying the content encoding'() {
+        setup:
+        String large = 'foo ' * 512
+        connectionManager.getContext(null) >> connectionContext
+        CompressionManager compressionManager = new CompressionManager([new GzipCompressor()], 'gzip', 1024)
+        HashedWheelTimer timer = new HashedWheelTimer('test-timer')
+        RabbitMessagePublisher compressingPublisher = new RabbitMessagePublisher(connectionManager, new MessageConverterManager([new StringMessageConverter()]), timer, null, null, compressionManager, null)
+        List<BasicProperties> published = []
+        List<byte[]> bodies = []
+
+        when:
+        PublishRoute route = compressingPublisher.route(new RabbitMessageProperties(routingKey: 'rk'))
+        route.send(large)
+        route.send(large)
+        route.send('small')
+        compressingPublisher.route(new RabbitMessageProperties(routingKey: 'rk', contentEncoding: 'identity')).send(large)
+
+        then:
+        4 * channel.basicPublish('', 'rk', _, _) >> { published << it[2]; bodies << it[3] }
+        published[0].is(published[1])
+        published*.contentEncoding == ['gzip', 'gzip', null, 'identity']
+        published[0].contentType == 'text/plain;charset=UTF-8'
+        published[2].contentType == 'text/plain;charset=UTF-8'
+        compressionManager.decompress(bodies[0], 'gzip') == large.bytes
+        bodies[2] == 'small'.bytes
+        bodies[3] == large.bytes
+
+        cleanup:
+        timer.stop()
+    }
+}
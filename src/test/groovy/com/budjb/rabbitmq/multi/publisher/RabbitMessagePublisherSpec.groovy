@@ -16,10 +16,49 @@
 
 package com.budjb.rabbitmq.multi.publisher
 
+import com.budjb.rabbitmq.multi.HashedWheelTimer
+import com.budjb.rabbitmq.multi.MessageContext
+import com.budjb.rabbitmq.multi.compression.CompressionManager
+import com.budjb.rabbitmq.multi.compression.GzipCompressor
+import com.budjb.rabbitmq.multi.config.BlockedPolicy
+import com.budjb.rabbitmq.multi.config.ConnectionConfiguration
+import com.budjb.rabbitmq.multi.config.MockConnectionProvider
+import com.budjb.rabbitmq.multi.config.RabbitConfigurationProperties
+import com.budjb.rabbitmq.multi.config.RateLimitConfiguration
+import com.budjb.rabbitmq.multi.connection.ConfirmChannel
+import com.budjb.rabbitmq.multi.connection.ConnectionBlockedException
+import com.budjb.rabbitmq.multi.connection.ConnectionContext
 import com.budjb.rabbitmq.multi.connection.ConnectionManager
+import com.budjb.rabbitmq.multi.connection.ContextNotFoundException
+import com.budjb.rabbitmq.multi.connection.PooledChannel
+import com.budjb.rabbitmq.multi.connection.RpcReplyDispatcher
+import com.budjb.rabbitmq.multi.converter.ByteToObjectInput
+import com.budjb.rabbitmq.multi.converter.ByteToObjectResult
 import com.budjb.rabbitmq.multi.converter.MessageConverterManager
+import com.budjb.rabbitmq.multi.converter.ObjectToByteInput
+import com.budjb.rabbitmq.multi.converter.ObjectToByteResult
+import com.budjb.rabbitmq.multi.converter.StringMessageConverter
+import com.budjb.rabbitmq.multi.outbox.Outbox
+import com.budjb.rabbitmq.multi.ratelimit.PublishRateLimiters
+import com.budjb.rabbitmq.multi.ratelimit.RateLimitExceededException
+import com.rabbitmq.client.AMQP.BasicProperties
+import com.rabbitmq.client.BlockedCallback
+import com.rabbitmq.client.Channel
+import com.rabbitmq.client.Connection
+import com.rabbitmq.client.ConnectionFactory
+import com.rabbitmq.client.Consumer
+import com.rabbitmq.client.Envelope
+import com.rabbitmq.client.UnblockedCallback
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import org.springframework.util.MimeType
 import spock.lang.Specification
 
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
 class RabbitMessagePublisherSpec extends Specification {
     ConnectionManager connectionManager
     MessageConverterManager messageConverterManager
@@ -38,6 +77,58 @@ class RabbitMessagePublisherSpec extends Specification {
         rabbitMessagePublisher.messageConverterManager.is messageConverterManager
     }
 
+    def 'Stopping a publisher stops the RPC timer it created but not a timer it was given'() {
+        setup:
+        HashedWheelTimer timer = Mock(HashedWheelTimer)
+        RabbitMessagePublisher owning = new RabbitMessagePublisher(connectionManager, messageConverterManager)
+        RabbitMessagePublisher borrowing = new RabbitMessagePublisher(connectionManager, messageConverterManager, timer)
+
+        when:
+        owning.stop()
+        borrowing.stop()
+
+        then:
+        0 * timer.stop()
+
+        when:
+        owning.rpcTimer.schedule({}, 1, TimeUnit.SECONDS)
+
+        then:
+        thrown IllegalStateException
+    }
+
+    def 'Messages sent over a striped connection are published on every stripe'() {
+        setup:
+        List<Channel> channels = (1..3).collect { Mock(Channel) { isOpen() >> true } }
+        List<Connection> connections = channels.collect { Channel channel ->
+            Mock(Connection) {
+                isOpen() >> true
+                createChannel() >> channel
+            }
+        }
+        ConnectionFactory factory = Mock(ConnectionFactory)
+        factory.newConnection((ExecutorService) _) >>> connections
+
+        ConnectionConfiguration configuration = new ConnectionConfiguration(uri: URI.create('amqp://localhost'), default: true, connectionCount: 3)
+        ConnectionContext connectionContext = new ConnectionContext('striped', configuration, new MockConnectionProvider(factory), null)
+        ConnectionManager stripedConnectionManager = new ConnectionManager(new RabbitConfigurationProperties(), [striped: connectionContext])
+        stripedConnectionManager.start()
+
+        RabbitMessagePublisher rabbitMessagePublisher = new RabbitMessagePublisher(stripedConnectionManager, new MessageConverterManager([new StringMessageConverter()]))
+
+        when:
+        30.times { rabbitMessagePublisher.send('exchange', 'key', 'body') }
+
+        then:
+        10 * channels[0].basicPublish('exchange', 'key', _, _)
+        10 * channels[1].basicPublish('exchange', 'key', _, _)
+        10 * channels[2].basicPublish('exchange', 'key', _, _)
+
+        cleanup:
+        rabbitMessagePublisher.stop()
+        stripedConnectionManager.stop()
+    }
+
     def 'Attempting to send a message without a routing key or exchange results in an exception'() {
         setup:
         RabbitMessagePublisher rabbitMessagePublisher = new RabbitMessagePublisher(connectionManager, messageConverterManager)
@@ -48,4 +139,563 @@ class RabbitMessagePublisherSpec extends Specification {
         then:
         thrown IllegalArgumentException
     }
+
+    def 'A batch borrows one channel per connection and reports per-message failures'() {
+        setup:
+        Channel fooChannel = Mock(Channel)
+        Channel barChannel = Mock(Channel)
+        PooledChannel fooPooledChannel = Mock(PooledChannel) { getChannel() >> fooChannel; isOpen() >> true }
+        PooledChannel barPooledChannel = Mock(PooledChannel) { getChannel() >> barChannel; isOpen() >> true }
+        RabbitMessagePublisher rabbitMessagePublisher = new RabbitMessagePublisher(connectionManager, messageConverterManager)
+
+        List<RabbitMessageProperties> messages = [
+            new RabbitMessageProperties(connection: 'foo', routingKey: 'a', body: [1] as byte[]),
+            new RabbitMessageProperties(connection: 'foo', body: [2] as byte[]),
+            new RabbitMessageProperties(connection: 'bar', routingKey: 'b', body: [3] as byte[]),
+            new RabbitMessageProperties(connection: 'foo', routingKey: 'c', body: [4] as byte[])
+        ]
+
+        when:
+        BatchPublishResult result = rabbitMessagePublisher.sendAll(messages)
+
+        then:
+        1 * connectionManager.borrowChannel('foo') >> fooPooledChannel
+        1 * connectionManager.borrowChannel('bar') >> barPooledChannel
+        1 * fooChannel.basicPublish('', 'a', _, [1] as byte[])
+        1 * fooChannel.basicPublish('', 'c', _, [4] as byte[])
+        1 * barChannel.basicPublish('', 'b', _, [3] as byte[])
+        1 * fooPooledChannel.close()
+        1 * barPooledChannel.close()
+
+        result.total == 4
+        result.published == 3
+        result.failures.size() == 1
+        result.failures[0].index == 1
+        result.failures[0].cause instanceof IllegalArgumentException
+    }
+
+    def 'A batch applies the blocked policy to every message when the connection is blocked partway through'() {
+        setup:
+        BlockedCallback blocked = null
+        UnblockedCallback unblocked = null
+        List<byte[]> published = []
+        Channel channel = Mock(Channel) {
+            isOpen() >> true
+            basicPublish(*_) >> { arguments ->
+                published << arguments[3]
+
+                if (published.size() == 1) {
+                    blocked.handle('low on memory')
+                }
+            }
+        }
+        Connection connection = Mock(Connection) {
+            isOpen() >> true
+            createChannel() >> channel
+            addBlockedListener(_ as BlockedCallback, _ as UnblockedCallback) >> { BlockedCallback b, UnblockedCallback u ->
+                blocked = b
+                unblocked = u
+                return null
+            }
+        }
+        ConnectionFactory factory = Mock(ConnectionFactory)
+        factory.newConnection((ExecutorService) _) >> connection
+
+        ConnectionConfiguration configuration = new ConnectionConfiguration(uri: URI.create('amqp://localhost'), default: true, blockedPolicy: BlockedPolicy.FAIL_FAST)
+        ConnectionContext connectionContext = new ConnectionContext('foo', configuration, new MockConnectionProvider(factory), null)
+        ConnectionManager blockingConnectionManager = new ConnectionManager(new RabbitConfigurationProperties(), [foo: connectionContext])
+        blockingConnectionManager.start()
+
+        RabbitMessagePublisher rabbitMessagePublisher = new RabbitMessagePublisher(blockingConnectionManager, messageConverterManager)
+
+        List<RabbitMessageProperties> messages = (1..4).collect { new RabbitMessageProperties(routingKey: 'a', body: [it] as byte[]) }
+        Iterator<RabbitMessageProperties> iterator = messages.iterator()
+        Iterator<RabbitMessageProperties> unblocking = [
+            hasNext: { iterator.hasNext() },
+            next   : {
+                RabbitMessageProperties next = iterator.next()
+
+                if (next.is(messages[3])) {
+                    unblocked.handle()
+                }
+
+                return next
+            }
+        ] as Iterator<RabbitMessageProperties>
+
+        when:
+        BatchPublishResult result = rabbitMessagePublisher.sendAll(unblocking)
+
+        then:
+        published == [[1] as byte[], [4] as byte[]]
+        result.total == 4
+        result.published == 2
+        result.failures*.index == [1, 2]
+        result.failures.every { it.cause instanceof ConnectionBlockedException }
+
+        cleanup:
+        rabbitMessagePublisher.stop()
+        blockingConnectionManager.stop()
+    }
+
+    def 'An RPC call on a provided channel over a connection using direct reply-to does not declare a reply queue'() {
+        setup:
+        ConnectionConfiguration configuration = new ConnectionConfiguration(directReplyTo: true)
+        ConnectionContext connectionContext = Mock(ConnectionContext) { getConnectionConfiguration() >> configuration }
+        Channel channel = Mock(Channel)
+        connectionManager.resolveContext(null) >> connectionContext
+        RabbitMessagePublisher rabbitMessagePublisher = new RabbitMessagePublisher(connectionManager, messageConverterManager)
+        Consumer consumer
+
+        when:
+        MessageContext reply = rabbitMessagePublisher.rpc(new RabbitMessageProperties(routingKey: 'foo', body: [1] as byte[], autoConvert: false, channel: channel))
+
+        then:
+        0 * channel.queueDeclare()
+        1 * channel.basicConsume(RpcReplyDispatcher.DIRECT_REPLY_TO_QUEUE, true, '', true, true, null, _) >> {
+            consumer = it[6]
+            return 'tag'
+        }
+        1 * channel.basicPublish('', 'foo', { it.replyTo == RpcReplyDispatcher.DIRECT_REPLY_TO_QUEUE }, [1] as byte[]) >> {
+            Thread.start { consumer.handleDelivery('tag', new Envelope(1, false, '', 'foo'), new BasicProperties(), [2] as byte[]) }
+        }
+        1 * channel.basicCancel('tag')
+        reply.body == [2] as byte[]
+    }
+
+    def 'An asynchronous RPC call completes with the reply without blocking the caller'() {
+        setup:
+        CompletableFuture<MessageContext> reply = new CompletableFuture<>()
+        RpcReplyDispatcher dispatcher = Mock(RpcReplyDispatcher) {
+            getReplyTo() >> 'reply-queue'
+            register('foo-1') >> reply
+        }
+        connectionManager.resolveContext(null) >> Mock(ConnectionContext) { getRpcReplyDispatcher() >> dispatcher }
+        HashedWheelTimer timer = new HashedWheelTimer('test-timer')
+        RabbitMessagePublisher rabbitMessagePublisher = new RabbitMessagePublisher(connectionManager, messageConverterManager, timer)
+
+        when:
+        CompletableFuture<MessageContext> future = rabbitMessagePublisher.rpcAsync(new RabbitMessageProperties(routingKey: 'foo', correlationId: 'foo-1', body: [1] as byte[], autoConvert: false))
+
+        then:
+        1 * dispatcher.publish('', 'foo', { it.replyTo == 'reply-queue' && it.correlationId == 'foo-1' }, [1] as byte[])
+        !future.isDone()
+
+        when:
+        reply.complete(new MessageContext(new BasicProperties(), [2] as byte[]))
+
+        then:
+        future.get(5, TimeUnit.SECONDS).body == [2] as byte[]
+
+        cleanup:
+        timer.stop()
+    }
+
+    def 'An asynchronous RPC call fails with a timeout and releases its pending entry when no reply arrives'() {
+        setup:
+        RpcReplyDispatcher dispatcher = Mock(RpcReplyDispatcher) {
+            getReplyTo() >> 'reply-queue'
+            register('foo-1') >> new CompletableFuture<MessageContext>()
+        }
+        connectionManager.resolveContext(null) >> Mock(ConnectionContext) { getRpcReplyDispatcher() >> dispatcher }
+        HashedWheelTimer timer = new HashedWheelTimer('test-timer')
+        RabbitMessagePublisher rabbitMessagePublisher = new RabbitMessagePublisher(connectionManager, messageConverterManager, timer)
+
+        when:
+        CompletableFuture<MessageContext> future = rabbitMessagePublisher.rpcAsync(new RabbitMessageProperties(routingKey: 'foo', correlationId: 'foo-1', body: [1] as byte[], timeout: 50, autoConvert: false))
+        future.get(5, TimeUnit.SECONDS)
+
+        then:
+        ExecutionException e = thrown ExecutionException
+        e.cause instanceof TimeoutException
+        1 * dispatcher.cancel('foo-1')
+
+        cleanup:
+        timer.stop()
+    }
+
+    def 'Asynchronous RPC calls are tracked while in flight and their latency and timeouts are recorded'() {
+        setup:
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry()
+        CompletableFuture<MessageContext> reply = new CompletableFuture<>()
+        RpcReplyDispatcher dispatcher = Mock(RpcReplyDispatcher) {
+            getReplyTo() >> 'reply-queue'
+            register('foo-1') >> reply
+            register('foo-2') >> new CompletableFuture<MessageContext>()
+        }
+        connectionManager.getContext('c1') >> Mock(ConnectionContext) { getName() >> 'c1' }
+        connectionManager.resolveContext('c1') >> Mock(ConnectionContext) { getRpcReplyDispatcher() >> dispatcher }
+        HashedWheelTimer timer = new HashedWheelTimer('test-timer')
+        RabbitMessagePublisher rabbitMessagePublisher = new RabbitMessagePublisher(connectionManager, messageConverterManager, timer, null, null, meterRegistry)
+
+        when:
+        CompletableFuture<MessageContext> answered = rabbitMessagePublisher.rpcAsync(new RabbitMessageProperties(connection: 'c1', routingKey: 'foo', correlationId: 'foo-1', body: [1] as byte[], autoConvert: false))
+
+        then:
+        meterRegistry.get('rabbitmq.rpc.in.flight').tags('connection', 'c1', 'exchange', 'amq.default', 'routingKey', 'foo').gauge().value() == 1
+
+        when:
+        reply.complete(new MessageContext(new BasicProperties(), [2, 3] as byte[]))
+        answered.get(5, TimeUnit.SECONDS)
+        rabbitMessagePublisher.rpcAsync(new RabbitMessageProperties(connection: 'c1', routingKey: 'foo', correlationId: 'foo-2', body: [1] as byte[], timeout: 50, autoConvert: false)).get(5, TimeUnit.SECONDS)
+
+        then:
+        thrown ExecutionException
+        meterRegistry.get('rabbitmq.rpc.in.flight').tags('connection', 'c1', 'exchange', 'amq.default', 'routingKey', 'foo').gauge().value() == 0
+        meterRegistry.get('rabbitmq.rpc').tags('connection', 'c1', 'exchange', 'amq.default', 'routingKey', 'foo').timer().count() == 1
+        meterRegistry.get('rabbitmq.rpc.reply.size').tags('connection', 'c1', 'exchange', 'amq.default', 'routingKey', 'foo').summary().totalAmount() == 2
+        meterRegistry.get('rabbitmq.rpc.timeouts').tags('connection', 'c1', 'exchange', 'amq.default', 'routingKey', 'foo').counter().count() == 1
+
+        cleanup:
+        timer.stop()
+    }
+
+    def 'RPC calls to the default connection share meters with calls that name it and routing keys beyond the bound share meters'() {
+        setup:
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry()
+        RpcReplyDispatcher dispatcher = Mock(RpcReplyDispatcher) {
+            getReplyTo() >> 'reply-queue'
+            register(_) >> { new CompletableFuture<MessageContext>() }
+        }
+        ConnectionContext connectionContext = Mock(ConnectionContext) {
+            getName() >> 'c1'
+            getRpcReplyDispatcher() >> dispatcher
+        }
+        connectionManager.getContext() >> connectionContext
+        connectionManager.getContext('c1') >> connectionContext
+        connectionManager.resolveContext(_) >> connectionContext
+        HashedWheelTimer timer = new HashedWheelTimer('test-timer')
+        RabbitMessagePublisher rabbitMessagePublisher = new RabbitMessagePublisher(connectionManager, messageConverterManager, timer, null, null, meterRegistry)
+
+        when:
+        rabbitMessagePublisher.rpcAsync(new RabbitMessageProperties(routingKey: 'foo', correlationId: 'foo-1', body: [1] as byte[], autoConvert: false))
+        rabbitMessagePublisher.rpcAsync(new RabbitMessageProperties(connection: 'c1', routingKey: 'foo', correlationId: 'foo-2', body: [1] as byte[], autoConvert: false))
+
+        then:
+        meterRegistry.get('rabbitmq.rpc.in.flight').tags('connection', 'c1', 'exchange', 'amq.default', 'routingKey', 'foo').gauge().value() == 2
+
+        when:
+        (1..20).each {
+            rabbitMessagePublisher.rpcAsync(new RabbitMessageProperties(routingKey: "key-${it}".toString(), correlationId: "key-${it}".toString(), body: [1] as byte[], autoConvert: false))
+        }
+
+        then:
+        meterRegistry.find('rabbitmq.rpc').tags('connection', 'c1', 'exchange', 'amq.default').timers().size() == 9
+        meterRegistry.get('rabbitmq.rpc.in.flight').tags('connection', 'c1', 'exchange', 'amq.default', 'routingKey', 'other').gauge().value() == 13
+
+        cleanup:
+        timer.stop()
+    }
+
+    def 'An asynchronous RPC call on a provided channel results in a failed future'() {
+        setup:
+        RabbitMessagePublisher rabbitMessagePublisher = new RabbitMessagePublisher(connectionManager, messageConverterManager)
+
+        when:
+        CompletableFuture<MessageContext> future = rabbitMessagePublisher.rpcAsync(new RabbitMessageProperties(routingKey: 'foo', channel: Mock(Channel)))
+
+        then:
+        future.isCompletedExceptionally()
+    }
+
+    def 'Fast-path sends share message properties per content type'() {
+        setup:
+        Channel channel = Mock(Channel)
+        PooledChannel pooledChannel = Mock(PooledChannel) { getChannel() >> channel }
+        connectionManager.borrowChannel() >> pooledChannel
+        messageConverterManager.convert(_ as ObjectToByteInput) >> new ObjectToByteResult([1] as byte[], MimeType.valueOf('text/plain;charset=UTF-8'))
+        RabbitMessagePublisher rabbitMessagePublisher = new RabbitMessagePublisher(connectionManager, messageConverterManager)
+        List<BasicProperties> published = []
+
+        when:
+        rabbitMessagePublisher.send('foo', 'bar', 'baz')
+        rabbitMessagePublisher.send('foo', 'bar', 'baz')
+        rabbitMessagePublisher.send('bar', [2] as byte[])
+
+        then:
+        2 * channel.basicPublish('foo', 'bar', _, [1] as byte[]) >> { published << it[2] }
+        1 * channel.basicPublish('', 'bar', _, [2] as byte[]) >> { published << it[2] }
+        3 * pooledChannel.close()
+        published[0].is(published[1])
+        published[0].contentType == 'text/plain;charset=UTF-8'
+        published[2].contentType == null
+        published[2].headers == [:]
+    }
+
+    def 'Sends are appended to the outbox instead of being published when an outbox is configured'() {
+        setup:
+        Outbox outbox = Mock(Outbox)
+        messageConverterManager.convert(_ as ObjectToByteInput) >> new ObjectToByteResult([1] as byte[], MimeType.valueOf('text/plain'))
+        RabbitMessagePublisher rabbitMessagePublisher = new RabbitMessagePublisher(connectionManager, messageConverterManager, new HashedWheelTimer('test'), outbox)
+
+        when:
+        rabbitMessagePublisher.send('foo', 'bar', 'baz')
+        rabbitMessagePublisher.send(new RabbitMessageProperties(connection: 'c1', routingKey: 'bar', body: 'baz'))
+
+        then:
+        1 * outbox.append(null, 'foo', 'bar', _ as BasicProperties, [1] as byte[])
+        1 * outbox.append('c1', '', 'bar', _ as BasicProperties, [1] as byte[])
+        0 * connectionManager.borrowChannel(*_)
+    }
+
+    def 'A send buffered by a blocked connection is not published on a pooled channel'() {
+        setup:
+        messageConverterManager.convert(_ as ObjectToByteInput) >> new ObjectToByteResult([1] as byte[], MimeType.valueOf('text/plain'))
+        RabbitMessagePublisher rabbitMessagePublisher = new RabbitMessagePublisher(connectionManager, messageConverterManager)
+
+        when:
+        rabbitMessagePublisher.send('foo', 'bar', 'baz')
+
+        then:
+        1 * connectionManager.deferIfBlocked(null, 'foo', 'bar', _ as BasicProperties, [1] as byte[]) >> new CompletableFuture<Void>()
+        0 * connectionManager.borrowChannel(*_)
+    }
+
+    def 'A send that exceeds a non-blocking rate limit fails without publishing'() {
+        setup:
+        RabbitConfigurationProperties configuration = new RabbitConfigurationProperties(connections: [
+            foo: new ConnectionConfiguration(isDefault: true, rateLimit: new RateLimitConfiguration(messagesPerSecond: 1, burst: 1000, blocking: false))
+        ])
+        Channel channel = Mock(Channel)
+        connectionManager.borrowChannel() >> Mock(PooledChannel) { getChannel() >> channel }
+        RabbitMessagePublisher rabbitMessagePublisher = new RabbitMessagePublisher(connectionManager, messageConverterManager,
+            new HashedWheelTimer('test'), null, new PublishRateLimiters(configuration, null))
+
+        when:
+        rabbitMessagePublisher.send('foo', 'bar', [1] as byte[])
+
+        then:
+        1 * channel.basicPublish('foo', 'bar', _, [1] as byte[])
+
+        when:
+        rabbitMessagePublisher.send('foo', 'bar', [1] as byte[])
+
+        then:
+        thrown RateLimitExceededException
+        0 * channel.basicPublish(*_)
+    }
+
+    def 'Sends are timed and sized per connection and exchange, and failures are counted by type'() {
+        setup:
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry()
+        Channel channel = Mock(Channel)
+        connectionManager.getContext('c1') >> Mock(ConnectionContext) { getName() >> 'c1' }
+        connectionManager.borrowChannel('c1') >> Mock(PooledChannel) { getChannel() >> channel }
+        messageConverterManager.convert(_ as ObjectToByteInput) >> new ObjectToByteResult([1, 2, 3] as byte[], MimeType.valueOf('text/plain'))
+        RabbitMessagePublisher rabbitMessagePublisher = new RabbitMessagePublisher(connectionManager, messageConverterManager,
+            new HashedWheelTimer('test'), null, null, meterRegistry)
+
+        when:
+        2.times { rabbitMessagePublisher.send(new RabbitMessageProperties(connection: 'c1', exchange: 'foo', routingKey: 'bar', body: 'baz')) }
+        rabbitMessagePublisher.send(new RabbitMessageProperties(connection: 'c1', exchange: 'foo', routingKey: 'bar', body: 'baz'))
+
+        then:
+        2 * channel.basicPublish('foo', 'bar', _, [1, 2, 3] as byte[])
+        1 * channel.basicPublish('foo', 'bar', _, [1, 2, 3] as byte[]) >> { throw new IOException() }
+        thrown IOException
+        meterRegistry.get('rabbitmq.publish').tags('connection', 'c1', 'exchange', 'foo').timer().count() == 2
+        meterRegistry.get('rabbitmq.publish.size').tags('connection', 'c1', 'exchange', 'foo').summary().totalAmount() == 6
+        meterRegistry.get('rabbitmq.publish.errors').tags('connection', 'c1', 'exchange', 'foo', 'type', 'IOException').counter().count() == 1
+    }
+
+    def 'Sends are tagged by the configured connection they are addressed to and unknown connections share one tag'() {
+        setup:
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry()
+        ConnectionContext connectionContext = Mock(ConnectionContext) { getName() >> 'c1' }
+        connectionManager.getContext() >> connectionContext
+        connectionManager.getContext('c1') >> connectionContext
+        connectionManager.getContext(_ as String) >> { String name -> throw new ContextNotFoundException("no connection with name ${name} was found") }
+        connectionManager.borrowChannel({ it != null && it != 'c1' }) >> { throw new ContextNotFoundException('not found') }
+        connectionManager.borrowChannel(*_) >> Mock(PooledChannel) { getChannel() >> Mock(Channel) }
+        RabbitMessagePublisher rabbitMessagePublisher = new RabbitMessagePublisher(connectionManager, messageConverterManager,
+            new HashedWheelTimer('test'), null, null, meterRegistry)
+
+        when:
+        rabbitMessagePublisher.send(new RabbitMessageProperties(exchange: 'foo', body: [1] as byte[]))
+        rabbitMessagePublisher.send(new RabbitMessageProperties(connection: 'c1', exchange: 'foo', body: [1] as byte[]))
+        (1..3).each {
+            try {
+                rabbitMessagePublisher.send(new RabbitMessageProperties(connection: "typo-${it}".toString(), exchange: 'foo', body: [1] as byte[]))
+            }
+            catch (ContextNotFoundException ignored) {
+            }
+        }
+
+        then:
+        meterRegistry.get('rabbitmq.publish').tags('connection', 'c1', 'exchange', 'foo').timer().count() == 2
+        meterRegistry.get('rabbitmq.publish.errors').tags('connection', 'other', 'exchange', 'foo').counter().count() == 3
+        meterRegistry.find('rabbitmq.publish.errors').counters().size() == 1
+    }
+
+    def 'Broadcasting converts the body once and publishes the same bytes to every connection'() {
+        setup:
+        ConfirmChannel fooChannel = Mock(ConfirmChannel)
+        ConfirmChannel barChannel = Mock(ConfirmChannel)
+        connectionManager.resolveContext('foo') >> Mock(ConnectionContext) { getConfirmChannel() >> fooChannel }
+        connectionManager.resolveContext('bar') >> Mock(ConnectionContext) { getConfirmChannel() >> barChannel }
+        connectionManager.resolveContext('baz') >> { throw new ContextNotFoundException('baz') }
+        RabbitMessagePublisher rabbitMessagePublisher = new RabbitMessagePublisher(connectionManager, messageConverterManager)
+        byte[] fooBody
+        byte[] barBody
+
+        when:
+        BroadcastResult result = rabbitMessagePublisher.sendToAll(['foo', 'bar', 'baz'], new RabbitMessageProperties(routingKey: 'rk', body: 'hello'))
+
+        then:
+        1 * messageConverterManager.convert(_ as ObjectToByteInput) >> new ObjectToByteResult([1] as byte[], MimeType.valueOf('text/plain'))
+        1 * fooChannel.publish('', 'rk', _, _) >> {
+            fooBody = it[3]
+            return CompletableFuture.completedFuture(null)
+        }
+        1 * barChannel.publish('', 'rk', _, _) >> {
+            barBody = it[3]
+            CompletableFuture<Void> confirm = new CompletableFuture<>()
+            confirm.completeExceptionally(new IOException())
+            return confirm
+        }
+        fooBody.is(barBody)
+        result.connections == ['foo', 'bar', 'baz']
+        result.succeeded == ['foo']
+        result.failures.keySet() == ['bar', 'baz'] as Set
+        result.failures.bar instanceof IOException
+        result.failures.baz instanceof ContextNotFoundException
+        !result.successful
+    }
+
+    def 'Broadcasting publishes once per resolved connection and fails blocked or throttled connections without waiting'() {
+        setup:
+        ConfirmChannel fooChannel = Mock(ConfirmChannel)
+        ConnectionContext foo = Mock(ConnectionContext) { getConfirmChannel() >> fooChannel }
+        ConnectionContext blocked = Mock(ConnectionContext) { isBlocked() >> true }
+        ConnectionContext throttled = Mock(ConnectionContext)
+        connectionManager.resolveContext('foo') >> foo
+        connectionManager.resolveContext('failed-over') >> foo
+        connectionManager.resolveContext('blocked') >> blocked
+        connectionManager.resolveContext('throttled') >> throttled
+        PublishRateLimiters rateLimiters = Mock(PublishRateLimiters) {
+            tryAcquire('throttled', _, _) >> false
+            tryAcquire(_, _, _) >> true
+        }
+        HashedWheelTimer timer = new HashedWheelTimer('test-timer')
+        RabbitMessagePublisher rabbitMessagePublisher = new RabbitMessagePublisher(connectionManager, messageConverterManager, timer, null, rateLimiters)
+
+        when:
+        BroadcastResult result = rabbitMessagePublisher.sendToAll(['foo', 'failed-over', 'blocked', 'throttled'], new RabbitMessageProperties(routingKey: 'rk', body: [1] as byte[]))
+
+        then:
+        1 * fooChannel.publish('', 'rk', _, _) >> CompletableFuture.completedFuture(null)
+        0 * blocked.getConfirmChannel()
+        0 * throttled.getConfirmChannel()
+        0 * rateLimiters.acquire(*_)
+        result.succeeded == ['foo', 'failed-over']
+        result.failures.blocked instanceof ConnectionBlockedException
+        result.failures.throttled instanceof RateLimitExceededException
+
+        cleanup:
+        timer.stop()
+    }
+
+    def 'An asynchronous broadcast completes once every connection has confirmed or failed'() {
+        setup:
+        CompletableFuture<Void> fooConfirm = new CompletableFuture<>()
+        connectionManager.resolveContext('foo') >> Mock(ConnectionContext) { getConfirmChannel() >> Mock(ConfirmChannel) { publish(*_) >> fooConfirm } }
+        connectionManager.resolveContext('bar') >> Mock(ConnectionContext) { getConfirmChannel() >> Mock(ConfirmChannel) { publish(*_) >> CompletableFuture.completedFuture(null) } }
+        RabbitMessagePublisher rabbitMessagePublisher = new RabbitMessagePublisher(connectionManager, messageConverterManager)
+
+        when:
+        CompletableFuture<BroadcastResult> future = rabbitMessagePublisher.sendToAllAsync(['foo', 'bar'], new RabbitMessageProperties(routingKey: 'rk', body: [1] as byte[]))
+
+        then:
+        !future.isDone()
+
+        when:
+        fooConfirm.complete(null)
+
+        then:
+        future.get().successful
+        future.get().succeeded == ['foo', 'bar']
+    }
+
+    def 'Bodies that reach the compression threshold are published compressed and labelled with their content encoding'() {
+        setup:
+        byte[] large = ('foo ' * 512).bytes
+        Channel channel = Mock(Channel)
+        PooledChannel pooledChannel = Mock(PooledChannel) { getChannel() >> channel }
+        connectionManager.borrowChannel() >> pooledChannel
+        connectionManager.borrowChannel(_) >> pooledChannel
+        CompressionManager compressionManager = new CompressionManager([new GzipCompressor()], 'gzip', 1024)
+        HashedWheelTimer timer = new HashedWheelTimer('test-timer')
+        RabbitMessagePublisher rabbitMessagePublisher = new RabbitMessagePublisher(connectionManager, messageConverterManager, timer, null, null, compressionManager, null)
+        RabbitMessageProperties properties = new RabbitMessageProperties(routingKey: 'foo', body: large)
+        List<BasicProperties> published = []
+        List<byte[]> bodies = []
+
+        when:
+        rabbitMessagePublisher.send(properties)
+        properties.body = [1] as byte[]
+        rabbitMessagePublisher.send(properties)
+        rabbitMessagePublisher.send(new RabbitMessageProperties(routingKey: 'foo', contentEncoding: 'identity', body: large))
+        rabbitMessagePublisher.send('foo', large)
+
+        then:
+        4 * channel.basicPublish('', 'foo', _, _) >> { published << it[2]; bodies << it[3] }
+        published*.contentEncoding == ['gzip', null, 'identity', 'gzip']
+        compressionManager.decompress(bodies[0], 'gzip') == large
+        bodies[1] == [1] as byte[]
+        bodies[2] == large
+        compressionManager.decompress(bodies[3], 'gzip') == large
+        properties.contentEncoding == null
+
+        cleanup:
+        timer.stop()
+    }
+
+    def 'Compressed RPC replies are decompressed before they are converted'() {
+        setup:
+        byte[] text = ('bar ' * 512).bytes
+        CompletableFuture<MessageContext> reply = new CompletableFuture<>()
+        RpcReplyDispatcher dispatcher = Mock(RpcReplyDispatcher) {
+            getReplyTo() >> 'reply-queue'
+            register('foo-1') >> reply
+        }
+        connectionManager.resolveContext(null) >> Mock(ConnectionContext) { getRpcReplyDispatcher() >> dispatcher }
+        HashedWheelTimer timer = new HashedWheelTimer('test-timer')
+        CompressionManager compressionManager = new CompressionManager([new GzipCompressor()], 'gzip', 1024)
+        RabbitMessagePublisher rabbitMessagePublisher = new RabbitMessagePublisher(connectionManager, messageConverterManager, timer, null, null, compressionManager, null)
+
+        when:
+        CompletableFuture<String> future = rabbitMessagePublisher.rpcAsync(new RabbitMessageProperties(routingKey: 'foo', correlationId: 'foo-1', body: [1] as byte[]))
+        reply.complete(new MessageContext(new BasicProperties.Builder().contentType('text/plain').contentEncoding('gzip').build(), compressionManager.compress(text)))
+
+        then:
+        1 * dispatcher.publish('', 'foo', { it.contentEncoding == null }, [1] as byte[])
+        1 * messageConverterManager.convert({ ByteToObjectInput input -> input.bytes == text }) >> new ByteToObjectResult('converted')
+        future.get(5, TimeUnit.SECONDS) == 'converted'
+
+        cleanup:
+        timer.stop()
+    }
+
+    def 'Compressed RPC replies are returned as they arrive when compression is disabled'() {
+        setup:
+        byte[] compressed = new CompressionManager([new GzipCompressor()], 'gzip', 1024).compress(('bar ' * 512).bytes)
+        CompletableFuture<MessageContext> reply = new CompletableFuture<>()
+        RpcReplyDispatcher dispatcher = Mock(RpcReplyDispatcher) {
+            getReplyTo() >> 'reply-queue'
+            register('foo-1') >> reply
+        }
+        connectionManager.resolveContext(null) >> Mock(ConnectionContext) { getRpcReplyDispatcher() >> dispatcher }
+        HashedWheelTimer timer = new HashedWheelTimer('test-timer')
+        RabbitMessagePublisher rabbitMessagePublisher = new RabbitMessagePublisher(connectionManager, messageConverterManager, timer, null, null, null, null)
+
+        when:
+        CompletableFuture<MessageContext> future = rabbitMessagePublisher.rpcAsync(new RabbitMessageProperties(routingKey: 'foo', correlationId: 'foo-1', autoConvert: false, body: [1] as byte[]))
+        reply.complete(new MessageContext(new BasicProperties.Builder().contentEncoding('gzip').build(), compressed))
+
+        then:
+        future.get(5, TimeUnit.SECONDS).body == compressed
+
+        cleanup:
+        timer.stop()
+    }
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.publisher
+
+import reactor.core.publisher.Flux
+import spock.lang.Specification
+
+import java.time.Duration
+import java.util.concurrent.CompletableFuture
+
+class ReactiveRabbitMessagePublisherSpec extends Specification {
+    RabbitMessagePublisher rabbitMessagePublisher
+
+    def setup() {
+        rabbitMessagePublisher = Mock(RabbitMessagePublisher)
+    }
+
+    def 'Demand is bounded by the outstanding-confirm window'() {
+        setup:
+        List<CompletableFuture<Void>> confirms = []
+        rabbitMessagePublisher.sendAsync(_) >> {
+            CompletableFuture<Void> confirm = new CompletableFuture<>()
+            confirms << confirm
+            return confirm
+        }
+        ReactiveRabbitMessagePublisher reactivePublisher = new ReactiveRabbitMessagePublisher(rabbitMessagePublisher, 2)
+        List<ConfirmResult> results = []
+
+        when:
+        reactivePublisher.send(Flux.range(1, 5).map { new RabbitMessageProperties(routingKey: 'foo', body: it) }).subscribe { results << it }
+
+        then:
+        confirms.size() == 2
+        results.isEmpty()
+
+        when:
+        confirms[0].complete(null)
+
+        then:
+        confirms.size() == 3
+        results.size() == 1
+        results[0].confirmed
+        results[0].properties.body == 1
+    }
+
+    def 'A failed message is reported in its result without terminating the stream'() {
+        setup:
+        rabbitMessagePublisher.sendAsync({ it.body == 2 }) >> {
+            CompletableFuture<Void> confirm = new CompletableFuture<>()
+            confirm.completeExceptionally(new IOException())
+            return confirm
+        }
+        rabbitMessagePublisher.sendAsync(_) >> CompletableFuture.completedFuture(null)
+        ReactiveRabbitMessagePublisher reactivePublisher = new ReactiveRabbitMessagePublisher(rabbitMessagePublisher)
+
+        when:
+        List<ConfirmResult> results = reactivePublisher.send(Flux.range(1, 3).map { new RabbitMessageProperties(routingKey: 'foo', body: it) })
+            .collectList().block(Duration.ofSeconds(5))
+
+        then:
+        results.size() == 3
+        results.findAll { !it.confirmed }*.properties*.body == [2]
+        results.find { !it.confirmed }.cause instanceof IOException
+    }
+
+    def 'Nothing is published until the single-message publish is subscribed to'() {
+        setup:
+        ReactiveRabbitMessagePublisher reactivePublisher = new ReactiveRabbitMessagePublisher(rabbitMessagePublisher)
+        RabbitMessageProperties properties = new RabbitMessageProperties(routingKey: 'foo')
+
+        when:
+        def mono = reactivePublisher.send(properties)
+
+        then:
+        0 * rabbitMessagePublisher.sendAsync(_)
+
+        when:
+        mono.block(Duration.ofSeconds(5))
+
+        then:
+        1 * rabbitMessagePublisher.sendAsync(properties) >> CompletableFuture.completedFuture(null)
+    }
+
+    def 'Cancelling an RPC subscription cancels the pending call'() {
+        setup:
+        CompletableFuture<Object> reply = new CompletableFuture<>()
+        rabbitMessagePublisher.rpcAsync(_) >> reply
+        ReactiveRabbitMessagePublisher reactivePublisher = new ReactiveRabbitMessagePublisher(rabbitMessagePublisher)
+
+        when:
+        reactivePublisher.rpc(new RabbitMessageProperties(routingKey: 'foo')).subscribe().dispose()
+
+        then:
+        reply.isCancelled()
+    }
+}
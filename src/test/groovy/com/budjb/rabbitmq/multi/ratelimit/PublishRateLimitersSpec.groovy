@@ -0,0 +1,151 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.ratelimit
+
+import com.budjb.rabbitmq.multi.config.ConnectionConfiguration
+import com.budjb.rabbitmq.multi.config.RabbitConfigurationProperties
+import com.budjb.rabbitmq.multi.config.RateLimitConfiguration
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+
+class PublishRateLimitersSpec extends Specification {
+    SimpleMeterRegistry registry = new SimpleMeterRegistry()
+
+    PublishRateLimiters createLimiters(RateLimitConfiguration connectionLimit, Map<String, RateLimitConfiguration> exchangeLimits = [:]) {
+        RabbitConfigurationProperties properties = new RabbitConfigurationProperties()
+        properties.connections = [
+            foo: new ConnectionConfiguration(isDefault: true, rateLimit: connectionLimit, exchangeRateLimits: exchangeLimits),
+            bar: new ConnectionConfiguration()
+        ]
+        return new PublishRateLimiters(properties, registry)
+    }
+
+    def 'No limiters are created when no limits are configured'() {
+        setup:
+        PublishRateLimiters limiters = createLimiters(new RateLimitConfiguration())
+
+        expect:
+        limiters.empty
+        limiters.getRateLimiter('foo', 'ex') == null
+    }
+
+    def 'Exchange limits are selected by exchange and the default connection is used for unnamed publishes'() {
+        setup:
+        PublishRateLimiters limiters = createLimiters(
+            new RateLimitConfiguration(messagesPerSecond: 10),
+            [audit: new RateLimitConfiguration(messagesPerSecond: 5)]
+        )
+
+        expect:
+        limiters.getRateLimiter('foo', 'ex') != null
+        limiters.getRateLimiter(null, 'ex').is(limiters.getRateLimiter('foo', 'ex'))
+        limiters.getRateLimiter('foo', 'audit') != null
+        !limiters.getRateLimiter('foo', 'audit').is(limiters.getRateLimiter('foo', 'ex'))
+        limiters.getRateLimiter('bar', 'ex') == null
+    }
+
+    def 'Messages published to an exchange with its own limit are also charged against the connection limit'() {
+        setup:
+        PublishRateLimiters limiters = createLimiters(
+            new RateLimitConfiguration(messagesPerSecond: 1, burst: 5000, blocking: false),
+            [audit: new RateLimitConfiguration(messagesPerSecond: 1000, burst: 1000, blocking: false)]
+        )
+
+        when:
+        int allowed = (1..20).count { limiters.getRateLimiter('foo', 'audit').tryAcquire(0) }
+
+        then:
+        allowed in 5..6
+        !limiters.getRateLimiter('foo', 'ex').tryAcquire(0)
+    }
+
+    def 'A message rejected by the connection limit does not consume the exchange limit'() {
+        setup:
+        RateLimiter connection = new RateLimiter('foo', null, new RateLimitConfiguration(messagesPerSecond: 1, burst: 1000, blocking: false), null)
+        RateLimiter exchange = new RateLimiter('foo', 'audit', new RateLimitConfiguration(messagesPerSecond: 1, burst: 3000, blocking: false), null, connection)
+
+        when:
+        int allowed = (1..10).count { exchange.tryAcquire(0) }
+        int remaining = (1..10).count { exchange.messages.tryAcquire(1) }
+
+        then:
+        allowed == 1
+        remaining in 2..3
+    }
+
+    def 'A non-blocking limit rejects messages beyond the burst and counts them'() {
+        setup:
+        PublishRateLimiters limiters = createLimiters(new RateLimitConfiguration(messagesPerSecond: 10, burst: 100, blocking: false))
+
+        when:
+        limiters.acquire('foo', 'ex', 0)
+
+        then:
+        noExceptionThrown()
+
+        when:
+        10.times { limiters.acquire('foo', 'ex', 0) }
+
+        then:
+        thrown RateLimitExceededException
+        registry.get('rabbitmq.publish.throttle.rejected').tag('connection', 'foo').tag('exchange', '*').counter().count() == 1
+    }
+
+    def 'A blocking limit waits for permits and records the wait'() {
+        setup:
+        PublishRateLimiters limiters = createLimiters(new RateLimitConfiguration(bytesPerSecond: 1000, burst: 10))
+
+        when:
+        long start = System.nanoTime()
+        limiters.acquire('foo', 'ex', 10)
+        limiters.acquire('foo', 'ex', 50)
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+
+        then:
+        elapsed >= 40
+        registry.get('rabbitmq.publish.throttle').tag('connection', 'foo').timer().count() == 1
+    }
+
+    def 'A blocking limit rejects messages that would wait longer than the maximum wait'() {
+        setup:
+        PublishRateLimiters limiters = createLimiters(new RateLimitConfiguration(messagesPerSecond: 1, burst: 1, maxWait: 10))
+        limiters.acquire('foo', 'ex', 0)
+
+        when:
+        limiters.acquire('foo', 'ex', 0)
+
+        then:
+        thrown RateLimitExceededException
+    }
+
+    def 'A message rejected by the byte limit does not consume a message permit'() {
+        setup:
+        RateLimiter limiter = new RateLimiter('foo', null, new RateLimitConfiguration(messagesPerSecond: 1, bytesPerSecond: 10, burst: 100000, blocking: false), null)
+
+        when:
+        boolean first = limiter.tryAcquire(1000)
+        boolean second = limiter.tryAcquire(5)
+        int remaining = (1..200).count { limiter.tryAcquire(0) }
+
+        then:
+        first
+        !second
+        remaining in 99..100
+    }
+}
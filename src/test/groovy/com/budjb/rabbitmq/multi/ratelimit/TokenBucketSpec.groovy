@@ -0,0 +1,127 @@
+/*
+ * Copyright 2019 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.rabbitmq.multi.ratelimit
+
+import spock.lang.Specification
+
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class TokenBucketSpec extends Specification {
+    def 'A full bucket allows a burst and then rejects until permits are replenished'() {
+        setup:
+        TokenBucket bucket = new TokenBucket(100, 100)
+
+        when:
+        int allowed = (1..50).count { bucket.tryAcquire(1) }
+
+        then:
+        allowed >= 10
+        allowed <= 12
+
+        when:
+        sleep(50)
+
+        then:
+        bucket.tryAcquire(1)
+    }
+
+    def 'Reserving beyond the burst returns the time to wait'() {
+        setup:
+        TokenBucket bucket = new TokenBucket(1000, 100)
+        bucket.reserve(100, 0)
+
+        when:
+        long wait = bucket.reserve(100, TimeUnit.SECONDS.toNanos(1))
+
+        then:
+        wait > TimeUnit.MILLISECONDS.toNanos(50)
+        wait <= TimeUnit.MILLISECONDS.toNanos(100)
+    }
+
+    def 'A reservation that would wait too long reserves nothing'() {
+        setup:
+        TokenBucket bucket = new TokenBucket(10, 200)
+        bucket.reserve(1, 0)
+
+        when:
+        long rejected = bucket.reserve(10, TimeUnit.MILLISECONDS.toNanos(10))
+
+        then:
+        rejected == -1
+        bucket.reserve(1, 0) == 0
+    }
+
+    def 'A request larger than the burst is allowed when the bucket is full'() {
+        setup:
+        TokenBucket bucket = new TokenBucket(1000, 10)
+
+        expect:
+        bucket.tryAcquire(1000)
+        !bucket.tryAcquire(1)
+    }
+
+    def 'Refunded permits can be taken again'() {
+        setup:
+        TokenBucket bucket = new TokenBucket(10, 100)
+        bucket.tryAcquire(1)
+
+        when:
+        bucket.refund(1)
+
+        then:
+        bucket.tryAcquire(1)
+    }
+
+    def 'Concurrent acquirers never take more than the burst'() {
+        setup:
+        TokenBucket bucket = new TokenBucket(1, 100000)
+        AtomicInteger allowed = new AtomicInteger()
+        def executor = Executors.newFixedThreadPool(8)
+
+        when:
+        8.times {
+            executor.submit {
+                1000.times {
+                    if (bucket.tryAcquire(1)) {
+                        allowed.incrementAndGet()
+                    }
+                }
+            }
+        }
+        executor.shutdown()
+        executor.awaitTermination(10, TimeUnit.SECONDS)
+
+        then:
+        allowed.get() >= 100
+        allowed.get() <= 101
+    }
+
+    def 'Invalid rates are rejected'() {
+        when:
+        new TokenBucket(rate, burst)
+
+        then:
+        thrown IllegalArgumentException
+
+        where:
+        rate | burst
+        0    | 1000
+        10   | 0
+    }
+}